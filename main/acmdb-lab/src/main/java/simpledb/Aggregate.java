@@ -1,28 +1,30 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min) over any number of columns, grouped by any number of columns, with a
+ * {@link HashAggregator}.  The single-column accessors describe the first
+ * aggregate and the first group-by column.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
-    private DbIterator child, aggregatorIterator;
-    private int afield, gfield;
-    private Aggregator.Op aop;
+    private DbIterator child;
+    private final int[] afields, gfields;
+    private final Aggregator.Op[] aops;
+    private final int memoryGroups;
+    // the names of the aggregate columns, or null to name them after aops
+    private final String[] anames;
+    private transient HashAggregator aggregator;
+    private transient DbFileIterator aggregatorIterator;
 
     /**
      * Constructor.
      * 
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
-     * 
-     * 
      * @param child
      *            The DbIterator that is feeding us tuples.
      * @param afield
@@ -34,12 +36,69 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Constructor for an aggregate whose column is named aname rather than
+     * after aop and the column of the child, as the final phase of an
+     * aggregate computed in two phases is named after the aggregate it
+     * completes.
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop, String aname) {
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop }, HashAggregator.DEFAULT_MEMORY_GROUPS,
+                new String[] { aname });
+    }
+
+    /**
+     * Constructor for several aggregates and group-by columns.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator to use for each column of afields
+     * @throws IllegalArgumentException
+     *             if an aggregation operator cannot be computed over its column
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, HashAggregator.DEFAULT_MEMORY_GROUPS);
+    }
+
+    /**
+     * Constructor for an aggregate that holds at most memoryGroups groups in
+     * memory.
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops,
+            int memoryGroups) {
+        this(child, afields, gfields, aops, memoryGroups, null);
+    }
+
+    private Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops,
+            int memoryGroups, String[] anames) {
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+        this.memoryGroups = memoryGroups;
+        this.anames = anames;
+        HashAggregator.checkAggregates(child.getTupleDesc(), afields, aops);
+    }
 
-        this.aggregatorIterator = null;
+    /**
+     * @return the name of the column of the aggregate aop over the column
+     *         named fieldName
+     */
+    public static String columnName(Aggregator.Op aop, String fieldName) {
+        return aop.toString() + "(" + fieldName + ")";
     }
 
     /**
@@ -48,7 +107,15 @@ public class Aggregate extends Operator {
      *         {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
-        return this.gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /**
+     * @return the group-by field indexes in the <b>INPUT</b> tuples; empty if
+     *         there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
@@ -57,14 +124,21 @@ public class Aggregate extends Operator {
      *         null;
      * */
     public String groupFieldName() {
-        return (this.gfield == Aggregator.NO_GROUPING) ? null : child.getTupleDesc().getFieldName(gfield);
+        return gfields.length == 0 ? null : child.getTupleDesc().getFieldName(gfields[0]);
     }
 
     /**
      * @return the aggregate field
      * */
     public int aggregateField() {
-        return this.afield;
+        return afields[0];
+    }
+
+    /**
+     * @return the aggregate field indexes in the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
     }
 
     /**
@@ -72,14 +146,21 @@ public class Aggregate extends Operator {
      *         tuples
      * */
     public String aggregateFieldName() {
-        return child.getTupleDesc().getFieldName(afield);
+        return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
      * @return return the aggregate operator
      * */
     public Aggregator.Op aggregateOp() {
-        return this.aop;
+        return aops[0];
+    }
+
+    /**
+     * @return the aggregate operator of each aggregate field
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -91,28 +172,26 @@ public class Aggregate extends Operator {
         if (child == null) throw new NoSuchElementException("Child is null.");
         child.open();
         super.open();
-        aggregatorIterator = null;
+        closeAggregator();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple: the values of the group by fields, if any,
+     * followed by the results of the aggregates.  Should return null if
+     * there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         if (aggregatorIterator == null) {
             if (child == null) return null;
-            
-            Aggregator aggregator = null;
-            Type gfieldtype = (gfield == Aggregator.NO_GROUPING) ? null : child.getTupleDesc().getFieldType(gfield);
-            
-            aggregator = (child.getTupleDesc().getFieldType(afield).equals(Type.INT_TYPE)) ? 
-                new IntegerAggregator(gfield, gfieldtype, afield, aop) :
-                new StringAggregator(gfield, gfieldtype, afield, aop);
-
-            while (child.hasNext()) aggregator.mergeTupleIntoGroup(child.next());
+
+            aggregator = new HashAggregator(child.getTupleDesc(), gfields, afields, aops, memoryGroups);
+            try {
+                TupleBatch batch;
+                while ((batch = child.nextBatch()) != null)
+                    for (int i = 0; i < batch.size(); i++) aggregator.add(batch.getTuple(i));
+            } catch (IOException e) {
+                throw new DbException("aggregate cannot spill: " + e.getMessage(), e);
+            }
             aggregatorIterator = aggregator.iterator();
             aggregatorIterator.open();
         }
@@ -122,17 +201,23 @@ public class Aggregate extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        // some code goes here
+        discardReadAhead();
         child.rewind();
-        // super.rewind();
+        closeAggregator();
+    }
+
+    private void closeAggregator() {
+        if (aggregatorIterator != null)
+            aggregatorIterator.close();
         aggregatorIterator = null;
+        if (aggregator != null)
+            aggregator.close();
+        aggregator = null;
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * followed by one integer column per aggregate, or two for SUM_COUNT.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -140,24 +225,35 @@ public class Aggregate extends Operator {
      * iterator.
      */
     public TupleDesc getTupleDesc() {
-        Type[] types;
-        String[] fieldnames;
-        
-        if (gfield == Aggregator.NO_GROUPING) {
-            types = new Type[] {Type.INT_TYPE};
-            fieldnames = new String[] {aop.toString() + "(" + child.getTupleDesc().getFieldName(afield) + ")"};
-        } else {
-            types = new Type[] {child.getTupleDesc().getFieldType(gfield), Type.INT_TYPE};
-            fieldnames = new String[] {child.getTupleDesc().getFieldName(gfield), aop.toString() + "(" + child.getTupleDesc().getFieldName(afield) + ")"};
+        TupleDesc td = child.getTupleDesc();
+        ArrayList<Type> types = new ArrayList<Type>();
+        ArrayList<String> fieldnames = new ArrayList<String>();
+
+        for (int i = 0; i < gfields.length; i++) {
+            types.add(td.getFieldType(gfields[i]));
+            fieldnames.add(td.getFieldName(gfields[i]));
+        }
+        for (int i = 0; i < afields.length; i++) {
+            String name = td.getFieldName(afields[i]);
+            if (aops[i] == Aggregator.Op.SUM_COUNT) {
+                // the partial aggregates of an AVG, for SC_AVG to combine
+                types.add(Type.INT_TYPE);
+                fieldnames.add(columnName(Aggregator.Op.SUM, name));
+                types.add(Type.INT_TYPE);
+                fieldnames.add(columnName(Aggregator.Op.COUNT, name));
+            } else {
+                types.add(Type.INT_TYPE);
+                fieldnames.add(anames != null ? anames[i] : columnName(aops[i], name));
+            }
         }
 
-        return new TupleDesc(types, fieldnames);
+        return new TupleDesc(types.toArray(new Type[0]), fieldnames.toArray(new String[0]));
     }
 
     public void close() {
         super.close();
         child.close();
-        aggregatorIterator = null;
+        closeAggregator();
     }
 
     @Override
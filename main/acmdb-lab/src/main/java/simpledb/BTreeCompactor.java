@@ -0,0 +1,383 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * BTreeCompactor compacts a {@link BTreeFile} online.  It works in small
+ * batches, each a transaction of its own under the normal page locks, so
+ * readers and writers of the tree keep running while it works; a batch that
+ * is aborted, for instance to break a deadlock, is retried.
+ * <p>
+ * Deletes only merge a page with a sibling once it is less than half full,
+ * so a tree that has lost many of its tuples is left with sparse pages, and
+ * the pages it frees stay in the file.  Compaction has three phases:
+ * <ol>
+ * <li>Merge: walk each level of the tree from left to right, starting with
+ * the leaves, and merge every page with its right sibling under the same
+ * parent while both fit on one page filled to the fill factor.  Leaves that
+ * are about half full do not fit two to a page, so a leaf that does not fit
+ * with its right sibling is instead filled from it, and the rest of the
+ * sibling is packed the same way with the leaf after it.  Parents that lose
+ * entries are handled as they are for deletes, and the next level up is
+ * merged once the level below is done.</li>
+ * <li>Relocate: move the pages at the end of the file to the lowest free
+ * page numbers, so that the free pages gather at the end.</li>
+ * <li>Truncate: mark the free pages at the end as used, so that they are not
+ * handed out again, and cut them off the file once that has committed.</li>
+ * </ol>
+ */
+public class BTreeCompactor {
+    /** Default fill factor of merged pages, which leaves room for inserts */
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    /** Default number of pages visited or moved per transaction */
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    /** Number of times in a row a batch may be aborted before giving up */
+    private static final int MAX_RETRIES = 16;
+
+    private enum Phase { MERGE, RELOCATE, TRUNCATE, DONE }
+
+    /** Progress, saved before each batch and restored if it aborts */
+    private static class State implements Cloneable {
+        Phase phase = Phase.MERGE;
+        int level;      // the level being merged, 0 for the leaves
+        Field cursor;   // the next page to merge holds keys greater than this; null for the first
+        int merged, moved, truncated;
+
+        State copy() {
+            try {
+                return (State) clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /** The work of one transaction */
+    private interface Batch {
+        void run(TransactionId tid, HashMap<PageId, Page> dirtypages)
+                throws DbException, IOException, TransactionAbortedException;
+    }
+
+    private final BTreeFile file;
+    private final double fillFactor;
+    private final int batchSize;
+    private State state = new State();
+
+    /**
+     * Create a compactor with the default fill factor and batch size.
+     *
+     * @param file the B+ tree to compact
+     */
+    public BTreeCompactor(BTreeFile file) {
+        this(file, DEFAULT_FILL_FACTOR, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file the B+ tree to compact
+     * @param fillFactor the largest fraction of a page that merging two
+     *        pages may fill, between 0.5 and 1
+     * @param batchSize the number of pages merged or moved per transaction;
+     *        larger batches hold more locks for longer
+     */
+    public BTreeCompactor(BTreeFile file, double fillFactor, int batchSize) {
+        if (fillFactor < 0.5 || fillFactor > 1.0)
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        this.file = file;
+        this.fillFactor = fillFactor;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Run one batch of compaction in a transaction of its own.
+     *
+     * @return false once compaction is complete
+     * @throws DbException if the batch fails, or keeps being aborted
+     */
+    public boolean step() throws DbException, IOException {
+        switch (state.phase) {
+        case MERGE:
+            runTransaction(this::merge);
+            return true;
+        case RELOCATE:
+            runTransaction(this::relocate);
+            return true;
+        case TRUNCATE:
+            truncate();
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    /** Run compaction to completion */
+    public void compact() throws DbException, IOException {
+        while (step())
+            ;
+    }
+
+    /** @return the number of pages freed by merging them into a sibling */
+    public int getPagesMerged() {
+        return state.merged;
+    }
+
+    /** @return the number of pages moved to lower page numbers */
+    public int getPagesMoved() {
+        return state.moved;
+    }
+
+    /** @return the number of pages cut off the end of the file */
+    public int getPagesTruncated() {
+        return state.truncated;
+    }
+
+    /** Run a batch in a transaction of its own, retrying it if it is aborted */
+    private void runTransaction(Batch batch) throws DbException, IOException {
+        for (int attempt = 0; ; attempt++) {
+            State saved = state.copy();
+            Transaction t = new Transaction();
+            t.start();
+            boolean committed = false;
+            try {
+                HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+                batch.run(t.getId(), dirtypages);
+                Database.getBufferPool().markDirty(t.getId(), dirtypages.values());
+                t.commit();
+                committed = true;
+                return;
+            } catch (TransactionAbortedException e) {
+                if (attempt >= MAX_RETRIES)
+                    throw new DbException("compaction was aborted " + attempt + " times in a row");
+            } finally {
+                if (!committed) {
+                    state = saved;
+                    t.abort();
+                }
+            }
+        }
+    }
+
+    /** Merge sparse siblings, visiting at most batchSize pages */
+    private void merge(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        for (int n = 0; n < batchSize && state.phase == Phase.MERGE; n++) {
+            // the internal pages on the path to the cursor, then the leaf
+            ArrayList<BTreeInternalPage> path = new ArrayList<BTreeInternalPage>();
+            BTreePageId pid = file.getRootPtrPage(tid, dirtypages).getRootId();
+            if (pid == null) {
+                // an empty tree has nothing to merge, move or cut off
+                state.phase = Phase.DONE;
+                break;
+            }
+            while (pid.pgcateg() == BTreePageId.INTERNAL) {
+                BTreeInternalPage p = (BTreeInternalPage) file.getPage(tid, dirtypages, pid,
+                        Permissions.READ_ONLY);
+                path.add(p);
+                pid = state.cursor == null ? p.findChild(null) : p.findChild(state.cursor, true);
+            }
+            int parentIdx = path.size() - 1 - state.level;
+            if (parentIdx < 0) {
+                // this level is the root, so every level has been merged
+                state.phase = Phase.RELOCATE;
+                break;
+            }
+            if (state.level > 0)
+                pid = path.get(parentIdx + 1).getId();
+            BTreeInternalPage parent = path.get(parentIdx);
+
+            // the entry between the page and its right sibling
+            BTreeEntry entry = null;
+            boolean last = true;
+            Iterator<BTreeEntry> it = parent.iterator();
+            while (it.hasNext() && last) {
+                BTreeEntry e = it.next();
+                if (entry != null)
+                    last = false;
+                else if (e.getLeftChild().equals(pid))
+                    entry = e;
+            }
+            if (entry == null) {
+                // the last child of its parent: go on to the first child of
+                // the next parent, after the key that separates them
+                state.cursor = separatorAfter(path, parentIdx);
+                if (state.cursor == null)
+                    state.level++;
+            }
+            else if (pack(tid, dirtypages, parent, entry, last)) {
+                // stay on the same page, which may take more from its new right sibling
+                state.merged++;
+            }
+            else {
+                // the key of the entry has moved if tuples were shifted
+                state.cursor = entry.getKey();
+            }
+        }
+    }
+
+    /**
+     * @return the key in an ancestor that separates the internal page
+     *         path[idx] from the page after it at the same level, or null if
+     *         it is the last page of its level
+     */
+    private static Field separatorAfter(ArrayList<BTreeInternalPage> path, int idx) {
+        for (int a = idx - 1; a >= 0; a--) {
+            BTreePageId child = path.get(a + 1).getId();
+            Iterator<BTreeEntry> it = path.get(a).iterator();
+            while (it.hasNext()) {
+                BTreeEntry e = it.next();
+                if (e.getLeftChild().equals(child))
+                    return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pack the two children of an entry of a parent.  They are merged if they
+     * fit on one page at the fill factor.  Otherwise, for leaves, tuples move
+     * from the right child to the left one until it is filled to the fill
+     * factor; the right child may then be left less than half full, to be
+     * packed with its own right sibling next, unless it is the last child of
+     * the parent.  Pages are read first, and only locked for writing if they
+     * are changed.
+     *
+     * @param last true if the right child is the last child of the parent
+     * @return true if a page was freed
+     */
+    private boolean pack(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreeInternalPage parent, BTreeEntry entry, boolean last)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreePageId leftId = entry.getLeftChild();
+        BTreePageId rightId = entry.getRightChild();
+        if (leftId.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage left = (BTreeInternalPage) file.getPage(tid, dirtypages, leftId, Permissions.READ_ONLY);
+            BTreeInternalPage right = (BTreeInternalPage) file.getPage(tid, dirtypages, rightId, Permissions.READ_ONLY);
+            if (!left.canMergeWith(right, entry.getKey(), fillFactor))
+                return false;
+            file.mergeInternalPages(tid, dirtypages,
+                    (BTreeInternalPage) file.getPage(tid, dirtypages, leftId, Permissions.READ_WRITE),
+                    (BTreeInternalPage) file.getPage(tid, dirtypages, rightId, Permissions.READ_WRITE),
+                    (BTreeInternalPage) file.getPage(tid, dirtypages, parent.getId(), Permissions.READ_WRITE),
+                    entry);
+            return true;
+        }
+
+        BTreeLeafPage left = (BTreeLeafPage) file.getPage(tid, dirtypages, leftId, Permissions.READ_ONLY);
+        BTreeLeafPage right = (BTreeLeafPage) file.getPage(tid, dirtypages, rightId, Permissions.READ_ONLY);
+        int l = left.getNumTuples();
+        int r = right.getNumTuples();
+        int max = left.getMaxTuples();
+        int full = (int) (fillFactor * max);
+        // a left page below half full was left so by the step before; the
+        // last page of a parent has nothing after it to fill it again, so
+        // rather overfill it a little
+        if (r > 0 && (l + r <= full || (last && l < max / 2 && l + r <= max))) {
+            file.mergeLeafPages(tid, dirtypages,
+                    (BTreeLeafPage) file.getPage(tid, dirtypages, leftId, Permissions.READ_WRITE),
+                    (BTreeLeafPage) file.getPage(tid, dirtypages, rightId, Permissions.READ_WRITE),
+                    (BTreeInternalPage) file.getPage(tid, dirtypages, parent.getId(), Permissions.READ_WRITE),
+                    entry);
+            return true;
+        }
+
+        int shift = Math.min(full - l, r - 1);
+        if (last)
+            shift = Math.min(shift, r - max / 2);
+        if (shift > 0) {
+            file.shiftTuplesLeft(
+                    (BTreeLeafPage) file.getPage(tid, dirtypages, leftId, Permissions.READ_WRITE),
+                    (BTreeLeafPage) file.getPage(tid, dirtypages, rightId, Permissions.READ_WRITE),
+                    (BTreeInternalPage) file.getPage(tid, dirtypages, parent.getId(), Permissions.READ_WRITE),
+                    entry, shift);
+        }
+        return false;
+    }
+
+    /** Move at most batchSize pages from the end of the file to free pages */
+    private void relocate(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        TreeMap<Integer, BTreePageId> pages = pagesInUse(tid, dirtypages);
+        for (int n = 0; n < batchSize; n++) {
+            int free = file.getFirstFreePageNo(tid, dirtypages);
+            Map.Entry<Integer, BTreePageId> last = pages.lastEntry();
+            if (last == null || free < 1 || free > last.getKey()) {
+                state.phase = Phase.TRUNCATE;
+                return;
+            }
+            BTreePageId moved = file.relocatePage(tid, dirtypages, last.getValue(), free);
+            pages.remove(last.getKey());
+            pages.put(free, moved);
+            state.moved++;
+        }
+    }
+
+    /**
+     * Mark the free pages at the end of the file as used, and once that has
+     * committed, cut them off.  If the file grew in between, the pages are
+     * freed again instead.
+     */
+    private void truncate() throws DbException, IOException {
+        final int[] range = new int[2];
+        runTransaction((tid, dirtypages) -> {
+            TreeMap<Integer, BTreePageId> pages = pagesInUse(tid, dirtypages);
+            int last = pages.isEmpty() ? 0 : pages.lastKey();
+            int numPages = file.numPages();
+            int keep = numPages;
+            while (keep > last && file.isPageFree(tid, dirtypages, keep))
+                keep--;
+            for (int pageNo = keep + 1; pageNo <= numPages; pageNo++)
+                file.markPageUsed(tid, dirtypages, pageNo);
+            range[0] = keep;
+            range[1] = numPages;
+        });
+        if (range[0] < range[1]) {
+            if (file.truncate(range[0], range[1])) {
+                state.truncated += range[1] - range[0];
+            }
+            else {
+                runTransaction((tid, dirtypages) -> {
+                    for (int pageNo = range[0] + 1; pageNo <= range[1]; pageNo++)
+                        file.setEmptyPage(tid, dirtypages, pageNo);
+                });
+            }
+        }
+        state.phase = Phase.DONE;
+    }
+
+    /** @return the pages of the tree and the header pages, by page number */
+    private TreeMap<Integer, BTreePageId> pagesInUse(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        TreeMap<Integer, BTreePageId> pages = new TreeMap<Integer, BTreePageId>();
+        BTreeRootPtrPage rootPtr = file.getRootPtrPage(tid, dirtypages);
+        for (BTreePageId id = rootPtr.getHeaderId(); id != null; ) {
+            pages.put(id.pageNumber(), id);
+            id = ((BTreeHeaderPage) file.getPage(tid, dirtypages, id, Permissions.READ_ONLY)).getNextPageId();
+        }
+        ArrayDeque<BTreePageId> queue = new ArrayDeque<BTreePageId>();
+        if (rootPtr.getRootId() != null)
+            queue.add(rootPtr.getRootId());
+        while (!queue.isEmpty()) {
+            BTreePageId id = queue.poll();
+            pages.put(id.pageNumber(), id);
+            if (id.pgcateg() != BTreePageId.INTERNAL)
+                continue;
+            BTreeInternalPage p = (BTreeInternalPage) file.getPage(tid, dirtypages, id, Permissions.READ_ONLY);
+            Iterator<BTreeEntry> it = p.iterator();
+            boolean first = true;
+            while (it.hasNext()) {
+                BTreeEntry e = it.next();
+                if (first)
+                    queue.add(e.getLeftChild());
+                first = false;
+                queue.add(e.getRightChild());
+            }
+        }
+        return pages;
+    }
+}
@@ -22,7 +22,8 @@ public class BTreeEntry implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	/**
-	 * The key of this entry
+	 * The key of this entry; a {@link CompositeField} in a B+ tree keyed on
+	 * several fields
 	 * */
 	private Field key;
 
@@ -24,7 +24,8 @@ public class BTreeFile implements DbFile {
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
-	private int keyField;
+	private final int[] keyFields;
+	private final PageChecksums checksums;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -35,10 +36,27 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields.  Tuples are ordered
+	 * lexicographically on the key fields, and internal pages store keys as
+	 * {@link CompositeField}s.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keyFields - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keyFields, TupleDesc td) {
+		if (keyFields.length == 0)
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keyFields.clone();
 		this.td = td;
+		this.checksums = PageChecksums.of(f);
 	}
 
 	/**
@@ -94,6 +112,7 @@ public class BTreeFile implements DbFile {
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
+				verify(id, pageBuf);
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
@@ -113,12 +132,13 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
+				verify(id, pageBuf);
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
@@ -139,6 +159,12 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	private void verify(BTreePageId id, byte[] pageBuf) throws IOException {
+		if (!checksums.verify(id.pageNumber(), pageBuf))
+			throw new IllegalStateException("checksum mismatch: page " + id.pageNumber()
+					+ " of " + f + " is torn or corrupt");
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -149,6 +175,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
+		checksums.record(id.pageNumber(), data);
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 			rf.write(data);
@@ -170,14 +197,30 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on; for a
+	 * composite key, the most significant field
 	 */
 	public int keyField() {
-		return keyField;
+		return keyFields[0];
+	}
+
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, most
+	 * significant first
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple of this B+ tree
+	 */
+	public Field keyOf(Tuple t) {
+		return CompositeField.of(t, keyFields);
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
+	 * Finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
 	 * leaf node with permission perm.
@@ -195,39 +238,29 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-		BTreePageId nextId = null;
-
-		switch (pid.pgcateg()) {
-			case BTreePageId.LEAF: // end of recursive
-				return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
-			case BTreePageId.INTERNAL:
-				BTreeInternalPage page = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-				Iterator<BTreeEntry> iter = page.iterator();
-				
-				if (iter == null || !iter.hasNext()) throw new DbException("Illegal entry iterator.");
-				if (f == null) {
-					nextId = iter.next().getLeftChild();
-					break;
-				}
+		return findLeafPage(tid, dirtypages, pid, perm, f, false);
+	}
 
-				BTreeEntry entry = null;
-				while (iter.hasNext()) {
-					entry = iter.next();
-					if (entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-						nextId = entry.getLeftChild();
-						break;
-					}
-				}
-				if (nextId == null) nextId = entry.getRightChild();
-				break;
-			case BTreePageId.HEADER:
-			case BTreePageId.ROOT_PTR:
-			default:
-				throw new DbException("Illegal pageid type.");
+	/**
+	 * Finds and locks the left-most or the right-most leaf page possibly containing
+	 * the key field f, locking the pages along the path as 
+	 * {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)} does.
+	 * 
+	 * @param last - whether to find the right-most leaf page possibly containing f, or
+	 *        the right-most leaf page if f is null
+	 * @see BTreeInternalPage#findChild(Field, boolean)
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+			Field f, boolean last) 
+					throws DbException, TransactionAbortedException {
+		// descend one level per iteration, choosing the child by binary search
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			pid = page.findChild(f, last);
 		}
-
-		return findLeafPage(tid, dirtypages, nextId, perm, f);
+		if (pid.pgcateg() != BTreePageId.LEAF)
+			throw new DbException("Illegal pageid type.");
+		return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
 	}
 	
 	/**
@@ -248,10 +281,27 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Convenience method to find the right-most leaf page possibly containing the
+	 * key field f, when there is no dirtypages HashMap.  Used by reverse scans.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the current page being searched
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the right-most leaf page
+	 * @return the right-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
+			Field f) 
+					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f, true);
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
-	 * of the first tuple in the right-hand page (the key is "copied up"), and child pointers 
+	 * of the first tuple in the right-hand page (the key is "copied up", shortened by
+	 * {@link BTreeInternalPage#shortestSeparator} for string keys), and child pointers 
 	 * pointing to the two leaf pages resulting from the split.  Update sibling pointers and parent 
 	 * pointers as needed.  
 	 * 
@@ -282,11 +332,12 @@ public class BTreeFile implements DbFile {
 		// and moving half of the tuples to the new page.  
 		// Move (left half) tuples to the new leaf page
 		int numTuples = page.getNumTuples();
+		Tuple last = null;
 		for (int j = 0; j < numTuples / 2; j ++) {
 			if (!iter.hasNext()) throw new DbException("No more tuples.");
-			Tuple t = iter.next();
-			page.deleteTuple(t);
-			newLeafPage.insertTuple(t);
+			last = iter.next();
+			page.deleteTuple(last);
+			newLeafPage.insertTuple(last);
 		}
 
 		// Set sibling poiters
@@ -302,7 +353,9 @@ public class BTreeFile implements DbFile {
 		// Copy the middle key up into the parent page, and recursively split the parent as needed to accommodate the new entry.
 		// getParentWithEmtpySlots() will be useful here.  
 		// Set the entry (and field) that should be inserted to their parent
-		Field midKey = iter.next().getField(keyField);
+		Field midKey = keyOf(iter.next());
+		if (last != null)
+			midKey = BTreeInternalPage.shortestSeparator(keyOf(last), midKey);
 		BTreeEntry midEntry = new BTreeEntry(midKey, newLeafPage.getId(), page.getId());
 		
 		// Handle the parent and link the (probably new) parent and the leaf nodes
@@ -346,18 +399,23 @@ public class BTreeFile implements DbFile {
 		Iterator<BTreeEntry> iter = page.iterator();
 		if (iter == null || !iter.hasNext()) throw new DbException("Illegal entry iterator while split internal.");
 
-		// Move (left half) entries to the new page
-		int numEntries = page.getNumEntries();
-		for (int j = 0; j < numEntries / 2; j ++) {
+		// Move (left half) entries to the new page, halving the bytes they
+		// take since keys in variable-length form have different sizes
+		BTreeEntry midEntry = null;
+		while (midEntry == null) {
 			if (!iter.hasNext()) throw new DbException("No more entries.");
 			
 			BTreeEntry entry = iter.next();
+			int size = page.getEntrySize(entry.getKey());
+			if (newInternalPage.getUsedBytes() + size > page.getUsedBytes() - size) {
+				midEntry = entry;
+				break;
+			}
 			page.deleteKeyAndLeftChild(entry);
 			newInternalPage.insertEntry(entry);
 		}
 
 		// Pick the one in the middle
-		BTreeEntry midEntry  = iter.next();
 		Field midKey = midEntry.getKey();
 		page.deleteKeyAndLeftChild(midEntry);
 		midEntry = new BTreeEntry(midKey, newInternalPage.getId(), page.getId());
@@ -536,9 +594,9 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, keyOf(t));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, keyOf(t));	
 		}
 
 		// insert the tuple into the leaf page
@@ -549,6 +607,114 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 	
+	/**
+	 * Insert a batch of tuples into this BTreeFile.  The tuples are sorted by key, and
+	 * all the tuples that belong on one leaf page are inserted after a single descent
+	 * from the root, so a batch of nearly sorted tuples costs about one descent per leaf
+	 * page rather than one per tuple.  When a full leaf page is left with many of the
+	 * batch's tuples to take, all greater than its own, a new page is started after it
+	 * instead of splitting it in half, so loading a run of keys past the end of the
+	 * tree, or into a gap in it, fills pages completely.
+	 * 
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #insertTuple(TransactionId, Tuple)
+	 * @see #appendLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
+	 */
+	public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		ArrayList<Tuple> sorted = new ArrayList<Tuple>(tuples);
+		Collections.sort(sorted, new TupleComparator(keyFields));
+
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		if(rootPtr.getRootId() == null && !sorted.isEmpty()) {
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+		}
+
+		int i = 0;
+		while(i < sorted.size()) {
+			// find the left-most leaf page for the next key, and the greatest key it may hold
+			Field key = keyOf(sorted.get(i));
+			Field upper = null;
+			BTreePageId pid = getRootPtrPage(tid, dirtypages).getRootId();
+			while(pid.pgcateg() == BTreePageId.INTERNAL) {
+				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				Field bound = page.findChildUpperBound(key);
+				if(bound != null)
+					upper = bound;
+				pid = page.findChild(key);
+			}
+			BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+
+			// the tuples from i up to end belong on this leaf page
+			int end = i;
+			while(end < sorted.size() && (upper == null || !keyOf(sorted.get(end)).compare(Op.GREATER_THAN, upper)))
+				end++;
+
+			while(i < end) {
+				Tuple t = sorted.get(i);
+				if(leafPage.getNumEmptySlots() == 0) {
+					Field lastKey = keyOf(leafPage.reverseIterator().next());
+					if(end - i < leafPage.getMaxTuples() / 2 || !keyOf(t).compare(Op.GREATER_THAN, lastKey)) {
+						// an ordinary split; the page for the rest is found again from the root
+						leafPage = splitLeafPage(tid, dirtypages, leafPage, keyOf(t));
+						leafPage.insertTuple(t);
+						i++;
+						break;
+					}
+					leafPage = appendLeafPage(tid, dirtypages, leafPage, keyOf(t));
+				}
+				leafPage.insertTuple(t);
+				i++;
+			}
+		}
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Start a new, empty leaf page to the right of a full one, for a batch insert of
+	 * tuples that are all greater than those on the full page, and insert the entry
+	 * between the two into the parent, splitting it as needed.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the full leaf page
+	 * @param field - the key of the first tuple to insert into the new page, greater
+	 * than every key on page
+	 * @return the new leaf page
+	 * @see #insertTuples(TransactionId, List)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeLeafPage appendLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreeLeafPage page, Field field) 
+					throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage newLeafPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// page -> newLeaf -> right sibling
+		if (page.getRightSiblingId() != null) {
+			BTreeLeafPage neighbor = (BTreeLeafPage) getPage(tid, dirtypages, page.getRightSiblingId(), Permissions.READ_WRITE);
+			neighbor.setLeftSiblingId(newLeafPage.getId());
+		}
+		newLeafPage.setRightSiblingId(page.getRightSiblingId());
+		newLeafPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newLeafPage.getId());
+
+		Field key = BTreeInternalPage.shortestSeparator(keyOf(page.reverseIterator().next()), field);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		parent.insertEntry(new BTreeEntry(key, page.getId(), newLeafPage.getId()));
+		updateParentPointers(tid, dirtypages, parent);
+		return newLeafPage;
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -632,7 +798,7 @@ public class BTreeFile implements DbFile {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
-				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
+				stealFromLeafPage(tid, dirtypages, page, leftSibling, parent, leftEntry, false);
 			}
 		}
 		else if(rightSiblingId != null) {	
@@ -643,7 +809,7 @@ public class BTreeFile implements DbFile {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
-				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
+				stealFromLeafPage(tid, dirtypages, page, rightSibling, parent, rightEntry, true);
 			}
 		}
 	}
@@ -663,8 +829,29 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-		
+		entry.setKey(stealTuples(page, sibling, isRightSibling));
+		parent.updateEntry(entry);
+	}
+
+	/**
+	 * Steal tuples as {@link #stealFromLeafPage(BTreeLeafPage, BTreeLeafPage, BTreeInternalPage, BTreeEntry, boolean)}
+	 * does, splitting the parent if its new key does not fit.
+	 * 
+	 * @see #updateEntryKey(TransactionId, HashMap, BTreeInternalPage, BTreeEntry, Field)
+	 */
+	private void stealFromLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page,
+			BTreeLeafPage sibling, BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling)
+					throws DbException, IOException, TransactionAbortedException {
+		updateEntryKey(tid, dirtypages, parent, entry, stealTuples(page, sibling, isRightSibling));
+	}
+
+	/**
+	 * Move tuples from a sibling to the given page so that the tuples are evenly distributed.
+	 * 
+	 * @return the new key of the parent entry pointing to the two pages
+	 */
+	private Field stealTuples(BTreeLeafPage page, BTreeLeafPage sibling, boolean isRightSibling)
+			throws DbException {
 		// Move some of the tuples from the sibling to the page so that the tuples are evenly distributed. 
 		// make least stealing
 		// int numSteal = page.getMaxTuples() / 2 - page.getNumTuples();
@@ -684,9 +871,99 @@ public class BTreeFile implements DbFile {
 		
 		// Be sure to update the corresponding parent entry.
 		// this tuple has the new key field that should be updated in their parent
-		if (isRightSibling) tuple = iter.next();
-		entry.setKey(tuple.getField(keyField));
+		Tuple left = isRightSibling ? tuple : iter.next();
+		Tuple right = isRightSibling ? iter.next() : tuple;
+		return BTreeInternalPage.shortestSeparator(keyOf(left), keyOf(right));
+	}
+
+	/**
+	 * Move tuples from the start of a leaf page to the end of its left sibling, as part of
+	 * compacting the file, and update the key of the parent entry between them.  Unlike
+	 * stealing tuples after a delete, this never splits the parent: if the new key does
+	 * not fit on it, nothing is moved.
+	 * 
+	 * @param page - the left leaf page, which receives the tuples
+	 * @param rightSibling - its right sibling, which keeps at least one tuple
+	 * @param parent - the parent of the two leaf pages
+	 * @param entry - the entry in the parent pointing to the two leaf pages
+	 * @param numTuples - the number of tuples to move
+	 * @return true if the tuples were moved
+	 * @see BTreeCompactor
+	 * 
+	 * @throws DbException
+	 */
+	boolean shiftTuplesLeft(BTreeLeafPage page, BTreeLeafPage rightSibling, BTreeInternalPage parent,
+			BTreeEntry entry, int numTuples) throws DbException {
+		if(numTuples <= 0 || numTuples >= rightSibling.getNumTuples())
+			throw new DbException("cannot move " + numTuples + " of " + rightSibling.getNumTuples() + " tuples");
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightSibling.iterator();
+		while(moved.size() < numTuples)
+			moved.add(it.next());
+		Field key = BTreeInternalPage.shortestSeparator(keyOf(moved.get(numTuples - 1)), keyOf(it.next()));
+		if(!parent.canUpdateKey(entry, key))
+			return false;
+
+		for(Tuple t : moved) {
+			rightSibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+		entry.setKey(key);
 		parent.updateEntry(entry);
+		return true;
+	}
+
+	/**
+	 * Replace the key of an entry of an internal page.  In variable-length form a longer
+	 * key may not fit on the page: then the page is split first, and the key of the entry
+	 * between the same two children updated wherever it ended up.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the internal page holding the entry
+	 * @param entry - the entry to update
+	 * @param key - the new key
+	 * @see #splitInternalPage(TransactionId, HashMap, BTreeInternalPage, Field)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void updateEntryKey(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreeInternalPage page, BTreeEntry entry, Field key) 
+					throws DbException, IOException, TransactionAbortedException {
+		if (page.canUpdateKey(entry, key)) {
+			entry.setKey(key);
+			page.updateEntry(entry);
+			return;
+		}
+
+		BTreePageId left = entry.getLeftChild();
+		splitInternalPage(tid, dirtypages, page, key);
+		BTreePage leftPage = (BTreePage) getPage(tid, dirtypages, left, Permissions.READ_ONLY);
+		BTreeInternalPage holder = (BTreeInternalPage) getPage(tid, dirtypages, 
+				leftPage.getParentId(), Permissions.READ_WRITE);
+		Iterator<BTreeEntry> it = holder.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (e.getLeftChild().equals(left)) {
+				updateEntryKey(tid, dirtypages, holder, e, key);
+				return;
+			}
+		}
+
+		// the left child is now the right-most child of its page: the entry was pushed up
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, 
+				holder.getParentId(), Permissions.READ_WRITE);
+		it = parent.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (e.getLeftChild().equals(holder.getId())) {
+				updateEntryKey(tid, dirtypages, parent, e, key);
+				return;
+			}
+		}
+		throw new DbException("entry on the right of " + left + " lost while splitting its page");
 	}
 
 	/**
@@ -763,18 +1040,21 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-		int numSteal = (leftSibling.getNumEntries() - page.getNumEntries()) / 2; 
-		if (numSteal <= 0) throw new DbException("Illegal Stealing from leftinternal");
-
+		// steal while it evens out the bytes the entries take (their numbers, for fixed-size keys)
 		Iterator<BTreeEntry> iter = leftSibling.reverseIterator();
 		if (iter == null || !iter.hasNext()) throw new DbException("Illegal entry iterator while stealing.");
 
 		BTreeEntry centerEntry = new BTreeEntry(parentEntry.getKey(), null, page.iterator().next().getLeftChild());
-		for (int j = 0; j < numSteal; ++j) {
+		for (int j = 0; ; ++j) {
 			// Left sibling: XX-L2-L1 -> C1[P] Page : XX
 			// Left sibling: XX-L2 ->  Page : L1-C1[P]-XX
 			if (!iter.hasNext()) throw new DbException("No more entries while stealing.");
 			BTreeEntry leftEntry = iter.next();
+			if (page.getUsedBytes() + page.getEntrySize(centerEntry.getKey()) 
+					> leftSibling.getUsedBytes() - leftSibling.getEntrySize(leftEntry.getKey())) {
+				// steal at least one: the page is emptier, but maybe by less than two keys
+				if (j > 0) break;
+			}
 
 			centerEntry.setLeftChild(leftEntry.getRightChild());
 			page.insertEntry(centerEntry);
@@ -786,8 +1066,7 @@ public class BTreeFile implements DbFile {
 		}
 
 		// Recover center: <- Page_L
-		parentEntry.setKey(centerEntry.getKey());
-		parent.updateEntry(parentEntry);
+		updateEntryKey(tid, dirtypages, parent, parentEntry, centerEntry.getKey());
 		updateParentPointers(tid, dirtypages, page);
 		updateParentPointers(tid, dirtypages, leftSibling);
 	}
@@ -818,18 +1097,20 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		int numSteal = (rightSibling.getNumEntries() - page.getNumEntries()) / 2; 
-		if (numSteal <= 0) throw new DbException("Illegal Stealing from leftinternal");
-
 		Iterator<BTreeEntry> iter = rightSibling.iterator();
 		if (iter == null || !iter.hasNext()) throw new DbException("Illegal entry iterator while stealing.");
 
 		BTreeEntry centerEntry = new BTreeEntry(parentEntry.getKey(), page.reverseIterator().next().getRightChild(), null);
-		for (int j = 0; j < numSteal; ++j) {
+		for (int j = 0; ; ++j) {
 			// Page : XX -> C1[P] -> Right sibling: R1-R2-XX
 			// Page : XX-C1[P]-R1 -> Right sibling: R2-XX
 			if (!iter.hasNext()) throw new DbException("No more entries while stealing.");
 			BTreeEntry rightEntry = iter.next();
+			if (page.getUsedBytes() + page.getEntrySize(centerEntry.getKey()) 
+					> rightSibling.getUsedBytes() - rightSibling.getEntrySize(rightEntry.getKey())) {
+				// steal at least one: the page is emptier, but maybe by less than two keys
+				if (j > 0) break;
+			}
 
 			centerEntry.setRightChild(rightEntry.getLeftChild());
 			page.insertEntry(centerEntry);
@@ -841,8 +1122,7 @@ public class BTreeFile implements DbFile {
 		}
 
 		// Recover center: <- Page_L
-		parentEntry.setKey(centerEntry.getKey());
-		parent.updateEntry(parentEntry);
+		updateEntryKey(tid, dirtypages, parent, parentEntry, centerEntry.getKey());
 		updateParentPointers(tid, dirtypages, page);
 		updateParentPointers(tid, dirtypages, rightSibling);
 	}
@@ -1033,6 +1313,7 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
+				PageChecksums.discard(f);
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
@@ -1101,6 +1382,7 @@ public class BTreeFile implements DbFile {
 				bw.write(emptyData);
 				bw.close();
 				emptyPageNo = numPages();
+				checksums.forget(emptyPageNo);
 			}
 		}
 
@@ -1134,6 +1416,7 @@ public class BTreeFile implements DbFile {
 		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
 		rf.write(BTreePage.createEmptyPageData());
 		rf.close();
+		checksums.forget(emptyPageNo);
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1198,7 +1481,7 @@ public class BTreeFile implements DbFile {
 
 		// iterate through all the existing header pages to find the one containing the slot
 		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
@@ -1208,7 +1491,7 @@ public class BTreeFile implements DbFile {
 		// at this point headerId should either be null or set with 
 		// the headerPage containing the slot corresponding to emptyPageNo.
 		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
@@ -1228,6 +1511,221 @@ public class BTreeFile implements DbFile {
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
+	/**
+	 * Find the header page whose slots record whether the given page is free.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number
+	 * @param perm - the permissions to read the header page with
+	 * @return the header page, or null if the header pages do not reach pageNo yet
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeHeaderPage getHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo,
+			Permissions perm) throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		for(int i = 0; headerId != null; i++) {
+			if(i == pageNo / BTreeHeaderPage.getNumSlots())
+				return (BTreeHeaderPage) getPage(tid, dirtypages, headerId, perm);
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+		return null;
+	}
+
+	/**
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number
+	 * @return true if the header pages mark the given page as free for reuse
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	boolean isPageFree(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, pageNo, Permissions.READ_ONLY);
+		return headerPage != null && !headerPage.isSlotUsed(pageNo % BTreeHeaderPage.getNumSlots());
+	}
+
+	/**
+	 * Get the lowest page number that the header pages mark as free, without
+	 * taking it; unlike getEmptyPageNo(), this never grows the file.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the first free page number, or -1 if no page is free
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	int getFirstFreePageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		for(int i = 0; headerId != null; i++) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			int emptySlot = headerPage.getEmptySlot();
+			if(emptySlot != -1)
+				return i * BTreeHeaderPage.getNumSlots() + emptySlot;
+			headerId = headerPage.getNextPageId();
+		}
+		return -1;
+	}
+
+	/**
+	 * Mark a free page as used, so that it is not handed out again.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number of the free page
+	 * 
+	 * @throws DbException if the page is not free
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	void markPageUsed(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		if(!isPageFree(tid, dirtypages, pageNo))
+			throw new DbException("page " + pageNo + " is not free");
+		BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, pageNo, Permissions.READ_WRITE);
+		headerPage.markSlotUsed(pageNo % BTreeHeaderPage.getNumSlots(), true);
+	}
+
+	/**
+	 * Move a page to a free page number, as part of compacting the file.  The copy takes over
+	 * the free page, every pointer to the page (from its parent or the root pointer page, from
+	 * its sibling leaves, from its children, or from the neighbouring header pages) is updated
+	 * to point to the copy, and the old page number is made available for reuse.  Tuples on a
+	 * moved leaf page get new RecordIds.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page to move; a leaf, internal, or header page
+	 * @param pageNo - the free page number to move it to
+	 * @return the id of the moved page
+	 * @see BTreeCompactor
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	BTreePageId relocatePage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		// take the free page first, since its header page may be the page being moved
+		markPageUsed(tid, dirtypages, pageNo);
+		Page page = getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		BTreePageId newId = new BTreePageId(tableid, pageNo, pid.pgcateg());
+		Page moved;
+		if(pid.pgcateg() == BTreePageId.LEAF)
+			moved = new BTreeLeafPage(newId, page.getPageData(), keyFields);
+		else if(pid.pgcateg() == BTreePageId.INTERNAL)
+			moved = new BTreeInternalPage(newId, page.getPageData(), keyFields);
+		else
+			moved = new BTreeHeaderPage(newId, page.getPageData());
+
+		// lock the free page without reading it, and make sure no stale copy is cached
+		Database.getBufferPool().lockPage(tid, newId, Permissions.READ_WRITE);
+		Database.getBufferPool().discardPage(newId);
+		dirtypages.put(newId, moved);
+
+		if(pid.pgcateg() == BTreePageId.HEADER) {
+			BTreeHeaderPage header = (BTreeHeaderPage) moved;
+			if(header.getPrevPageId() == null) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(newId);
+			}
+			else {
+				BTreeHeaderPage prev = (BTreeHeaderPage) getPage(tid, dirtypages, header.getPrevPageId(),
+						Permissions.READ_WRITE);
+				prev.setNextPageId(newId);
+			}
+			if(header.getNextPageId() != null) {
+				BTreeHeaderPage next = (BTreeHeaderPage) getPage(tid, dirtypages, header.getNextPageId(),
+						Permissions.READ_WRITE);
+				next.setPrevPageId(newId);
+			}
+		}
+		else {
+			BTreePage bp = (BTreePage) moved;
+			BTreePageId parentId = bp.getParentId();
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, parentId,
+						Permissions.READ_WRITE);
+				rootPtr.setRootId(newId);
+			}
+			else {
+				// the first entry that mentions the page holds the only pointer to it
+				BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId,
+						Permissions.READ_WRITE);
+				Iterator<BTreeEntry> it = parent.iterator();
+				while(it.hasNext()) {
+					BTreeEntry e = it.next();
+					if(e.getLeftChild().equals(pid)) {
+						e.setLeftChild(newId);
+						parent.updateEntry(e);
+						break;
+					}
+					if(e.getRightChild().equals(pid)) {
+						e.setRightChild(newId);
+						parent.updateEntry(e);
+						break;
+					}
+				}
+			}
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				BTreeLeafPage leaf = (BTreeLeafPage) moved;
+				if(leaf.getLeftSiblingId() != null) {
+					BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getLeftSiblingId(),
+							Permissions.READ_WRITE);
+					left.setRightSiblingId(newId);
+				}
+				if(leaf.getRightSiblingId() != null) {
+					BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getRightSiblingId(),
+							Permissions.READ_WRITE);
+					right.setLeftSiblingId(newId);
+				}
+			}
+			else {
+				updateParentPointers(tid, dirtypages, (BTreeInternalPage) moved);
+			}
+		}
+
+		// the old copy is unreachable now; there is no need to write it back
+		dirtypages.remove(pid);
+		setEmptyPage(tid, dirtypages, pid.pageNumber());
+		return newId;
+	}
+
+	/**
+	 * Shrink the file to its first numPages pages.  Compaction calls this once it has moved
+	 * every page in use below that point, and a committed transaction has marked the pages
+	 * beyond it as used so that they are never handed out.
+	 * 
+	 * @param numPages - the number of pages to keep
+	 * @param expectedPages - the number of pages the file had when the pages beyond numPages
+	 *                        were marked as used
+	 * @return false if the file has grown since, in which case it is left as it is
+	 * @throws IOException
+	 */
+	synchronized boolean truncate(int numPages, int expectedPages) throws IOException {
+		if(numPages() != expectedPages)
+			return false;
+		for(int pageNo = numPages + 1; pageNo <= expectedPages; pageNo++) {
+			for(int categ : new int[] { BTreePageId.LEAF, BTreePageId.INTERNAL, BTreePageId.HEADER })
+				Database.getBufferPool().discardPage(new BTreePageId(tableid, pageNo, categ));
+			checksums.forget(pageNo);
+		}
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.setLength(BTreeRootPtrPage.getPageSize() + (long) numPages * BufferPool.getPageSize());
+		}
+		return true;
+	}
+
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
 	 * behalf of the specified transaction. This method will acquire a read lock on
@@ -1242,6 +1740,26 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get the tuples whose keys fall in a range, in key order or in reverse key 
+	 * order.  The scan seeks directly to the first key of the range and stops after
+	 * its last one, so it reads only the path to the first leaf page and the leaf 
+	 * pages holding the range.  Reverse scans follow the left sibling pointers.
+	 * This method will acquire a read lock on the affected pages of the file, and 
+	 * may block until the lock can be acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @param lower - a GREATER_THAN or GREATER_THAN_OR_EQ bound, or null for none
+	 * @param upper - a LESS_THAN or LESS_THAN_OR_EQ bound, or null for none
+	 * @param reverse - whether to return the tuples in descending key order
+	 * @return an iterator for the tuples in the range
+	 * @throws IllegalArgumentException if a bound has the wrong operator
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate lower, 
+			IndexPredicate upper, boolean reverse) {
+		return new BTreeSearchIterator(this, tid, lower, upper, reverse);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1347,7 +1865,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	TransactionId tid;
 	BTreeFile f;
-	IndexPredicate ipred;
+	IndexPredicate lower;
+	IndexPredicate upper;
+	IndexPredicate filter;
+	boolean reverse;
 
 	/**
 	 * Constructor for this iterator
@@ -1358,32 +1879,77 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
 		this.f = f;
 		this.tid = tid;
-		this.ipred = ipred;
+		switch (ipred.getOp()) {
+		case EQUALS:
+			lower = new IndexPredicate(Op.GREATER_THAN_OR_EQ, ipred.getField());
+			upper = new IndexPredicate(Op.LESS_THAN_OR_EQ, ipred.getField());
+			break;
+		case GREATER_THAN:
+		case GREATER_THAN_OR_EQ:
+			lower = ipred;
+			break;
+		case LESS_THAN:
+		case LESS_THAN_OR_EQ:
+			upper = ipred;
+			break;
+		default:
+			// no range: check every tuple
+			filter = ipred;
+		}
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * Constructor for a range scan
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param lower - the lower bound of the range, or null
+	 * @param upper - the upper bound of the range, or null
+	 * @param reverse - whether to scan from the upper bound down
+	 */
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate lower, 
+			IndexPredicate upper, boolean reverse) {
+		if (lower != null && lower.getOp() != Op.GREATER_THAN && lower.getOp() != Op.GREATER_THAN_OR_EQ)
+			throw new IllegalArgumentException("lower bound must be > or >=, not " + lower.getOp());
+		if (upper != null && upper.getOp() != Op.LESS_THAN && upper.getOp() != Op.LESS_THAN_OR_EQ)
+			throw new IllegalArgumentException("upper bound must be < or <=, not " + upper.getOp());
+		this.f = f;
+		this.tid = tid;
+		this.lower = lower;
+		this.upper = upper;
+		this.reverse = reverse;
+	}
+
+	/**
+	 * Open this iterator by getting an iterator on the first leaf page of the
+	 * range: the one holding the lower bound, or the upper bound in reverse
 	 */
 	public void open() throws DbException, TransactionAbortedException {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+		if (reverse) {
+			Field start = upper == null ? null : upper.getField();
+			curp = f.findLastLeafPage(tid, root, Permissions.READ_ONLY, start);
+			// skip the larger keys on the first page
+			it = curp.reverseIterator(start);
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			Field start = lower == null ? null : lower.getField();
+			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, start);
+			// skip the smaller keys on the first page
+			it = curp.iterator(start);
 		}
-		it = curp.iterator();
+	}
+
+	private static boolean satisfies(Field key, IndexPredicate bound) {
+		return bound == null || key.compare(bound.getOp(), bound.getField());
 	}
 
 	/**
-	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
+	 * Read the next tuple either from the current page if it has more tuples in
+	 * the range or from the next page by following the sibling pointer.
 	 * 
-	 * @return the next tuple matching the predicate, or null if none exists
+	 * @return the next tuple in the range matching the predicate, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
@@ -1392,31 +1958,27 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
+				Field key = f.keyOf(t);
+				if (!satisfies(key, reverse ? lower : upper)) {
+					// we have passed the end of the range
+					it = null;
 					return null;
 				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
+				// keys equal to a strict bound at the start of the range are skipped
+				if (satisfies(key, reverse ? upper : lower) && satisfies(key, filter)) {
+					return t;
 				}
 			}
 
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
+			BTreePageId nextp = reverse ? curp.getLeftSiblingId() : curp.getRightSiblingId();
+			// if there are no more pages in this direction, end the iteration
 			if(nextp == null) {
-				return null;
+				it = null;
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+				it = reverse ? curp.reverseIterator() : curp.iterator();
 			}
 		}
 
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -107,38 +108,6 @@ public class BTreeFileEncoder {
 
 	}
 
-	/** 
-	 * comparator to sort Tuples by key field
-	 */
-	public static class TupleComparator implements Comparator<Tuple> {
-		private int keyField;
-
-		/** 
-		 * Construct a TupleComparator
-		 * 
-		 * @param keyField - the index of the field the tuples are keyed on
-		 */
-		public TupleComparator(int keyField) {
-			this.keyField = keyField;
-		}
-
-		/**
-		 * Compare two tuples based on their key field
-		 * 
-		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
-		 */
-		public int compare(Tuple t1, Tuple t2) {
-			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
-				cmp = -1;
-			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
-				cmp = 1;
-			}
-			return cmp;
-		}
-	}
-
 	/**
 	 * Faster method to encode the B+ tree file
 	 * 
@@ -203,22 +172,109 @@ public class BTreeFileEncoder {
 		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
 
-		// read all the tuples from the heap file and sort them on the keyField
-		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		// sort the tuples of the heap file on the keyField and add them to the B+ tree file
+		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
 		TransactionId tid = new TransactionId();
-		DbFileIterator it = Database.getCatalog().getDatabaseFile(heapf.getId()).iterator(tid);
-		it.open();
-		while (it.hasNext()) {
-			Tuple tup = it.next();
-			tuples.add(tup);
+		sortAndBulkLoad(bf, Database.getCatalog().getDatabaseFile(heapf.getId()).iterator(tid), 
+				npagebytes, 1.0);
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		return bf;
+	}
+
+	/**
+	 * Write tuples that are already sorted on the key field into an empty
+	 * B+ tree file, filling the leaf pages completely.
+	 * 
+	 * @param bf - the empty BTreeFile to fill
+	 * @param tuples - the tuples, sorted on bf.keyFields()
+	 * @param npagebytes - number of bytes per page
+	 * @throws IOException
+	 * @throws DbException
+	 * @see #bulkLoad(BTreeFile, DbFileIterator, int, double)
+	 */
+	public static void bulkLoad(BTreeFile bf, final ArrayList<Tuple> tuples, int npagebytes)
+			throws IOException, DbException {
+		try {
+			bulkLoad(bf, new AbstractDbFileIterator() {
+				private Iterator<Tuple> it;
+
+				public void open() {
+					it = tuples.iterator();
+				}
+
+				public void rewind() {
+					open();
+				}
+
+				protected Tuple readNext() {
+					return it.hasNext() ? it.next() : null;
+				}
+			}, npagebytes, 1.0);
+		} catch (TransactionAbortedException e) {
+			throw new DbException("reading the tuples to load aborted");
 		}
-		it.close();
-		Collections.sort(tuples, new TupleComparator(keyField));
+	}
 
-		// add the tuples to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
-		Type keyType = typeAr[keyField];
-		int tableid = bf.getId();
+	/**
+	 * Sort any number of tuples on the key field with an ExternalSort, and
+	 * write them into an empty B+ tree file.
+	 * 
+	 * @param bf - the empty BTreeFile to fill
+	 * @param source - the tuples to load, in any order; opened and closed here
+	 * @param npagebytes - number of bytes per page
+	 * @param fillFactor - the fraction of each leaf page to fill, from 0.5 to 1
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 * @see ExternalSort
+	 */
+	public static void sortAndBulkLoad(BTreeFile bf, DbFileIterator source, int npagebytes, 
+			double fillFactor) throws IOException, DbException, TransactionAbortedException {
+		ExternalSort sort = new ExternalSort(bf.getTupleDesc(), 
+				new TupleComparator(bf.keyFields()), ExternalSort.DEFAULT_RUN_SIZE);
+		try {
+			sort.addAll(source);
+			bulkLoad(bf, sort.sorted(), npagebytes, fillFactor);
+		} finally {
+			sort.close();
+		}
+	}
+
+	/**
+	 * Write tuples that are already sorted on the key field into an empty
+	 * B+ tree file, bottom up and in a single pass: leaf pages are filled in
+	 * order and internal pages are written as their levels fill.  Only the
+	 * pages being filled are held in memory.  Pages are appended to the file
+	 * in large sequential writes, bypassing the buffer pool, so the file must
+	 * not be in use; the parent and sibling pointers are set in a second
+	 * sequential pass over the file at the end.
+	 * <p>
+	 * Leaf pages are filled to fillFactor, leaving room for later inserts
+	 * before they split; internal pages are filled completely.
+	 * 
+	 * @param bf - the empty BTreeFile to fill
+	 * @param tuples - the tuples, sorted on bf.keyFields(); opened and closed here
+	 * @param npagebytes - number of bytes per page
+	 * @param fillFactor - the fraction of each leaf page to fill, from 0.5 to 1
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static void bulkLoad(BTreeFile bf, DbFileIterator tuples, int npagebytes, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
+		if (fillFactor < 0.5 || fillFactor > 1.0)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		int[] keyFields = bf.keyFields();
+		int numFields = bf.getTupleDesc().numFields();
+		Type[] typeAr = new Type[numFields];
+		for (int i = 0; i < numFields; i++) {
+			typeAr[i] = bf.getTupleDesc().getFieldType(i);
+		}
+		int keyLen = 0;
+		for (int f : keyFields) {
+			keyLen += typeAr[f].getLen();
+		}
 
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
@@ -227,17 +283,16 @@ public class BTreeFileEncoder {
 		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+		// never less than half full, so that the pages are valid B+ tree pages
+		int nfill = Math.max(nrecords - nrecords / 2, Math.min(nrecords, (int) Math.ceil(nrecords * fillFactor)));
 
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
-
-		// first add some bytes for the root pointer page
-		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), 
-				BTreeRootPtrPage.createEmptyPageData()));
+		PageWriter out = new PageWriter(bf, npagebytes);
 
 		// next iterate through all the tuples and write out leaf pages
 		// and internal pages as they fill up.
@@ -246,32 +301,34 @@ public class BTreeFileEncoder {
 		// (unless it's the only page)
 		ArrayList<Tuple> page1 = new ArrayList<Tuple>();
 		ArrayList<Tuple> page2 = new ArrayList<Tuple>();
-		BTreePageId leftSiblingId = null;
-		for(Tuple tup : tuples) {
-			if(page1.size() < nrecords) {
-				page1.add(tup);
-			}
-			else if(page2.size() < nrecords) {
-				page2.add(tup);
-			}
-			else {
-				// write out a page of records
-				byte[] leafPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
-				BTreePageId leafPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyField);
-				leafPage.setLeftSiblingId(leftSiblingId);
-				bf.writePage(leafPage);
-				leftSiblingId = leafPid;
-
-				// update the parent by "copying up" the next key
-				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
-				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-						keyType, tableid, keyField);
-
-				page1 = page2;
-				page2 = new ArrayList<Tuple>();
-				page2.add(tup);
+		try {
+			tuples.open();
+			while (tuples.hasNext()) {
+				Tuple tup = tuples.next();
+				if(page1.size() < nfill) {
+					page1.add(tup);
+				}
+				else if(page2.size() < nfill) {
+					page2.add(tup);
+				}
+				else {
+					// write out a page of records
+					BTreePageId leafPid = out.writeLeaf(
+							convertToLeafPage(page1, npagebytes, numFields, typeAr, keyFields));
+
+					// update the parent by "copying up" the next key
+					Field key = BTreeInternalPage.shortestSeparator(bf.keyOf(page1.get(page1.size() - 1)), 
+							bf.keyOf(page2.get(0)));
+					BTreeEntry copyUpEntry = new BTreeEntry(key, leafPid, null);
+					updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, keyLen, out);
+
+					page1 = page2;
+					page2 = new ArrayList<Tuple>();
+					page2.add(tup);
+				}
 			}
+		} finally {
+			tuples.close();
 		}
 
 		// now we need to deal with the end cases. There are two options:
@@ -281,14 +338,9 @@ public class BTreeFileEncoder {
 		// For case (1), we write out the page 
 		// For case (2), we divide the remaining records equally between the last two pages,
 		// write them out, and update the parent's child pointers.
-		BTreePageId lastPid = null;
 		if(page2.size() == 0) {
 			// write out a page of records - this is the root page
-			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
-			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
-			lastPage.setLeftSiblingId(leftSiblingId);
-			bf.writePage(lastPage);
+			out.writeLeaf(convertToLeafPage(page1, npagebytes, numFields, typeAr, keyFields));
 		}
 		else {
 			// split the remaining tuples in half
@@ -300,91 +352,120 @@ public class BTreeFileEncoder {
 			lastPg.addAll(page2);
 
 			// write out the last two pages of records
-			byte[] secondToLastPageBytes = convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyField);
-			BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyField);
-			secondToLastPage.setLeftSiblingId(leftSiblingId);
-			bf.writePage(secondToLastPage);
-
-			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyField);
-			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
-			lastPage.setLeftSiblingId(secondToLastPid);
-			bf.writePage(lastPage);
+			BTreePageId secondToLastPid = out.writeLeaf(
+					convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyFields));
+			BTreePageId lastPid = out.writeLeaf(
+					convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyFields));
 
 			// update the parent by "copying up" the next key
-			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
-			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-					keyType, tableid, keyField);
+			Field key = BTreeInternalPage.shortestSeparator(
+					bf.keyOf(secondToLastPg.get(secondToLastPg.size() - 1)), bf.keyOf(lastPg.get(0)));
+			BTreeEntry copyUpEntry = new BTreeEntry(key, secondToLastPid, lastPid);
+			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, keyLen, out);
 		}
 
 		// Write out the remaining internal pages
-		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField);
-
-		// update the root pointer to point to the last page of the file
-		int root = bf.numPages();
-		int rootCategory = (root > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
-		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0);
-		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
+		cleanUpEntries(entries, bf, nentries, npagebytes, keyLen, out);
 
-		// set all the parent and sibling pointers
-		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
-		setRightSiblingPtrs(bf, lastPid, null);
-
-		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-		return bf;
+		// the root is the last page of the file; set the root pointer and all
+		// the parent and sibling pointers
+		out.finish();
 	}
 
 	/**
-	 * Set all the right sibling pointers by following the left sibling pointers
-	 * 
-	 * @param bf - the BTreeFile
-	 * @param pid - the id of the page to update with the right sibling pointer
-	 * @param rightSiblingId - the id of the page's right sibling
-	 * @throws IOException
-	 * @throws DbException
+	 * PageWriter appends the pages of a bulk load to a B+ tree file through
+	 * a large buffer, and remembers the parent of every page and the order
+	 * of the leaves, so that finish() can set their pointers in one pass.
 	 */
-	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
-			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
+	private static class PageWriter {
+		private static final int CHUNK_PAGES = 256;
+
+		private final BTreeFile bf;
+		private final int npagebytes;
+		private final OutputStream out;
+		private int numPages = 0;
+		private int[] parents = new int[CHUNK_PAGES];
+		private int[] leftSiblings = new int[CHUNK_PAGES];
+		private int[] rightSiblings = new int[CHUNK_PAGES];
+		private final BitSet leaves = new BitSet();
+		private int lastLeaf = 0;
+		private int rootCategory = BTreePageId.LEAF;
+
+		PageWriter(BTreeFile bf, int npagebytes) throws IOException {
+			this.bf = bf;
+			this.npagebytes = npagebytes;
+			// these pages have no checksums
+			PageChecksums.discard(bf.getFile());
+			out = new BufferedOutputStream(new FileOutputStream(bf.getFile()), CHUNK_PAGES * npagebytes);
+			// room for the root pointer page, written by finish()
+			out.write(new byte[BTreeRootPtrPage.getPageSize()]);
 		}
-	}
 
-	/**
-	 * Recursive function to set all the parent pointers
-	 * 
-	 * @param bf - the BTreeFile
-	 * @param pid - id of the page to update with the parent pointer
-	 * @param parent - the id of the page's parent
-	 * @throws IOException
-	 * @throws DbException
-	 */
-	private static void setParents(BTreeFile bf, BTreePageId pid, BTreePageId parent) 
-			throws IOException, DbException {
-		if(pid.pgcateg() == BTreePageId.INTERNAL) {
-			BTreeInternalPage page = (BTreeInternalPage) bf.readPage(pid);
-			page.setParentId(parent);
-
-			Iterator<BTreeEntry> it = page.iterator();
-			BTreeEntry e = null;
-			while(it.hasNext()) {
-				e = it.next();
-				setParents(bf, e.getLeftChild(), pid);
+		private int append(byte[] data) throws IOException {
+			out.write(data);
+			numPages++;
+			if (numPages >= parents.length) {
+				parents = Arrays.copyOf(parents, 2 * parents.length);
+				leftSiblings = Arrays.copyOf(leftSiblings, 2 * leftSiblings.length);
+				rightSiblings = Arrays.copyOf(rightSiblings, 2 * rightSiblings.length);
 			}
-			if(e != null) {
-				setParents(bf, e.getRightChild(), pid);
+			return numPages;
+		}
+
+		/** Append a leaf page; it follows the previous one */
+		BTreePageId writeLeaf(byte[] data) throws IOException {
+			int pgNo = append(data);
+			leaves.set(pgNo);
+			if (lastLeaf != 0) {
+				rightSiblings[lastLeaf] = pgNo;
+				leftSiblings[pgNo] = lastLeaf;
 			}
-			bf.writePage(page);
+			lastLeaf = pgNo;
+			rootCategory = BTreePageId.LEAF;
+			return new BTreePageId(bf.getId(), pgNo, BTreePageId.LEAF);
 		}
-		else { // pid.pgcateg() == BTreePageId.LEAF
-			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-			page.setParentId(parent);
-			bf.writePage(page);
+
+		/** Append an internal page holding the given entries */
+		BTreePageId writeInternal(byte[] data, List<BTreeEntry> entries) throws IOException {
+			int pgNo = append(data);
+			for (BTreeEntry e : entries) {
+				parents[e.getLeftChild().pageNumber()] = pgNo;
+				parents[e.getRightChild().pageNumber()] = pgNo;
+			}
+			rootCategory = BTreePageId.INTERNAL;
+			return new BTreePageId(bf.getId(), pgNo, BTreePageId.INTERNAL);
+		}
+
+		/**
+		 * Make the last page written the root, and set the parent pointer of
+		 * every page and the sibling pointers of the leaves, reading and
+		 * rewriting the file a chunk of pages at a time
+		 */
+		void finish() throws IOException {
+			out.close();
+			try (RandomAccessFile raf = new RandomAccessFile(bf.getFile(), "rw")) {
+				raf.write(convertToRootPtrPage(numPages, rootCategory, 0));
+				byte[] chunk = new byte[CHUNK_PAGES * npagebytes];
+				ByteBuffer buf = ByteBuffer.wrap(chunk);
+				for (int first = 1; first <= numPages; first += CHUNK_PAGES) {
+					int n = Math.min(CHUNK_PAGES, numPages - first + 1);
+					long offset = BTreeRootPtrPage.getPageSize() + (long) (first - 1) * npagebytes;
+					raf.seek(offset);
+					raf.readFully(chunk, 0, n * npagebytes);
+					for (int i = 0; i < n; i++) {
+						int pgNo = first + i;
+						// both page formats start with the parent pointer; leaves
+						// follow it with the left and right sibling pointers
+						buf.putInt(i * npagebytes, parents[pgNo]);
+						if (leaves.get(pgNo)) {
+							buf.putInt(i * npagebytes + BTreeLeafPage.INDEX_SIZE, leftSiblings[pgNo]);
+							buf.putInt(i * npagebytes + 2 * BTreeLeafPage.INDEX_SIZE, rightSiblings[pgNo]);
+						}
+					}
+					raf.seek(offset);
+					raf.write(chunk, 0, n * npagebytes);
+				}
+			}
 		}
 	}
 
@@ -395,14 +476,13 @@ public class BTreeFileEncoder {
 	 * @param bf - the BTreeFile
 	 * @param nentries - number of entries per page
 	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
-	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
+	 * @param keyLen - the number of bytes in a key
+	 * @param out - the writer of the pages
 	 * @throws IOException
 	 */
 	private static void cleanUpEntries(ArrayList<ArrayList<BTreeEntry>> entries,
-			BTreeFile bf, int nentries, int npagebytes, Type keyType, int tableid, 
-			int keyField) throws IOException {
+			BTreeFile bf, int nentries, int npagebytes, int keyLen, PageWriter out) 
+					throws IOException {
 		// As with the leaf pages, there are two options:
 		// 1. We have less than or equal to a full page of entries. Because of the way the code
 		//    was written, we know this must be the root page
@@ -413,32 +493,29 @@ public class BTreeFileEncoder {
 		for(int i = 0; i < entries.size(); i++) {
 			int childPageCategory = (i == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
 			int size = entries.get(i).size();
-			if(size <= nentries) {
+			if(fitOnPage(entries.get(i), bf, nentries)) {
 				// write out a page of entries
-				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
-				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
+				byte[] internalPageBytes = internalPageBytes(entries.get(i), bf, npagebytes, keyLen, childPageCategory);
+				out.writeInternal(internalPageBytes, entries.get(i));
 			}
 			else {
 				// split the remaining entries in half
+				int mid = midEntry(entries.get(i), bf);
 				ArrayList<BTreeEntry> secondToLastPg = new ArrayList<BTreeEntry>();
 				ArrayList<BTreeEntry> lastPg = new ArrayList<BTreeEntry>();
-				secondToLastPg.addAll(entries.get(i).subList(0, size/2));
-				lastPg.addAll(entries.get(i).subList(size/2 + 1, size));
+				secondToLastPg.addAll(entries.get(i).subList(0, mid));
+				lastPg.addAll(entries.get(i).subList(mid + 1, size));
 
 				// write out the last two pages of entries
-				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
-				BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyField));
+				byte[] secondToLastPageBytes = internalPageBytes(secondToLastPg, bf, npagebytes, keyLen, childPageCategory);
+				BTreePageId secondToLastPid = out.writeInternal(secondToLastPageBytes, secondToLastPg);
 
-				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyType, childPageCategory);
-				BTreePageId lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
+				byte[] lastPageBytes = internalPageBytes(lastPg, bf, npagebytes, keyLen, childPageCategory);
+				BTreePageId lastPid = out.writeInternal(lastPageBytes, lastPg);
 
 				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(size/2).getKey(), secondToLastPid, lastPid);
-				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(mid).getKey(), secondToLastPid, lastPid);
+				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, keyLen, out);
 			}
 
 		}
@@ -453,14 +530,13 @@ public class BTreeFileEncoder {
 	 * @param level - the level of the new entry (0 is closest to the leaf pages)
 	 * @param nentries - number of entries per page
 	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
-	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
+	 * @param keyLen - the number of bytes in a key
+	 * @param out - the writer of the pages
 	 * @throws IOException
 	 */
 	private static void updateEntries(ArrayList<ArrayList<BTreeEntry>> entries, 
-			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, Type keyType, 
-			int tableid, int keyField) throws IOException {
+			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, int keyLen, 
+			PageWriter out) throws IOException {
 		while(entries.size() <= level) {
 			entries.add(new ArrayList<BTreeEntry>());
 		}
@@ -471,20 +547,23 @@ public class BTreeFileEncoder {
 		if(size > 0) {
 			BTreeEntry prev = entries.get(level).get(size-1);
 			entries.get(level).set(size-1, new BTreeEntry(prev.getKey(), prev.getLeftChild(), e.getLeftChild()));
-			if(size == nentries * 2 + 1) {
+			// write out a page once the entries after it (and the one pushed up) fill another page
+			int n = entriesPerPage(entries.get(level), bf, nentries);
+			ArrayList<BTreeEntry> next = new ArrayList<BTreeEntry>();
+			next.addAll(entries.get(level).subList(Math.min(n + 1, size), size));
+			next.add(e);
+			if(n < size && !fitOnPage(next, bf, nentries)) {
 				// write out a page of entries
 				ArrayList<BTreeEntry> pageEntries = new ArrayList<BTreeEntry>();
-				pageEntries.addAll(entries.get(level).subList(0, nentries));
-				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
-				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
+				pageEntries.addAll(entries.get(level).subList(0, n));
+				byte[] internalPageBytes = internalPageBytes(pageEntries, bf, npagebytes, keyLen, childPageCategory);
+				BTreePageId internalPid = out.writeInternal(internalPageBytes, pageEntries);
 
 				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(nentries).getKey(), internalPid, null);
-				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(n).getKey(), internalPid, null);
+				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, keyLen, out);
 				ArrayList<BTreeEntry> remainingEntries = new ArrayList<BTreeEntry>();
-				remainingEntries.addAll(entries.get(level).subList(nentries+1, size));
+				remainingEntries.addAll(entries.get(level).subList(n+1, size));
 				entries.get(level).clear();
 				entries.get(level).addAll(remainingEntries);
 			}
@@ -492,6 +571,67 @@ public class BTreeFileEncoder {
 		entries.get(level).add(e);
 	}
 
+	/**
+	 * @return the number of entries, from the start of the list, that go on
+	 *         one internal page: nentries, or as many as fit for keys in
+	 *         variable-length form
+	 * @see BTreeInternalPage#hasVarLenKeys
+	 */
+	private static int entriesPerPage(List<BTreeEntry> entries, BTreeFile bf, int nentries) {
+		TupleDesc td = bf.getTupleDesc();
+		if (!BTreeInternalPage.hasVarLenKeys(td, bf.keyFields()))
+			return Math.min(nentries, entries.size());
+		int capacity = BTreeInternalPage.varLenCapacity(td, bf.keyFields());
+		int used = 0;
+		int n = 0;
+		while (n < entries.size()) {
+			used += BTreeInternalPage.INDEX_SIZE + BTreeInternalPage.varLenKeySize(entries.get(n).getKey());
+			if (used > capacity)
+				break;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return true if all the entries fit on one internal page
+	 */
+	private static boolean fitOnPage(List<BTreeEntry> entries, BTreeFile bf, int nentries) {
+		return entriesPerPage(entries, bf, nentries) == entries.size();
+	}
+
+	/**
+	 * @return the index of the entry to push up when splitting the entries
+	 *         between two pages: the middle one, or the one in the middle of
+	 *         their bytes for keys in variable-length form
+	 */
+	private static int midEntry(List<BTreeEntry> entries, BTreeFile bf) {
+		TupleDesc td = bf.getTupleDesc();
+		if (!BTreeInternalPage.hasVarLenKeys(td, bf.keyFields()))
+			return entries.size() / 2;
+		int[] sizes = new int[entries.size()];
+		int total = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = BTreeInternalPage.INDEX_SIZE + BTreeInternalPage.varLenKeySize(entries.get(i).getKey());
+			total += sizes[i];
+		}
+		int left = 0;
+		int mid = 0;
+		while (left < total - left - sizes[mid])
+			left += sizes[mid++];
+		return mid;
+	}
+
+	/**
+	 * @return the entries in the format of an internal page of bf
+	 */
+	private static byte[] internalPageBytes(ArrayList<BTreeEntry> entries, BTreeFile bf, int npagebytes, 
+			int keyLen, int childPageCategory) throws IOException {
+		if (BTreeInternalPage.hasVarLenKeys(bf.getTupleDesc(), bf.keyFields()))
+			return convertToVarLenInternalPage(entries, npagebytes, childPageCategory);
+		return convertToInternalPage(entries, npagebytes, keyLen, childPageCategory);
+	}
+
 	/**
 	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
 	 * 
@@ -506,6 +646,24 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, new int[] { keyField });
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * of a B+ tree with a composite key
+	 * 
+	 * @param tuples - the set of tuples
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields in each tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on
+	 * @return a byte array which can be passed to the BTreeLeafPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -554,7 +712,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		Collections.sort(tuples, new TupleComparator(keyField));
+		Collections.sort(tuples, new TupleComparator(keyFields));
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
@@ -624,7 +782,24 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, keyType.getLen(), childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * 
+	 * @param entries - the set of entries
+	 * @param npagebytes - number of bytes per page
+	 * @param keyLen - the number of bytes in a key, the sum of the lengths of
+	 *        the key fields for a composite key
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			int keyLen, int childPageCategory)
+					throws IOException {
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -673,7 +848,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keyLen; j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -697,6 +872,39 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the variable-length format
+	 * of a BTreeInternalPage, for trees with string keys.  All the entries
+	 * must fit.
+	 * 
+	 * @param entries - the set of entries, sorted by key
+	 * @param npagebytes - number of bytes per page
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 * @see BTreeInternalPage#hasVarLenKeys
+	 */
+	public static byte[] convertToVarLenInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			int childPageCategory) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+		dos.writeShort(entries.size());
+		dos.writeInt(entries.get(0).getLeftChild().pageNumber());
+		for (BTreeEntry e : entries) {
+			dos.writeInt(e.getRightChild().pageNumber());
+			BTreeInternalPage.serializeVarLenKey(e.getKey(), dos);
+		}
+		if (baos.size() > npagebytes)
+			throw new IOException("entries do not fit on an internal page");
+
+		// pad the rest of the page with zeroes
+		dos.write(new byte[npagebytes - baos.size()]);
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -0,0 +1,385 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * BTreeIndex is a secondary index on one or more fields of a HeapFile.  It
+ * is a BTreeFile of entries <tt>(key fields..., included fields..., page,
+ * slot)</tt>, keyed on the key fields, where page and slot locate the
+ * indexed tuple in the heap file.  Duplicate keys are allowed.
+ * <p>
+ * A composite key orders entries lexicographically (see
+ * {@link CompositeField}), so predicates on any leading key fields can use
+ * the index.  Included fields are only stored in the entries: they make
+ * the index <i>covering</i> for queries that read nothing else from the
+ * table, which can then be answered without reading the heap file.
+ * <p>
+ * Indexes are registered with {@link Catalog#addIndex}; the entry file is
+ * also registered as a table so that the buffer pool can read, lock and
+ * flush its pages.  {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple} keep every index of a table up to date,
+ * in the same transaction as the change to the table.
+ * <p>
+ * Only HeapFiles can have secondary indexes: the RecordId of a tuple in a
+ * BTreeFile changes when its page splits or merges.
+ *
+ * @see IndexScan
+ */
+public class BTreeIndex {
+
+    private final String name;
+    private final int tableId;
+    private final int[] keyFields;
+    private final int[] included;
+    private final BTreeFile file;
+
+    /**
+     * Constructor for an index on a single field.
+     *
+     * @param name the name of the index
+     * @param tableId the indexed HeapFile
+     * @param field the index of the indexed field
+     * @param file the B+ tree holding the entries, see {@link #entryDesc}
+     */
+    public BTreeIndex(String name, int tableId, int field, BTreeFile file) {
+        this(name, tableId, new int[] { field }, new int[0], file);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the index
+     * @param tableId the indexed HeapFile
+     * @param keyFields the indexes of the key fields, most significant first
+     * @param included the indexes of the fields stored in the entries but
+     *        not part of the key
+     * @param file the B+ tree holding the entries, see {@link #entryDesc}
+     */
+    public BTreeIndex(String name, int tableId, int[] keyFields, int[] included, BTreeFile file) {
+        if (keyFields.length == 0)
+            throw new IllegalArgumentException("an index needs at least one key field");
+        this.name = name;
+        this.tableId = tableId;
+        this.keyFields = keyFields.clone();
+        this.included = included.clone();
+        this.file = file;
+    }
+
+    /**
+     * @return the TupleDesc of the entries of an index on the specified
+     *         fields of a table: the key fields, the included fields, then
+     *         the page number and slot of the indexed tuple
+     */
+    public static TupleDesc entryDesc(TupleDesc table, int[] keyFields, int[] included) {
+        int n = keyFields.length + included.length;
+        Type[] types = new Type[n + 2];
+        String[] names = new String[n + 2];
+        for (int i = 0; i < n; i++) {
+            int f = i < keyFields.length ? keyFields[i] : included[i - keyFields.length];
+            types[i] = table.getFieldType(f);
+            names[i] = table.getFieldName(f);
+        }
+        types[n] = types[n + 1] = Type.INT_TYPE;
+        names[n] = "page";
+        names[n + 1] = "slot";
+        return new TupleDesc(types, names);
+    }
+
+    /** @return the indexes of the first n fields of the entries */
+    private static int[] prefix(int n) {
+        int[] fields = new int[n];
+        for (int i = 0; i < n; i++)
+            fields[i] = i;
+        return fields;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the index of the indexed field in the table's TupleDesc; for
+     *         a composite key, the most significant key field
+     */
+    public int getField() {
+        return keyFields[0];
+    }
+
+    /** @return the indexes of the key fields, most significant first */
+    public int[] getKeyFields() {
+        return keyFields.clone();
+    }
+
+    /** @return the indexes of the included, non-key fields */
+    public int[] getIncludedFields() {
+        return included.clone();
+    }
+
+    /** @return the number of table fields stored in each entry */
+    private int numCovered() {
+        return keyFields.length + included.length;
+    }
+
+    /** @return the table field stored at position i of each entry */
+    private int coveredField(int i) {
+        return i < keyFields.length ? keyFields[i] : included[i - keyFields.length];
+    }
+
+    /**
+     * @return true if every one of the specified table fields is stored in
+     *         the entries of this index
+     */
+    public boolean covers(Collection<Integer> fields) {
+        for (int f : fields) {
+            boolean found = false;
+            for (int i = 0; i < numCovered() && !found; i++)
+                found = coveredField(i) == f;
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the TupleDesc of the tuples returned by a covering scan: the
+     *         key fields then the included fields, named as in the table
+     */
+    public TupleDesc coveredDesc() {
+        TupleDesc table = Database.getCatalog().getTupleDesc(tableId);
+        Type[] types = new Type[numCovered()];
+        String[] names = new String[numCovered()];
+        for (int i = 0; i < numCovered(); i++) {
+            types[i] = table.getFieldType(coveredField(i));
+            names[i] = table.getFieldName(coveredField(i));
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /** @return the key of the entry of a tuple of the table */
+    Field keyOf(Tuple t) {
+        return CompositeField.of(t, keyFields);
+    }
+
+    /** @return the B+ tree holding the entries of this index */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    private static Tuple entryFor(TupleDesc td, int[] fields, Tuple t, RecordId rid) {
+        Tuple entry = new Tuple(td);
+        for (int i = 0; i < fields.length; i++)
+            entry.setField(i, t.getField(fields[i]));
+        entry.setField(fields.length, new IntField(rid.getPageId().pageNumber()));
+        entry.setField(fields.length + 1, new IntField(rid.tupleno()));
+        return entry;
+    }
+
+    /** @return the table fields stored in each entry, in entry order */
+    private int[] coveredFields() {
+        int[] fields = new int[numCovered()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = coveredField(i);
+        return fields;
+    }
+
+    /**
+     * Build an index on a field of a HeapFile.
+     *
+     * @see #build(String, int, int[], int[], File)
+     */
+    public static BTreeIndex build(String name, int tableId, int field, File f)
+            throws IOException, DbException, TransactionAbortedException {
+        return build(name, tableId, new int[] { field }, new int[0], f);
+    }
+
+    /**
+     * Build an index on some fields of a HeapFile.  The table is read in a
+     * transaction of its own (so the index reflects its committed state),
+     * and its entries are sorted with an ExternalSort and bulk loaded into a
+     * new file, so tables larger than memory can be indexed.  The table
+     * should not be modified while the index is being built.
+     *
+     * @param name the name of the index
+     * @param tableId the table to index
+     * @param keyFields the fields to index, most significant first
+     * @param included other fields to store in the entries
+     * @param f the file to store the index in; it is overwritten
+     * @return the new index; its file is added to the catalog as a table
+     *         named name, but the index itself is not registered
+     */
+    public static BTreeIndex build(String name, int tableId, int[] keyFields, int[] included, File f)
+            throws IOException, DbException, TransactionAbortedException {
+        DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(table instanceof HeapFile))
+            throw new DbException("secondary indexes are only supported on heap files");
+        BTreeIndex index = new BTreeIndex(name, tableId, keyFields, included, null);
+        int[] fields = index.coveredFields();
+        TupleDesc td = entryDesc(table.getTupleDesc(), keyFields, included);
+
+        ExternalSort entries = new ExternalSort(td,
+                new TupleComparator(prefix(keyFields.length)), ExternalSort.DEFAULT_RUN_SIZE);
+        try {
+            // read-only, so nothing is logged: building an index before
+            // recovery must not make the log throw its contents away
+            TransactionId tid = new TransactionId();
+            try {
+                DbFileIterator it = table.iterator(tid);
+                it.open();
+                while (it.hasNext()) {
+                    Tuple tup = it.next();
+                    entries.add(entryFor(td, fields, tup, tup.getRecordId()));
+                }
+                it.close();
+            } finally {
+                Database.getBufferPool().transactionComplete(tid);
+            }
+
+            if (f.exists() && !f.delete())
+                throw new IOException("cannot replace index file " + f);
+            BTreeFile bf = new BTreeFile(f, prefix(keyFields.length), td);
+            // pages look their TupleDesc up in the catalog
+            Database.getCatalog().addTable(bf, name);
+            BTreeFileEncoder.bulkLoad(bf, entries.sorted(), BufferPool.getPageSize(), 1.0);
+            return new BTreeIndex(name, tableId, keyFields, included, bf);
+        } finally {
+            entries.close();
+        }
+    }
+
+    /**
+     * Add the entry for a tuple that has just been inserted into the table.
+     *
+     * @param tid the inserting transaction
+     * @param t the tuple, with its RecordId set
+     */
+    public void insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(),
+                entryFor(file.getTupleDesc(), coveredFields(), t, t.getRecordId()));
+    }
+
+    /**
+     * Add the entries for a batch of tuples that have just been inserted into
+     * the table, as one batch insert into the index.
+     *
+     * @param tid the inserting transaction
+     * @param tuples the tuples, with their RecordIds set
+     */
+    public void insert(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Tuple> entries = new ArrayList<Tuple>(tuples.size());
+        for (Tuple t : tuples)
+            entries.add(entryFor(file.getTupleDesc(), coveredFields(), t, t.getRecordId()));
+        Database.getBufferPool().insertTuples(tid, file.getId(), entries);
+    }
+
+    /**
+     * Remove the entry for a tuple that has been deleted from the table.
+     *
+     * @param tid the deleting transaction
+     * @param t the deleted tuple
+     * @param rid the RecordId the tuple had in the table
+     */
+    public void delete(TransactionId tid, Tuple t, RecordId rid)
+            throws DbException, IOException, TransactionAbortedException {
+        int page = rid.getPageId().pageNumber();
+        int n = numCovered();
+        DbFileIterator it = file.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, keyOf(t)));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple entry = it.next();
+                if (((IntField) entry.getField(n)).getValue() == page
+                        && ((IntField) entry.getField(n + 1)).getValue() == rid.tupleno()) {
+                    Database.getBufferPool().deleteTuple(tid, entry);
+                    return;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        throw new DbException("index " + name + " has no entry for " + rid);
+    }
+
+    /**
+     * @return an iterator over the tuples of the table whose key satisfies
+     *         ipred, in key order.  The constant of ipred is either a single
+     *         Field, compared with the most significant key field, or a
+     *         {@link CompositeField} of leading key fields.
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return iterator(tid, ipred, false);
+    }
+
+    /**
+     * @param ipred the predicate on the key, or null to read every entry
+     * @param covering if true, return tuples of {@link #coveredDesc} built
+     *        from the entries alone, without reading the table
+     * @return an iterator over the tuples of the table whose key satisfies
+     *         ipred, in key order
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred, boolean covering) {
+        return new IndexLookupIterator(tid, ipred, covering);
+    }
+
+    private class IndexLookupIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private final boolean covering;
+        private TupleDesc coveredDesc;
+        private DbFileIterator entries;
+
+        IndexLookupIterator(TransactionId tid, IndexPredicate ipred, boolean covering) {
+            this.tid = tid;
+            this.ipred = ipred;
+            this.covering = covering;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            entries = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+            entries.open();
+            if (covering)
+                coveredDesc = coveredDesc();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            int n = numCovered();
+            while (entries != null && entries.hasNext()) {
+                Tuple entry = entries.next();
+                if (covering) {
+                    Tuple t = new Tuple(coveredDesc);
+                    for (int i = 0; i < n; i++)
+                        t.setField(i, entry.getField(i));
+                    return t;
+                }
+                HeapPageId pid = new HeapPageId(tableId, ((IntField) entry.getField(n)).getValue());
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                Tuple t = page.getTuple(((IntField) entry.getField(n + 1)).getValue());
+                if (t != null)
+                    return t;
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (entries != null)
+                entries.close();
+            entries = null;
+        }
+    }
+}
@@ -18,9 +18,19 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	private final boolean varLenKeys;
 	
 	private int childCategory; // either leaf or internal
 
+	// the used key slots in key order, rebuilt after the slots change
+	private volatile int[] slotDirectory;
+	// the bytes taken by the entries, or -1 after the entries change
+	private int usedBytes = -1;
+
+	// page bytes that are not entries in the variable-length format: parent
+	// pointer, child category, number of entries and left-most child
+	private static final int VAR_LEN_EXTRA_BYTES = 2 * INDEX_SIZE + 1 + 2;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -37,7 +47,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2);
 		}
 	}
 	
@@ -57,6 +67,14 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Trees with a string key field store their keys in variable-length form
+	 * instead (see {@link #hasVarLenKeys}): the parent pointer, the child page
+	 * category, a 2-byte number of entries m and the left-most child pointer,
+	 * followed by m child pointers each followed by its key, and zero padding.
+	 * Strings are written as a length byte and their characters only, and the
+	 * keys are separators shortened by {@link #shortestSeparator}, so many more
+	 * entries fit on a page.  Capacity is then counted in bytes: see
+	 * {@link #getMaxEntries()} and {@link #getNumEmptySlots()}.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,9 +84,32 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree with a composite key; keys are
+	 * stored as the concatenation of their fields.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.varLenKeys = hasVarLenKeys(td, keyFields);
+		this.numSlots = varLenKeys
+				? (BufferPool.getPageSize() - VAR_LEN_EXTRA_BYTES) / minVarLenEntrySize() + 1
+				: getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		if (varLenKeys) {
+			header = new byte[getHeaderSize()];
+			keys = new Field[numSlots];
+			children = new int[numSlots];
+			readVarLen(dis);
+			setBeforeImage();
+			return;
+		}
 
 		// Read the parent pointer
 		try {
@@ -111,11 +152,218 @@ public class BTreeInternalPage extends BTreePage {
 		setBeforeImage();
 	}
 
-	/** 
+	/**
+	 * Read a page in the variable-length format; entries go to slots 1 to m.
+	 */
+	private void readVarLen(DataInputStream dis) throws IOException {
+		parent = dis.readInt();
+		childCategory = (int) dis.readByte();
+		int m = dis.readUnsignedShort();
+		children[0] = dis.readInt();
+		for (int i=1; i<=m; i++) {
+			children[i] = dis.readInt();
+			keys[i] = parseVarLenKey(dis);
+		}
+		if (m > 0) {
+			for (int i=0; i<=m; i++)
+				markSlotUsed(i, true);
+		}
+		dis.close();
+	}
+
+	/**
+	 * @return true if internal pages of a tree keyed on the given fields store
+	 *         their keys in variable-length form: if one of them is a string
+	 */
+	public static boolean hasVarLenKeys(TupleDesc td, int[] keyFields) {
+		for (int f : keyFields) {
+			if (td.getFieldType(f) == Type.STRING_TYPE)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of bytes a key takes in variable-length form
+	 */
+	public static int varLenKeySize(Field key) {
+		if (key instanceof CompositeField) {
+			int size = 0;
+			for (Field f : ((CompositeField) key).getFields())
+				size += varLenKeySize(f);
+			return size;
+		}
+		if (key instanceof StringField)
+			return 1 + ((StringField) key).getValue().length();
+		return key.getType().getLen();
+	}
+
+	/**
+	 * Write a key in variable-length form: strings as a length byte (strings
+	 * are at most Type.STRING_LEN < 256 characters) and their characters.
+	 */
+	public static void serializeVarLenKey(Field key, DataOutputStream dos) throws IOException {
+		if (key instanceof CompositeField) {
+			for (Field f : ((CompositeField) key).getFields())
+				serializeVarLenKey(f, dos);
+		}
+		else if (key instanceof StringField) {
+			String s = ((StringField) key).getValue();
+			dos.writeByte(s.length());
+			dos.writeBytes(s);
+		}
+		else
+			key.serialize(dos);
+	}
+
+	private Field parseVarLenKey(DataInputStream dis) throws IOException {
+		Field[] fields = new Field[keyFields.length];
+		for (int i = 0; i < fields.length; i++) {
+			Type t = td.getFieldType(keyFields[i]);
+			if (t == Type.STRING_TYPE) {
+				byte[] bs = new byte[dis.readUnsignedByte()];
+				dis.readFully(bs);
+				fields[i] = new StringField(new String(bs), Type.STRING_LEN);
+			}
+			else {
+				try {
+					fields[i] = t.parse(dis);
+				} catch (java.text.ParseException e) {
+					throw new IOException("cannot parse key", e);
+				}
+			}
+		}
+		return fields.length == 1 ? fields[0] : new CompositeField(fields);
+	}
+
+	/**
+	 * @return the size in bytes of the largest entry (key + child pointer) of
+	 *         a tree keyed on the given fields, in variable-length form
+	 */
+	public static int maxVarLenEntrySize(TupleDesc td, int[] keyFields) {
+		int size = INDEX_SIZE;
+		for (int f : keyFields) {
+			Type t = td.getFieldType(f);
+			size += t == Type.STRING_TYPE ? 1 + Type.STRING_LEN : t.getLen();
+		}
+		return size;
+	}
+
+	private int minVarLenEntrySize() {
+		int size = INDEX_SIZE;
+		for (int f : keyFields) {
+			Type t = td.getFieldType(f);
+			size += t == Type.STRING_TYPE ? 1 : t.getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of entry bytes a page in variable-length form holds
+	 *         before it counts as full: getMaxEntries() entries of the largest
+	 *         size.  The rest of the page is left for keys that get longer
+	 *         when they are updated.
+	 */
+	public static int varLenCapacity(TupleDesc td, int[] keyFields) {
+		int entrySize = maxVarLenEntrySize(td, keyFields);
+		int entries = (BufferPool.getPageSize() - VAR_LEN_EXTRA_BYTES) / entrySize - 1;
+		return entries * entrySize;
+	}
+
+	/**
+	 * Find the shortest key that separates two adjacent keys of a tree, to be
+	 * stored in an internal page: a key s with left &lt; s &lt;= right.  A
+	 * string is cut just after its first character that differs from the
+	 * left key, and the string fields after the field that differs are made
+	 * empty.  Keys without string fields are returned as they are.
+	 * 
+	 * @param left - the largest key on the left of the separator
+	 * @param right - the smallest key on the right of the separator
+	 * @return the separator; right if left is not less than right
+	 */
+	public static Field shortestSeparator(Field left, Field right) {
+		if (!left.compare(Op.LESS_THAN, right))
+			return right;
+		if (right instanceof StringField)
+			return shortestSeparator((StringField) left, (StringField) right);
+		if (!(right instanceof CompositeField))
+			return right;
+
+		Field[] l = ((CompositeField) left).getFields();
+		Field[] r = ((CompositeField) right).getFields();
+		int i = 0;
+		while (r[i].compare(Op.EQUALS, l[i]))
+			i++;
+		if (r[i] instanceof StringField)
+			r[i] = shortestSeparator((StringField) l[i], (StringField) r[i]);
+		for (int j = i + 1; j < r.length; j++) {
+			if (r[j] instanceof StringField)
+				r[j] = new StringField("", Type.STRING_LEN);
+		}
+		return new CompositeField(r);
+	}
+
+	private static StringField shortestSeparator(StringField left, StringField right) {
+		String l = left.getValue(), r = right.getValue();
+		int p = 0;
+		while (p < l.length() && l.charAt(p) == r.charAt(p))
+			p++;
+		return new StringField(r.substring(0, p + 1), Type.STRING_LEN);
+	}
+
+	/**
+	 * @return the number of bytes the entry with the given key takes
+	 */
+	public int getEntrySize(Field key) {
+		return INDEX_SIZE + (varLenKeys ? varLenKeySize(key) : keySize());
+	}
+
+	/**
+	 * @return the number of bytes taken by the entries on this page
+	 */
+	public int getUsedBytes() {
+		if (usedBytes < 0) {
+			int used = 0;
+			for (int i : slotDirectory())
+				used += getEntrySize(keys[i]);
+			usedBytes = used;
+		}
+		return usedBytes;
+	}
+
+	/**
+	 * @return true if the key of entry e can be replaced with key without
+	 *         overflowing this page (keys may have different sizes)
+	 */
+	public boolean canUpdateKey(BTreeEntry e, Field key) {
+		if (!varLenKeys)
+			return true;
+		Field old = keys[e.getRecordId().tupleno()];
+		return getUsedBytes() - getEntrySize(old) + getEntrySize(key)
+				<= BufferPool.getPageSize() - VAR_LEN_EXTRA_BYTES;
+	}
+
+	/**
+	 * @return true if the entries of this page and of its right sibling, with
+	 *         the key pulled down from their parent between them, fit on one
+	 *         page filled to at most fillFactor of its capacity
+	 */
+	public boolean canMergeWith(BTreeInternalPage right, Field key, double fillFactor) {
+		if (varLenKeys)
+			return getUsedBytes() + right.getUsedBytes() + getEntrySize(key)
+					<= fillFactor * varLenCapacity(td, keyFields);
+		return getNumEntries() + right.getNumEntries() + 1 <= fillFactor * getMaxEntries();
+	}
+
+	/**
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * In variable-length form, this is the number of entries of the largest
+	 * size the page holds; smaller ones fit in greater numbers.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if (varLenKeys)
+			return varLenCapacity(td, keyFields) / maxVarLenEntrySize(td, keyFields);
+		int keySize = keySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -129,7 +377,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -145,7 +393,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -168,7 +416,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<keySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -181,7 +429,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -235,6 +483,8 @@ public class BTreeInternalPage extends BTreePage {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
+		if (varLenKeys)
+			return getVarLenPageData(baos, dos);
 
 		// write out the parent pointer
 		try {
@@ -269,7 +519,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<keySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -316,7 +566,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				keySize() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -333,6 +583,28 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Write this page in the variable-length format, entries in slot order.
+	 */
+	private byte[] getVarLenPageData(ByteArrayOutputStream baos, DataOutputStream dos) {
+		int[] dir = slotDirectory();
+		try {
+			dos.writeInt(parent);
+			dos.writeByte((byte) childCategory);
+			dos.writeShort(dir.length);
+			dos.writeInt(dir.length > 0 ? children[0] : 0);
+			for (int i : dir) {
+				dos.writeInt(children[i]);
+				serializeVarLenKey(keys[i], dos);
+			}
+			dos.write(new byte[BufferPool.getPageSize() - baos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -429,8 +701,26 @@ public class BTreeInternalPage extends BTreePage {
 				break;
 			}	
 		}
+		if (!canUpdateKey(e, e.getKey()))
+			throw new DbException("no room on the page for updated key " + e.getKey());
 		children[rid.tupleno()] = e.getRightChild().pageNumber(); 
 		keys[rid.tupleno()] = e.getKey();
+		usedBytes = -1;
+	}
+
+	private boolean keyMatches(Field key) {
+		if (keyFields.length == 1)
+			return key.getType().equals(td.getFieldType(keyField));
+		if (!(key instanceof CompositeField))
+			return false;
+		Field[] fields = ((CompositeField) key).getFields();
+		if (fields.length != keyFields.length)
+			return false;
+		for (int i = 0; i < fields.length; i++) {
+			if (!fields[i].getType().equals(td.getFieldType(keyFields[i])))
+				return false;
+		}
+		return true;
 	}
 
 	/**
@@ -441,7 +731,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!keyMatches(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -456,8 +746,11 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if(varLenKeys && getUsedBytes() + getEntrySize(e.getKey()) > BufferPool.getPageSize() - VAR_LEN_EXTRA_BYTES)
+			throw new DbException("called insertEntry on page with no room for the entry.");
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().pageNumber();
 			children[1] = e.getRightChild().pageNumber();
 			keys[1] = e.getKey();
@@ -562,13 +855,18 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return slotDirectory().length;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page.  In variable-length
+	 * form, the number of entries of the largest size that still fit.
 	 */
 	public int getNumEmptySlots() {
+		if (varLenKeys) {
+			int free = varLenCapacity(td, keyFields) - getUsedBytes();
+			return Math.max(0, free / maxVarLenEntrySize(td, keyFields));
+		}
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -599,6 +897,105 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		slotDirectory = null;
+		usedBytes = -1;
+	}
+
+	/**
+	 * @return the used key slots of this page (from 1), in key order
+	 */
+	private int[] slotDirectory() {
+		int[] dir = slotDirectory;
+		if (dir == null) {
+			int n = 0;
+			int[] slots = new int[numSlots];
+			for (int i=1; i<numSlots; i++) {
+				if (isSlotUsed(i))
+					slots[n++] = i;
+			}
+			dir = Arrays.copyOf(slots, n);
+			slotDirectory = dir;
+		}
+		return dir;
+	}
+
+	/**
+	 * Find the child to descend to when searching for a key, by binary
+	 * search over the keys: the left child of the first entry whose key is
+	 * greater than or equal to f, or the right-most child if there is none.
+	 * Entries are not materialized.
+	 * 
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page
+	 * @throws DbException if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) throws DbException {
+		return findChild(f, false);
+	}
+
+	/**
+	 * Find the child to descend to when searching for a key, from the left
+	 * or from the right.  Keys equal to f may be in the subtrees on both
+	 * sides of an entry with key f; searching from the right finds the
+	 * right-most child possibly holding f: the left child of the first entry
+	 * whose key is greater than f, or the right-most child if there is none.
+	 * 
+	 * @param f - the key to search for, or null for the left-most (right-most) child
+	 * @param last - whether to find the right-most child possibly holding f
+	 * @return the id of the child page
+	 * @throws DbException if the page has no entries
+	 * @see #findChild(Field)
+	 */
+	public BTreePageId findChild(Field f, boolean last) throws DbException {
+		int[] dir = slotDirectory();
+		if (dir.length == 0 || !isSlotUsed(0))
+			throw new DbException("Illegal entry iterator.");
+		int slot = 0;
+		if (f == null && last) {
+			slot = dir[dir.length - 1];
+		}
+		else if (f != null) {
+			int lo = search(dir, f, last);
+			// the left child of an entry is the child of the previous used slot
+			slot = lo == 0 ? 0 : dir[lo - 1];
+		}
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
+	/**
+	 * Find the key bounding the child that {@link #findChild(Field)} descends
+	 * to from above: every key in that subtree is at most the returned key.
+	 * 
+	 * @param f - the key to search for
+	 * @return the key of the entry whose left child is the child holding f, or
+	 *         null if that is the right-most child
+	 * @throws DbException if the page has no entries
+	 */
+	public Field findChildUpperBound(Field f) throws DbException {
+		int[] dir = slotDirectory();
+		if (dir.length == 0 || !isSlotUsed(0))
+			throw new DbException("Illegal entry iterator.");
+		int lo = search(dir, f, false);
+		return lo == dir.length ? null : keys[dir[lo]];
+	}
+
+	/**
+	 * Binary search the used slots for the first entry whose key is greater
+	 * than or equal to f, or greater than f if last is set.
+	 * 
+	 * @return its position in dir, or dir.length if there is none
+	 */
+	private int search(int[] dir, Field f, boolean last) {
+		Op op = last ? Op.GREATER_THAN : Op.GREATER_THAN_OR_EQ;
+		int lo = 0, hi = dir.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[dir[mid]].compare(op, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
 	}
 
 	/**
@@ -617,6 +1014,13 @@ public class BTreeInternalPage extends BTreePage {
 		return new BTreeInternalPageReverseIterator(this);
 	}
 
+	/**
+	 * @return the number of slots of this page, including slot 0
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith key out of this page
 	 * @param i - the index of the key
@@ -743,7 +1147,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -769,7 +1173,8 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 					nextToReturn = new BTreeEntry(key, nextChildId, childId);
 					nextToReturn.setRecordId(recordId);
 					childId = nextChildId;
-					key = p.getKey(entry);
+					// slot 0 holds only the left-most child
+					key = entry > 0 ? p.getKey(entry) : null;
 					recordId = new RecordId(p.pid, entry);
 					return true;
 				}
@@ -19,15 +19,18 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
-	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+	// the used slots in key order, rebuilt after the slots change
+	private volatile int[] slotDirectory;
+
+	public void checkRep(Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, keyOf(t)));
+			prev = keyOf(t);
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -62,7 +65,19 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a B+ tree with a composite key; tuples are
+	 * kept in the lexicographic order of their key fields.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -137,7 +152,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -323,16 +338,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int[] dir = slotDirectory();
+		int pos = search(dir, keyOf(t), true);
+		int lessOrEqKey = pos == 0 ? -1 : dir[pos - 1];
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -473,6 +481,46 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		slotDirectory = null;
+	}
+
+	/**
+	 * @return the used slots of this page, in key order
+	 */
+	private int[] slotDirectory() {
+		int[] dir = slotDirectory;
+		if (dir == null) {
+			int n = 0;
+			int[] slots = new int[numSlots];
+			for (int i=0; i<numSlots; i++) {
+				if (isSlotUsed(i))
+					slots[n++] = i;
+			}
+			dir = Arrays.copyOf(slots, n);
+			slotDirectory = dir;
+		}
+		return dir;
+	}
+
+	/**
+	 * Binary search over the slot directory.
+	 * @param dir - the slot directory
+	 * @param f - the key to search for
+	 * @param strict - whether to skip tuples whose key equals f
+	 * @return the position in dir of the first tuple whose key is greater
+	 *         than or equal to f (greater than f if strict), or dir.length
+	 */
+	private int search(int[] dir, Field f, boolean strict) {
+		Predicate.Op op = strict ? Predicate.Op.GREATER_THAN : Predicate.Op.GREATER_THAN_OR_EQ;
+		int lo = 0, hi = dir.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keyOf(tuples[dir[mid]]).compare(op, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
 	}
 
 	/**
@@ -483,6 +531,19 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param f - the key to seek to, or null for the whole page
+	 * @return an iterator over the tuples on this page whose key is greater
+	 *         than or equal to f, found by binary search
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		if (f == null)
+			return iterator();
+		int[] dir = slotDirectory();
+		int pos = search(dir, f, false);
+		return new BTreeLeafPageIterator(this, pos < dir.length ? dir[pos] : numSlots);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -491,6 +552,19 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @param f - the key to seek to, or null for the whole page
+	 * @return a reverse iterator over the tuples on this page whose key is
+	 *         less than or equal to f, found by binary search
+	 */
+	public Iterator<Tuple> reverseIterator(Field f) {
+		if (f == null)
+			return reverseIterator();
+		int[] dir = slotDirectory();
+		int pos = search(dir, f, true);
+		return new BTreeLeafPageReverseIterator(this, pos > 0 ? dir[pos - 1] : -1);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -529,6 +603,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int startSlot) {
+		this.p = p;
+		this.curTuple = startSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -578,6 +657,11 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		this.curTuple = p.getMaxTuples() - 1;
 	}
 
+	public BTreeLeafPageReverseIterator(BTreeLeafPage p, int startSlot) {
+		this.p = p;
+		this.curTuple = startSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
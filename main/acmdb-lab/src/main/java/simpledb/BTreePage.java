@@ -21,7 +21,8 @@ public abstract class BTreePage implements Page {
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
-	protected final int keyField;
+	protected final int keyField; // the first of keyFields
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -52,11 +53,52 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreePage of a B+ tree with a composite key.
+	 *
+	 * @param id - the id of this page
+	 * @param keyFields - the fields which the index is keyed on, most
+	 *        significant first
+	 */
+	public BTreePage(BTreePageId id, int[] keyFields) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyFields = keyFields.clone();
+		this.keyField = keyFields[0];
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * @return the key of a tuple of this tree, see {@link CompositeField#of}
+	 */
+	protected Field keyOf(Tuple t) {
+		return CompositeField.of(t, keyFields);
+	}
+
+	/**
+	 * @return the number of bytes a key of this tree takes on a page
+	 */
+	protected int keySize() {
+		int size = 0;
+		for (int f : keyFields)
+			size += td.getFieldType(f).getLen();
+		return size;
+	}
+
+	/**
+	 * Read a key written by {@link Field#serialize}.
+	 */
+	protected Field parseKey(DataInputStream dis) throws java.text.ParseException {
+		if (keyFields.length == 1)
+			return td.getFieldType(keyField).parse(dis);
+		Field[] fields = new Field[keyFields.length];
+		for (int i = 0; i < fields.length; i++)
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		return new CompositeField(fields);
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -4,7 +4,8 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, or the tuples in a range of keys in
+ * ascending or descending order
  */
 public class BTreeScan implements DbIterator {
 
@@ -14,6 +15,9 @@ public class BTreeScan implements DbIterator {
 	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private IndexPredicate lower = null;
+	private IndexPredicate upper = null;
+	private boolean reverse = false;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -43,6 +47,33 @@ public class BTreeScan implements DbIterator {
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * Creates a B+ tree scan over a range of keys of the specified table, in
+	 * ascending or descending key order.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 * @param lower
+	 *            a GREATER_THAN or GREATER_THAN_OR_EQ bound on the key, or null
+	 * @param upper
+	 *            a LESS_THAN or LESS_THAN_OR_EQ bound on the key, or null
+	 * @param reverse
+	 *            whether to return the tuples in descending key order
+	 * @see BTreeFile#indexIterator(TransactionId, IndexPredicate, IndexPredicate, boolean)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, 
+			IndexPredicate lower, IndexPredicate upper, boolean reverse) {
+		this.tid = tid;
+		this.lower = lower;
+		this.upper = upper;
+		this.reverse = reverse;
+		reset(tableid,tableAlias);
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -52,6 +83,35 @@ public class BTreeScan implements DbIterator {
 		return this.tablename;
 	}
 
+	/**
+	 * @return the index predicate this scan matches, or null if it returns
+	 *         every tuple
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * @return the lower bound of the range this scan returns, or null
+	 */
+	public IndexPredicate getLowerBound() {
+		return this.lower;
+	}
+
+	/**
+	 * @return the upper bound of the range this scan returns, or null
+	 */
+	public IndexPredicate getUpperBound() {
+		return this.upper;
+	}
+
+	/**
+	 * @return true if this scan returns the tuples in descending key order
+	 */
+	public boolean isReverse() {
+		return this.reverse;
+	}
+
 	/**
 	 * @return Return the alias of the table this operator scans. 
 	 * */
@@ -76,11 +136,15 @@ public class BTreeScan implements DbIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		if(ipred != null) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+		}
+		else if(lower != null || upper != null || reverse) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, 
+					lower, upper, reverse);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
@@ -0,0 +1,50 @@
+package simpledb;
+
+/**
+ * Broadcast is a {@link SplitExchange} that sends all the tuples of its
+ * children to each of its outputs, e.g. for each fragment of a parallel
+ * join to read the whole of a small input.
+ */
+public class Broadcast extends SplitExchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int outputs;
+
+    private Broadcast(Split split, int index, int outputs) {
+        super(split, index);
+        this.outputs = outputs;
+    }
+
+    /**
+     * Send all the tuples of some children to several outputs.
+     *
+     * @param children
+     *            the fragments to read in parallel, which all have the same
+     *            TupleDesc
+     * @param outputs
+     *            the number of outputs
+     * @return the outputs, each of which returns all the tuples
+     */
+    public static Broadcast[] split(DbIterator[] children, int outputs) {
+        Split split = new Split(children, outputs, (batch, channels) -> {
+            // operators may change the batches they read, so each output
+            // gets its own
+            for (int c = 1; c < channels.length; c++) {
+                TupleBatch copy = new TupleBatch(batch.getTupleDesc(), batch.size());
+                for (int i = 0; i < batch.size(); i++)
+                    copy.add(batch.getTuple(i));
+                channels[c].put(copy);
+            }
+            channels[0].put(batch);
+        });
+        Broadcast[] result = new Broadcast[outputs];
+        for (int i = 0; i < outputs; i++)
+            result[i] = new Broadcast(split, i, outputs);
+        return result;
+    }
+
+    public String getName() {
+        return "broadcast " + getOutput() + "/" + outputs;
+    }
+}
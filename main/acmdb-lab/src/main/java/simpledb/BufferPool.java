@@ -4,7 +4,9 @@ import java.io.*;
 import java.util.Map;
 import java.util.Random;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -91,7 +93,12 @@ public class BufferPool {
             if (pid2page.size() >= numPages)
                 evictPage();
             
-            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            try {
+                page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            } catch (IllegalStateException e) {
+                // the page failed its checksum
+                throw new DbException(e.getMessage());
+            }
             pid2page.put(pid, page);
         }
         
@@ -110,6 +117,16 @@ public class BufferPool {
         pid2pri.put(pid, privilage++);
     }
 
+    /**
+     * Acquire a lock on the specified page without reading it. Used by the
+     * recovery manager to keep new transactions away from pages it has yet to
+     * roll back.
+     */
+    synchronized void lockPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        lockManager.acquire(tid, pid, perm);
+    }
+
     /**
      * Releases the lock on a page. Calling this is very risky, and may result in
      * wrong behavior. Think hard about who needs to call this and why, and why they
@@ -152,9 +169,18 @@ public class BufferPool {
     public synchronized void transactionComplete(TransactionId tid, boolean commit) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        if (commit)
+        if (commit) {
             flushPages(tid);
-        else { // this tid is aborted.
+            // the committed contents are what a later transaction rolls back to
+            ArrayList<LockManager.Lock> locks = lockManager.getLocksFromTid(tid);
+            if (locks != null) {
+                for (LockManager.Lock l : locks) {
+                    Page page = pid2page.get(l.pid);
+                    if (l.type == LockManager.Type.EXCLUSIVE && page != null)
+                        page.setBeforeImage();
+                }
+            }
+        } else { // this tid is aborted.
             // discard all dirty pages(if is read/write)
             ArrayList<LockManager.Lock> locks = lockManager.getLocksFromTid(tid);
             if (locks != null) {
@@ -176,7 +202,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling their
      * markDirty bit, and adds versions of any pages that have been dirtied to the
      * cache (replacing any existing versions of those pages) so that future
-     * requests see up-to-date pages.
+     * requests see up-to-date pages.  The tuple is also added to every
+     * secondary index of the table (see {@link Catalog#getIndexes}).
      *
      * @param tid     the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -193,6 +220,32 @@ public class BufferPool {
             updateMap(tid, p, Permissions.READ_WRITE);
             p.markDirty(true, tid);
         }
+
+        for (BTreeIndex index : Database.getCatalog().getIndexes(tableId))
+            index.insert(tid, t);
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, as {@link #insertTuple} does for each of them, letting the file
+     * place them together (see {@link DbFile#insertTuples}).
+     *
+     * @param tid     the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples  the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        ArrayList<Page> dirtyPages = file.insertTuples(tid, tuples);
+
+        for (Page p : dirtyPages) {
+            updateMap(tid, p, Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+        }
+
+        for (BTreeIndex index : Database.getCatalog().getIndexes(tableId))
+            index.insert(tid, tuples);
     }
 
     /**
@@ -203,7 +256,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling their
      * markDirty bit, and adds versions of any pages that have been dirtied to the
      * cache (replacing any existing versions of those pages) so that future
-     * requests see up-to-date pages.
+     * requests see up-to-date pages.  The tuple's entries are removed from
+     * every secondary index of its table.
      *
      * @param tid the transaction deleting the tuple.
      * @param t   the tuple to delete
@@ -211,7 +265,9 @@ public class BufferPool {
     public void deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        RecordId rid = t.getRecordId();
+        int tableId = rid.getPageId().getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> dirtyPages = file.deleteTuple(tid, t);
 
         for (Page p : dirtyPages) {
@@ -219,6 +275,26 @@ public class BufferPool {
             updateMap(tid, p, Permissions.READ_WRITE);
             p.markDirty(true, tid);
         }
+
+        for (BTreeIndex index : Database.getCatalog().getIndexes(tableId))
+            index.delete(tid, t, rid);
+    }
+
+    /**
+     * Marks pages that a file changed on behalf of a transaction outside of
+     * insertTuple and deleteTuple, such as while compacting a B+ tree, as
+     * dirty, and adds them to the cache (replacing any existing versions of
+     * those pages).  The transaction must hold write locks on the pages.
+     *
+     * @param tid   the transaction that changed the pages
+     * @param pages the changed pages
+     */
+    public synchronized void markDirty(TransactionId tid, Collection<Page> pages)
+            throws DbException, TransactionAbortedException {
+        for (Page p : pages) {
+            updateMap(tid, p, Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+        }
     }
 
     /**
@@ -229,6 +305,7 @@ public class BufferPool {
         // some code goes here
         for (PageId pid : pid2page.keySet())
             flushPage(pid);
+        PageChecksums.forceAll();
     }
 
     /**
@@ -279,6 +356,7 @@ public class BufferPool {
         for (LockManager.Lock l : locks)
             if (l.type == LockManager.Type.EXCLUSIVE && pid2page.containsKey(l.pid))
                 flushPage(l.pid);
+        PageChecksums.forceAll();
     }
 
     private static final EvictPolicy EVICTPOLICY = EvictPolicy.LRU;
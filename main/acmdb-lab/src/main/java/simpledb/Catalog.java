@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -42,11 +43,13 @@ public class Catalog {
 
     private ConcurrentHashMap<Integer, Table> IdTableMap;
     private ConcurrentHashMap<String, Integer> NameIdMap;
+    private ConcurrentHashMap<Integer, List<BTreeIndex>> IdIndexMap; // table id -> secondary indexes
 
      public Catalog() {
         // some code goes 
         IdTableMap = new ConcurrentHashMap<>();
         NameIdMap = new ConcurrentHashMap<>();
+        IdIndexMap = new ConcurrentHashMap<>();
     }
 
     /**
@@ -141,11 +144,78 @@ public class Catalog {
         return t.getName();
     }
     
+    /**
+     * Register a secondary index.  Its entry file is added as a table under
+     * the index name, so the buffer pool can read and flush its pages; an
+     * index with the same name on the same table is replaced.
+     */
+    public void addIndex(BTreeIndex index) {
+        addTable(index.getFile(), index.getName());
+        List<BTreeIndex> indexes = this.IdIndexMap.computeIfAbsent(
+                index.getTableId(), k -> new CopyOnWriteArrayList<BTreeIndex>());
+        indexes.removeIf(i -> i.getName().equals(index.getName()));
+        indexes.add(index);
+    }
+
+    /**
+     * @return the secondary indexes of the specified table (empty if it has none)
+     */
+    public List<BTreeIndex> getIndexes(int tableid) {
+        List<BTreeIndex> indexes = this.IdIndexMap.get(tableid);
+        return indexes == null ? Collections.<BTreeIndex>emptyList() : indexes;
+    }
+
+    /**
+     * Build a secondary index on a field of a heap file table and register
+     * it.
+     *
+     * @see #createIndex(String, String, String[], String[])
+     */
+    public BTreeIndex createIndex(String indexName, String tableName, String fieldName)
+            throws DbException, IOException, TransactionAbortedException {
+        return createIndex(indexName, tableName, new String[] { fieldName }, new String[0]);
+    }
+
+    /**
+     * Build a secondary index on fields of a heap file table and register
+     * it.  The index is stored next to the table's file, in
+     * <tt>indexName.idx</tt>.  Indexes are not recorded in the catalog
+     * file, so they must be created again after {@link #loadSchema}.
+     *
+     * @param keyFields the names of the key fields, most significant first
+     * @param includedFields the names of other fields to store in the index
+     * @throws NoSuchElementException if the table or a field doesn't exist
+     * @throws DbException if the table is not a HeapFile, or another table
+     *         or index already uses the name
+     */
+    public BTreeIndex createIndex(String indexName, String tableName, String[] keyFields,
+            String[] includedFields)
+            throws DbException, IOException, TransactionAbortedException {
+        int tableid = getTableId(tableName);
+        DbFile file = getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile))
+            throw new DbException("secondary indexes are only supported on heap files");
+        int[] keys = new int[keyFields.length];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = file.getTupleDesc().fieldNameToIndex(keyFields[i]);
+        int[] included = new int[includedFields.length];
+        for (int i = 0; i < included.length; i++)
+            included[i] = file.getTupleDesc().fieldNameToIndex(includedFields[i]);
+        if (this.NameIdMap.containsKey(indexName)
+                && getIndexes(tableid).stream().noneMatch(i -> i.getName().equals(indexName)))
+            throw new DbException("name " + indexName + " is already in use");
+        File f = new File(((HeapFile) file).getFile().getAbsoluteFile().getParentFile(), indexName + ".idx");
+        BTreeIndex index = BTreeIndex.build(indexName, tableid, keys, included, f);
+        addIndex(index);
+        return index;
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
         this.IdTableMap.clear();
         this.NameIdMap.clear();
+        this.IdIndexMap.clear();
     }
     
     /**
@@ -195,9 +265,9 @@ public class Catalog {
             }
         } catch (IOException e) {
             e.printStackTrace();
+            System.exit(0);
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
-        } finally {
             System.exit(0);
         }
     }
@@ -0,0 +1,25 @@
+package simpledb;
+
+/**
+ * ChildIterator reads the tuples of an operator's child, which the operator
+ * has opened, as a DbFileIterator, so that the operator can partition or
+ * sort them.  Opening and closing it leaves the child as it is.
+ */
+class ChildIterator extends AbstractDbFileIterator {
+    private final DbIterator child;
+
+    ChildIterator(DbIterator child) {
+        this.child = child;
+    }
+
+    public void open() {
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        return child.hasNext() ? child.next() : null;
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the key of a B+ tree keyed on several
+ * fields.  Composite fields compare lexicographically, most significant
+ * field first.
+ * <p>
+ * A composite field may be compared with a shorter one (or with a single
+ * Field, which acts as a composite of one field): only the common prefix
+ * is compared, so that EQUALS (a) matches every key (a, b) and LESS_THAN
+ * (a) every key whose first field is less than a.  This is what lets a
+ * predicate on the leading fields of a composite key use the tree.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The fields of this key, most significant first.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one field");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the key made of the specified fields of a tuple: the field
+     *         itself if there is only one, or a CompositeField
+     */
+    public static Field of(Tuple t, int[] keyFields) {
+        if (keyFields.length == 1)
+            return t.getField(keyFields[0]);
+        Field[] fields = new Field[keyFields.length];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = t.getField(keyFields[i]);
+        return new CompositeField(fields);
+    }
+
+    public Field[] getFields() {
+        return fields.clone();
+    }
+
+    public int numFields() {
+        return fields.length;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        return field instanceof CompositeField
+            && Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    /**
+     * Writes the fields one after the other.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * Compare the common prefix of this key and val lexicographically.
+     * Return semantics are as specified by Field.compare
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        Field[] other = val instanceof CompositeField
+            ? ((CompositeField) val).fields : new Field[] { val };
+        int cmp = 0;
+        for (int i = 0; i < Math.min(fields.length, other.length) && cmp == 0; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                cmp = -1;
+            else if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i]))
+                cmp = 1;
+        }
+
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+        case GREATER_THAN:
+            return cmp > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+        case LESS_THAN:
+            return cmp < 0;
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the Type of the most significant field; a composite key has
+     * no storage type of its own.
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
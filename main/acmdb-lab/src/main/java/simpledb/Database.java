@@ -18,6 +18,7 @@ public class Database {
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
 
+    // the simpledb.log system property names another log file
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
@@ -26,7 +27,9 @@ public class Database {
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
-            tmp = new LogFile(new File(LOGFILENAME));
+            File log = new File(System.getProperty("simpledb.log", LOGFILENAME));
+            log.getAbsoluteFile().getParentFile().mkdirs();
+            tmp = new LogFile(log);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -75,6 +78,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        PageChecksums.closeAll();
         _instance.set(new Database());
     }
 
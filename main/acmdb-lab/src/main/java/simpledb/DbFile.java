@@ -43,6 +43,28 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples to the file on behalf of transaction, as
+     * {@link #insertTuple} does for each of them.  Files that can place many
+     * tuples at once more cheaply than one at a time override this.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add
+     * @return An ArrayList contain the pages that were modified
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public default ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        // later versions of a page replace earlier ones
+        LinkedHashMap<PageId, Page> dirtypages = new LinkedHashMap<PageId, Page>();
+        for (Tuple t : tuples) {
+            for (Page p : insertTuple(tid, t))
+                dirtypages.put(p.getId(), p);
+        }
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -34,6 +34,23 @@ public interface DbIterator extends Serializable{
    */
   public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next tuples from the operator as a batch, or null if there
+   * are no more.  Calls to next() and nextBatch() may be mixed; each tuple is
+   * returned once.  The default implementation collects up to
+   * TupleBatch.DEFAULT_SIZE tuples from next(); operators that can work on a
+   * whole batch at once override it.
+   *
+   * @return the next non-empty batch of tuples, or null at the end
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+    TupleBatch batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+    while (!batch.isFull() && hasNext())
+      batch.add(next());
+    return batch.size() == 0 ? null : batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -0,0 +1,293 @@
+package simpledb;
+
+import java.util.concurrent.*;
+
+/**
+ * Exchange is the base class of the operators that move tuples between
+ * threads, so that parts of a plan run in parallel.  The children of an
+ * exchange are plan fragments, e.g. a {@link Filter} over a {@link SeqScan}
+ * of one partition of a table, each read by a worker thread of a shared
+ * pool, which sends the batches it reads to the consumers of the exchange
+ * through {@link Channel}s.  {@link Gather} merges the fragments into one
+ * stream; {@link Repartition} and {@link Broadcast} split them into several
+ * streams, to be read in parallel by other fragments.
+ * <p>
+ * An error in a worker is thrown to the consumers, as the same exception
+ * for a DbException or a TransactionAbortedException.
+ * <p>
+ * Workers scanning {@link Morsels} hold one of a fixed number of cores
+ * while they read each morsel.  Cores are granted in the order they are
+ * asked for, so the queries running at the same time share them fairly,
+ * and a worker gives its cores back while it waits on a channel.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of fragments a plan is split into */
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    /** Number of batches a channel holds before the workers filling it wait */
+    static final int CHANNEL_BATCHES = 16;
+
+    // how long blocked workers and consumers wait before checking whether
+    // the other end went away
+    private static final long POLL_MILLIS = 100;
+
+    private static ExecutorService pool;
+
+    private static final Semaphore cores = new Semaphore(DEFAULT_WORKERS, true);
+    private static final ThreadLocal<int[]> heldCores = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * @return the pool of worker threads.  Workers may block on full
+     *         channels, so the pool grows with the number of fragments
+     *         instead of queueing them.
+     */
+    static synchronized ExecutorService workers() {
+        if (pool == null) {
+            pool = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "exchange-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Take a core for the calling thread, waiting for one to be free.  A
+     * thread holds at most one core, however many times it takes it.
+     */
+    static void acquireCore() throws DbException {
+        int[] held = heldCores.get();
+        if (held[0] == 0) {
+            try {
+                cores.acquire();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for a core");
+            }
+        }
+        held[0]++;
+    }
+
+    /**
+     * Give back a core taken by the calling thread.
+     */
+    static void releaseCore() {
+        int[] held = heldCores.get();
+        if (held[0] > 0 && --held[0] == 0)
+            cores.release();
+    }
+
+    /**
+     * @return the number of cores no thread holds
+     */
+    static int availableCores() {
+        return cores.availablePermits();
+    }
+
+    /** Give back the core of the calling thread, before it blocks; @return how many times it was taken */
+    private static int yieldCore() {
+        int[] held = heldCores.get();
+        int n = held[0];
+        held[0] = 0;
+        if (n > 0)
+            cores.release();
+        return n;
+    }
+
+    /** Take back the core given back by {@link #yieldCore} */
+    private static void resumeCore(int n) throws InterruptedException {
+        if (n > 0) {
+            cores.acquire();
+            heldCores.get()[0] = n;
+        }
+    }
+
+    /**
+     * @return the name of this exchange in query plans
+     */
+    public abstract String getName();
+
+    /**
+     * Returns the tuples of the batches read by {@link #fetchNextBatch}.
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        return nextFromBatches();
+    }
+
+    /** Sends the batches read by a worker to channels */
+    interface Router {
+        void route(TupleBatch batch, Channel[] channels) throws InterruptedException;
+    }
+
+    /**
+     * A bounded queue of batches from the workers of an exchange to one
+     * consumer.  It ends when all the workers filling it have finished, or
+     * as soon as one of them fails.
+     */
+    static class Channel {
+        private static final TupleBatch END = new TupleBatch(new TupleDesc(new Type[0]), 0);
+
+        private final BlockingQueue<TupleBatch> queue = new ArrayBlockingQueue<TupleBatch>(CHANNEL_BATCHES);
+        private int producers;
+        private volatile Throwable error;
+        private volatile boolean closed = false;
+        private boolean ended = false;
+
+        Channel(int producers) {
+            this.producers = producers;
+            if (producers == 0)
+                queue.add(END);
+        }
+
+        /**
+         * Add a batch, waiting while the channel is full.  The batch is
+         * dropped if the consumer has closed the channel.
+         */
+        void put(TupleBatch batch) throws InterruptedException {
+            if (closed || queue.offer(batch))
+                return;
+            int n = yieldCore();
+            try {
+                while (!closed && !queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS))
+                    ;
+            } finally {
+                resumeCore(n);
+            }
+        }
+
+        /** Called by each worker once it is done, with the error it failed with, if any */
+        synchronized void finish(Throwable e) {
+            if (e != null && error == null) {
+                error = e;
+                queue.clear();
+                queue.offer(END);
+            } else if (--producers == 0 && error == null) {
+                // the consumer makes room as it takes batches
+                boolean sent = queue.offer(END);
+                while (!sent && !closed) {
+                    try {
+                        wait(POLL_MILLIS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    sent = queue.offer(END);
+                }
+            }
+        }
+
+        /**
+         * @return the next batch, or null once the channel has ended
+         */
+        TupleBatch take() throws DbException, TransactionAbortedException {
+            if (ended)
+                return null;
+            TupleBatch batch = queue.poll();
+            if (batch == null) {
+                int n = yieldCore();
+                try {
+                    batch = queue.take();
+                    resumeCore(n);
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted while waiting for an exchange");
+                }
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+            if (error != null) {
+                ended = true;
+                if (error instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) error;
+                if (error instanceof DbException)
+                    throw (DbException) error;
+                throw new DbException("exchange worker failed: " + error);
+            }
+            if (batch == END) {
+                ended = true;
+                return null;
+            }
+            return batch;
+        }
+
+        /** Stop accepting batches, and drop those not read yet */
+        void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+
+    /**
+     * The workers of an exchange: one task per child, which opens it, routes
+     * its batches to the channels, and closes it.
+     */
+    static class Sender {
+        private final DbIterator[] children;
+        private final Channel[] channels;
+        private final Router router;
+        private final Future<?>[] tasks;
+        private volatile boolean stopped = false;
+
+        Sender(DbIterator[] children, Channel[] channels, Router router) {
+            this.children = children;
+            this.channels = channels;
+            this.router = router;
+            this.tasks = new Future<?>[children.length];
+        }
+
+        void start() {
+            for (int i = 0; i < children.length; i++) {
+                final DbIterator child = children[i];
+                tasks[i] = workers().submit(() -> run(child));
+            }
+        }
+
+        private void run(DbIterator child) {
+            Throwable error = null;
+            try {
+                child.open();
+                TupleBatch batch;
+                while (!stopped && (batch = child.nextBatch()) != null)
+                    router.route(batch, channels);
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                try {
+                    child.close();
+                } catch (RuntimeException e) {
+                    if (error == null)
+                        error = e;
+                }
+                // cores left by a child that failed to close
+                yieldCore();
+                for (Channel c : channels)
+                    c.finish(stopped ? null : error);
+            }
+        }
+
+        /**
+         * Stop the workers after the batch they are reading, and wait for
+         * them to close their children.
+         */
+        void stop() {
+            stopped = true;
+            for (Channel c : channels)
+                c.close();
+            for (Future<?> task : tasks) {
+                if (task == null)
+                    continue;
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    // the error was passed to the channels
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ExternalSort sorts more tuples than fit in memory.  Tuples added to it are
+ * collected into runs of at most runSize tuples; each full run is sorted and
+ * written to a temporary file by a pool of worker threads while the next run
+ * is being filled.  {@link #sorted} then streams the tuples back in order with
+ * a k-way merge of the runs through a loser tree, after merging them in
+ * passes of at most {@link #MAX_FAN_IN} runs if there are more.  If all the
+ * tuples fit in a single run, nothing is written to disk.  The sort is
+ * stable: equal tuples come back in the order they were added.
+ * <p>
+ * Runs are {@link SpillFile}s, so tuples come back without their
+ * RecordIds.
+ */
+public class ExternalSort {
+    /** Default number of tuples sorted in memory at a time */
+    public static final int DEFAULT_RUN_SIZE = 100000;
+
+    /** Maximum number of runs merged at once */
+    public static final int MAX_FAN_IN = 64;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int runSize;
+    private final int workers;
+
+    private ExecutorService pool;
+    private final ArrayList<Future<SpillFile>> pending = new ArrayList<Future<SpillFile>>();
+    private final ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private ArrayList<Tuple> current = new ArrayList<Tuple>();
+    private Tuple[] inMemory;
+
+    /**
+     * Create an ExternalSort that sorts runs with one worker per processor.
+     *
+     * @param td the TupleDesc of the tuples to sort
+     * @param comparator the order to sort them in
+     * @param runSize the maximum number of tuples held in memory per run
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int runSize) {
+        this(td, comparator, runSize, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an ExternalSort.  At most workers runs are sorted at a time, so
+     * about (workers + 1) * runSize tuples are held in memory.
+     *
+     * @param td the TupleDesc of the tuples to sort
+     * @param comparator the order to sort them in
+     * @param runSize the maximum number of tuples held in memory per run
+     * @param workers the number of threads sorting and writing runs
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int runSize, int workers) {
+        if (runSize < 1 || workers < 1)
+            throw new IllegalArgumentException("run size and workers must be positive");
+        this.td = td;
+        this.comparator = comparator;
+        this.runSize = runSize;
+        this.workers = workers;
+    }
+
+    /**
+     * Add a tuple to sort.  This blocks while all the workers are busy.
+     */
+    public void add(Tuple t) throws IOException {
+        if (inMemory != null || current == null)
+            throw new IllegalStateException("tuples added after sorted()");
+        current.add(t);
+        if (current.size() >= runSize) {
+            spill(current);
+            current = new ArrayList<Tuple>();
+        }
+    }
+
+    /** Add all the tuples of an iterator, which is opened and closed here */
+    public void addAll(DbFileIterator it)
+            throws IOException, DbException, TransactionAbortedException {
+        it.open();
+        try {
+            while (it.hasNext())
+                add(it.next());
+        } finally {
+            it.close();
+        }
+    }
+
+    /** @return the number of runs written to disk so far */
+    public int numRuns() {
+        return runs.size() + pending.size();
+    }
+
+    /** Hand a full run to a worker, waiting for one to be free */
+    private void spill(final ArrayList<Tuple> run) throws IOException {
+        if (pool == null)
+            pool = Executors.newFixedThreadPool(workers);
+        while (pending.size() >= workers)
+            runs.add(await(pending.remove(0)));
+        pending.add(pool.submit(() -> {
+            Tuple[] tuples = run.toArray(new Tuple[run.size()]);
+            Arrays.sort(tuples, comparator);
+            SpillFile f = new SpillFile(td);
+            try {
+                for (Tuple t : tuples)
+                    f.add(t);
+                f.finish();
+            } catch (IOException e) {
+                f.delete();
+                throw e;
+            }
+            return f;
+        }));
+    }
+
+    private static SpillFile await(Future<SpillFile> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new IOException("sort interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("writing a sorted run failed", e.getCause());
+        }
+    }
+
+    /**
+     * Finish the input and return the tuples in order.  No more tuples may
+     * be added afterwards.
+     *
+     * @return an iterator over all the tuples added, in sorted order; it can
+     *         be rewound and opened again until this ExternalSort is closed
+     */
+    public DbFileIterator sorted() throws IOException {
+        if (inMemory == null && current != null) {
+            try {
+                if (pending.isEmpty() && runs.isEmpty()) {
+                    inMemory = current.toArray(new Tuple[current.size()]);
+                    Arrays.parallelSort(inMemory, comparator);
+                } else {
+                    if (!current.isEmpty())
+                        spill(current);
+                    for (Future<SpillFile> f : pending)
+                        runs.add(await(f));
+                    pending.clear();
+                    while (runs.size() > MAX_FAN_IN)
+                        mergePass();
+                }
+            } finally {
+                current = null;
+                if (pool != null)
+                    pool.shutdown();
+            }
+        }
+        if (inMemory != null) {
+            return new AbstractDbFileIterator() {
+                private int pos;
+
+                public void open() {
+                    pos = 0;
+                }
+
+                public void rewind() {
+                    pos = 0;
+                }
+
+                protected Tuple readNext() {
+                    return pos < inMemory.length ? inMemory[pos++] : null;
+                }
+            };
+        }
+        return new MergeIterator(new ArrayList<SpillFile>(runs));
+    }
+
+    /** Merge the runs, MAX_FAN_IN at a time, into fewer longer runs */
+    private void mergePass() throws IOException {
+        ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+        for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+            List<SpillFile> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+            MergeIterator it = new MergeIterator(new ArrayList<SpillFile>(group));
+            SpillFile f = new SpillFile(td);
+            try {
+                it.open();
+                while (it.hasNext())
+                    f.add(it.next());
+                f.finish();
+                merged.add(f);
+            } catch (DbException | TransactionAbortedException e) {
+                f.delete();
+                throw new IOException("merging sorted runs failed", e);
+            } finally {
+                it.close();
+            }
+            for (SpillFile run : group)
+                run.delete();
+        }
+        runs.clear();
+        runs.addAll(merged);
+    }
+
+    /** Delete the run files and stop the workers */
+    public void close() {
+        if (pool != null)
+            pool.shutdown();
+        for (Future<SpillFile> f : pending) {
+            try {
+                await(f).delete();
+            } catch (IOException e) {
+                // the run was never written
+            }
+        }
+        pending.clear();
+        for (SpillFile f : runs)
+            f.delete();
+        runs.clear();
+        current = null;
+        inMemory = null;
+    }
+
+    /** One run being read back */
+    private static class RunReader {
+        private final DbFileIterator it;
+        Tuple head;
+
+        RunReader(SpillFile f) throws IOException, DbException {
+            it = f.iterator();
+            try {
+                it.open();
+            } catch (TransactionAbortedException e) {
+                throw new DbException("cannot read sorted run: " + e.getMessage());
+            }
+        }
+
+        /** Read the next tuple into head; false at the end of the run */
+        boolean advance() throws DbException {
+            try {
+                head = it.hasNext() ? it.next() : null;
+            } catch (TransactionAbortedException e) {
+                throw new DbException("cannot read sorted run: " + e.getMessage());
+            }
+            return head != null;
+        }
+
+        void close() {
+            it.close();
+        }
+    }
+
+    /**
+     * k-way merge of run files, through a loser tree of their heads: each
+     * inner node of the tree holds the run that lost the comparison there,
+     * and node 0 the overall winner, so replacing the winner's head costs
+     * log k comparisons along one path.  Equal tuples come out in the order
+     * of their runs, which keeps the sort stable.
+     */
+    private class MergeIterator extends AbstractDbFileIterator {
+        private final ArrayList<SpillFile> files;
+        private final ArrayList<RunReader> readers = new ArrayList<RunReader>();
+        private int[] tree;
+        private int count;
+
+        MergeIterator(ArrayList<SpillFile> files) {
+            this.files = files;
+        }
+
+        public void open() throws DbException {
+            close();
+            count = 0;
+            try {
+                for (SpillFile f : files) {
+                    RunReader r = new RunReader(f);
+                    readers.add(r);
+                    count += f.size();
+                    r.advance();
+                }
+            } catch (IOException e) {
+                throw new DbException("cannot read sorted run: " + e.getMessage());
+            }
+            // -1 stands for a run that beats every other, until each real
+            // run has been played up from its leaf and pushed it out
+            tree = new int[readers.size()];
+            Arrays.fill(tree, -1);
+            for (int i = readers.size() - 1; i >= 0; i--)
+                replay(i);
+        }
+
+        /** @return true if run a comes out before run b */
+        private boolean beats(int a, int b) {
+            if (a == -1 || b == -1)
+                return b != -1;
+            Tuple ha = readers.get(a).head;
+            Tuple hb = readers.get(b).head;
+            if (ha == null || hb == null)
+                return hb == null && (ha != null || a < b);
+            int c = comparator.compare(ha, hb);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /** Play run s up from its leaf to the root, after its head changed */
+        private void replay(int s) {
+            for (int t = (s + tree.length) / 2; t > 0; t /= 2) {
+                if (beats(tree[t], s)) {
+                    int loser = s;
+                    s = tree[t];
+                    tree[t] = loser;
+                }
+            }
+            tree[0] = s;
+        }
+
+        /** @return the number of tuples in the runs, once opened */
+        int size() {
+            return count;
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (tree == null || tree.length == 0)
+                return null;
+            int w = tree[0];
+            RunReader r = readers.get(w);
+            Tuple t = r.head;
+            if (t == null)
+                return null;
+            r.advance();
+            replay(w);
+            return t;
+        }
+
+        public void close() {
+            super.close();
+            for (RunReader r : readers)
+                r.close();
+            readers.clear();
+            tree = null;
+        }
+    }
+}
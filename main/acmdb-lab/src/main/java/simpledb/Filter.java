@@ -53,12 +53,14 @@ public class Filter extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child.rewind();
+        discardReadAhead();
     }
 
     /**
      * AbstractDbIterator.readNext implementation. Iterates over tuples from the
      * child operator, applying the predicate to them and returning those that
      * pass the predicate (i.e. for which the Predicate.filter() returns true.)
+     * The tuples are filtered a batch at a time, by fetchNextBatch.
      * 
      * @return The next tuple that passes the filter, or null if there are no
      *         more tuples
@@ -67,10 +69,21 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
+        return nextFromBatches();
+    }
+
+    /**
+     * Reads batches of tuples from the child and applies the predicate to
+     * the whole batch, until one has tuples that pass it.
+     *
+     * @see TupleBatch#filter
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
         if (child == null) return null;
-        while (child.hasNext()) {
-            Tuple tuple = child.next();
-            if (p.filter(tuple)) return tuple;
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            batch.filter(p);
+            if (batch.size() > 0) return batch;
         }
         return null;
     }
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Gather is an {@link Exchange} that reads its children in parallel, each
+ * on a worker thread, and returns the tuples of all of them, in no
+ * particular order.  The children are usually the same plan fragment over
+ * the partitions of a table, e.g. {@link SeqScan}s of the partitions of a
+ * {@link HeapFile} under {@link Filter}s and partial {@link Aggregate}s.
+ */
+public class Gather extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator[] children;
+    private transient Channel channel;
+    private transient Sender sender;
+
+    /**
+     * Constructor.
+     *
+     * @param children
+     *            the fragments to read in parallel, which all have the same
+     *            TupleDesc
+     */
+    public Gather(DbIterator[] children) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("nothing to gather");
+        this.children = children.clone();
+    }
+
+    public String getName() {
+        return "gather(" + children.length + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return children[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        start();
+    }
+
+    private void start() {
+        channel = new Channel(children.length);
+        sender = new Sender(children, new Channel[] { channel }, (batch, channels) -> channels[0].put(batch));
+        sender.start();
+    }
+
+    private void stop() {
+        if (sender != null)
+            sender.stop();
+        sender = null;
+        channel = null;
+    }
+
+    public void close() {
+        super.close();
+        stop();
+    }
+
+    /**
+     * Reads the children again from the start.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        discardReadAhead();
+        stop();
+        start();
+    }
+
+    /**
+     * @return the next batch read by a worker
+     */
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        return channel == null ? null : channel.take();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children.clone();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.children = children.clone();
+    }
+}
@@ -0,0 +1,457 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * HashAggregator computes several aggregates over tuples, grouped by any
+ * number of fields, in an open-addressing hash table.  Besides MIN, MAX,
+ * SUM, AVG and COUNT, it computes the SUM_COUNT and SC_AVG aggregates that
+ * split an AVG into partial aggregates and a final one.  Each group gets a
+ * number, and the aggregates of the groups are kept in one long array per
+ * aggregate, indexed by that number, so merging a tuple into its group
+ * allocates nothing.  When all the group-by fields are integers, the keys of
+ * the groups are kept in an int array too; otherwise they are kept as
+ * fields.
+ * <p>
+ * At most a fixed number of groups are held in memory.  Once the table is
+ * full, the tuples of groups that are not in it are written to
+ * {@link SpillFile}s, split into {@link #FAN_OUT} partitions by the hash of
+ * their group, while the groups already in the table go on being merged.
+ * Each spilled partition is aggregated in the same way once the groups in
+ * memory have been returned, split on other bits of the hash if it still
+ * does not fit.  Every pass over a partition completes at least as many
+ * groups as fit in memory, so this ends however the groups hash.
+ */
+public class HashAggregator {
+
+    /** Default number of groups held in memory */
+    public static final int DEFAULT_MEMORY_GROUPS = 100000;
+
+    /** Number of partitions the tuples of the groups not in memory are split into */
+    public static final int FAN_OUT = 16;
+
+    private static final int PARTITION_BITS = 4;
+
+    private final TupleDesc td;
+    private final int[] gbfields;
+    private final int[] afields;
+    private final Aggregator.Op[] ops;
+    private final TupleDesc resultTd;
+    private final int memoryGroups;
+    private final boolean intKeys;
+
+    private GroupTable table;
+    private int level = 0;
+    private SpillFile[] spills = new SpillFile[FAN_OUT];
+    private final ArrayDeque<Partition> pending = new ArrayDeque<Partition>();
+    private int spilled = 0;
+    private boolean reading = false;
+
+    /**
+     * Create an empty aggregation.
+     *
+     * @param td
+     *            the TupleDesc of the tuples to aggregate
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuples;
+     *            empty if there is no grouping
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuples
+     * @param ops
+     *            the aggregate computed over each field of afields
+     * @param memoryGroups
+     *            the maximum number of groups held in memory
+     * @throws IllegalArgumentException
+     *             if an aggregate cannot be computed over its field
+     */
+    public HashAggregator(TupleDesc td, int[] gbfields, int[] afields, Aggregator.Op[] ops,
+            int memoryGroups) {
+        checkAggregates(td, afields, ops);
+        if (memoryGroups < 1)
+            throw new IllegalArgumentException("a hash aggregation needs memory for at least one group");
+        this.td = td;
+        this.gbfields = gbfields.clone();
+        this.afields = afields.clone();
+        this.ops = ops.clone();
+        this.memoryGroups = memoryGroups;
+
+        boolean ints = true;
+        for (int g : gbfields)
+            ints &= td.getFieldType(g) == Type.INT_TYPE;
+        this.intKeys = ints;
+
+        int width = gbfields.length;
+        for (Aggregator.Op op : ops)
+            width += width(op);
+        Type[] types = new Type[width];
+        Arrays.fill(types, Type.INT_TYPE);
+        for (int i = 0; i < gbfields.length; i++)
+            types[i] = td.getFieldType(gbfields[i]);
+        this.resultTd = new TupleDesc(types);
+        this.table = new GroupTable();
+    }
+
+    /**
+     * Check that aggregates can be computed over tuples of the given
+     * TupleDesc.
+     *
+     * @throws IllegalArgumentException
+     *             if an aggregate other than COUNT is over a field that is
+     *             not an integer, or SC_AVG is not over a sum field
+     *             followed by a count field
+     */
+    static void checkAggregates(TupleDesc td, int[] afields, Aggregator.Op[] ops) {
+        if (afields.length != ops.length)
+            throw new IllegalArgumentException("one aggregate is needed per aggregate field");
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+            case MIN:
+            case MAX:
+            case SUM:
+            case AVG:
+            case SUM_COUNT:
+                if (td.getFieldType(afields[i]) != Type.INT_TYPE)
+                    throw new IllegalArgumentException(ops[i] + " of a non-integer field");
+                break;
+            case SC_AVG:
+                if (afields[i] + 1 >= td.numFields() || td.getFieldType(afields[i]) != Type.INT_TYPE
+                        || td.getFieldType(afields[i] + 1) != Type.INT_TYPE)
+                    throw new IllegalArgumentException(ops[i] + " needs a sum field followed by a count field");
+                break;
+            case COUNT:
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported aggregate " + ops[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of result fields of an aggregate: two for
+     *         SUM_COUNT, which returns the sum and the count of its field,
+     *         and one for the others
+     */
+    static int width(Aggregator.Op op) {
+        return op == Aggregator.Op.SUM_COUNT ? 2 : 1;
+    }
+
+    /**
+     * @return the TupleDesc of the results: the group-by fields, then the
+     *         aggregates, all integers
+     */
+    public TupleDesc getTupleDesc() {
+        return resultTd;
+    }
+
+    /**
+     * @return the number of partitions written to disk so far
+     */
+    public int getSpilledPartitions() {
+        return spilled;
+    }
+
+    /**
+     * Merge a tuple into the aggregate of its group.
+     *
+     * @throws IllegalStateException if the results are already being read
+     */
+    public void add(Tuple t) throws IOException {
+        if (reading)
+            throw new IllegalStateException("tuples added to an aggregation after reading it");
+        merge(t);
+    }
+
+    /** Merge all the tuples of an iterator, which is opened and closed here */
+    public void addAll(DbFileIterator it) throws DbException, TransactionAbortedException, IOException {
+        it.open();
+        try {
+            while (it.hasNext())
+                add(it.next());
+        } finally {
+            it.close();
+        }
+    }
+
+    private void merge(Tuple t) throws IOException {
+        int h = hash(t);
+        int g = table.find(t, h);
+        if (g < 0) {
+            if (table.size >= memoryGroups) {
+                int part = (h >>> ((level * PARTITION_BITS) & 31)) & (FAN_OUT - 1);
+                if (spills[part] == null) {
+                    spills[part] = new SpillFile(td);
+                    spilled++;
+                }
+                spills[part].add(t);
+                return;
+            }
+            g = table.insert(t, h);
+        }
+        table.update(g, t);
+    }
+
+    /** @return the hash of the group of a tuple */
+    private int hash(Tuple t) {
+        int h = 0;
+        for (int g : gbfields)
+            h = 31 * h + t.getField(g).hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Return an iterator over one tuple per group: the values of its
+     * group-by fields, followed by its aggregates.  The groups in memory
+     * come first, in no particular order, then those of each spilled
+     * partition.  No more tuples may be added afterwards, and the results
+     * can be read only once.
+     */
+    public DbFileIterator iterator() {
+        reading = true;
+        return new AbstractDbFileIterator() {
+            private int next = 0;
+
+            public void open() {
+            }
+
+            public void rewind() throws DbException {
+                throw new DbException("the results of a hash aggregation can be read only once");
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                while (table != null && next >= table.size) {
+                    try {
+                        nextPartition();
+                    } catch (IOException e) {
+                        throw new DbException("hash aggregation cannot spill: " + e.getMessage(), e);
+                    }
+                    next = 0;
+                }
+                return table == null ? null : table.result(next++);
+            }
+        };
+    }
+
+    /**
+     * Queue the partitions spilled while filling the table, and fill it
+     * again from the next partition, or drop it if there is none left.
+     */
+    private void nextPartition() throws DbException, TransactionAbortedException, IOException {
+        for (int i = 0; i < FAN_OUT; i++) {
+            if (spills[i] != null)
+                pending.add(new Partition(spills[i], level + 1));
+            spills[i] = null;
+        }
+        Partition p = pending.poll();
+        if (p == null) {
+            table = null;
+            return;
+        }
+        table = new GroupTable();
+        level = p.level;
+        DbFileIterator it = p.file.iterator();
+        it.open();
+        try {
+            while (it.hasNext())
+                merge(it.next());
+        } finally {
+            it.close();
+            p.file.delete();
+        }
+    }
+
+    /** Release the memory and delete the spill files of this aggregation */
+    public void close() {
+        table = null;
+        for (int i = 0; i < FAN_OUT; i++) {
+            if (spills[i] != null)
+                spills[i].delete();
+            spills[i] = null;
+        }
+        for (Partition p : pending)
+            p.file.delete();
+        pending.clear();
+    }
+
+    /** The tuples of the groups spilled at a level of partitioning */
+    private static class Partition {
+        final SpillFile file;
+        final int level;
+
+        Partition(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    /**
+     * The groups in memory.  Groups are numbered in the order they are
+     * created; slots holds the number of a group plus one, or 0 for an empty
+     * slot, and collisions are resolved by linear probing.
+     */
+    private class GroupTable {
+        int size = 0;
+        int[] slots = new int[16];
+        int[] hashes = new int[8];
+        // the group-by values of group g at [g * gbfields.length, ...)
+        int[] intGroups;
+        Field[][] fieldGroups;
+        long[] counts = new long[8];
+        // the aggregates, one array per aggregate field
+        long[][] acc = new long[afields.length][8];
+        // the sums of the counts of SC_AVG aggregates
+        long[][] scCounts = new long[afields.length][];
+
+        GroupTable() {
+            for (int i = 0; i < ops.length; i++) {
+                if (ops[i] == Aggregator.Op.SC_AVG)
+                    scCounts[i] = new long[8];
+            }
+            if (intKeys)
+                intGroups = new int[8 * gbfields.length];
+            else
+                fieldGroups = new Field[8][];
+        }
+
+        private int slot(int h) {
+            // the low bits of the hash are shared by a spilled partition,
+            // so take the slot from the high bits of a product instead
+            return (h * 0x9e3779b9) >>> (32 - Integer.numberOfTrailingZeros(slots.length));
+        }
+
+        private boolean matches(int g, Tuple t) {
+            int n = gbfields.length;
+            for (int i = 0; i < n; i++) {
+                if (intKeys) {
+                    if (intGroups[g * n + i] != ((IntField) t.getField(gbfields[i])).getValue())
+                        return false;
+                } else if (!fieldGroups[g][i].equals(t.getField(gbfields[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** @return the number of the group of a tuple, or -1 if it has none */
+        int find(Tuple t, int h) {
+            int mask = slots.length - 1;
+            for (int s = slot(h); slots[s] != 0; s = (s + 1) & mask) {
+                int g = slots[s] - 1;
+                if (hashes[g] == h && matches(g, t))
+                    return g;
+            }
+            return -1;
+        }
+
+        /** Create the group of a tuple, and return its number */
+        int insert(Tuple t, int h) {
+            if (size == hashes.length)
+                grow();
+            int g = size++;
+            hashes[g] = h;
+            int n = gbfields.length;
+            if (intKeys) {
+                for (int i = 0; i < n; i++)
+                    intGroups[g * n + i] = ((IntField) t.getField(gbfields[i])).getValue();
+            } else {
+                Field[] key = new Field[n];
+                for (int i = 0; i < n; i++)
+                    key[i] = t.getField(gbfields[i]);
+                fieldGroups[g] = key;
+            }
+            for (int i = 0; i < ops.length; i++) {
+                if (ops[i] == Aggregator.Op.MIN)
+                    acc[i][g] = Long.MAX_VALUE;
+                else if (ops[i] == Aggregator.Op.MAX)
+                    acc[i][g] = Long.MIN_VALUE;
+            }
+            if (2 * size > slots.length)
+                rehash(2 * slots.length);
+            else
+                place(g);
+            return g;
+        }
+
+        private void place(int g) {
+            int mask = slots.length - 1;
+            int s = slot(hashes[g]);
+            while (slots[s] != 0)
+                s = (s + 1) & mask;
+            slots[s] = g + 1;
+        }
+
+        private void rehash(int capacity) {
+            slots = new int[capacity];
+            for (int g = 0; g < size; g++)
+                place(g);
+        }
+
+        private void grow() {
+            int capacity = 2 * hashes.length;
+            hashes = Arrays.copyOf(hashes, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            for (int i = 0; i < acc.length; i++) {
+                acc[i] = Arrays.copyOf(acc[i], capacity);
+                if (scCounts[i] != null)
+                    scCounts[i] = Arrays.copyOf(scCounts[i], capacity);
+            }
+            if (intKeys)
+                intGroups = Arrays.copyOf(intGroups, capacity * gbfields.length);
+            else
+                fieldGroups = Arrays.copyOf(fieldGroups, capacity);
+        }
+
+        /** Merge a tuple into the aggregates of group g */
+        void update(int g, Tuple t) {
+            counts[g]++;
+            for (int i = 0; i < ops.length; i++) {
+                if (ops[i] == Aggregator.Op.COUNT)
+                    continue;
+                long v = ((IntField) t.getField(afields[i])).getValue();
+                switch (ops[i]) {
+                case MIN:
+                    acc[i][g] = Math.min(acc[i][g], v);
+                    break;
+                case MAX:
+                    acc[i][g] = Math.max(acc[i][g], v);
+                    break;
+                case SC_AVG:
+                    scCounts[i][g] += ((IntField) t.getField(afields[i] + 1)).getValue();
+                    acc[i][g] += v;
+                    break;
+                default:
+                    acc[i][g] += v;
+                }
+            }
+        }
+
+        /** @return the result tuple of group g */
+        Tuple result(int g) {
+            Tuple t = new Tuple(resultTd);
+            int n = gbfields.length;
+            for (int i = 0; i < n; i++)
+                t.setField(i, intKeys ? new IntField(intGroups[g * n + i]) : fieldGroups[g][i]);
+            int col = n;
+            for (int i = 0; i < ops.length; i++) {
+                long v;
+                if (ops[i] == Aggregator.Op.COUNT)
+                    v = counts[g];
+                else if (ops[i] == Aggregator.Op.AVG)
+                    v = acc[i][g] / counts[g];
+                else if (ops[i] == Aggregator.Op.SC_AVG)
+                    v = scCounts[i][g] == 0 ? 0 : acc[i][g] / scCounts[i][g];
+                else
+                    v = acc[i][g];
+                t.setField(col++, new IntField((int) v));
+                if (ops[i] == Aggregator.Op.SUM_COUNT)
+                    t.setField(col++, new IntField((int) counts[g]));
+            }
+            return t;
+        }
+    }
+}
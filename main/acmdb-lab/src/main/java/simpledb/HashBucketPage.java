@@ -0,0 +1,240 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores tuples of one bucket of a
+ * {@link HashFile}: its primary page or one of its overflow pages, which
+ * are chained through a pointer to the next page of the bucket.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashBucketPage implements Page {
+    private static final int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+    private volatile boolean dirty = false;
+    private volatile TransactionId dirtier = null;
+
+    private final HashPageId pid;
+    private final TupleDesc td;
+    private final int numSlots;
+    private final byte[] header;
+    private final Tuple[] tuples;
+    private int next;
+
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a HashBucketPage from a set of bytes of data read from disk.
+     * The format is the page number of the next page of the bucket (0 if
+     * this is the last one), a set of header bytes indicating the slots of
+     * the page that are in use, and the tuple slots, as in a HeapPage.  An
+     * all-zero page is an empty page at the end of its bucket.
+     *
+     * @see #getMaxTuples()
+     */
+    public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getMaxTuples();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+        next = dis.readInt();
+        header = new byte[(numSlots + 7) / 8];
+        dis.readFully(header);
+
+        tuples = new Tuple[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                dis.skipBytes(td.getSize());
+                continue;
+            }
+            Tuple t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, i));
+            try {
+                for (int j = 0; j < td.numFields(); j++)
+                    t.setField(j, td.getFieldType(j).parse(dis));
+            } catch (java.text.ParseException e) {
+                throw new IOException(e);
+            }
+            tuples[i] = t;
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of tuples a page holds:
+     *         floor((page size - 4) * 8 / (tuple size * 8 + 1))
+     */
+    public int getMaxTuples() {
+        return ((BufferPool.getPageSize() - INDEX_SIZE) * 8) / (td.getSize() * 8 + 1);
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /**
+     * @return the page number of the next page of this bucket, or 0 if this
+     *         is the last one
+     */
+    public int getNext() {
+        return next;
+    }
+
+    public void setNext(int next) {
+        this.next = next;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in the
+     * format read by the constructor.
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(next);
+            dos.write(header);
+            byte[] empty = new byte[td.getSize()];
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    dos.write(empty);
+                    continue;
+                }
+                for (int j = 0; j < td.numFields(); j++)
+                    tuples[i].getField(j).serialize(dos);
+            }
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the data of an empty HashBucketPage
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /**
+     * Delete the specified tuple from the page.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(pid))
+            throw new DbException("tried to delete tuple on invalid page or table");
+        if (!isSlotUsed(rid.tupleno()))
+            throw new DbException("tried to delete null tuple.");
+        markSlotUsed(rid.tupleno(), false);
+        tuples[rid.tupleno()] = null;
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple is updated to reflect
+     * that it is now stored on this page.
+     *
+     * @throws DbException if the page is full or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("type mismatch, in addTuple");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                markSlotUsed(i, true);
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+                return;
+            }
+        }
+        throw new DbException("called addTuple on page with no empty slots.");
+    }
+
+    /**
+     * @return the number of empty slots on this page
+     */
+    public int getNumEmptySlots() {
+        int empty = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                empty++;
+        }
+        return empty;
+    }
+
+    /**
+     * @return the number of tuples on this page
+     */
+    public int getNumTuples() {
+        return numSlots - getNumEmptySlots();
+    }
+
+    /**
+     * @return true if associated slot on this page is filled
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots && (header[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value)
+            header[i / 8] |= (1 << (i % 8));
+        else
+            header[i / 8] &= ~(1 << (i % 8));
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this
+     *         iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i))
+                result.add(tuples[i]);
+        }
+        return Collections.unmodifiableList(result).iterator();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty)
+            this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? dirtier : null;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashBucketPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new HashBucketPage(pid, oldDataRef);
+        } catch (IOException e) {
+            // should never happen -- we parsed it OK before!
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+}
@@ -1,26 +1,54 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements the relational join operation for
+ * equality predicates, with a hybrid hash join.  The right child is the
+ * build input: its tuples are loaded into a hash table on the join field,
+ * and each tuple of the left child probes it.
+ * <p>
+ * At most a fixed number of build tuples are held in memory.  When the
+ * build input is larger, both inputs are split into {@link #FAN_OUT}
+ * partitions by the hash of the join field.  Partitions are written to
+ * {@link SpillFile}s, largest first, until the rest fit in memory; probe
+ * tuples of the partitions still in memory are joined right away, and
+ * those of the others are written out too.  Each pair of spilled partitions
+ * is then joined in the same way, split on other bits of the hash if it
+ * still does not fit.  A partition that splitting does not shrink, because
+ * its tuples share a few keys, is joined in memory-sized chunks of its
+ * build side instead, reading its probe side once per chunk.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default number of build tuples held in memory */
+    public static final int DEFAULT_MEMORY_TUPLES = 100000;
+
+    /** Number of partitions an input is split into when it is spilled */
+    public static final int FAN_OUT = 16;
+
+    private static final int PARTITION_BITS = 4;
+
+    /** Partitioning levels before a partition is joined in chunks instead */
+    private static final int MAX_LEVEL = 6;
+
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
+    private final int memoryTuples;
     private Tuple cur1;
     private Tuple cur2;
-    private Map<Field, ArrayList<Tuple>> fieldTupleMap = new ConcurrentHashMap<>();
+    private transient Partition current;
+    private transient ArrayDeque<Partition> pending = new ArrayDeque<Partition>();
+    private int spilled;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -29,10 +57,20 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_TUPLES);
+    }
+
+    /**
+     * Constructor for a join that holds at most memoryTuples tuples of the
+     * right child in memory.
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryTuples) {
+        if (memoryTuples < 1)
+            throw new IllegalArgumentException("a hash join needs memory for at least one tuple");
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
-        this.fieldTupleMap = new ConcurrentHashMap<Field, ArrayList<Tuple>>();
+        this.memoryTuples = memoryTuples;
 
         this.reset();
     }
@@ -44,32 +82,40 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return TupleDesc.merge(this.child1.getTupleDesc(), this.child2.getTupleDesc());
     }
-    
+
     public String getJoinField1Name()
     {
         return this.child1.getTupleDesc().getFieldName(this.p.getField1());
     }
-    
+
     public String getJoinField2Name()
     {
         return this.child2.getTupleDesc().getFieldName(this.p.getField2());
     }
-    
+
+    /**
+     * @return the number of partitions of the build input written to disk
+     *         since the join was last opened
+     */
+    public int getSpilledPartitions() {
+        return spilled;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         if (child1 == null || child2 == null) throw new NoSuchElementException("Not found child");
-        
+
         child1.open();
         child2.open();
         super.open();
-        
-        this.reset();
-        while (child2.hasNext()){
-            cur1 = child2.next();
-            Field key = cur1.getField(p.getField2());
-            if (!fieldTupleMap.containsKey(key)) fieldTupleMap.put(key, new ArrayList<Tuple>());
 
-            fieldTupleMap.get(key).add(cur1);
+        this.reset();
+        spilled = 0;
+        try {
+            current = new Partition(new ChildIterator(child2), new ChildIterator(child1), 0, -1, false);
+            current.start();
+        } catch (IOException e) {
+            throw new DbException("hash join cannot spill: " + e.getMessage());
         }
     }
 
@@ -117,28 +163,35 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     * <p>
+     * When nothing is spilled, the tuples come in the order of the left
+     * child; otherwise the tuples of spilled partitions come last.
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         if (child1 == null || child2 == null) return null;
-        if (listIt != null && listIt.hasNext()){
-            return mergeTuple();
+        try {
+            while (true) {
+                if (listIt != null && listIt.hasNext())
+                    return mergeTuple();
+                listIt = null;
+                if (current == null) {
+                    current = pending.poll();
+                    if (current == null) return null;
+                    current.start();
+                }
+                if (current.probe.hasNext()) {
+                    cur1 = current.probe.next();
+                    listIt = current.probe(cur1);
+                } else if (!current.finish()) {
+                    current = null;
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("hash join cannot spill: " + e.getMessage());
         }
-
-        while (child1.hasNext()) {
-            cur1 = child1.next();
-
-            Field key = cur1.getField(p.getField1());
-            ArrayList<Tuple> tuples = fieldTupleMap.get(key);
-            
-            if (tuples == null) continue;
-            listIt = tuples.iterator();
-            return fetchNext();
-        }
-
-        return null;
     }
 
     @Override
@@ -155,12 +208,182 @@ public class HashEquiJoin extends Operator {
         child1 = children[0];
         child2 = children[1];
     }
-    
+
     private void reset() {
         this.cur1 = null;
         this.cur2 = null;
-        fieldTupleMap.clear();
+        if (current != null)
+            current.close();
+        current = null;
+        if (pending != null) {
+            for (Partition part : pending)
+                part.close();
+            pending.clear();
+        } else {
+            pending = new ArrayDeque<Partition>();
+        }
 
         this.listIt = null;
     }
+
+    /** @return the partition of a key at a level of partitioning */
+    private static int partition(Field key, int level) {
+        return (HashFile.hash(key) >>> (level * PARTITION_BITS)) & (FAN_OUT - 1);
+    }
+
+    /**
+     * One build input joined with one probe input: the whole children, or a
+     * pair of spilled partitions.
+     */
+    private class Partition {
+        final DbFileIterator build;
+        final DbFileIterator probe;
+        final int level;
+        final int size;
+        final boolean chunked;
+        final ArrayList<SpillFile> inputs = new ArrayList<SpillFile>();
+
+        final HashMap<Field, ArrayList<Tuple>> table = new HashMap<Field, ArrayList<Tuple>>();
+        int resident;
+        final int[] counts = new int[FAN_OUT];
+        final SpillFile[] buildFiles = new SpillFile[FAN_OUT];
+        final SpillFile[] probeFiles = new SpillFile[FAN_OUT];
+        boolean buildDone;
+
+        /**
+         * @param size the number of build tuples, or -1 if it is not known
+         * @param chunked if true, join the build input a memory-sized chunk
+         *        at a time instead of splitting it
+         */
+        Partition(DbFileIterator build, DbFileIterator probe, int level, int size, boolean chunked) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+            this.size = size;
+            this.chunked = chunked;
+        }
+
+        /** Open the inputs and load the build input, or its first chunk */
+        void start() throws DbException, TransactionAbortedException, IOException {
+            build.open();
+            probe.open();
+            load();
+        }
+
+        private void load() throws DbException, TransactionAbortedException, IOException {
+            table.clear();
+            resident = 0;
+            Arrays.fill(counts, 0);
+            while (build.hasNext()) {
+                Tuple t = build.next();
+                Field key = t.getField(p.getField2());
+                int part = partition(key, level);
+                if (buildFiles[part] != null) {
+                    buildFiles[part].add(t);
+                    continue;
+                }
+                ArrayList<Tuple> matches = table.get(key);
+                if (matches == null) {
+                    matches = new ArrayList<Tuple>();
+                    table.put(key, matches);
+                }
+                matches.add(t);
+                counts[part]++;
+                if (++resident >= memoryTuples) {
+                    if (chunked)
+                        return;
+                    spillLargest();
+                }
+            }
+            buildDone = true;
+        }
+
+        /** Move the largest partition still in memory to a spill file */
+        private void spillLargest() throws IOException {
+            int victim = 0;
+            for (int i = 1; i < FAN_OUT; i++) {
+                if (counts[i] > counts[victim])
+                    victim = i;
+            }
+            SpillFile f = new SpillFile(child2.getTupleDesc());
+            Iterator<Map.Entry<Field, ArrayList<Tuple>>> it = table.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Field, ArrayList<Tuple>> e = it.next();
+                if (partition(e.getKey(), level) != victim)
+                    continue;
+                for (Tuple t : e.getValue())
+                    f.add(t);
+                it.remove();
+            }
+            buildFiles[victim] = f;
+            resident -= counts[victim];
+            counts[victim] = 0;
+            spilled++;
+        }
+
+        /**
+         * @return the build tuples matching a probe tuple, or null if there
+         *         are none in memory; the probe tuple is spilled if its
+         *         partition was
+         */
+        Iterator<Tuple> probe(Tuple t) throws IOException {
+            Field key = t.getField(p.getField1());
+            int part = partition(key, level);
+            if (buildFiles[part] != null) {
+                if (probeFiles[part] == null)
+                    probeFiles[part] = new SpillFile(child1.getTupleDesc());
+                probeFiles[part].add(t);
+                return null;
+            }
+            ArrayList<Tuple> matches = table.get(key);
+            return matches == null ? null : matches.iterator();
+        }
+
+        /**
+         * Called when the probe input is exhausted.  Loads the next chunk of
+         * the build input if there is one, and otherwise queues the spilled
+         * partitions to be joined.
+         *
+         * @return true if the probe input is to be read again
+         */
+        boolean finish() throws DbException, TransactionAbortedException, IOException {
+            if (!buildDone) {
+                probe.rewind();
+                load();
+                return true;
+            }
+            for (int i = 0; i < FAN_OUT; i++) {
+                if (buildFiles[i] == null)
+                    continue;
+                if (probeFiles[i] == null) {
+                    buildFiles[i].delete();
+                    continue;
+                }
+                int n = buildFiles[i].size();
+                Partition next = new Partition(buildFiles[i].iterator(), probeFiles[i].iterator(),
+                        level + 1, n, level + 1 >= MAX_LEVEL || n == size);
+                next.inputs.add(buildFiles[i]);
+                next.inputs.add(probeFiles[i]);
+                pending.add(next);
+                buildFiles[i] = probeFiles[i] = null;
+            }
+            close();
+            return false;
+        }
+
+        /** Release the memory and the spill files of this partition */
+        void close() {
+            build.close();
+            probe.close();
+            table.clear();
+            for (SpillFile f : inputs)
+                f.delete();
+            for (int i = 0; i < FAN_OUT; i++) {
+                if (buildFiles[i] != null)
+                    buildFiles[i].delete();
+                if (probeFiles[i] != null)
+                    probeFiles[i].delete();
+            }
+        }
+    }
 }
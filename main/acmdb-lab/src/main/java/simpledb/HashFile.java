@@ -0,0 +1,436 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashFile is an implementation of a DbFile that stores tuples in buckets
+ * by the hash of a key field, so that the tuples with a given key are found
+ * by reading a single bucket.  It uses linear hashing: a bucket is a
+ * primary page followed by a chain of overflow pages, and whenever too many
+ * overflow pages are in use the next bucket in order is split in two, so
+ * that the file grows one bucket at a time without rehashing the others.
+ * The state of the scheme is kept in a {@link HashMetaPage} at page 0, and
+ * the buckets in {@link HashBucketPage}s.
+ * <p>
+ * The planner reads a single bucket to answer an = filter on the key, with
+ * a {@link HashScan}, and to join each tuple of a small input on the key,
+ * with an {@link IndexNestedLoopJoin}.
+ * <p>
+ * Inserts lock the meta page with READ_ONLY permission, and upgrade it to
+ * READ_WRITE only to allocate an overflow page or split a bucket.  Overflow
+ * pages emptied by deletes and splits are kept on a free list and reused.
+ *
+ * @see simpledb.HashMetaPage#HashMetaPage
+ * @see simpledb.HashBucketPage#HashBucketPage
+ */
+public class HashFile implements DbFile {
+    /**
+     * A bucket is split whenever the number of overflow pages in use
+     * exceeds this fraction of the number of buckets
+     */
+    public static final double SPLIT_RATIO = 0.25;
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+    private final PageChecksums checksums;
+
+    /**
+     * Constructs a hash file backed by the specified file.  An empty or
+     * missing file is a table with no tuples.
+     *
+     * @param f - the file that stores the on-disk backing store for this
+     *            hash file.
+     * @param key - the field which index is keyed on
+     * @param td - the tuple descriptor of tuples in the file
+     */
+    public HashFile(File f, int key, TupleDesc td) {
+        if (key < 0 || key >= td.numFields())
+            throw new IllegalArgumentException("no key field " + key);
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+        this.checksums = PageChecksums.of(f);
+    }
+
+    /**
+     * Returns the File backing this HashFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this HashFile: the hash code of the
+     * absolute name of the underlying file.
+     */
+    public int getId() {
+        return tableid;
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the index of the field that this file is hashed on
+     */
+    public int keyField() {
+        return keyField;
+    }
+
+    /**
+     * Returns the number of pages in this HashFile on disk.  Pages that have
+     * been reserved for buckets but never written are not counted.
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Read a page from disk.  Pages past the end of the file have been
+     * reserved for buckets but not written yet, and read as empty pages.
+     *
+     * @throws IllegalArgumentException if the page cannot be read
+     */
+    public Page readPage(PageId pid) {
+        HashPageId id = (HashPageId) pid;
+        byte[] data = new byte[BufferPool.getPageSize()];
+        try {
+            long offset = (long) id.pageNumber() * BufferPool.getPageSize();
+            if (offset < f.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                    raf.seek(offset);
+                    raf.read(data, 0, data.length);
+                }
+                if (!checksums.verify(id.pageNumber(), data))
+                    throw new IllegalStateException("checksum mismatch: page " + id.pageNumber()
+                            + " of " + f + " is torn or corrupt");
+            }
+            if (id.pgcateg() == HashPageId.META)
+                return new HashMetaPage(id, data);
+            return new HashBucketPage(id, data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write a page to disk.  This should not be called directly but should
+     * be called from the BufferPool when pages are flushed to disk
+     */
+    public void writePage(Page page) throws IOException {
+        PageId pid = page.getId();
+        byte[] data = page.getPageData();
+        checksums.record(pid.pageNumber(), data);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek((long) pid.pageNumber() * BufferPool.getPageSize());
+            raf.write(data);
+        }
+    }
+
+    /**
+     * @return the hash of a key; the bits of its hashCode are mixed, since
+     *         buckets are chosen by the low bits of the hash
+     */
+    public static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private HashPageId bucketPageId(int pageNo) {
+        return new HashPageId(tableid, pageNo, HashPageId.BUCKET);
+    }
+
+    /**
+     * Method to encapsulate the process of locking/fetching a page.  First
+     * the method checks the local cache ("dirtypages"), and if it can't find
+     * the requested page there, it fetches it from the buffer pool.  It also
+     * adds pages to the dirtypages cache if they are fetched with read-write
+     * permission, since presumably they will soon be dirtied by this
+     * transaction.
+     */
+    private Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        if (dirtypages.containsKey(pid))
+            return dirtypages.get(pid);
+        Page p = Database.getBufferPool().getPage(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE)
+            dirtypages.put(pid, p);
+        return p;
+    }
+
+    private HashBucketPage getBucketPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo,
+            Permissions perm) throws DbException, TransactionAbortedException {
+        return (HashBucketPage) getPage(tid, dirtypages, bucketPageId(pageNo), perm);
+    }
+
+    /**
+     * Insert a tuple into the bucket of its key, on the first page of the
+     * bucket with an empty slot.  If every page is full an overflow page is
+     * added to the bucket, which may cause the next bucket to be split.
+     *
+     * @return a list of all pages that were dirtied by this operation
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("TupleDesc does not match.");
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+
+        HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, HashMetaPage.getId(tableid),
+                Permissions.READ_ONLY);
+        int bucket = meta.bucketOf(hash(t.getField(keyField)));
+        HashBucketPage page = getBucketPage(tid, dirtypages, meta.pageOf(bucket), Permissions.READ_ONLY);
+        while (page.getNumEmptySlots() == 0 && page.getNext() != 0)
+            page = getBucketPage(tid, dirtypages, page.getNext(), Permissions.READ_ONLY);
+
+        if (page.getNumEmptySlots() > 0) {
+            page = getBucketPage(tid, dirtypages, page.getId().pageNumber(), Permissions.READ_WRITE);
+            page.insertTuple(t);
+        } else {
+            meta = (HashMetaPage) getPage(tid, dirtypages, meta.getId(), Permissions.READ_WRITE);
+            page = getBucketPage(tid, dirtypages, page.getId().pageNumber(), Permissions.READ_WRITE);
+            HashBucketPage overflow = allocatePage(tid, dirtypages, meta);
+            page.setNext(overflow.getId().pageNumber());
+            overflow.insertTuple(t);
+            if (meta.getOverflowPagesInUse() > SPLIT_RATIO * meta.getNumBuckets())
+                splitBucket(tid, dirtypages, meta);
+        }
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Take an overflow page off the free list, or add one at the end of the
+     * file if the list is empty.
+     *
+     * @param meta - the meta page, locked with READ_WRITE permission
+     * @return the empty page, locked with READ_WRITE permission
+     */
+    private HashBucketPage allocatePage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta)
+            throws DbException, TransactionAbortedException {
+        int free = meta.getFreeList();
+        if (free == 0)
+            return getBucketPage(tid, dirtypages, meta.appendOverflowPage(), Permissions.READ_WRITE);
+        HashBucketPage page = getBucketPage(tid, dirtypages, free, Permissions.READ_WRITE);
+        meta.setFreeList(page.getNext(), -1);
+        page.setNext(0);
+        return page;
+    }
+
+    /**
+     * Put an empty overflow page, which is no longer part of any bucket, on
+     * the free list.
+     */
+    private void freePage(HashMetaPage meta, HashBucketPage page) {
+        page.setNext(meta.getFreeList());
+        meta.setFreeList(page.getId().pageNumber(), 1);
+    }
+
+    /**
+     * Add a bucket and move the tuples that hash to it out of the bucket it
+     * is split from.
+     *
+     * @param meta - the meta page, locked with READ_WRITE permission
+     */
+    private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta)
+            throws DbException, TransactionAbortedException {
+        int bucket = meta.addBucket();
+        HashBucketPage first = getBucketPage(tid, dirtypages, meta.pageOf(meta.splitFrom(bucket)),
+                Permissions.READ_WRITE);
+
+        ArrayList<Tuple> stay = new ArrayList<Tuple>();
+        ArrayList<Tuple> move = new ArrayList<Tuple>();
+        HashBucketPage page = first;
+        while (true) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                page.deleteTuple(t);
+                if (meta.bucketOf(hash(t.getField(keyField))) == bucket)
+                    move.add(t);
+                else
+                    stay.add(t);
+            }
+            if (page.getNext() == 0)
+                break;
+            page = getBucketPage(tid, dirtypages, page.getNext(), Permissions.READ_WRITE);
+        }
+
+        fillBucket(tid, dirtypages, meta, first, stay);
+        fillBucket(tid, dirtypages, meta,
+                getBucketPage(tid, dirtypages, meta.pageOf(bucket), Permissions.READ_WRITE), move);
+    }
+
+    /**
+     * Insert tuples into an emptied bucket, using the pages of its chain in
+     * order and allocating overflow pages once they are full.  The pages
+     * left over at the end of the chain are freed.
+     *
+     * @param page - the primary page of the bucket, locked with READ_WRITE
+     *        permission
+     */
+    private void fillBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta,
+            HashBucketPage page, List<Tuple> tuples)
+            throws DbException, TransactionAbortedException {
+        Iterator<Tuple> it = tuples.iterator();
+        while (true) {
+            while (it.hasNext() && page.getNumEmptySlots() > 0)
+                page.insertTuple(it.next());
+            if (!it.hasNext())
+                break;
+            if (page.getNext() != 0) {
+                page = getBucketPage(tid, dirtypages, page.getNext(), Permissions.READ_WRITE);
+            } else {
+                HashBucketPage overflow = allocatePage(tid, dirtypages, meta);
+                page.setNext(overflow.getId().pageNumber());
+                page = overflow;
+            }
+        }
+
+        int rest = page.getNext();
+        page.setNext(0);
+        while (rest != 0) {
+            HashBucketPage free = getBucketPage(tid, dirtypages, rest, Permissions.READ_WRITE);
+            rest = free.getNext();
+            freePage(meta, free);
+        }
+    }
+
+    /**
+     * Delete a tuple from this HashFile.  An overflow page left empty is
+     * removed from its bucket and put on the free list.
+     *
+     * @return a list of all pages that were dirtied by this operation
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != tableid)
+            throw new DbException("tried to delete tuple on invalid page or table");
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+
+        HashBucketPage page = getBucketPage(tid, dirtypages, rid.getPageId().pageNumber(),
+                Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        if (page.getNumTuples() == 0)
+            unlinkPage(tid, dirtypages, page, t.getField(keyField));
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Remove an empty page from the chain of the bucket of key, unless it
+     * is the primary page of the bucket, and free it.
+     */
+    private void unlinkPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashBucketPage page, Field key)
+            throws DbException, TransactionAbortedException {
+        HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, HashMetaPage.getId(tableid),
+                Permissions.READ_ONLY);
+        int pageNo = page.getId().pageNumber();
+        int prev = meta.pageOf(meta.bucketOf(hash(key)));
+        if (prev == pageNo)
+            return;
+        HashBucketPage p = getBucketPage(tid, dirtypages, prev, Permissions.READ_ONLY);
+        while (p.getNext() != pageNo) {
+            if (p.getNext() == 0)
+                return;
+            p = getBucketPage(tid, dirtypages, p.getNext(), Permissions.READ_ONLY);
+        }
+
+        meta = (HashMetaPage) getPage(tid, dirtypages, meta.getId(), Permissions.READ_WRITE);
+        p = getBucketPage(tid, dirtypages, p.getId().pageNumber(), Permissions.READ_WRITE);
+        p.setNext(page.getNext());
+        freePage(meta, page);
+    }
+
+    /**
+     * Get an iterator for the tuples that satisfy an index predicate.  An
+     * EQUALS predicate reads only the bucket of its key; other predicates
+     * read every page of the file.  This method will acquire a read lock on
+     * the affected pages of the file, and may block until the lock can be
+     * acquired.
+     *
+     * @param tid - the transaction id
+     * @param ipred - the index predicate value to filter on
+     * @return an iterator for the filtered tuples
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new HashFileIterator(tid, ipred);
+    }
+
+    /**
+     * Get an iterator for all tuples in this hash file, in no particular
+     * order.  This method will acquire a read lock on the affected pages of
+     * the file, and may block until the lock can be acquired.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(tid, null);
+    }
+
+    /**
+     * Iterates over the pages of one bucket, for an EQUALS predicate, or
+     * over every page of the file, returning the tuples that satisfy the
+     * predicate if there is one.
+     */
+    private class HashFileIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private final HashMap<PageId, Page> noDirtyPages = new HashMap<PageId, Page>();
+        private boolean chain;
+        private int nextPage;
+        private int numPages;
+        private Iterator<Tuple> it;
+
+        HashFileIterator(TransactionId tid, IndexPredicate ipred) {
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            HashMetaPage meta = (HashMetaPage) getPage(tid, noDirtyPages, HashMetaPage.getId(tableid),
+                    Permissions.READ_ONLY);
+            chain = ipred != null && ipred.getOp() == Predicate.Op.EQUALS;
+            nextPage = chain ? meta.pageOf(meta.bucketOf(hash(ipred.getField()))) : 1;
+            numPages = meta.getNumPages();
+            it = Collections.<Tuple>emptyList().iterator();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (it == null)
+                return null;
+            while (true) {
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    if (ipred == null || t.getField(keyField).compare(ipred.getOp(), ipred.getField()))
+                        return t;
+                }
+                if (chain ? nextPage == 0 : nextPage >= numPages)
+                    return null;
+                HashBucketPage page = getBucketPage(tid, noDirtyPages, nextPage, Permissions.READ_ONLY);
+                nextPage = chain ? page.getNext() : nextPage + 1;
+                it = page.iterator();
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            it = null;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashMetaPage is page 0 of a {@link HashFile}.  It holds the state of the
+ * linear hashing scheme: the highest bucket number and the two masks that
+ * map hash values to buckets, the number of pages in the file, and the list
+ * of free overflow pages.
+ * <p>
+ * Buckets are numbered from 0 and added one at a time; the primary pages of
+ * buckets 2<sup>s-1</sup> up to 2<sup>s</sup>-1, the buckets of split point
+ * s, are reserved together at the end of the file when the first of them is
+ * added, and overflow pages are appended after them as needed.  The page of
+ * bucket b is then 1 + b plus the number of overflow pages allocated before
+ * its split point began, which is kept per split point, so that no
+ * directory is needed.
+ */
+public class HashMetaPage implements Page {
+    /** Number of split points, enough for 2^31 buckets */
+    public static final int SPLIT_POINTS = 32;
+
+    private volatile boolean dirty = false;
+    private volatile TransactionId dirtier = null;
+
+    private final HashPageId pid;
+
+    private int maxBucket;
+    private int lowMask;
+    private int highMask;
+    private int numPages;
+    private int overflowPages;
+    private int freeList;
+    private int numFree;
+    private final int[] spares = new int[SPLIT_POINTS];
+
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Construct the HashMetaPage from a set of bytes of data read from disk.
+     * The format is a sequence of integers: the highest bucket number, the
+     * low and high masks, the number of pages, the number of overflow pages,
+     * the first free overflow page (0 if there is none), the number of free
+     * overflow pages, and the overflow page count at the start of each split
+     * point.
+     * An all-zero page is a file with a single, empty bucket.
+     */
+    public HashMetaPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        maxBucket = dis.readInt();
+        lowMask = dis.readInt();
+        highMask = dis.readInt();
+        numPages = Math.max(dis.readInt(), 2);
+        overflowPages = dis.readInt();
+        freeList = dis.readInt();
+        numFree = dis.readInt();
+        for (int i = 0; i < SPLIT_POINTS; i++)
+            spares[i] = dis.readInt();
+        setBeforeImage();
+    }
+
+    /**
+     * @return the id of the meta page of a table
+     */
+    public static HashPageId getId(int tableid) {
+        return new HashPageId(tableid, 0, HashPageId.META);
+    }
+
+    /**
+     * @return the bucket a key with the given hash value belongs to
+     */
+    public int bucketOf(int hash) {
+        int bucket = hash & highMask;
+        if (bucket > maxBucket)
+            bucket = hash & lowMask;
+        return bucket;
+    }
+
+    /**
+     * @return the page number of the primary page of a bucket
+     */
+    public int pageOf(int bucket) {
+        return 1 + bucket + spares[splitPoint(bucket)];
+    }
+
+    /** @return the split point a bucket was added in: 0 for bucket 0, else 1 + floor(log2(bucket)) */
+    private static int splitPoint(int bucket) {
+        return 32 - Integer.numberOfLeadingZeros(bucket);
+    }
+
+    /**
+     * Add a bucket, reserving the pages of a new split point if it is the
+     * first bucket of one.  The tuples of the bucket returned by
+     * {@link #splitFrom} must then be divided between the two.
+     *
+     * @return the new bucket
+     */
+    public int addBucket() {
+        int bucket = maxBucket + 1;
+        if (bucket < 0)
+            throw new IllegalStateException("too many buckets");
+        if (bucket > highMask) {
+            lowMask = highMask;
+            highMask = bucket | lowMask;
+        }
+        if (Integer.bitCount(bucket) == 1) {
+            // the first bucket of a split point: its pages start at the end
+            // of the file, after the overflow pages allocated so far
+            spares[splitPoint(bucket)] = overflowPages;
+            numPages += bucket;
+        }
+        maxBucket = bucket;
+        return bucket;
+    }
+
+    /**
+     * @return the bucket whose tuples are divided with the given new bucket
+     */
+    public int splitFrom(int bucket) {
+        return bucket & lowMask;
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    public int getNumBuckets() {
+        return maxBucket + 1;
+    }
+
+    /**
+     * @return the number of pages in use or reserved, including this one;
+     *         pages that have never been written read as empty
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the first page of the list of free overflow pages, or 0
+     */
+    public int getFreeList() {
+        return freeList;
+    }
+
+    /**
+     * Set the first page of the list of free overflow pages, after a page
+     * was added to the list (delta 1) or taken off it (delta -1)
+     */
+    public void setFreeList(int freeList, int delta) {
+        this.freeList = freeList;
+        this.numFree += delta;
+    }
+
+    /**
+     * @return the number of overflow pages holding tuples
+     */
+    public int getOverflowPagesInUse() {
+        return overflowPages - numFree;
+    }
+
+    /**
+     * Allocate an overflow page at the end of the file.
+     *
+     * @return its page number
+     */
+    public int appendOverflowPage() {
+        overflowPages++;
+        return numPages++;
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in the
+     * format read by the constructor.
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(maxBucket);
+            dos.writeInt(lowMask);
+            dos.writeInt(highMask);
+            dos.writeInt(numPages);
+            dos.writeInt(overflowPages);
+            dos.writeInt(freeList);
+            dos.writeInt(numFree);
+            for (int i = 0; i < SPLIT_POINTS; i++)
+                dos.writeInt(spares[i]);
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the data of an empty HashMetaPage: a file with one empty bucket
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty)
+            this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? dirtier : null;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashMetaPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new HashMetaPage(pid, oldDataRef);
+        } catch (IOException e) {
+            // should never happen -- we parsed it OK before!
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+}
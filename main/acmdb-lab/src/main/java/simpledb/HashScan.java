@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * HashScan is an access method that reads the tuples of a {@link HashFile}
+ * that match an index predicate.  An EQUALS predicate on the key reads only
+ * the bucket of the key; the tuples are returned in no particular order.
+ */
+public class HashScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int tableid;
+    private final IndexPredicate ipred;
+    private final String alias;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a hash scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan, which must be stored in a HashFile
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName
+     * @param ipred
+     *            the predicate on the key field
+     */
+    public HashScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+        this.tableid = tableid;
+        this.ipred = ipred;
+        this.alias = tableAlias;
+        TupleDesc base = Database.getCatalog().getTupleDesc(tableid);
+        Type[] types = new Type[base.numFields()];
+        String[] names = new String[base.numFields()];
+        for (int i = 0; i < base.numFields(); i++) {
+            types[i] = base.getFieldType(i);
+            names[i] = tableAlias + "." + base.getFieldName(i);
+        }
+        this.td = new TupleDesc(types, names);
+        this.it = ((HashFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+    }
+
+    /**
+     * @return the name of the table this operator scans in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /** @return the predicate on the key field */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        it.open();
+        isOpen = true;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.next();
+    }
+
+    public void close() {
+        it.close();
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+}
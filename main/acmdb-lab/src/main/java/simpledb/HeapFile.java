@@ -16,6 +16,7 @@ import java.util.*;
 public class HeapFile implements DbFile {
     private File file;
     private TupleDesc tupleDesc;
+    private final PageChecksums checksums;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -27,6 +28,7 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
+        this.checksums = PageChecksums.of(f);
     }
 
     /**
@@ -72,6 +74,9 @@ public class HeapFile implements DbFile {
             int pos = pid.pageNumber() * BufferPool.getPageSize();
             randomAccessFile.seek(pos);
             randomAccessFile.read(data, 0, data.length);
+            if (!checksums.verify(pid.pageNumber(), data))
+                throw new IllegalStateException("checksum mismatch: page " + pid.pageNumber()
+                        + " of " + file + " is torn or corrupt");
             page = new HeapPage((HeapPageId) pid, data);
         } catch (IOException e) {
             throw new IllegalArgumentException(e.getMessage(), e.getCause());
@@ -85,9 +90,11 @@ public class HeapFile implements DbFile {
         int length = BufferPool.getPageSize();
         int offset = pid.pageNumber() * length;
 
+        byte[] data = page.getPageData();
         try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");) {
+            checksums.record(pid.pageNumber(), data);
             randomAccessFile.seek(offset);
-            randomAccessFile.write(page.getPageData());
+            randomAccessFile.write(data);
         } catch (IOException e) {
             throw new IllegalArgumentException(e.getMessage(), e.getCause());
         }
@@ -143,12 +150,41 @@ public class HeapFile implements DbFile {
         private int curPid;
         private Iterator<Tuple> tupleIterator;
         private TransactionId transactionId;
+        private final int partition, partitions;
+        // the pages of the partition are [firstPid, endPid)
+        private int firstPid, endPid;
+
+        public HeapFileIterator(TransactionId tid){ this(tid, 0, 1); }
+
+        /**
+         * Iterator over one of several partitions of the file.  The pages
+         * are split into partitions of contiguous pages, which are sized
+         * when the iterator is opened; the last partition also reads any
+         * pages appended after that.
+         */
+        public HeapFileIterator(TransactionId tid, int partition, int partitions) {
+            if (partitions < 1 || partition < 0 || partition >= partitions)
+                throw new IllegalArgumentException("no partition " + partition + " of " + partitions);
+            this.transactionId = tid;
+            this.partition = partition;
+            this.partitions = partitions;
+        }
 
-        public HeapFileIterator(TransactionId tid){ this.transactionId = tid; }
+        /** @return the end of the pages read */
+        private int lastPid() {
+            return partition == partitions - 1 ? numPages() : endPid;
+        }
 
         @Override
         public void open() throws DbException, TransactionAbortedException{
-            this.curPid = 0;
+            int n = numPages();
+            this.firstPid = (int) ((long) n * partition / partitions);
+            this.endPid = (int) ((long) n * (partition + 1) / partitions);
+            this.curPid = firstPid;
+            if (partitions > 1 && firstPid >= lastPid()) {
+                this.tupleIterator = Collections.emptyIterator();
+                return;
+            }
 
             PageId pageId = new HeapPageId(getId(), curPid);
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(this.transactionId, pageId, Permissions.READ_ONLY);
@@ -162,7 +198,7 @@ public class HeapFile implements DbFile {
 
             // preserve iterator change for delete test
             while (! tupleIterator.hasNext()) {
-                if (this.curPid >= numPages() - 1) return tupleIterator.hasNext();
+                if (this.curPid >= lastPid() - 1) return tupleIterator.hasNext();
                 this.curPid ++;
 
                 HeapPageId pageId = new HeapPageId(getId(), this.curPid);
@@ -204,5 +240,14 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid);
     }
 
+    /**
+     * @return an iterator over one of several partitions of contiguous
+     *         pages of the file, so that the partitions can be read in
+     *         parallel
+     */
+    public DbFileIterator iterator(TransactionId tid, int partition, int partitions) {
+        return new HeapFileIterator(tid, partition, partitions);
+    }
+
 }
 
@@ -0,0 +1,224 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins its child with a table stored in a
+ * {@link BTreeFile} or a {@link HashFile} keyed on the join field.  Instead
+ * of scanning the table, it looks up the matches of each left tuple through
+ * the index, so each left tuple costs one descent of the B+ tree, or one
+ * bucket of the hash file for =, plus the pages of its matches.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private final TransactionId tid;
+    private final int tableid;
+    private final String alias;
+    private final TupleDesc td2;
+
+    private Tuple cur1;
+    private transient DbFileIterator matches;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the child with the table;
+     *            field2 must be the key field of the table
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param tid
+     *            The transaction the table is read as a part of
+     * @param tableid
+     *            The right(inner) table, which is looked up for each tuple
+     *            of child1
+     * @param tableAlias
+     *            the alias of the table; the fields of the table are named
+     *            tableAlias.fieldName in the tupleDesc of the join
+     * @throws IllegalArgumentException
+     *             if the table cannot be probed on field2 with the
+     *             predicate, see {@link #canProbe}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, TransactionId tid,
+            int tableid, String tableAlias) {
+        if (!canProbe(tableid, p.getField2(), p.getOperator()))
+            throw new IllegalArgumentException("table " + tableid + " has no index for field "
+                    + p.getField2() + " " + p.getOperator());
+        this.p = p;
+        this.child1 = child1;
+        this.tid = tid;
+        this.tableid = tableid;
+        this.alias = tableAlias;
+
+        TupleDesc base = Database.getCatalog().getTupleDesc(tableid);
+        Type[] types = new Type[base.numFields()];
+        String[] names = new String[base.numFields()];
+        for (int i = 0; i < base.numFields(); i++) {
+            types[i] = base.getFieldType(i);
+            names[i] = tableAlias + "." + base.getFieldName(i);
+        }
+        this.td2 = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return true if a table can be probed for the tuples whose field
+     *         compares to a value with the given operator through an index:
+     *         a B+ tree keyed on the field for any operator but != and
+     *         LIKE, or a hash file keyed on the field for =
+     */
+    public static boolean canProbe(int tableid, int field, Predicate.Op op) {
+        if (op == Predicate.Op.NOT_EQUALS || op == Predicate.Op.LIKE)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).keyField() == field;
+        if (f instanceof HashFile)
+            return ((HashFile) f).keyField() == field && op == Predicate.Op.EQUALS;
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.p;
+    }
+
+    /**
+     * @return the name of the table looked up, in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the alias of the table looked up
+     */
+    public String getAlias() {
+        return this.alias;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.td2.getFieldName(this.p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(this.child1.getTupleDesc(), this.td2);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (child1 == null) throw new NoSuchElementException("Not found child");
+        child1.open();
+        super.open();
+
+        cur1 = null;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        closeMatches();
+        cur1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        discardReadAhead();
+        child1.rewind();
+        closeMatches();
+        cur1 = null;
+    }
+
+    private void closeMatches() {
+        if (matches != null)
+            matches.close();
+        matches = null;
+    }
+
+    /**
+     * @return the operator with which the key of a tuple of the table
+     *         compares to the join field of a left tuple, if that tuple
+     *         satisfies the join predicate
+     */
+    private static Predicate.Op keyOp(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    /** Start looking up the matches of a left tuple in the table */
+    private void probe(Tuple t) throws DbException, TransactionAbortedException {
+        closeMatches();
+        Field key = t.getField(p.getField1());
+        if (key == null)
+            return;
+        IndexPredicate ipred = new IndexPredicate(keyOp(p.getOperator()), key);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (f instanceof BTreeFile)
+            matches = ((BTreeFile) f).indexIterator(tid, ipred);
+        else
+            matches = ((HashFile) f).indexIterator(tid, ipred);
+        matches.open();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.  The tuples are the concatenation of joining tuples from
+     * the left relation and the table, as for {@link Join}, in the order of
+     * the left relation.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (child1 == null) return null;
+        while (true) {
+            while (matches != null && matches.hasNext()) {
+                Tuple cur2 = matches.next();
+                if (p.filter(cur1, cur2))
+                    return mergeTuple(cur2);
+            }
+            if (!child1.hasNext())
+                return null;
+            cur1 = child1.next();
+            probe(cur1);
+        }
+    }
+
+    private Tuple mergeTuple(Tuple cur2) {
+        int num1 = cur1.getTupleDesc().numFields();
+        int num2 = td2.numFields();
+
+        Tuple next = new Tuple(this.getTupleDesc());
+
+        for (int i = 0; i < num1; i++)
+            next.setField(i, cur1.getField(i));
+        for (int i = 0; i < num2; i++)
+            next.setField(num1 + i, cur2.getField(i));
+        return next;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+    }
+}
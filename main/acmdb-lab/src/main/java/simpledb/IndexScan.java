@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan is an access method that reads the tuples of a table that
+ * match an index predicate through a secondary {@link BTreeIndex}, in key
+ * order, fetching each tuple from the table's heap file.  A covering scan
+ * returns only the fields stored in the index (see
+ * {@link BTreeIndex#coveredDesc}) and never reads the heap file.
+ */
+public class IndexScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final BTreeIndex index;
+    private final IndexPredicate ipred;
+    private final String alias;
+    private final boolean covering;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates an index scan as a part of the specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the secondary index to read through
+     * @param tableAlias
+     *            the alias of the indexed table; the returned tupleDesc has
+     *            fields named tableAlias.fieldName
+     * @param ipred
+     *            the predicate on the indexed field
+     */
+    public IndexScan(TransactionId tid, BTreeIndex index, String tableAlias, IndexPredicate ipred) {
+        this(tid, index, tableAlias, ipred, false);
+    }
+
+    /**
+     * Creates an index scan as a part of the specified transaction.
+     *
+     * @param ipred
+     *            the predicate on the key, or null to read the whole index
+     * @param covering
+     *            if true, return only the fields stored in the index
+     */
+    public IndexScan(TransactionId tid, BTreeIndex index, String tableAlias, IndexPredicate ipred,
+                     boolean covering) {
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.alias = tableAlias;
+        this.covering = covering;
+        TupleDesc base = covering ? index.coveredDesc()
+            : Database.getCatalog().getTupleDesc(index.getTableId());
+        Type[] types = new Type[base.numFields()];
+        String[] names = new String[base.numFields()];
+        for (int i = 0; i < base.numFields(); i++) {
+            types[i] = base.getFieldType(i);
+            names[i] = tableAlias + "." + base.getFieldName(i);
+        }
+        this.td = new TupleDesc(types, names);
+        this.it = index.iterator(tid, ipred, covering);
+    }
+
+    /**
+     * @return the name of the indexed table in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    public BTreeIndex getIndex() {
+        return index;
+    }
+
+    /** @return the predicate on the key, or null if the whole index is read */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    public boolean isCovering() {
+        return covering;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        it.open();
+        isOpen = true;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.next();
+    }
+
+    public void close() {
+        it.close();
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+}
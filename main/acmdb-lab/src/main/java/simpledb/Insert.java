@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.io.IOException;
+import java.util.ArrayList;
+
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
  * constructor
@@ -8,6 +11,9 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of tuples read from the child before they are inserted together */
+    public static final int BATCH_SIZE = 4096;
+
     private TransactionId tid;
     private DbIterator child;
     private int tableId;
@@ -76,19 +82,27 @@ public class Insert extends Operator {
      *
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
+     * @throws DbException if a batch could not be inserted
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         if (child == null || called) return null;
 
+        // hand the tuples to the buffer pool in batches, which files such as
+        // BTreeFile place together
+        ArrayList<Tuple> batch = new ArrayList<Tuple>();
         while (child.hasNext()) {
-            try {
-                Database.getBufferPool().insertTuple(tid, tableId, child.next());
-            } catch (Exception e) {
-                e.printStackTrace();
+            batch.add(child.next());
+            if (batch.size() == BATCH_SIZE || !child.hasNext()) {
+                try {
+                    Database.getBufferPool().insertTuples(tid, tableId, batch);
+                } catch (IOException e) {
+                    throw new DbException("insert failed after " + count + " tuples: " + e.getMessage(), e);
+                }
+                count += batch.size();
+                batch.clear();
             }
-            count ++;
         }
         called = true;
         
@@ -3,16 +3,31 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation with a block
+ * nested loops join: it reads the left child a block of tuples at a time,
+ * and scans the right child once per block, so the right child is read
+ * once for every few pages of the left one instead of once per left tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of pages' worth of left tuples in a block */
+    public static final int DEFAULT_BLOCK_PAGES = 64;
+
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
+    private final int blockPages;
 
-    private Tuple cur1;
+    private transient ArrayList<Tuple> block = new ArrayList<Tuple>();
+    // whether block holds the left tuples the right child is being read for
+    private transient boolean blockLoaded;
+    // whether the right child has been read for an earlier block
+    private transient boolean rescan;
+    private transient Tuple cur2;
+    // the next tuple of the block to compare with cur2
+    private transient int blockPos;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -26,11 +41,29 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor for a join that buffers blockPages pages' worth of left
+     * tuples per scan of the right child.
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockPages) {
+        if (blockPages < 1)
+            throw new IllegalArgumentException("a block holds at least one page");
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.blockPages = blockPages;
+    }
 
-        cur1 = null;
+    /**
+     * @return the number of tuples of the given TupleDesc that fill
+     *         blockPages pages, as a HeapPage stores them
+     */
+    public static int blockTuples(TupleDesc td, int blockPages) {
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        return Math.max(1, perPage) * blockPages;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -70,7 +103,7 @@ public class Join extends Operator {
         child2.open();
         super.open();
 
-        cur1 = null;
+        reset();
     }
     
     public void close() {
@@ -78,14 +111,25 @@ public class Join extends Operator {
         child1.close();
         child2.close();
 
-        cur1 = null;
+        reset();
     }
-    
+
     public void rewind() throws DbException, TransactionAbortedException {
+        discardReadAhead();
         child1.rewind();
         child2.rewind();
 
-        cur1 = null;
+        reset();
+    }
+
+    private void reset() {
+        if (block == null)
+            block = new ArrayList<Tuple>();
+        block.clear();
+        blockLoaded = false;
+        rescan = false;
+        cur2 = null;
+        blockPos = 0;
     }
 
     /**
@@ -102,44 +146,63 @@ public class Join extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
+     * <p>
+     * The matches of a block of left tuples come in the order of the right
+     * child, so the output is only in the order of the left child if it fits
+     * in one block.
      * 
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         if (child1 == null || child2 == null) return null;
-        if (cur1 == null) 
-            if (child1.hasNext()) cur1 = child1.next();
-            else return null;
-        
-
-        while (true) { // for child1
-            while (child2.hasNext()) { // for child2
-                Tuple cur2 = child2.next();
-                if (p.filter(cur1, cur2)) {
-                    int pos = 0;
-                    Tuple ans = new Tuple(getTupleDesc()); // merge tuple
-
-                    Iterator<Field> fieldIterator;
-                    fieldIterator = cur1.fields();
-                    while (fieldIterator.hasNext()) {
-                        ans.setField(pos, fieldIterator.next());
-                        ++ pos;
-                    }
-                    fieldIterator = cur2.fields();
-                    while (fieldIterator.hasNext()) {
-                        ans.setField(pos, fieldIterator.next());
-                        ++pos;
-                    }
-
-                    return ans;
+
+        while (true) {
+            if (cur2 != null) {
+                while (blockPos < block.size()) {
+                    Tuple cur1 = block.get(blockPos++);
+                    if (p.filter(cur1, cur2))
+                        return mergeTuple(cur1, cur2);
                 }
+                cur2 = null;
+            }
+            if (!blockLoaded) {
+                block.clear();
+                int n = blockTuples(child1.getTupleDesc(), blockPages);
+                while (block.size() < n && child1.hasNext())
+                    block.add(child1.next());
+                if (block.isEmpty())
+                    return null;
+                if (rescan)
+                    child2.rewind();
+                rescan = true;
+                blockLoaded = true;
             }
+            if (child2.hasNext()) {
+                cur2 = child2.next();
+                blockPos = 0;
+            } else {
+                blockLoaded = false;
+            }
+        }
+    }
 
-            if (! child1.hasNext()) return null;
-            cur1 = child1.next();
-            child2.rewind(); // TAG NOTE TODO
+    private Tuple mergeTuple(Tuple cur1, Tuple cur2) {
+        Tuple ans = new Tuple(getTupleDesc());
+        int pos = 0;
+
+        Iterator<Field> fieldIterator;
+        fieldIterator = cur1.fields();
+        while (fieldIterator.hasNext()) {
+            ans.setField(pos, fieldIterator.next());
+            ++pos;
+        }
+        fieldIterator = cur2.fields();
+        while (fieldIterator.hasNext()) {
+            ans.setField(pos, fieldIterator.next());
+            ++pos;
         }
+        return ans;
     }
 
     @Override
@@ -154,7 +217,6 @@ public class Join extends Operator {
     public void setChildren(DbIterator[] children) {
         child1 = children[0];
         child2 = children[1];
-        cur1 = null;
     }
 
 }
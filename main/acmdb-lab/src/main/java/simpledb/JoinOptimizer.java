@@ -11,8 +11,13 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /** Estimated fraction of pairs of tuples that satisfy a range join */
+    static final double INEQUALITY_SELECTIVITY = 0.3;
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    /** Statistics of the base tables, by name; those of the last orderJoins */
+    Map<String, TableStats> stats = TableStats.getStatsMap();
 
     /**
      * Constructor
@@ -34,6 +39,15 @@ public class JoinOptimizer {
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * The algorithm is picked by the predicate, as {@link #estimateJoinCost}
+     * models it: a {@link HashEquiJoin} with plan2 as the build input for =,
+     * a {@link SortMergeJoin} for &lt;, &lt;=, &gt; and &gt;=, and a nested
+     * loops {@link Join} otherwise and for subqueries.  A join that
+     * {@link #orderJoins} found cheaper to run by probing the index of its
+     * right table ({@link LogicalJoinNode#probeIndex}) is an
+     * {@link IndexNestedLoopJoin} instead, if plan2 is still a scan of that
+     * table; the filters over the scan are applied to its output.
      * 
      * @param lj
      *            The join being considered
@@ -67,13 +81,63 @@ public class JoinOptimizer {
         }
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
-
-        j = new Join(p,plan1,plan2);
+        SeqScan inner = lj.probeIndex ? indexedScan(lj, plan2) : null;
+
+        if (lj instanceof LogicalSubplanJoinNode)
+            j = new Join(p, plan1, plan2);
+        else if (inner != null)
+            j = indexJoin(p, plan1, plan2, inner);
+        else if (lj.p == Predicate.Op.EQUALS)
+            j = new HashEquiJoin(p, plan1, plan2);
+        else if (SortMergeJoin.supports(lj.p))
+            j = new SortMergeJoin(p, plan1, plan2);
+        else
+            j = new Join(p, plan1, plan2);
 
         return j;
 
     }
 
+    /**
+     * @return the scan of the right table of lj at the bottom of plan2, if
+     *         plan2 is that scan under filters and the table can be probed
+     *         on the join field, or null
+     */
+    private static SeqScan indexedScan(LogicalJoinNode lj, DbIterator plan2) {
+        while (plan2 instanceof Filter)
+            plan2 = ((Filter) plan2).getChildren()[0];
+        if (!(plan2 instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) plan2;
+        if (!scan.getAlias().equals(lj.t2Alias) || scan.getPartitions() > 1
+                || scan.getMorsels() != null)
+            return null;
+        TupleDesc td = Database.getCatalog().getTupleDesc(scan.getTableId());
+        try {
+            return IndexNestedLoopJoin.canProbe(scan.getTableId(),
+                    td.fieldNameToIndex(lj.f2PureName), lj.p) ? scan : null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return an IndexNestedLoopJoin of plan1 with the table of scan, under
+     *         the filters of plan2 over the scan
+     */
+    private static DbIterator indexJoin(JoinPredicate p, DbIterator plan1,
+            DbIterator plan2, SeqScan scan) {
+        DbIterator j = new IndexNestedLoopJoin(p, plan1,
+                scan.getTransactionId(), scan.getTableId(), scan.getAlias());
+        int offset = plan1.getTupleDesc().numFields();
+        for (; plan2 instanceof Filter; plan2 = ((Filter) plan2).getChildren()[0]) {
+            Predicate f = ((Filter) plan2).getPredicate();
+            j = new Filter(new Predicate(offset + f.getField(), f.getOp(),
+                    f.getOperand()), j);
+        }
+        return j;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -82,6 +146,14 @@ public class JoinOptimizer {
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
+     * <p>
+     * The join is costed as the algorithm {@link #instantiateJoin} uses for
+     * its predicate.  A hash join costs the same both ways round while its
+     * right input fits in memory, and more if it has to spill, so the
+     * optimizer puts the smaller input on the right when that avoids
+     * spilling.  A join that probes the index of its right table reads the
+     * left input once and costs one probe per left tuple, so it wins when
+     * the left input is small.
      * 
      * 
      * @param j
@@ -106,14 +178,103 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
+        } else if (j.probeIndex) {
+            // index nested loops: a probe of the right table per left tuple,
+            // which reads the pages of the matches, and a predicate
+            // application per match
+            double matches = probeMatches(j, card1, card2);
+            return cost1 + card1 * (probeCost(j, card2, matches) + matches);
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // hash join: read both inputs, insert the right tuples and probe
+            // with the left ones; the part of both inputs that does not fit
+            // in memory is written out and read back once more
+            double spilled = card2 > HashEquiJoin.DEFAULT_MEMORY_TUPLES
+                    ? 1 - (double) HashEquiJoin.DEFAULT_MEMORY_TUPLES / card2 : 0;
+            return (cost1 + cost2) + ((double) card1 + card2)
+                    + 2 * spilled * (cost1 + cost2);
+        } else if (SortMergeJoin.supports(j.p)) {
+            // sort-merge join: sort both inputs, then produce each matching
+            // pair once
+            return sortCost(card1, cost1) + sortCost(card2, cost2)
+                    + INEQUALITY_SELECTIVITY * card1 * card2;
         } else {
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 + (double) card1 * card2;
+            // block nested loops: one scan of the right input per block of
+            // left tuples, and a predicate application per pair
+            return cost1 + Math.ceil((double) card1 / blockTuples(j)) * cost2
+                    + (double) card1 * card2;
+        }
+    }
+
+    /**
+     * @return the estimated number of right tuples that match a left tuple,
+     *         as {@link #estimateJoinCardinality} counts the pairs
+     */
+    private double probeMatches(LogicalJoinNode j, int card1, int card2) {
+        if (j.p != Predicate.Op.EQUALS)
+            return INEQUALITY_SELECTIVITY * card2;
+        if (isPkey(j.t2Alias, j.f2PureName))
+            return 1;
+        return Math.max(1.0, (double) card2 / Math.max(card1, 1));
+    }
+
+    /**
+     * @return the estimated cost of looking up matches matches in the index
+     *         of the right table of j, which has card2 tuples after its
+     *         filters, or Double.POSITIVE_INFINITY without statistics
+     */
+    private double probeCost(LogicalJoinNode j, int card2, double matches) {
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return Double.POSITIVE_INFINITY;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return Double.POSITIVE_INFINITY;
+        int field = Database.getCatalog().getTupleDesc(tableId)
+                .fieldNameToIndex(j.f2PureName);
+        return s.estimateProbeCost(field, j.p, matches / Math.max(card2, 1));
+    }
+
+    /**
+     * @return true if the right table of j can be probed on its join field
+     */
+    private boolean canProbe(LogicalJoinNode j) {
+        if (j instanceof LogicalSubplanJoinNode)
+            return false;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return false;
+        try {
+            int field = Database.getCatalog().getTupleDesc(tableId)
+                    .fieldNameToIndex(j.f2PureName);
+            return IndexNestedLoopJoin.canProbe(tableId, field, j.p);
+        } catch (NoSuchElementException e) {
+            return false;
         }
     }
 
+    /**
+     * @return the number of left tuples in a block of a nested loops
+     *         {@link Join}, if the left input were just the left table
+     */
+    private int blockTuples(LogicalJoinNode j) {
+        Integer tableId = p.getTableId(j.t1Alias);
+        if (tableId == null)
+            return 1;
+        return Join.blockTuples(Database.getCatalog().getTupleDesc(tableId),
+                Join.DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Estimate the cost of reading and sorting an input with an
+     * {@link ExternalSort}: n log n comparisons, and writing and reading back
+     * the input once more if it does not fit in a single run.
+     */
+    private static double sortCost(int card, double cost) {
+        double compares = card > 1 ? card * (Math.log(card) / Math.log(2)) : card;
+        double spill = card > ExternalSort.DEFAULT_RUN_SIZE ? 2 * cost : 0;
+        return cost + compares + spill;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -176,7 +337,8 @@ public class JoinOptimizer {
             case GREATER_THAN_OR_EQ:
             case LESS_THAN:
             case LESS_THAN_OR_EQ:
-                card = (int) (card1 * card2 * 0.3);
+                card = (int) Math.min(Integer.MAX_VALUE,
+                        INEQUALITY_SELECTIVITY * card1 * card2);
                 break;
             default:
                 card = card1 * card2;
@@ -254,7 +416,10 @@ public class JoinOptimizer {
         // 10.      optjoin(s) = bestPlan
         // 11. return optjoin(j)
 
+        this.stats = stats;
         int numJoinNodes = joins.size();
+        if (numJoinNodes == 0)
+            return joins; // a single table: nothing to order
         PlanCache pc = new PlanCache();
         Set<LogicalJoinNode> wholeSet = null; // Final
 
@@ -410,6 +575,25 @@ public class JoinOptimizer {
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+
+        // the right table can be probed through its index while it is still
+        // a base table rather than a join
+        if (!doesJoin(prevBest, j.t2Alias) && canProbe(j)) {
+            LogicalJoinNode ij = j.probingIndex();
+            double cost = estimateJoinCost(ij, t1card, t2card, t1cost, t2cost);
+            if (cost < cost1) {
+                j = ij;
+                cost1 = cost;
+            }
+        }
+        if (!doesJoin(prevBest, j2.t2Alias) && canProbe(j2)) {
+            LogicalJoinNode ij = j2.probingIndex();
+            double cost = estimateJoinCost(ij, t2card, t1card, t2cost, t1cost);
+            if (cost < cost2) {
+                j2 = ij;
+                cost2 = cost;
+            }
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
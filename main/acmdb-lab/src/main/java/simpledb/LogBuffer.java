@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LogBuffer is the in-memory tail of the write-ahead log.  Appending a
+ * record takes three steps, none of which holds a lock:
+ * <ol>
+ * <li> {@link #reserve} allocates the record's log offset with a CAS on the
+ *      end of the log,
+ * <li> {@link #publish} copies the record into a ring buffer at that
+ *      offset (threads copy concurrently), and then
+ * <li> waits for the records before it to be published, so that the
+ *      published prefix of the log is always contiguous.
+ * </ol>
+ * {@link #flush} drains the published prefix to the {@link LogSegments}
+ * with at most two large sequential writes.  Only one thread flushes at a
+ * time; threads that queue up behind it usually find their records already
+ * written and forced, so concurrent commits share a single fsync.
+ *
+ * @Threadsafe
+ */
+public class LogBuffer {
+    /** Bytes held in memory before appenders must wait for a flush. */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private static final int SPINS = 100;
+
+    private final LogSegments segments;
+    private final byte[] ring;
+    private final int mask;
+
+    private final AtomicLong reserved = new AtomicLong();  // end of the log
+    private final AtomicLong published = new AtomicLong(); // end of the copied prefix
+    private volatile long flushed;                         // written to segments
+    private volatile long durable;                         // forced to disk
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    /**
+     * Create a buffer in front of the specified segments.
+     *
+     * @param capacity size of the ring in bytes, rounded up to a power of two
+     */
+    public LogBuffer(LogSegments segments, int capacity) {
+        this.segments = segments;
+        int size = Integer.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+        this.ring = new byte[size];
+        this.mask = size - 1;
+    }
+
+    public LogBuffer(LogSegments segments) {
+        this(segments, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Discard the buffered contents and make offset the end of the log.
+     * Must not run concurrently with appends.
+     */
+    public void reset(long offset) {
+        flushLock.lock();
+        try {
+            reserved.set(offset);
+            published.set(offset);
+            flushed = offset;
+            durable = offset;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /** @return the offset the next record will be written at */
+    public long endOffset() {
+        return reserved.get();
+    }
+
+    /** @return the offset up to which the log is known to be on disk */
+    public long durableOffset() {
+        return durable;
+    }
+
+    /**
+     * Allocate len bytes at the end of the log, waiting for a flush if the
+     * ring does not have room for them.
+     *
+     * @return the offset of the first allocated byte
+     */
+    public long reserve(int len) throws IOException {
+        if (len > ring.length)
+            return reserveOversized(len);
+        while (true) {
+            long start = reserved.get();
+            if (start + len - flushed > ring.length) {
+                flush(start, false);
+                continue;
+            }
+            if (reserved.compareAndSet(start, start + len))
+                return start;
+        }
+    }
+
+    // a record that does not fit in the ring is written straight through by
+    // publish(), which releases the flush lock taken here
+    private long reserveOversized(int len) {
+        flushLock.lock();
+        long start;
+        do {
+            start = reserved.get();
+        } while (!reserved.compareAndSet(start, start + len));
+        return start;
+    }
+
+    /**
+     * Copy len bytes of b into the space returned by {@link #reserve} and make
+     * them visible to {@link #flush} once every earlier record is visible.
+     */
+    public void publish(long start, byte[] b, int len) throws IOException {
+        if (len > ring.length) {
+            try {
+                awaitPublished(start);
+                writeOut(published.get());
+                segments.write(start, b, 0, len);
+                flushed = start + len;
+                published.set(start + len);
+            } finally {
+                flushLock.unlock();
+            }
+            return;
+        }
+        int pos = (int) (start & mask);
+        int first = Math.min(len, ring.length - pos);
+        System.arraycopy(b, 0, ring, pos, first);
+        if (first < len)
+            System.arraycopy(b, first, ring, 0, len - first);
+        awaitPublished(start);
+        published.set(start + len);
+    }
+
+    private void awaitPublished(long offset) {
+        int spins = 0;
+        while (published.get() < offset) {
+            if (++spins < SPINS)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+    }
+
+    /**
+     * Write every record that ends at or before upTo to the segments, forcing
+     * them to disk if force is set.  Records published by other threads in
+     * the meantime are written in the same batch.
+     */
+    public void flush(long upTo, boolean force) throws IOException {
+        if (force ? durable >= upTo : flushed >= upTo)
+            return;
+        flushLock.lock();
+        try {
+            if (force ? durable >= upTo : flushed >= upTo)
+                return;
+            awaitPublished(upTo);
+            writeOut(published.get());
+            if (force) {
+                segments.force();
+                durable = flushed;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // caller holds flushLock
+    private void writeOut(long end) throws IOException {
+        long start = flushed;
+        while (start < end) {
+            int pos = (int) (start & mask);
+            int n = (int) Math.min(end - start, ring.length - pos);
+            segments.write(start, ring, pos, n);
+            start += n;
+        }
+        flushed = end;
+    }
+}
@@ -2,7 +2,17 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 import java.lang.reflect.*;
 
 /**
@@ -14,8 +24,12 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
+Records are appended through a LogBuffer, so logWrite and logCommit
+are not synchronized: each thread builds its record in a private
+buffer and copies it into the shared log buffer concurrently.  The
+remaining methods are synchronized (to keep checkpoints, truncation
+and rollback from running concurrently); many of the methods in
+BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
 pages (on checkpoints and recovery.)  This can lead to deadlock.  For
@@ -35,26 +49,36 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself is a master record: its first long integer
+represents the offset of the last written checkpoint, or -1 if there
+are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> Log records live in segment files next to the log file (see
+LogSegments).  An offset is a position in the logical log stream, so
+offsets stay valid when older segments are deleted.  Log records are
+variable length and may span segments; a record type of 0 marks the
+end of the log.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with an integer CRC32C of everything before
+it in the record, followed by a long integer offset representing the
+position in the log where the record began.  Recovery treats the first
+record whose checksum or offset does not match as the end of the log
+(a torn tail) and wipes whatever follows it.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> ABORT and BEGIN records contain no additional data.  COMMIT
+records contain a long integer wall-clock time of the commit (in
+milliseconds since the epoch), so the log can be replayed up to a
+point in time.
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
@@ -69,13 +93,21 @@ for each active transaction.
 
 </ul>
 
+<p> If an archive directory is set (setArchiveDirectory(), or the
+simpledb.archive system property), truncated segments are moved to
+the archive rather than deleted.  backup() copies the table files
+after a checkpoint, and restore() rolls such a copy forward through
+the archived log up to a chosen offset or commit time.
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    private RandomAccessFile raf; // master record
+    final LogSegments segments;
+    final LogBuffer buffer;
+    volatile Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
@@ -84,14 +116,33 @@ public class LogFile {
     static final int CHECKPOINT_RECORD = 5;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** Name of the file describing a base backup, see backup() */
+    public static final String BACKUP_LABEL = "backup_label";
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    // more ints than any PageId serializes to: the header of a torn record
+    final static int MAX_PAGE_ID_ARGS = 16;
 
-    long currentOffset = -1;//protected by this
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    ConcurrentHashMap<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
+
+    /** A record under construction; one per thread so appenders never share it */
+    private static class RecordBuilder extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+
+        RecordBuilder() {
+            super(2 * BufferPool.getPageSize() + 256);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
 
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    private final ThreadLocal<RecordBuilder> builders = ThreadLocal.withInitial(RecordBuilder::new);
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -107,7 +158,13 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        File dir = f.getAbsoluteFile().getParentFile();
+        segments = new LogSegments(dir, f.getName());
+        buffer = new LogBuffer(segments);
         recoveryUndecided = true;
+        String archive = System.getProperty("simpledb.archive");
+        if (archive != null && !archive.isEmpty())
+            segments.setArchiveDirectory(new File(archive));
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -124,19 +181,63 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (this) {
+                if (recoveryUndecided) {
+                    raf.seek(0);
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    buffer.reset(segments.reset());
+                    recoveryUndecided = false;
+                }
+            }
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /** Start building a log record of the specified type in this thread's
+        record builder */
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        RecordBuilder rec = builders.get();
+        rec.reset();
+        rec.out.writeInt(type);
+        rec.out.writeLong(tid);
+        return rec.out;
+    }
+
+    /** Finish the record started by beginRecord: reserve its space at the
+        end of the log, fill in the trailing start offset and copy it into
+        the log buffer.
+
+        @return the offset at which the record begins
+    */
+    private long endRecord() throws IOException {
+        RecordBuilder rec = builders.get();
+        rec.out.writeInt(PageChecksums.checksum(rec.bytes(), 0, rec.size()));
+        rec.out.writeLong(0); // patched below, once the offset is known
+        long start = buffer.reserve(rec.size());
+        long v = start;
+        for (int i = rec.size() - 1; i >= rec.size() - LONG_SIZE; i--) {
+            rec.bytes()[i] = (byte) v;
+            v >>>= 8;
+        }
+        buffer.publish(start, rec.bytes(), rec.size());
+        return start;
+    }
+
+    public int getTotalRecords() {
+        return totalRecords.get();
+    }
+
+    /** Archive log segments in the specified directory when the log is
+        truncated, instead of deleting them; null turns archiving off. */
+    public void setArchiveDirectory(File dir) throws IOException {
+        segments.setArchiveDirectory(dir);
+    }
+
+    /** @return the log archive directory, or null if archiving is off */
+    public File getArchiveDirectory() {
+        return segments.getArchiveDirectory();
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -158,10 +259,8 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId());
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -173,16 +272,15 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        beginRecord(COMMIT_RECORD, tid.getId()).writeLong(System.currentTimeMillis());
+        endRecord();
+        // group commit: one fsync covers every record published so far
+        buffer.flush(buffer.endOffset(), true);
         tidToFirstLogRecord.remove(tid.getId());
     }
 
@@ -194,11 +292,11 @@ public class LogFile {
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, offset = " + buffer.endOffset());
         /* update record conists of
 
            record type
@@ -207,18 +305,16 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        DataOutputStream out = beginRecord(UPDATE_RECORD, tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        endRecord();
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        Debug.log("WRITE OFFSET = " + buffer.endOffset());
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -246,7 +342,53 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    /** Read the id of a page written by writePageData, leaving the input
+        positioned at the length of the page data */
+    PageId readPageId(DataInput raf, String idClassName) throws IOException {
+        int numIdArgs = raf.readInt();
+        int idArgs[] = new int[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = raf.readInt();
+        }
+        return makePageId(idClassName, idArgs);
+    }
+
+    /** @return the page id of class idClassName built from its serialized form */
+    PageId makePageId(String idClassName, int[] args) throws IOException {
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            Object idArgs[] = new Object[args.length];
+            for (int i = 0; i<args.length;i++) {
+                idArgs[i] = args[i];
+            }
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException e){
+            throw new IOException("unknown page id class " + idClassName, e);
+        } catch (InstantiationException e) {
+            throw new IOException(e);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Skip over a page written by writePageData
+        @return the id of the skipped page
+    */
+    PageId skipPageData(DataInput raf) throws IOException {
+        raf.readUTF();
+        PageId pid = readPageId(raf, raf.readUTF());
+        int pageSize = raf.readInt();
+        if (raf.skipBytes(pageSize) != pageSize)
+            throw new EOFException();
+        return pid;
+    }
+
+    /** Read a page written by writePageData.  B+ tree leaf and internal
+        pages are built with the key fields of their file in the catalog. */
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
@@ -254,42 +396,42 @@ public class LogFile {
         String idClassName = raf.readUTF();
 
         try {
-            Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            pid = readPageId(raf, idClassName);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+            raf.readFully(pageData); //read before image
+
+            Constructor<?> pageConst;
+            Object[] pageArgs;
+            if (BTreePage.class.isAssignableFrom(pageClass)) {
+                DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                if (!(f instanceof BTreeFile))
+                    throw new IOException("page " + pid.pageNumber() + " of table " + pid.getTableId()
+                                          + " is a B+ tree page, but the table is not a BTreeFile");
+                pageConst = pageClass.getDeclaredConstructor(pid.getClass(), byte[].class, int[].class);
+                pageArgs = new Object[] {pid, pageData, ((BTreeFile) f).keyFields()};
+            } else {
+                pageConst = pageClass.getDeclaredConstructor(pid.getClass(), byte[].class);
+                pageArgs = new Object[] {pid, pageData};
+            }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
+            throw new IOException("unknown page class " + pageClassName, e);
+        } catch (NoSuchMethodException e) {
+            throw new IOException("page class " + pageClassName + " cannot be built from a log image", e);
         } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
+            throw new IOException(e);
         } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
+            throw new IOException(e);
         } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+            throw new IOException(e);
         }
         return newPage;
 
@@ -307,13 +449,10 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), endRecord());
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + buffer.endOffset());
     }
 
     /** Checkpoint the log and write a checkpoint record. */
@@ -321,36 +460,33 @@ public class LogFile {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + buffer.endOffset());
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                DataOutputStream out = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                out.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    out.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    out.writeLong(tidToFirstLogRecord.get(key));
                 }
+                startCpOffset = endRecord();
+                force();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                //once the CP is durable, make sure the CP location in the
+                // master record is updated
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                raf.getChannel().force(true);
+                //Debug.log("CP OFFSET = " + buffer.endOffset());
             }
         }
 
@@ -358,116 +494,223 @@ public class LogFile {
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Since offsets are stable, this only removes the
+        segments that end before the oldest record still needed. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        force();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
-        long minLogRecord = cpLoc;
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            // without a checkpoint every record may still be needed
+            return;
+        }
+        long minLogRecord = oldestNeeded(cpLoc);
+
+        // we can drop (or archive) every segment before the one holding
+        // minLogRecord
+        int removed = segments.removeBefore(minLogRecord);
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        Debug.log("TRUNCATING LOG;  REMOVED " + removed + " SEGMENTS ; OLDEST NEEDED RECORD : " + minLogRecord);
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
+    /** @return the oldest record recovery from the checkpoint at cpLoc
+        needs: the checkpoint itself or the first record of a transaction
+        that was active when it was taken */
+    private long oldestNeeded(long cpLoc) throws IOException {
+        long minLogRecord = cpLoc;
+        try (DataInputStream in = segments.openReader(cpLoc)) {
+            if (in.readInt() != CHECKPOINT_RECORD)
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+            in.readLong();
+            int numOutstanding = in.readInt();
+            for (int i = 0; i < numOutstanding; i++) {
+                in.readLong();
+                minLogRecord = Math.min(minLogRecord, in.readLong());
             }
+        }
+        return minLogRecord;
+    }
 
-            int numOutstanding = raf.readInt();
+    /** Rollback the specified transaction, setting the state of any
+        of pages it updated to their pre-updated state.  To preserve
+        transaction semantics, this should not be called on
+        transactions that have already committed (though this may not
+        be enforced by this method.)
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+        @param tid The transaction to rollback
+    */
+    public void rollback(TransactionId tid)
+        throws NoSuchElementException, IOException {
+        synchronized (Database.getBufferPool()) {
+            synchronized(this) {
+                preAppend();
+                Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstLogRecord == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+                force();
+
+                // the before image of the first update to a page is the page
+                // as it was before tid touched it
+                LinkedHashMap<PageId, Long> firstUpdate = new LinkedHashMap<PageId, Long>();
+                try (RecordScanner records = new RecordScanner(firstLogRecord)) {
+                    RecordScanner.Record r;
+                    while ((r = records.next()) != null) {
+                        if (r.type == UPDATE_RECORD && r.tid == tid.getId())
+                            firstUpdate.putIfAbsent(r.pid, r.offset);
+                    }
                 }
+                for (Map.Entry<PageId, Long> e : firstUpdate.entrySet()) {
+                    Page before = readImage(e.getValue(), false);
+                    Database.getCatalog().getDatabaseFile(e.getKey().getTableId()).writePage(before);
+                    Database.getBufferPool().discardPage(e.getKey());
+                }
+            }
+        }
+    }
+
+    /** Read the before or after image of the UPDATE record at offset,
+        verifying the record's checksum */
+    Page readImage(long offset, boolean after) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(segments.openReader(offset), new CRC32C());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != UPDATE_RECORD)
+                throw new IOException("no update record at offset " + offset);
+            in.readLong();
+            Page image;
+            if (after) {
+                skipPageData(in);
+                image = readPageData(in);
+            } else {
+                image = readPageData(in);
+                skipPageData(in);
             }
+            int crc = (int) checked.getChecksum().getValue();
+            if (in.readInt() != crc)
+                throw new IOException("checksum mismatch in log record at offset " + offset);
+            return image;
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+    /** Sequential reader over the records of the log, starting at a
+        record boundary.  next() returns null at the end of the log: a
+        zero record type, a record cut short or with a garbled header, or
+        a record whose checksum or trailing offset does not match.  Any
+        other failure to read the log, such as a read error or the page id
+        class of a sound record that cannot be loaded, is thrown: it is not
+        the end of the log, and recovery must not truncate it there. */
+    class RecordScanner implements Closeable {
+        /** The header of one record; pid is set for UPDATE records and
+            time for COMMIT records */
+        class Record {
+            int type;
+            long tid;
+            long offset;
+            PageId pid;
+            long time;
+        }
 
-        raf.seek(minLogRecord);
+        private final DataInputStream in;
+        private final CheckedInputStream checked;
+        private long offset;
+
+        RecordScanner(long offset) throws IOException {
+            this.offset = offset;
+            this.end = offset;
+            final DataInputStream raw = segments.openReader(offset);
+            // count the bytes consumed so every record knows where it starts
+            this.checked = new CheckedInputStream(new FilterInputStream(raw) {
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0)
+                        RecordScanner.this.offset++;
+                    return b;
+                }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0)
+                        RecordScanner.this.offset += n;
+                    return n;
+                }
 
-                Debug.log("NEW START = " + newStart);
+                public long skip(long n) throws IOException {
+                    long skipped = super.skip(n);
+                    RecordScanner.this.offset += skipped;
+                    return skipped;
+                }
+            }, new CRC32C());
+            this.in = new DataInputStream(checked);
+        }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+        /** @return the offset just past the last record returned by next() */
+        long offset() {
+            return end;
+        }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+        private long end;
+
+        // the page id of the UPDATE record being read, resolved once its checksum matches
+        private String idClassName;
+        private int[] idArgs;
+
+        /** Skip a page written by writePageData, keeping its page id.
+            @return false if its header cannot be that of a page */
+        private boolean skipPage() throws IOException {
+            in.readUTF();
+            idClassName = in.readUTF();
+            int numIdArgs = in.readInt();
+            if (numIdArgs < 0 || numIdArgs > MAX_PAGE_ID_ARGS)
+                return false;
+            idArgs = new int[numIdArgs];
+            for (int i = 0; i < numIdArgs; i++)
+                idArgs[i] = in.readInt();
+            int pageSize = in.readInt();
+            return pageSize >= 0 && in.skipBytes(pageSize) == pageSize;
+        }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+        Record next() throws IOException {
+            Record r = new Record();
+            r.offset = offset;
+            checked.getChecksum().reset();
+            try {
+                r.type = in.readInt();
+                if (r.type < ABORT_RECORD || r.type > CHECKPOINT_RECORD)
+                    return null;
+                r.tid = in.readLong();
+                switch (r.type) {
+                case UPDATE_RECORD:
+                    // before and after images of the same page
+                    if (!skipPage() || !skipPage())
+                        return null;
                     break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
+                case COMMIT_RECORD:
+                    r.time = in.readLong();
                     break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                case CHECKPOINT_RECORD:
+                    int numXactions = in.readInt();
+                    if (numXactions < 0
+                        || in.skipBytes(numXactions * 2 * LONG_SIZE) != numXactions * 2 * LONG_SIZE)
+                        return null;
                     break;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
+                int crc = (int) checked.getChecksum().getValue();
+                if (in.readInt() != crc || in.readLong() != r.offset)
+                    return null;
             } catch (EOFException e) {
-                break;
+                return null;
+            } catch (UTFDataFormatException e) {
+                return null;
             }
+            if (r.type == UPDATE_RECORD)
+                r.pid = makePageId(idClassName, idArgs);
+            end = offset;
+            return r;
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
-    }
-
-    /** Rollback the specified transaction, setting the state of any
-        of pages it updated to their pre-updated state.  To preserve
-        transaction semantics, this should not be called on
-        transactions that have already committed (though this may not
-        be enforced by this method.)
-
-        @param tid The transaction to rollback
-    */
-    public void rollback(TransactionId tid)
-        throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
-            }
+        public void close() throws IOException {
+            in.close();
         }
     }
 
@@ -475,36 +718,421 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        // the undo thread takes the buffer pool and then this log, so it
+        // must be joined before either monitor is held
         try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            awaitUndo();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
-            System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+            // the losers are still in tidToFirstLogRecord, so the
+            // checkpoint below keeps their records for the next recovery
             e.printStackTrace();
         }
+        synchronized (Database.getBufferPool()) {
+            synchronized (this) {
+                try {
+                    logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                    segments.close();
+                    raf.close();
+                } catch (IOException e) {
+                    System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Every UPDATE record holds whole page images, so each page ends up
+        as a single image from the log: the after image of its last
+        committed update, or the before image of the transaction that
+        last touched it if that transaction did not commit.  Pages are
+        independent, so redo is partitioned by PageId across a pool of
+        workers.  Pages whose image belongs to a transaction that was
+        still running at the crash are locked and undone in the
+        background, so new transactions are admitted as soon as redo is
+        done and only wait if they touch one of those pages.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+
+                raf.seek(0);
+                long cpLoc = raf.length() >= LONG_SIZE ? raf.readLong() : NO_CHECKPOINT_ID;
+                long start = segments.firstOffset();
+                if (start == -1) {
+                    // nothing was ever logged
+                    raf.seek(0);
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    buffer.reset(segments.reset());
+                    return;
+                }
+
+                HashMap<Long, Long> live = new HashMap<Long, Long>(); // tid -> first record
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    start = cpLoc;
+                    try (DataInputStream in = segments.openReader(cpLoc)) {
+                        if (in.readInt() != CHECKPOINT_RECORD)
+                            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                        in.readLong();
+                        int numOutstanding = in.readInt();
+                        for (int i = 0; i < numOutstanding; i++) {
+                            long tid = in.readLong();
+                            long firstLogRecord = in.readLong();
+                            live.put(tid, firstLogRecord);
+                            start = Math.min(start, firstLogRecord);
+                        }
+                    }
+                }
+
+                Outcome outcome = analyze(start, live, Long.MAX_VALUE, Long.MAX_VALUE);
+                long end = outcome.end;
+                long torn = segments.truncateAfter(end);
+                if (torn > 0)
+                    System.err.println("recover: discarded torn log tail at offset " + end
+                                       + " (" + torn + " bytes)");
+                buffer.reset(end);
+                Debug.log("RECOVERY: scanned " + start + " to " + end + ", " + live.size() + " losers");
+
+                HashMap<PageId, Image> images = chooseImages(start, end, outcome.committed);
+                HashMap<PageId, Long> redoAfter = new HashMap<PageId, Long>();
+                HashMap<PageId, Long> redoBefore = new HashMap<PageId, Long>();
+                HashMap<PageId, Long> undo = new HashMap<PageId, Long>();
+                for (Map.Entry<PageId, Image> e : images.entrySet()) {
+                    Image image = e.getValue();
+                    if (image.after)
+                        redoAfter.put(e.getKey(), image.offset);
+                    else if (outcome.aborted.contains(image.tid))
+                        redoBefore.put(e.getKey(), image.offset);
+                    else
+                        undo.put(e.getKey(), image.offset);
+                }
+
+                redo(redoAfter, redoBefore);
+                for (PageId pid : images.keySet())
+                    Database.getBufferPool().discardPage(pid);
+
+                tidToFirstLogRecord.clear();
+                tidToFirstLogRecord.putAll(live);
+                startUndo(undo, live.keySet());
             }
          }
     }
 
+    /** How the transactions in a stretch of the log ended */
+    private static class Outcome {
+        final HashSet<Long> committed = new HashSet<Long>();
+        final HashSet<Long> aborted = new HashSet<Long>();
+        HashMap<Long, Long> live; // tid -> first record, for the rest
+        long end; // offset just past the last record considered
+    }
+
+    /** The image a page must end up with: the before or after image of
+        the UPDATE record at offset, logged by tid */
+    private static class Image {
+        long offset;
+        long tid;
+        boolean after;
+    }
+
+    /** First pass over the log: find out how every transaction ended.
+        The pass starts at start, with live holding the transactions
+        already known to be running there, and stops at the end of the
+        log, before the first record at or after stopOffset, or before
+        the first COMMIT record stamped later than stopTime. */
+    private Outcome analyze(long start, HashMap<Long, Long> live, long stopOffset, long stopTime)
+        throws IOException {
+        Outcome outcome = new Outcome();
+        outcome.live = live;
+        outcome.end = start;
+        try (RecordScanner records = new RecordScanner(start)) {
+            RecordScanner.Record r;
+            while ((r = records.next()) != null) {
+                if (r.offset >= stopOffset || (r.type == COMMIT_RECORD && r.time > stopTime))
+                    break;
+                switch (r.type) {
+                case BEGIN_RECORD:
+                    live.put(r.tid, r.offset);
+                    break;
+                case COMMIT_RECORD:
+                    outcome.committed.add(r.tid);
+                    live.remove(r.tid);
+                    break;
+                case ABORT_RECORD:
+                    outcome.aborted.add(r.tid);
+                    live.remove(r.tid);
+                    break;
+                case UPDATE_RECORD:
+                    live.putIfAbsent(r.tid, r.offset);
+                    break;
+                }
+                outcome.end = records.offset();
+            }
+        }
+        return outcome;
+    }
+
+    /** Second pass over the log from start to end: pick the image every
+        page must end up with.  That is the after image of its last
+        committed update or, if the transaction that last touched it did
+        not commit, the before image of that transaction's first update.
+        Records are streamed and only the current choice per page is
+        kept, so memory grows with the pages touched, not the log. */
+    private HashMap<PageId, Image> chooseImages(long start, long end, Set<Long> committed)
+        throws IOException {
+        HashMap<PageId, Image> images = new HashMap<PageId, Image>();
+        try (RecordScanner records = new RecordScanner(start)) {
+            RecordScanner.Record r;
+            while ((r = records.next()) != null && r.offset < end) {
+                if (r.type != UPDATE_RECORD)
+                    continue;
+                Image image = images.get(r.pid);
+                boolean after = committed.contains(r.tid);
+                if (after || image == null || image.after || image.tid != r.tid) {
+                    if (image == null) {
+                        image = new Image();
+                        images.put(r.pid, image);
+                    }
+                    image.offset = r.offset;
+                    image.tid = r.tid;
+                    image.after = after;
+                }
+            }
+        }
+        return images;
+    }
+
+    /** Take a base backup of every table in the catalog: checkpoint, so
+        the table files hold every update logged so far, then copy them
+        (with their checksums) into dir along with a BACKUP_LABEL file
+        recording where replay of the log has to start.  Updates of
+        transactions that are still running are copied too; restore()
+        rolls them back unless they commit in the replayed log.
+
+        @return the offset replay has to start from
+    */
+    public long backup(File dir) throws IOException {
+        synchronized (Database.getBufferPool()) {
+            synchronized (this) {
+                logCheckpoint();
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                long start = oldestNeeded(cpLoc);
+
+                if (!dir.isDirectory() && !dir.mkdirs())
+                    throw new IOException("cannot create backup directory " + dir);
+                Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+                while (tables.hasNext()) {
+                    File f = tableFile(tables.next());
+                    copyWithChecksums(f, new File(dir, f.getName()));
+                }
+
+                Properties label = new Properties();
+                label.setProperty("start", Long.toString(start));
+                label.setProperty("checkpoint", Long.toString(cpLoc));
+                label.setProperty("time", Long.toString(System.currentTimeMillis()));
+                try (OutputStream out = new FileOutputStream(new File(dir, BACKUP_LABEL))) {
+                    label.store(out, "SimpleDb base backup");
+                }
+                Debug.log("BACKUP: " + dir + ", replay from " + start);
+                return start;
+            }
+        }
+    }
+
+    /** Restore every table in the catalog from the base backup in dir
+        and roll it forward through the log (segments that have been
+        truncated are read from the archive directory).  Replay stops
+        before the first record at or after stopOffset and before the
+        first COMMIT stamped later than stopTime; transactions that have
+        not committed by then are rolled back.  Afterwards the log is
+        reset (archived, if archiving is on), since the records after the
+        stop point describe a history that the restored database no
+        longer follows.
+        <p>
+        Must be called before any transaction uses the restored tables.
+
+        @return the offset at which replay stopped
+    */
+    public long restore(File dir, long stopOffset, long stopTime) throws IOException {
+        synchronized (Database.getBufferPool()) {
+            synchronized (this) {
+                Properties label = new Properties();
+                try (InputStream in = new FileInputStream(new File(dir, BACKUP_LABEL))) {
+                    label.load(in);
+                }
+                long start = Long.parseLong(label.getProperty("start"));
+
+                Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+                while (tables.hasNext()) {
+                    File f = tableFile(tables.next());
+                    File copy = new File(dir, f.getName());
+                    if (!copy.exists())
+                        throw new IOException("backup " + dir + " has no copy of " + f.getName());
+                    copyWithChecksums(copy, f);
+                }
+
+                recoveryUndecided = false;
+                Outcome outcome = analyze(start, new HashMap<Long, Long>(), stopOffset, stopTime);
+                HashMap<PageId, Image> images = chooseImages(start, outcome.end, outcome.committed);
+                HashMap<PageId, Long> after = new HashMap<PageId, Long>();
+                HashMap<PageId, Long> before = new HashMap<PageId, Long>();
+                for (Map.Entry<PageId, Image> e : images.entrySet())
+                    (e.getValue().after ? after : before).put(e.getKey(), e.getValue().offset);
+                redo(after, before);
+                for (PageId pid : images.keySet())
+                    Database.getBufferPool().discardPage(pid);
+
+                raf.seek(0);
+                raf.setLength(0);
+                raf.writeLong(NO_CHECKPOINT_ID);
+                buffer.reset(segments.reset());
+                tidToFirstLogRecord.clear();
+                Debug.log("RESTORE: replayed " + start + " to " + outcome.end + ", "
+                          + images.size() + " pages, " + outcome.live.size() + " rolled back");
+                return outcome.end;
+            }
+        }
+    }
+
+    /** @return the file a table is stored in */
+    private static File tableFile(int tableId) throws IOException {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).getFile();
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).getFile();
+        if (f instanceof HashFile)
+            return ((HashFile) f).getFile();
+        throw new IOException("cannot back up table " + tableId + " stored in " + f.getClass().getName());
+    }
+
+    // copy a data file and its page checksums, if it has any
+    private static void copyWithChecksums(File from, File to) throws IOException {
+        Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        PageChecksums.copy(from, to);
+    }
+
+    /** Write the chosen image of every page, in parallel across pages */
+    private void redo(HashMap<PageId, Long> after, HashMap<PageId, Long> before)
+        throws IOException {
+        int pages = after.size() + before.size();
+        if (pages == 0)
+            return;
+        int workers = Math.min(Runtime.getRuntime().availableProcessors(), pages);
+        ArrayList<ArrayList<Object[]>> partitions = new ArrayList<ArrayList<Object[]>>();
+        for (int i = 0; i < workers; i++)
+            partitions.add(new ArrayList<Object[]>());
+        for (Map.Entry<PageId, Long> e : after.entrySet())
+            partitions.get(Math.floorMod(e.getKey().hashCode(), workers)).add(new Object[] {e.getValue(), true});
+        for (Map.Entry<PageId, Long> e : before.entrySet())
+            partitions.get(Math.floorMod(e.getKey().hashCode(), workers)).add(new Object[] {e.getValue(), false});
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            ArrayList<Future<?>> done = new ArrayList<Future<?>>();
+            for (final ArrayList<Object[]> part : partitions) {
+                // read each worker's images in log order
+                part.sort((a, b) -> Long.compare((Long) a[0], (Long) b[0]));
+                done.add(pool.submit(() -> {
+                    for (Object[] task : part) {
+                        Page p = readImage((Long) task[0], (Boolean) task[1]);
+                        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done)
+                f.get();
+        } catch (InterruptedException e) {
+            throw new IOException("recovery interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("redo failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        Debug.log("RECOVERY: redid " + pages + " pages with " + workers + " workers");
+    }
+
+    private Thread undoThread;
+    private volatile Exception undoFailure;
+
+    /** Lock the pages of the loser transactions and roll them back on a
+        background thread, then log an ABORT record for each loser. The
+        losers stay in tidToFirstLogRecord until then, so a checkpoint
+        taken meanwhile does not truncate the records undo still needs.
+        If undo fails the pages stay locked, so no transaction ever sees
+        the losers' updates, and awaitUndo() throws the failure. */
+    private void startUndo(final HashMap<PageId, Long> undo, Set<Long> losers)
+        throws IOException {
+        final BufferPool bp = Database.getBufferPool();
+        final TransactionId recoveryTid = new TransactionId();
+        undoFailure = null;
+        try {
+            for (PageId pid : undo.keySet())
+                bp.lockPage(recoveryTid, pid, Permissions.READ_WRITE);
+        } catch (TransactionAbortedException e) {
+            throw new IOException("could not lock loser pages", e);
+        }
+        final ArrayList<Long> toAbort = new ArrayList<Long>(losers);
+        undoThread = new Thread(() -> {
+            try {
+                for (Map.Entry<PageId, Long> e : undo.entrySet()) {
+                    Page before = readImage(e.getValue(), false);
+                    Database.getCatalog().getDatabaseFile(e.getKey().getTableId()).writePage(before);
+                    bp.discardPage(e.getKey());
+                }
+                for (Long tid : toAbort) {
+                    preAppend();
+                    beginRecord(ABORT_RECORD, tid);
+                    endRecord();
+                }
+                force();
+                for (Long tid : toAbort)
+                    tidToFirstLogRecord.remove(tid);
+                Debug.log("RECOVERY: undid " + undo.size() + " pages of " + toAbort.size() + " losers");
+            } catch (IOException | RuntimeException e) {
+                undoFailure = e;
+                return;
+            }
+            try {
+                bp.transactionComplete(recoveryTid, false);
+            } catch (IOException e) {
+                undoFailure = e;
+            }
+        }, "simpledb-undo");
+        undoThread.setDaemon(true);
+        undoThread.start();
+    }
+
+    /** Wait until the loser transactions found by recover() have been
+        rolled back
+
+        @throws IOException if they could not be rolled back; the pages
+        they updated stay locked and the database must be recovered again
+    */
+    public void awaitUndo() throws InterruptedException, IOException {
+        Thread t = undoThread;
+        if (t != null)
+            t.join();
+        if (undoFailure != null)
+            throw new IOException("undo of loser transactions failed", undoFailure);
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    public void force() throws IOException {
+        buffer.flush(buffer.endOffset(), true);
     }
 
 }
@@ -0,0 +1,392 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * LogSegments stores the write-ahead log as a sequence of fixed-size
+ * segment files.  Log records are addressed by a logical offset into an
+ * unbounded byte stream; segment <tt>n</tt> holds the bytes in
+ * <tt>[n * segmentSize, (n + 1) * segmentSize)</tt>, so records may span
+ * segment boundaries and offsets never change once written.
+ * <p>
+ * Segments are zero-filled to their full size when they are created, so
+ * appends never extend a file and a record type of 0 marks the end of the
+ * log.  Truncating the log is simply deleting the segments that lie wholly
+ * before the oldest offset that is still needed.
+ * <p>
+ * If an archive directory is set, truncated segments are moved there
+ * instead of being deleted, and readers fall back to the archive for
+ * segments that are no longer in the log directory.  The archived log can
+ * then be replayed on top of a base backup (see {@link LogFile#restore}).
+ *
+ * @see LogFile
+ */
+public class LogSegments {
+    /** Bytes per segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private static final int ZERO_CHUNK = 64 * 1024;
+
+    private final File dir;
+    private final String prefix;
+
+    private volatile File archiveDir;
+
+    private long appendSegment = -1;
+    private RandomAccessFile appendFile;
+
+    /**
+     * Create a segment store whose files are named <tt>prefix.NNNNNNNN</tt>
+     * in the specified directory.
+     */
+    public LogSegments(File dir, String prefix) {
+        this.dir = dir;
+        this.prefix = prefix;
+    }
+
+    public static int getSegmentSize() {
+        return segmentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setSegmentSize(int segmentSize) {
+        LogSegments.segmentSize = segmentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetSegmentSize() {
+        LogSegments.segmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
+    /** @return the segment that contains the specified log offset */
+    public static long segmentOf(long offset) {
+        return offset / segmentSize;
+    }
+
+    /** @return the log offset of the first byte of the specified segment */
+    public static long startOf(long segment) {
+        return segment * segmentSize;
+    }
+
+    /** @return the file backing the specified segment */
+    public File segmentFile(long segment) {
+        return new File(dir, String.format("%s.%08d", prefix, segment));
+    }
+
+    /**
+     * Move truncated segments into the specified directory instead of
+     * deleting them, or delete them again if dir is null.
+     */
+    public void setArchiveDirectory(File dir) throws IOException {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create log archive " + dir);
+        archiveDir = dir;
+    }
+
+    /** @return the archive directory, or null if segments are not archived */
+    public File getArchiveDirectory() {
+        return archiveDir;
+    }
+
+    /** @return the numbers of all segments in the log directory, in ascending order */
+    public long[] listSegments() {
+        return listSegments(dir);
+    }
+
+    private long[] listSegments(File dir) {
+        String[] names = dir.list();
+        ArrayList<Long> segs = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                long seg = parseSegment(name);
+                if (seg >= 0)
+                    segs.add(seg);
+            }
+        }
+        Collections.sort(segs);
+        long[] result = new long[segs.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = segs.get(i);
+        return result;
+    }
+
+    private long parseSegment(String name) {
+        if (!name.startsWith(prefix + ".") || name.length() != prefix.length() + 9)
+            return -1;
+        try {
+            return Long.parseLong(name.substring(prefix.length() + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** @return the offset of the first byte still on disk, or -1 if the log is empty */
+    public long firstOffset() {
+        long[] segs = listSegments();
+        return segs.length == 0 ? -1 : startOf(segs[0]);
+    }
+
+    /**
+     * Throw away (or archive) every segment.  Offsets keep increasing across
+     * a reset, so the returned offset (the start of the segment after the
+     * last one that existed, here or in the archive) is where the new log
+     * begins.
+     */
+    public synchronized long reset() throws IOException {
+        closeAppend();
+        long[] segs = listSegments();
+        long next = segs.length == 0 ? 0 : segs[segs.length - 1] + 1;
+        File archive = archiveDir;
+        if (archive != null) {
+            long[] archived = listSegments(archive);
+            if (archived.length > 0)
+                next = Math.max(next, archived[archived.length - 1] + 1);
+        }
+        for (long seg : segs)
+            retire(seg);
+        return startOf(next);
+    }
+
+    // delete a segment, or move it into the archive
+    private boolean retire(long seg) throws IOException {
+        File f = segmentFile(seg);
+        File archive = archiveDir;
+        if (archive == null)
+            return f.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.getChannel().force(true);
+        }
+        Path target = new File(archive, f.getName()).toPath();
+        try {
+            Files.move(f.toPath(), target, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // a different file system: copy, then drop the original
+            Files.copy(f.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            try (RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw")) {
+                raf.getChannel().force(true);
+            }
+            Files.delete(f.toPath());
+        }
+        return true;
+    }
+
+    /**
+     * Write len bytes of b at the specified log offset, creating and
+     * preallocating segments as the write crosses into them.
+     */
+    public synchronized void write(long offset, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long seg = segmentOf(offset);
+            int inSeg = (int) (offset - startOf(seg));
+            int n = Math.min(len, segmentSize - inSeg);
+            RandomAccessFile f = appendTo(seg);
+            f.seek(inSeg);
+            f.write(b, off, n);
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private RandomAccessFile appendTo(long seg) throws IOException {
+        if (seg == appendSegment)
+            return appendFile;
+        if (appendFile != null) {
+            // everything before the new segment must be durable before a
+            // later force() on the new segment can be trusted
+            appendFile.getChannel().force(true);
+            appendFile.close();
+        }
+        appendFile = openPreallocated(seg);
+        appendSegment = seg;
+        return appendFile;
+    }
+
+    private RandomAccessFile openPreallocated(long seg) throws IOException {
+        File f = segmentFile(seg);
+        boolean existed = f.exists();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        if (!existed || raf.length() < segmentSize) {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK);
+            long pos = raf.length();
+            while (pos < segmentSize) {
+                zeros.clear();
+                zeros.limit((int) Math.min(ZERO_CHUNK, segmentSize - pos));
+                pos += ch.write(zeros, pos);
+            }
+            ch.force(true);
+        }
+        return raf;
+    }
+
+    /** Force the segment currently being appended to onto disk. */
+    public synchronized void force() throws IOException {
+        if (appendFile != null)
+            appendFile.getChannel().force(true);
+    }
+
+    /**
+     * Delete (or archive) every segment that lies wholly before the
+     * specified offset.
+     *
+     * @return the number of segments removed
+     */
+    public synchronized int removeBefore(long offset) throws IOException {
+        long keep = segmentOf(offset);
+        int removed = 0;
+        for (long seg : listSegments()) {
+            if (seg >= keep)
+                break;
+            if (seg == appendSegment)
+                closeAppend();
+            if (retire(seg))
+                removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Zero everything from offset to the end of its segment and delete every
+     * later segment, so that the remains of a torn write at the end of the
+     * log can never be read back as records once new records are appended
+     * in front of them.
+     *
+     * @return the number of bytes after offset that were not already zero
+     */
+    public synchronized long truncateAfter(long offset) throws IOException {
+        long seg = segmentOf(offset);
+        long discarded = 0;
+        for (long s : listSegments()) {
+            if (s < seg)
+                continue;
+            if (s == appendSegment)
+                closeAppend();
+            File f = segmentFile(s);
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                long from = s == seg ? offset - startOf(seg) : 0;
+                discarded += zeroFrom(raf, from);
+                raf.getChannel().force(true);
+            }
+            if (s > seg)
+                f.delete();
+        }
+        return discarded;
+    }
+
+    // zero a file from pos to its end, returning how many bytes were non-zero
+    private static long zeroFrom(RandomAccessFile raf, long pos) throws IOException {
+        byte[] chunk = new byte[ZERO_CHUNK];
+        byte[] zeros = new byte[ZERO_CHUNK];
+        long nonZero = 0;
+        while (pos < raf.length()) {
+            int n = (int) Math.min(ZERO_CHUNK, raf.length() - pos);
+            raf.seek(pos);
+            raf.readFully(chunk, 0, n);
+            boolean dirty = false;
+            for (int i = 0; i < n; i++) {
+                if (chunk[i] != 0) {
+                    nonZero++;
+                    dirty = true;
+                }
+            }
+            if (dirty) {
+                raf.seek(pos);
+                raf.write(zeros, 0, n);
+            }
+            pos += n;
+        }
+        return nonZero;
+    }
+
+    /**
+     * Open a sequential reader positioned at the specified log offset.  The
+     * reader moves across segment boundaries, reads segments that have been
+     * archived from the archive, and reports end of file when it runs past
+     * the last segment on disk.
+     */
+    public DataInputStream openReader(long offset) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new SegmentInputStream(offset)));
+    }
+
+    private void closeAppend() throws IOException {
+        if (appendFile != null) {
+            appendFile.close();
+            appendFile = null;
+            appendSegment = -1;
+        }
+    }
+
+    /** Release the open segment file. */
+    public synchronized void close() throws IOException {
+        closeAppend();
+    }
+
+    private class SegmentInputStream extends InputStream {
+        private long offset;
+        private long segment = -1;
+        private RandomAccessFile file;
+
+        SegmentInputStream(long offset) {
+            this.offset = offset;
+        }
+
+        private boolean position() throws IOException {
+            long seg = segmentOf(offset);
+            if (seg != segment) {
+                if (file != null)
+                    file.close();
+                file = null;
+                segment = seg;
+                File f = segmentFile(seg);
+                File archive = archiveDir;
+                if (!f.exists() && archive != null)
+                    f = new File(archive, f.getName());
+                if (!f.exists())
+                    return false;
+                file = new RandomAccessFile(f, "r");
+            }
+            if (file == null)
+                return false;
+            file.seek(offset - startOf(seg));
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!position())
+                return -1;
+            int n = (int) Math.min(len, startOf(segment + 1) - offset);
+            n = file.read(b, off, n);
+            if (n <= 0)
+                return -1;
+            offset += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null)
+                file.close();
+            file = null;
+        }
+    }
+}
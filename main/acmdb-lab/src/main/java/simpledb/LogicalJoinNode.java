@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Look up the matches of each t1 tuple through the index of t2, with an
+     *  {@link IndexNestedLoopJoin}, rather than reading all of t2 */
+    public boolean probeIndex;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +67,13 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this LogicalJoinNode that probes the index of t2. */
+    public LogicalJoinNode probingIndex() {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.probeIndex = true;
+        return j2;
+    }
+    
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
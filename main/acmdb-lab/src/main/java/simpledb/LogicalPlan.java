@@ -2,6 +2,11 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -19,7 +24,18 @@ import java.util.NoSuchElementException;
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
- * best implementations for joins.
+ * best implementations for joins.  Tables stored in a {@link BTreeFile}
+ * are read with a {@link BTreeScan} instead of a {@link SeqScan} when
+ * a filter on the key field makes that cheaper, tables stored in a
+ * {@link HashFile} are read with a {@link HashScan} for an equality
+ * filter on the key field, and tables with
+ * secondary indexes are read with an {@link IndexScan} when filters on
+ * indexed fields, or a covering index, do.  An ORDER BY with a LIMIT is
+ * planned as a {@link TopK}, and a GROUP BY on the key field of the only
+ * table, which its scan returns in key order, as a {@link StreamAggregate}.
+ * With several workers (see {@link #setWorkers}), a query over a single
+ * table scans, filters and aggregates it in parallel, the workers taking
+ * pages of the table in {@link Morsels}.
  */
 public class LogicalPlan {
     private Vector<LogicalJoinNode> joins;
@@ -35,6 +51,8 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1;
+    private int workers = 1;
     private String query;
 //    private Query owner;
 
@@ -216,6 +234,32 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT on the number of tuples the query returns.  Combined with an
+        ORDER BY, the plan keeps only the best tuples with a {@link TopK}
+        instead of sorting them all.
+        @param n the maximum number of tuples to return
+     * @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("Invalid LIMIT " + n);
+        limit = n;
+    }
+
+    /** Run the scan, filters and aggregate of a query over a single table
+        stored in a {@link HeapFile} or {@link BTreeFile} in parallel
+        fragments, one per worker, each reading the morsels of the table it
+        takes, merged by a {@link Gather}.  This is the most cores the query
+        uses at once; the cores are shared with the other queries.
+        @param n the number of workers; 1 runs the whole plan on the
+        calling thread
+    */
+    public void setWorkers(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("a plan needs at least one worker");
+        workers = n;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -290,17 +334,28 @@ public class LogicalPlan {
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
 
+        HashSet<LogicalFilterNode> indexFilters = new HashSet<LogicalFilterNode>();
+        boolean sorted = false;  // the access path already returns the ORDER BY order
+        DbIterator groupedScan = null;  // the access path, if it returns the tuples grouped
+
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbFile file;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                file = Database.getCatalog().getDatabaseFile(table.t);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
-            
-            subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
+
+            DbIterator scan = chooseAccessPath(t, table, file, baseTableStats.get(baseTableName),
+                                               indexFilters, explain);
+            if (ordersByKey(table, file))
+                sorted = readsInOrder(scan, oByAsc);
+            if (groupsByKey(table, file) && (scan instanceof SeqScan || scan instanceof BTreeScan))
+                groupedScan = scan;
+
+            subplanMap.put(table.alias,scan);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
@@ -323,10 +378,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = parseConstant(ftyp, lf.c);
 
             Predicate p = null;
             try {
@@ -334,11 +386,14 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // a filter answered by the index scan needs no Filter above it
+            if (!indexFilters.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // a covering index scan returns fewer fields than the table has
+            double sel= s.estimateSelectivity(Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias)).fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -408,6 +463,20 @@ public class LogicalPlan {
         
         DbIterator node =  (DbIterator)(subplanMap.entrySet().iterator().next().getValue());
 
+        // the same plan over morsels of the table, to run in parallel
+        DbIterator[] fragments = null;
+        if (workers > 1 && tables.size() == 1 && joins.isEmpty() && groupedScan == null
+            && !sorted && morselScan(node)) {
+            if (explain)
+                System.out.println("Scanning " + tables.get(0).alias + " in morsels with " + workers + " workers");
+            Morsels morsels = new Morsels(t, tables.get(0).t, workers);
+            fragments = new DbIterator[workers];
+            for (int i = 0; i < workers; i++)
+                fragments[i] = fragment(t, node, morsels);
+            if (!hasAgg)
+                node = new Gather(fragments);
+        }
+
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
         ArrayList<Type> outTypes = new ArrayList<Type>();
@@ -462,10 +531,21 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int afield = td.fieldNameToIndex(aggField);
+                int gfield = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                if (groupedScan != null) {
+                    if (explain)
+                        System.out.println("Aggregating the groups of " + groupByField + " as they are scanned");
+                    aggNode = new StreamAggregate(node, afield, gfield, getAggOp(aggOp));
+                    // the groups come out in the order of the scan
+                    if (hasOrderBy && oByField.equals(groupByField))
+                        sorted = readsInOrder(groupedScan, oByAsc);
+                } else if (fragments != null) {
+                    aggNode = parallelAggregate(fragments, afield, gfield, getAggOp(aggOp),
+                                                td.getFieldName(afield));
+                } else {
+                    aggNode = new Aggregate(node, afield, gfield, getAggOp(aggOp));
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -474,13 +554,333 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (hasOrderBy && !sorted && limit >= 0) {
+            node = new TopK(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, limit, node);
+        } else {
+            if (hasOrderBy && !sorted)
+                node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            if (limit >= 0)
+                node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** @return true if plan is a SeqScan of a HeapFile or a BTreeFile, under filters */
+    private static boolean morselScan(DbIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        if (!(plan instanceof SeqScan))
+            return false;
+        String name = ((SeqScan) plan).getTableName();
+        DbFile file = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(name));
+        return file instanceof HeapFile || file instanceof BTreeFile;
+    }
+
+    /** @return a copy of plan, a SeqScan under filters, that scans the
+        morsels of the table it takes from those shared with other copies
+    */
+    private static DbIterator fragment(TransactionId t, DbIterator plan, Morsels morsels) {
+        if (plan instanceof Filter) {
+            Filter f = (Filter) plan;
+            return new Filter(f.getPredicate(), fragment(t, f.getChildren()[0], morsels));
+        }
+        return new SeqScan(t, ((SeqScan) plan).getAlias(), morsels);
+    }
+
+    /** @return an aggregate computed in two phases: a partial aggregate over
+        each fragment, in parallel, and a final aggregate over their results.
+        An AVG is split into a SUM_COUNT and an SC_AVG.  The final aggregate
+        names its column after op over afieldName, as the serial plan does.
+    */
+    private static Aggregate parallelAggregate(DbIterator[] fragments, int afield, int gfield,
+                                               Aggregator.Op op, String afieldName) {
+        Aggregator.Op partialOp = op, finalOp = op;
+        if (op == Aggregator.Op.AVG) {
+            partialOp = Aggregator.Op.SUM_COUNT;
+            finalOp = Aggregator.Op.SC_AVG;
+        } else if (op == Aggregator.Op.COUNT) {
+            finalOp = Aggregator.Op.SUM;
+        }
+        DbIterator[] partials = new DbIterator[fragments.length];
+        for (int i = 0; i < fragments.length; i++)
+            partials[i] = new Aggregate(fragments[i], afield, gfield, partialOp);
+        boolean grouped = gfield != Aggregator.NO_GROUPING;
+        return new Aggregate(new Gather(partials), grouped ? 1 : 0,
+                             grouped ? 0 : Aggregator.NO_GROUPING, finalOp,
+                             Aggregate.columnName(op, afieldName));
+    }
+
+    /** Convert the constant of a filter to a field of the specified type */
+    private static Field parseConstant(Type type, String c) throws ParsingException {
+        if (type == Type.INT_TYPE) {
+            try {
+                return new IntField(Integer.parseInt(c));
+            } catch (NumberFormatException e) {
+                throw new ParsingException("Invalid integer constant " + c);
+            }
+        }
+        return new StringField(c, Type.STRING_LEN);
+    }
+
+    /** Pick the cheapest way to read the specified table: a full scan, a
+        BTreeScan answering a filter on the key field of a BTreeFile, a
+        HashScan answering an equality filter on the key of a HashFile, or an
+        IndexScan through one of the table's secondary indexes (see
+        {@link Catalog#getIndexes}).  An index answers equality filters on
+        leading fields of its key, or any filter on its first key field;
+        when it stores every field the query reads from the table, the
+        IndexScan is covering and skips the heap file.  Costs come from
+        {@link TableStats#estimateScanCost} and the
+        {@link TableStats#estimateIndexScanCost} methods.  A lower and an
+        upper bound filter on the key field of a BTreeFile are answered
+        together by one bounded BTreeScan.  When the query orders its only
+        table by that key in descending order, the BTreeScan runs in
+        reverse so that no sort is needed.
+
+        @param indexFilters the filters answered by the chosen index, if
+          any, are added to this set
+        @return the scan operator for the table
+    */
+    private DbIterator chooseAccessPath(TransactionId t, LogicalScanNode table, DbFile file,
+                                        TableStats stats, Set<LogicalFilterNode> indexFilters,
+                                        boolean explain)
+        throws ParsingException {
+        if (stats == null)
+            return new SeqScan(t, file.getId(), table.alias);
+        TupleDesc td = file.getTupleDesc();
+
+        ArrayList<LogicalFilterNode> tableFilters = new ArrayList<LogicalFilterNode>();
+        ArrayList<Integer> filterFields = new ArrayList<Integer>();
+        ArrayList<Field> constants = new ArrayList<Field>();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias))
+                continue;
+            int field;
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            tableFilters.add(lf);
+            filterFields.add(field);
+            constants.add(parseConstant(td.getFieldType(field), lf.c));
+        }
+
+        List<LogicalFilterNode> bestFilters = null;
+        IndexPredicate bestPred = null;
+        IndexPredicate bestLower = null, bestUpper = null;
+        BTreeIndex bestIndex = null;
+        boolean bestCovering = false;
+        double bestCost = stats.estimateScanCost();
+
+        for (int i = 0; i < tableFilters.size(); i++) {
+            LogicalFilterNode lf = tableFilters.get(i);
+            double cost = stats.estimateIndexScanCost(filterFields.get(i), lf.p, constants.get(i));
+            if (cost < bestCost) {
+                bestFilters = Collections.singletonList(lf);
+                bestPred = new IndexPredicate(lf.p, constants.get(i));
+                bestIndex = null;
+                bestCost = cost;
+            }
+        }
+        // a lower and an upper bound on the same field
+        for (int i = 0; i < tableFilters.size(); i++) {
+            if (!isLowerBound(tableFilters.get(i).p))
+                continue;
+            IndexPredicate lower = new IndexPredicate(tableFilters.get(i).p, constants.get(i));
+            for (int j = 0; j < tableFilters.size(); j++) {
+                if (!isUpperBound(tableFilters.get(j).p) || !filterFields.get(i).equals(filterFields.get(j)))
+                    continue;
+                IndexPredicate upper = new IndexPredicate(tableFilters.get(j).p, constants.get(j));
+                double cost = stats.estimateRangeScanCost(filterFields.get(i), lower, upper);
+                if (cost < bestCost) {
+                    bestFilters = Arrays.asList(tableFilters.get(i), tableFilters.get(j));
+                    bestPred = null;
+                    bestLower = lower;
+                    bestUpper = upper;
+                    bestCost = cost;
+                }
+            }
+        }
+
+        Set<Integer> referenced = referencedFields(table.alias, td);
+        for (BTreeIndex index : Database.getCatalog().getIndexes(file.getId())) {
+            boolean covering = referenced != null && index.covers(referenced);
+            ArrayList<List<LogicalFilterNode>> candidateFilters = new ArrayList<List<LogicalFilterNode>>();
+            ArrayList<IndexPredicate> candidatePreds = new ArrayList<IndexPredicate>();
+
+            // equality filters on the leading key fields
+            int[] keys = index.getKeyFields();
+            ArrayList<LogicalFilterNode> used = new ArrayList<LogicalFilterNode>();
+            ArrayList<Field> prefix = new ArrayList<Field>();
+            for (int key : keys) {
+                int found = -1;
+                for (int i = 0; i < tableFilters.size() && found < 0; i++) {
+                    if (filterFields.get(i) == key && tableFilters.get(i).p == Predicate.Op.EQUALS)
+                        found = i;
+                }
+                if (found < 0)
+                    break;
+                used.add(tableFilters.get(found));
+                prefix.add(constants.get(found));
+            }
+            if (prefix.size() > 1) {
+                candidateFilters.add(used);
+                candidatePreds.add(new IndexPredicate(Predicate.Op.EQUALS,
+                        new CompositeField(prefix.toArray(new Field[0]))));
+            }
+            // any filter on the first key field
+            for (int i = 0; i < tableFilters.size(); i++) {
+                if (filterFields.get(i) == keys[0] && TableStats.indexable(tableFilters.get(i).p)) {
+                    candidateFilters.add(Collections.singletonList(tableFilters.get(i)));
+                    candidatePreds.add(new IndexPredicate(tableFilters.get(i).p, constants.get(i)));
+                }
+            }
+            // the whole index, when it is narrower than the table
+            if (covering) {
+                candidateFilters.add(new ArrayList<LogicalFilterNode>());
+                candidatePreds.add(null);
+            }
+
+            for (int c = 0; c < candidatePreds.size(); c++) {
+                double sel = stats.estimateSelectivity(index, candidatePreds.get(c));
+                double cost = stats.estimateIndexScanCost(index, sel, covering);
+                if (cost < bestCost) {
+                    bestFilters = candidateFilters.get(c);
+                    bestPred = candidatePreds.get(c);
+                    bestLower = bestUpper = null;
+                    bestIndex = index;
+                    bestCovering = covering;
+                    bestCost = cost;
+                }
+            }
+        }
+        boolean reverse = ordersByKey(table, file) && !oByAsc;
+        if (bestFilters == null) {
+            if (!reverse)
+                return new SeqScan(t, file.getId(), table.alias);
+            if (explain)
+                System.out.println("Using reverse index scan on " + oByField);
+            return new BTreeScan(t, file.getId(), table.alias, null, null, true);
+        }
+
+        indexFilters.addAll(bestFilters);
+        if (bestIndex == null) {
+            if (reverse && bestPred != null && bestPred.getOp() != Predicate.Op.EQUALS) {
+                if (isLowerBound(bestPred.getOp()))
+                    bestLower = bestPred;
+                else
+                    bestUpper = bestPred;
+                bestPred = null;
+            }
+            if (bestPred == null) {
+                if (explain)
+                    System.out.println("Using " + (reverse ? "reverse " : "") + "index range scan on "
+                                       + bestFilters.get(0).fieldQuantifiedName
+                                       + (bestLower == null ? "" : " " + bestLower.getOp() + " " + bestLower.getField())
+                                       + (bestUpper == null ? "" : " " + bestUpper.getOp() + " " + bestUpper.getField()));
+                return new BTreeScan(t, file.getId(), table.alias, bestLower, bestUpper, reverse);
+            }
+            LogicalFilterNode lf = bestFilters.get(0);
+            if (file instanceof HashFile) {
+                if (explain)
+                    System.out.println("Using hash index scan on " + lf.fieldQuantifiedName + " " + lf.p + " " + lf.c);
+                return new HashScan(t, file.getId(), table.alias, bestPred);
+            }
+            if (explain)
+                System.out.println("Using index scan on " + lf.fieldQuantifiedName + " " + lf.p + " " + lf.c);
+            return new BTreeScan(t, file.getId(), table.alias, bestPred);
+        }
+        if (explain)
+            System.out.println("Using " + (bestCovering ? "covering " : "") + "index "
+                               + bestIndex.getName() + " on " + table.alias
+                               + (bestPred == null ? "" : " " + bestPred.getOp() + " " + bestPred.getField()));
+        return new IndexScan(t, bestIndex, table.alias, bestPred, bestCovering);
+    }
+
+    private static boolean isLowerBound(Predicate.Op op) {
+        return op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    private static boolean isUpperBound(Predicate.Op op) {
+        return op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    /** @return true if the query reads only the specified table, without
+        aggregating it, and orders it by the key field of its BTreeFile
+    */
+    private boolean ordersByKey(LogicalScanNode table, DbFile file) {
+        if (!hasOrderBy || hasAgg || tables.size() != 1 || !joins.isEmpty()
+            || !(file instanceof BTreeFile))
+            return false;
+        String key = file.getTupleDesc().getFieldName(((BTreeFile) file).keyField());
+        return oByField.equals(table.alias + "." + key);
+    }
+
+    /** @return true if the query reads only the specified table, and groups
+        it by the key field of its BTreeFile, so that a scan of the file
+        returns the tuples of each group in a row
+    */
+    private boolean groupsByKey(LogicalScanNode table, DbFile file) {
+        if (!hasAgg || groupByField == null || tables.size() != 1 || !joins.isEmpty()
+            || !(file instanceof BTreeFile))
+            return false;
+        String key = file.getTupleDesc().getFieldName(((BTreeFile) file).keyField());
+        return groupByField.equals(table.alias + "." + key);
+    }
+
+    /** @return true if scan, which reads a BTreeFile ordered on its key,
+        returns the tuples in ascending (asc) or descending key order.  A
+        SeqScan follows the leaves from left to right.
+    */
+    private static boolean readsInOrder(DbIterator scan, boolean asc) {
+        if (scan instanceof SeqScan)
+            return asc;
+        if (!(scan instanceof BTreeScan))
+            return false;
+        BTreeScan bs = (BTreeScan) scan;
+        IndexPredicate ipred = bs.getIndexPredicate();
+        if (ipred != null)
+            return asc || ipred.getOp() == Predicate.Op.EQUALS;
+        return bs.isReverse() != asc;
+    }
+
+    /** @return the fields of the table scanned as alias that the query
+        reads, or null if it reads all of them (SELECT *)
+    */
+    private Set<Integer> referencedFields(String alias, TupleDesc td) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        if (groupByField != null)
+            names.add(groupByField);
+        if (hasOrderBy)
+            names.add(oByField);
+        for (LogicalJoinNode j : joins) {
+            names.add(j.f1QuantifiedName);
+            if (!(j instanceof LogicalSubplanJoinNode))
+                names.add(j.f2QuantifiedName);
+        }
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+
+        Set<Integer> fields = new HashSet<Integer>();
+        for (String name : names) {
+            if (name.endsWith("*"))
+                return null;
+            int dot = name.indexOf('.');
+            if (dot < 0 || !name.substring(0, dot).equals(alias))
+                continue;
+            try {
+                fields.add(td.fieldNameToIndex(name.substring(dot + 1)));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return fields;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
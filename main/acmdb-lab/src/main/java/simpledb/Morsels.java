@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Morsels hands out the pages of a table, a few at a time, to the scans of
+ * the fragments of a parallel plan: the pages of a {@link HeapFile}, or the
+ * leaf pages of a {@link BTreeFile}.  Instead of each fragment reading a
+ * fixed partition of the table, a fragment takes the next morsel of pages
+ * whenever it has finished the previous one, so fragments that filter or
+ * aggregate faster, or get more cores, read more of the table.  Morsels
+ * shrink towards the end of the table, so that the fragments finish at
+ * about the same time.
+ * <p>
+ * A worker holds a core of {@link Exchange} while it reads a morsel, and
+ * gives it back before taking the next one, so the cores are shared fairly
+ * by the fragments of all the queries running at the same time.
+ * <p>
+ * The morsels are shared by a fixed number of readers, each the iterator
+ * of a {@link SeqScan}.  The table is read once all the readers are open;
+ * it can be read again, e.g. by rewinding the {@link Gather} over the
+ * readers, once they have all been closed.
+ */
+public class Morsels {
+
+    /** Largest number of pages handed out at once */
+    public static final int MORSEL_PAGES = 16;
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final int readers;
+
+    // the pages of the current read of the table, and the next one to hand out
+    private volatile PageId[] pages;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private int closed;
+
+    /**
+     * Share the pages of a table among readers.
+     *
+     * @param tid
+     *            the transaction the table is read in
+     * @param tableid
+     *            the table to read
+     * @param readers
+     *            the number of scans that read the table
+     * @throws IllegalArgumentException
+     *             if the table is not a HeapFile or a BTreeFile
+     */
+    public Morsels(TransactionId tid, int tableid, int readers) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile) && !(file instanceof BTreeFile))
+            throw new IllegalArgumentException("only heap files and B+ trees can be read in morsels");
+        if (readers < 1)
+            throw new IllegalArgumentException("morsels need at least one reader");
+        this.tid = tid;
+        this.tableid = tableid;
+        this.readers = readers;
+    }
+
+    /**
+     * @return the table the morsels are taken from
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the number of scans sharing the morsels
+     */
+    public int getReaders() {
+        return readers;
+    }
+
+    /**
+     * @return an iterator over the tuples of the morsels taken by one reader
+     */
+    public DbFileIterator iterator() {
+        return new MorselIterator();
+    }
+
+    /** Start a read of the table, on the first reader opened */
+    private synchronized void open() throws DbException, TransactionAbortedException {
+        if (pages == null) {
+            pages = pages();
+            cursor.set(0);
+            closed = 0;
+        }
+    }
+
+    /** End the read of the table, once all the readers are closed */
+    private synchronized void close() {
+        if (++closed == readers)
+            pages = null;
+    }
+
+    /** @return the pages to read, in the order they are handed out */
+    private PageId[] pages() throws DbException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            PageId[] result = new PageId[((HeapFile) file).numPages()];
+            for (int i = 0; i < result.length; i++)
+                result[i] = new HeapPageId(tableid, i);
+            return result;
+        }
+        // the leaves of a B+ tree, found from their parents, left to right
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+        BTreePageId root = rootPtr.getRootId();
+        ArrayList<BTreePageId> level = new ArrayList<BTreePageId>();
+        if (root != null)
+            level.add(root);
+        while (!level.isEmpty() && level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+            ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+            for (BTreePageId pid : level) {
+                BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+                        tid, pid, Permissions.READ_ONLY);
+                Iterator<BTreeEntry> it = page.iterator();
+                BTreeEntry e = null;
+                while (it.hasNext()) {
+                    e = it.next();
+                    children.add(e.getLeftChild());
+                }
+                if (e != null)
+                    children.add(e.getRightChild());
+            }
+            level = children;
+        }
+        return level.toArray(new PageId[level.size()]);
+    }
+
+    /**
+     * @return the range of the next morsel in pages, or null once all the
+     *         pages have been handed out
+     */
+    private int[] claim(PageId[] pages) {
+        while (true) {
+            int from = cursor.get();
+            int remaining = pages.length - from;
+            if (remaining <= 0)
+                return null;
+            int size = Math.max(1, Math.min(MORSEL_PAGES, remaining / (2 * readers)));
+            if (cursor.compareAndSet(from, from + size))
+                return new int[] { from, from + size };
+        }
+    }
+
+    /**
+     * The tuples of the morsels taken by one reader, read while holding a
+     * core.
+     */
+    private class MorselIterator extends AbstractDbFileIterator {
+        private PageId[] read;
+        private int next, end;
+        private Iterator<Tuple> tuples;
+        private boolean core = false;
+
+        public void open() throws DbException, TransactionAbortedException {
+            if (read != null)
+                return;
+            Morsels.this.open();
+            read = pages;
+            next = end = 0;
+            tuples = null;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (read == null)
+                return null;
+            while (true) {
+                if (tuples != null && tuples.hasNext())
+                    return tuples.next();
+                tuples = null;
+                if (next < end) {
+                    Page page = Database.getBufferPool().getPage(tid, read[next++], Permissions.READ_ONLY);
+                    if (page instanceof HeapPage)
+                        tuples = ((HeapPage) page).iterator();
+                    else
+                        tuples = ((BTreeLeafPage) page).iterator();
+                    continue;
+                }
+                releaseCore();
+                int[] morsel = claim(read);
+                if (morsel == null)
+                    return null;
+                Exchange.acquireCore();
+                core = true;
+                next = morsel[0];
+                end = morsel[1];
+            }
+        }
+
+        private void releaseCore() {
+            if (core)
+                Exchange.releaseCore();
+            core = false;
+        }
+
+        /**
+         * The morsels this reader took cannot be taken again alone.
+         *
+         * @throws DbException always
+         */
+        public void rewind() throws DbException, TransactionAbortedException {
+            throw new DbException("a scan sharing its table with other scans cannot be rewound");
+        }
+
+        public void close() {
+            super.close();
+            releaseCore();
+            tuples = null;
+            if (read != null) {
+                read = null;
+                Morsels.this.close();
+            }
+        }
+    }
+}
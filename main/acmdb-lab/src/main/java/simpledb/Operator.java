@@ -6,6 +6,11 @@ import java.util.NoSuchElementException;
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
  * <code>open</code> and <code>readNext</code>.
+ * <p>
+ * Operators that work on whole batches of tuples override
+ * {@link #fetchNextBatch}, and implement <code>fetchNext</code> with
+ * {@link #nextFromBatches}, which returns the tuples of those batches one at
+ * a time.
  */
 public abstract class Operator implements DbIterator {
 
@@ -44,6 +49,64 @@ public abstract class Operator implements DbIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+        if (next != null)
+            return DbIterator.super.nextBatch();
+        if (batch != null && batchPos < batch.size()) {
+            TupleBatch rest = batch;
+            rest.skip(batchPos);
+            batch = null;
+            return rest;
+        }
+        return fetchNextBatch();
+    }
+
+    /**
+     * Returns the next batch of tuples, or null if the iteration is finished.
+     * Operator uses this method to implement <code>nextBatch</code>.  The
+     * default implementation collects tuples from <code>fetchNext</code>, so
+     * subclasses that override neither method cannot use
+     * {@link #nextFromBatches}.
+     *
+     * @return the next non-empty batch, or null if the iteration is finished.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        TupleBatch b = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+        Tuple t;
+        while (!b.isFull() && (t = fetchNext()) != null)
+            b.add(t);
+        return b.size() == 0 ? null : b;
+    }
+
+    /**
+     * Returns the tuples of the batches from <code>fetchNextBatch</code> one
+     * at a time, for subclasses that implement <code>fetchNext</code> with it.
+     *
+     * @return the next Tuple, or null if the iteration is finished.
+     */
+    protected Tuple nextFromBatches() throws DbException,
+            TransactionAbortedException {
+        while (batch == null || batchPos == batch.size()) {
+            batch = fetchNextBatch();
+            batchPos = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(batchPos++);
+    }
+
+    /**
+     * Drops the tuples read ahead by <code>hasNext</code> and
+     * {@link #nextFromBatches}; subclasses call this when they rewind.
+     */
+    protected void discardReadAhead() {
+        next = null;
+        batch = null;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
@@ -51,10 +114,13 @@ public abstract class Operator implements DbIterator {
     public void close() {
         // Ensures that a future call to next() will fail
         next = null;
+        batch = null;
         this.open = false;
     }
 
     private Tuple next = null;
+    private TupleBatch batch = null;
+    private int batchPos = 0;
     private boolean open = false;
     private int estimatedCardinality = 0;
 
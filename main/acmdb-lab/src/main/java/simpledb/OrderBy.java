@@ -1,20 +1,31 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY.  The tuples
+ * of its child are sorted with an {@link ExternalSort} within a memory
+ * budget: runs that fit in the budget are sorted in memory and written to
+ * disk, and merged back in order.  Tuples with equal sort fields come out in
+ * the order of the child.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples held in memory while sorting */
+    public static final int DEFAULT_MEMORY_TUPLES = 2 * ExternalSort.DEFAULT_RUN_SIZE;
+
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
     private int orderByField;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
     private boolean asc;
+    private final int memoryTuples;
+    private final int workers;
+    private transient ExternalSort sort;
+    private transient DbFileIterator it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,11 +38,36 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(orderbyField, asc, child, DEFAULT_MEMORY_TUPLES, 1);
+    }
+
+    /**
+     * Creates a new OrderBy node that holds at most memoryTuples tuples in
+     * memory, and sorts runs with the given number of worker threads while
+     * the next run is read.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryTuples
+     *            the memory budget, which is split between the run being
+     *            read and those being sorted
+     * @param workers
+     *            the number of threads sorting and writing runs
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, int memoryTuples, int workers) {
+        if (workers < 1 || memoryTuples < workers + 1)
+            throw new IllegalArgumentException("a sort needs a worker, and a tuple of memory per run");
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.memoryTuples = memoryTuples;
+        this.workers = workers;
     }
     
     public boolean isASC()
@@ -56,21 +92,36 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        if (sort != null)
+            sort.close();
+        sort = new ExternalSort(td, new TupleComparator(orderByField, asc),
+                memoryTuples / (workers + 1), workers);
+        try {
+            sort.addAll(new ChildIterator(child));
+            it = sort.sorted();
+        } catch (IOException e) {
+            sort.close();
+            sort = null;
+            throw new DbException("cannot sort: " + e.getMessage());
+        }
+        it.open();
         super.open();
     }
 
     public void close() {
         super.close();
+        child.close();
+        if (it != null)
+            it.close();
         it = null;
+        if (sort != null)
+            sort.close();
+        sort = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        discardReadAhead();
+        it.rewind();
     }
 
     /**
@@ -99,25 +150,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
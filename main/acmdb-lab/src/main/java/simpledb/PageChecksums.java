@@ -0,0 +1,242 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.CRC32C;
+
+/**
+ * PageChecksums keeps a CRC32C for every page of a DbFile, so that torn or
+ * corrupted pages are caught when they are read back instead of being
+ * parsed into garbage tuples.
+ * <p>
+ * The page layouts of HeapPage and the B+ tree pages fill the whole page,
+ * so the checksums live in a sidecar file next to the data file
+ * (<tt>name.crc</tt>).  Entry <tt>n</tt> is 12 bytes at offset
+ * <tt>12 * n</tt>: a marker, the checksum of the previous image of page
+ * number <tt>n</tt> and the checksum of its latest image.
+ * <p>
+ * {@link #record} must be called before the page itself is written, so an
+ * entry that reaches the disk before its page still accepts the old page.
+ * Entries are not forced one by one: {@link #forceAll} forces every
+ * sidecar written since the last call once, when the buffer pool finishes
+ * flushing pages.  A page written after its entry was last forced has its
+ * image in the log, and recovery rewrites it (and its entry) before it is
+ * read.  A page that matches either checksum is sound; only a page
+ * matching neither is torn or corrupt.  Pages without an entry (written by
+ * the encoders, or before checksums existed) are not verified; they gain
+ * an entry the first time they are written through {@link DbFile#writePage}.
+ * Code that writes pages without going through writePage must call
+ * {@link #forget} or {@link #discard}.
+ * <p>
+ * There is one instance per data file, which keeps the sidecar open until
+ * the file is discarded or {@link #closeAll} is called when the database
+ * is reset.  Entries that {@link #verify} repairs are forced along with
+ * the written ones.
+ *
+ * @Threadsafe
+ */
+public class PageChecksums {
+    // the entry also accepts the previous image of the page
+    private static final int MARKER = 0x43524332; // "CRC2"
+    // the page may still hold an image that was never checksummed
+    private static final int MARKER_FIRST = 0x43524346; // "CRCF"
+    private static final int ENTRY_SIZE = 12;
+
+    private static final HashMap<String, PageChecksums> instances = new HashMap<String, PageChecksums>();
+    // the instances with entries written since the last forceAll()
+    private static final HashSet<PageChecksums> unforced = new HashSet<PageChecksums>();
+
+    private final File file;
+    private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+    private FileChannel channel;
+    private boolean missing; // the sidecar was found not to exist
+    private boolean dirty;
+
+    private PageChecksums(File dataFile) {
+        this.file = sidecarFor(dataFile);
+    }
+
+    /** @return the checksums for the pages of the specified data file */
+    public static synchronized PageChecksums of(File dataFile) {
+        return instances.computeIfAbsent(dataFile.getAbsolutePath(), p -> new PageChecksums(dataFile));
+    }
+
+    public static File sidecarFor(File dataFile) {
+        return new File(dataFile.getPath() + ".crc");
+    }
+
+    /** Throw away every checksum of a data file that is being rewritten */
+    public static void discard(File dataFile) {
+        PageChecksums checksums = of(dataFile);
+        synchronized (checksums) {
+            checksums.close();
+            checksums.file.delete();
+        }
+    }
+
+    /**
+     * Force the entries written since the last call to disk, one force per
+     * sidecar.
+     */
+    public static void forceAll() throws IOException {
+        PageChecksums[] written;
+        synchronized (PageChecksums.class) {
+            written = unforced.toArray(new PageChecksums[0]);
+            unforced.clear();
+        }
+        for (PageChecksums checksums : written) {
+            synchronized (checksums) {
+                if (checksums.dirty && checksums.channel != null)
+                    checksums.channel.force(false);
+                checksums.dirty = false;
+            }
+        }
+    }
+
+    /** Close every sidecar and forget every instance; used on reset */
+    public static void closeAll() {
+        PageChecksums[] all;
+        synchronized (PageChecksums.class) {
+            all = instances.values().toArray(new PageChecksums[0]);
+            instances.clear();
+            unforced.clear();
+        }
+        for (PageChecksums checksums : all) {
+            synchronized (checksums) {
+                checksums.close();
+            }
+        }
+    }
+
+    /**
+     * Copy the checksums of a data file along with the file, or throw away
+     * those of the copy if the original has none.
+     */
+    public static void copy(File from, File to) throws IOException {
+        File crc = sidecarFor(from);
+        PageChecksums checksums = of(to);
+        synchronized (checksums) {
+            checksums.close();
+            if (crc.exists())
+                Files.copy(crc.toPath(), checksums.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            else
+                checksums.file.delete();
+        }
+    }
+
+    /** @return the CRC32C of len bytes of data starting at off */
+    public static int checksum(byte[] data, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Record the checksum of a page that is about to be written.  The entry
+     * is on disk after the next {@link #forceAll}.
+     */
+    public synchronized void record(int pageNo, byte[] data) throws IOException {
+        FileChannel ch = channel(true);
+        int sum = checksum(data, 0, data.length);
+        // the page on disk is the latest image of a full entry; otherwise it is unknown
+        if (readEntry(ch, pageNo) && entry.getInt(0) == MARKER)
+            writeEntry(ch, pageNo, MARKER, entry.getInt(8), sum);
+        else
+            writeEntry(ch, pageNo, MARKER_FIRST, 0, sum);
+    }
+
+    /** Stop verifying a page that was written without a checksum */
+    public synchronized void forget(int pageNo) throws IOException {
+        FileChannel ch = channel(false);
+        if (ch != null && ch.size() >= (long) (pageNo + 1) * ENTRY_SIZE)
+            writeEntry(ch, pageNo, 0, 0, 0);
+    }
+
+    /**
+     * @return false if the page has a checksum and data matches neither the
+     *         latest nor the previous image of the page
+     */
+    public synchronized boolean verify(int pageNo, byte[] data) throws IOException {
+        FileChannel ch = channel(false);
+        if (ch == null || !readEntry(ch, pageNo))
+            return true;
+        int marker = entry.getInt(0), prev = entry.getInt(4), latest = entry.getInt(8);
+        if (marker != MARKER && marker != MARKER_FIRST)
+            return true;
+        int sum = checksum(data, 0, data.length);
+        if (sum == latest) {
+            if (marker == MARKER_FIRST)
+                writeEntry(ch, pageNo, MARKER, latest, latest);
+            return true;
+        }
+        if (marker == MARKER_FIRST) {
+            // the first checksummed write of the page never reached the disk
+            writeEntry(ch, pageNo, 0, 0, 0);
+            return true;
+        }
+        if (sum != prev)
+            return false;
+        // the latest write never reached the disk; the entry is stale
+        writeEntry(ch, pageNo, MARKER, prev, prev);
+        return true;
+    }
+
+    /** @return the open sidecar, or null if it does not exist and create is false */
+    private FileChannel channel(boolean create) throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            // only this instance creates the sidecar, so a missing one stays missing
+            if (!create && (missing || !file.exists())) {
+                missing = true;
+                return null;
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                       StandardOpenOption.READ, StandardOpenOption.WRITE);
+            missing = false;
+        }
+        return channel;
+    }
+
+    private void close() {
+        dirty = false;
+        missing = false;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the sidecar is thrown away or replaced anyway
+            }
+            channel = null;
+        }
+    }
+
+    /** Read entry pageNo into entry; @return false if the sidecar is too short */
+    private boolean readEntry(FileChannel ch, int pageNo) throws IOException {
+        entry.clear();
+        long pos = (long) pageNo * ENTRY_SIZE;
+        while (entry.hasRemaining()) {
+            if (ch.read(entry, pos + entry.position()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void writeEntry(FileChannel ch, int pageNo, int marker, int prev, int latest) throws IOException {
+        entry.clear();
+        entry.putInt(marker).putInt(prev).putInt(latest).flip();
+        long pos = (long) pageNo * ENTRY_SIZE;
+        while (entry.hasRemaining())
+            ch.write(entry, pos + entry.position());
+        if (!dirty) {
+            dirty = true;
+            synchronized (PageChecksums.class) {
+                unforced.add(this);
+            }
+        }
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -11,6 +13,7 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    static int workers = 1;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -138,6 +141,7 @@ public class Parser {
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(q.toString());
+        lp.setWorkers(workers);
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.elementAt(i);
@@ -276,9 +280,23 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, -1);
+    }
+
+    /**
+     * Plan a query that had a LIMIT, stripped by {@link #stripLimit}.
+     *
+     * @param limit
+     *            the most tuples the query returns, or -1 for no limit
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.addLimit(limit);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -413,6 +431,7 @@ public class Parser {
 
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(s.toString());
+        lp.setWorkers(workers);
 
         lp.addScan(id, name);
         if (s.getWhere() != null)
@@ -465,12 +484,15 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        LimitedQuery q = stripLimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(q.query.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (q.limit >= 0)
+                    lp.addLimit(q.limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -492,9 +514,81 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * <tt>CREATE INDEX name ON table (field, ...) [INCLUDE (field, ...)]</tt>,
+     * which Zql cannot parse
+     */
+    static final Pattern CREATE_INDEX = Pattern.compile(
+            "(?i)\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(([\\w\\s,]+)\\)"
+            + "(?:\\s*include\\s*\\(([\\w\\s,]+)\\))?\\s*;?\\s*");
+
+    private static String[] fieldList(String list) {
+        if (list == null)
+            return new String[0];
+        return list.trim().split("\\s*,\\s*");
+    }
+
+    /**
+     * Handle s if it is a CREATE INDEX statement, by building the index with
+     * {@link Catalog#createIndex}.
+     *
+     * @return true if s was a CREATE INDEX statement
+     */
+    private boolean handleCreateIndex(String s) {
+        Matcher m = CREATE_INDEX.matcher(s);
+        if (!m.matches())
+            return false;
+        try {
+            BTreeIndex index = Database.getCatalog().createIndex(m.group(1), m.group(2),
+                    fieldList(m.group(3)), fieldList(m.group(4)));
+            System.out.println("Created index " + index.getName() + " on "
+                    + m.group(2) + " (" + m.group(3).trim() + ")");
+        } catch (NoSuchElementException e) {
+            System.out.println("Invalid SQL expression: \n \t " + e.getMessage());
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /** A trailing <tt>LIMIT n</tt> on a query, which Zql cannot parse */
+    static final Pattern LIMIT = Pattern.compile(
+            "(?is)(\\s*select\\s.*?)\\s+limit\\s+(\\d{1,9})\\s*;?\\s*");
+
+    /** A statement without its trailing LIMIT, and the LIMIT */
+    static class LimitedQuery {
+        final String query;
+        /** the LIMIT, or -1 if the statement had none */
+        final int limit;
+
+        LimitedQuery(String query, int limit) {
+            this.query = query;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Remove a trailing LIMIT from a query.
+     *
+     * @return the query without its LIMIT, and the LIMIT
+     */
+    static LimitedQuery stripLimit(String s) {
+        Matcher m = LIMIT.matcher(s);
+        if (!m.matches())
+            return new LimitedQuery(s, -1);
+        return new LimitedQuery(m.group(1) + ";", Integer.parseInt(m.group(2)));
+    }
+
     public void processNextStatement(String s) {
+        if (handleCreateIndex(s))
+            return;
         try {
-            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
+            LimitedQuery q = stripLimit(s);
+            processNextStatement(new ByteArrayInputStream(q.query.getBytes("UTF-8")), q.limit);
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -502,6 +596,10 @@ public class Parser {
     }
 
     public void processNextStatement(InputStream is) {
+        processNextStatement(is, -1);
+    }
+
+    private void processNextStatement(InputStream is, int limit) {
         try {
             ZqlParser p = new ZqlParser(is);
             ZStatement s = p.readStatement();
@@ -525,7 +623,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), limit);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -581,11 +679,11 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,7 +693,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile] [-workers n]";
     static final int SLEEP_TIME = 5000;
 
     protected void shutdown() {
@@ -625,6 +723,17 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-workers")) {
+                    try {
+                        workers = Integer.parseInt(argv[++i]);
+                        if (workers < 1)
+                            throw new NumberFormatException();
+                    } catch (RuntimeException e) {
+                        System.out.println("Expected a number of workers after -workers\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    System.out.println("Running queries with " + workers + " workers.");
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
@@ -674,7 +783,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -683,8 +791,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -58,6 +58,7 @@ public class Project extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         child.rewind();
+        discardReadAhead();
     }
 
     /**
@@ -68,16 +69,21 @@ public class Project extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
-            newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
-            return newTuple;
-        }
-        return null;
+        return nextFromBatches();
+    }
+
+    /**
+     * Projects a batch of tuples from the child at a time; the projected
+     * batch shares the columns of the child's.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        if (batch == null)
+            return null;
+        int[] fields = new int[outFieldIds.size()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = outFieldIds.get(i);
+        return batch.project(fields, td);
     }
 
     @Override
@@ -0,0 +1,72 @@
+package simpledb;
+
+/**
+ * Repartition is a {@link SplitExchange} that sends each tuple of its
+ * children to one of its outputs, chosen by the hash of a field, so that
+ * the outputs hold disjoint sets of values of the field, e.g. for each
+ * output to aggregate the groups of its own values, or to join them.
+ */
+public class Repartition extends SplitExchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int field;
+    private final int partitions;
+
+    private Repartition(Split split, int index, int field, int partitions) {
+        super(split, index);
+        this.field = field;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Split the tuples of some children into partitions on a field.
+     *
+     * @param children
+     *            the fragments to read in parallel, which all have the same
+     *            TupleDesc
+     * @param field
+     *            the field to partition the tuples on
+     * @param partitions
+     *            the number of outputs
+     * @return the outputs, output i holding the tuples whose field is in
+     *         partition i
+     */
+    public static Repartition[] split(DbIterator[] children, final int field, final int partitions) {
+        Split split = new Split(children, partitions, (batch, channels) -> {
+            TupleBatch[] parts = new TupleBatch[channels.length];
+            for (int i = 0; i < batch.size(); i++) {
+                int p = partition(batch.getField(i, field), channels.length);
+                if (parts[p] == null)
+                    parts[p] = new TupleBatch(batch.getTupleDesc(), batch.size());
+                parts[p].add(batch.getTuple(i));
+            }
+            for (int p = 0; p < parts.length; p++) {
+                if (parts[p] != null)
+                    channels[p].put(parts[p]);
+            }
+        });
+        Repartition[] outputs = new Repartition[partitions];
+        for (int i = 0; i < partitions; i++)
+            outputs[i] = new Repartition(split, i, field, partitions);
+        return outputs;
+    }
+
+    /**
+     * @return the partition of a value, out of the given number
+     */
+    public static int partition(Field f, int partitions) {
+        return Math.floorMod(HashFile.hash(f), partitions);
+    }
+
+    /**
+     * @return the field the tuples are partitioned on
+     */
+    public int getField() {
+        return field;
+    }
+
+    public String getName() {
+        return "repartition(" + getTupleDesc().getFieldName(field) + ") " + getOutput() + "/" + partitions;
+    }
+}
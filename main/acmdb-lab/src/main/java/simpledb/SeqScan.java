@@ -14,6 +14,9 @@ public class SeqScan implements DbIterator {
     private int tableId;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
+    private int partition = 0;
+    private int partitions = 1;
+    private Morsels morsels;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -36,13 +39,94 @@ public class SeqScan implements DbIterator {
         this.ConstructSeqScan(tid, tableid, tableAlias);
     }
     
+    /**
+     * Creates a scan of one of several partitions of a table stored in a
+     * {@link HeapFile}, each made of contiguous pages, so that the
+     * partitions can be scanned in parallel.
+     *
+     * @param partition
+     *            the partition to scan, from 0 to partitions - 1
+     * @param partitions
+     *            the number of partitions the table is split into
+     * @throws IllegalArgumentException
+     *             if the table is not a HeapFile, or there is no such
+     *             partition
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int partition, int partitions) {
+        if (partitions > 1 && !(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("only heap files can be scanned in partitions");
+        if (partitions < 1 || partition < 0 || partition >= partitions)
+            throw new IllegalArgumentException("no partition " + partition + " of " + partitions);
+        this.partition = partition;
+        this.partitions = partitions;
+        this.ConstructSeqScan(tid, tableid, tableAlias);
+    }
+
+    /**
+     * Creates a scan of the morsels of a table it takes from those shared
+     * with other scans, so that the scans read the table in parallel, each
+     * reading as much of it as it can.
+     *
+     * @param morsels
+     *            the morsels of the table, shared with the other scans
+     */
+    public SeqScan(TransactionId tid, String tableAlias, Morsels morsels) {
+        this.morsels = morsels;
+        this.ConstructSeqScan(tid, morsels.getTableId(), tableAlias);
+    }
+
     private void ConstructSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        if (morsels != null && morsels.getTableId() != tableid)
+            this.morsels = null;
         this.transactionId = tid;
         this.tableAlias = tableAlias;
         this.tableId = tableid;
 
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
-        this.dbFileIterator = dbFile.iterator(tid);
+        if (morsels != null)
+            this.dbFileIterator = morsels.iterator();
+        else if (partitions > 1)
+            this.dbFileIterator = ((HeapFile) dbFile).iterator(tid, partition, partitions);
+        else
+            this.dbFileIterator = dbFile.iterator(tid);
+    }
+
+    /**
+     * @return the partition of the table this operator scans, out of
+     *         {@link #getPartitions}
+     */
+    public int getPartition() {
+        return this.partition;
+    }
+
+    /**
+     * @return the number of partitions the table is split into, or 1 if the
+     *         whole table is scanned
+     */
+    public int getPartitions() {
+        return this.partitions;
+    }
+
+    /**
+     * @return the morsels this scan shares with other scans, or null if it
+     *         reads its own pages
+     */
+    public Morsels getMorsels() {
+        return this.morsels;
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    /**
+     * @return the transaction this operator reads the table as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.transactionId;
     }
 
     /**
@@ -126,6 +210,17 @@ public class SeqScan implements DbIterator {
         return this.dbFileIterator.next();
     }
 
+    /**
+     * Reads the next tuples of the table straight from the file iterator
+     * into a batch.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+        while (!batch.isFull() && this.dbFileIterator.hasNext())
+            batch.add(this.dbFileIterator.next());
+        return batch.size() == 0 ? null : batch;
+    }
+
     public void close() {
         // some code goes here
         this.dbFileIterator.close();
@@ -90,6 +90,54 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("backup")) {
+            // backup <catalog file> <backup dir> [archive dir]
+            if (args.length < 3 || args.length > 4) {
+                System.err.println("Usage: backup <catalog file> <backup dir> [archive dir]");
+                return;
+            }
+            Database.getCatalog().loadSchema(args[1]);
+            LogFile log = Database.getLogFile();
+            if (args.length == 4)
+                log.setArchiveDirectory(new File(args[3]));
+            log.recover();
+            try {
+                log.awaitUndo();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            long start = log.backup(new File(args[2]));
+            System.out.println("Backup written to " + args[2] + "; replay starts at log offset " + start);
+            log.shutdown();
+        }
+        else if (args[0].equals("restore")) {
+            // restore <catalog file> <backup dir> <archive dir> [lsn <offset> | time <when>]
+            if (args.length != 4 && args.length != 6) {
+                System.err.println("Usage: restore <catalog file> <backup dir> <archive dir> "
+                                   + "[lsn <offset> | time <millis or yyyy-MM-ddTHH:mm:ss>]");
+                return;
+            }
+            long stopOffset = Long.MAX_VALUE;
+            long stopTime = Long.MAX_VALUE;
+            if (args.length == 6) {
+                if (args[4].equals("lsn")) {
+                    stopOffset = Long.parseLong(args[5]);
+                } else if (args[4].equals("time")) {
+                    stopTime = args[5].matches("\\d+") ? Long.parseLong(args[5])
+                        : java.time.LocalDateTime.parse(args[5])
+                              .atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+                } else {
+                    System.err.println("Unknown restore target " + args[4]);
+                    return;
+                }
+            }
+            Database.getCatalog().loadSchema(args[1]);
+            LogFile log = Database.getLogFile();
+            log.setArchiveDirectory(new File(args[3]));
+            long end = log.restore(new File(args[2]), stopOffset, stopTime);
+            System.out.println("Restored " + args[2] + " up to log offset " + end);
+            log.shutdown();
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
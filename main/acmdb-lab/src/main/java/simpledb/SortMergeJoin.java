@@ -0,0 +1,299 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator implements the relational join operation for the
+ * predicates =, &lt;, &lt;=, &gt; and &gt;=.  Both children are sorted on
+ * their join fields with an {@link ExternalSort}, and then merged.
+ * <p>
+ * The children are sorted in the direction in which the right tuples matching
+ * a left tuple form a range that only moves forward as the left input is
+ * read: the tuples with an equal key for =, and a prefix of the right input
+ * that only grows for the inequalities, for which both inputs are sorted in
+ * descending order if the predicate is &lt; or &lt;=.  The range is held in
+ * memory.  If it does not fit, an equal-key range is written to a
+ * {@link SpillFile}, and a prefix is read again from the sorted right input
+ * for each left tuple.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples held in memory by each sort, and by the merge */
+    public static final int DEFAULT_MEMORY_TUPLES = ExternalSort.DEFAULT_RUN_SIZE;
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final int memoryTuples;
+
+    private transient ExternalSort sort1;
+    private transient ExternalSort sort2;
+    private transient DbFileIterator left;
+    private transient DbFileIterator right;
+    // the first right tuple that is not in the range yet
+    private transient Tuple lookahead;
+    private transient Tuple cur1;
+    // the right tuples matching cur1, or null if they do not fit in memory
+    private transient ArrayList<Tuple> range;
+    private transient int rangeSize;
+    private transient SpillFile rangeFile;
+    // reads the range when it is not in memory
+    private transient DbFileIterator rangeIt;
+    // the number of tuples of the range already joined with cur1
+    private transient int pos;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException
+     *             if the predicate is not =, &lt;, &lt;=, &gt; or &gt;=
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_TUPLES);
+    }
+
+    /**
+     * Constructor for a join that sorts memoryTuples tuples at a time, and
+     * holds at most memoryTuples matching right tuples in memory.
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryTuples) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("a sort-merge join cannot join on " + p.getOperator());
+        if (memoryTuples < 1)
+            throw new IllegalArgumentException("a sort-merge join needs memory for at least one tuple");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryTuples = memoryTuples;
+    }
+
+    /**
+     * @return true if a sort-merge join can join on the given predicate
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(this.child1.getTupleDesc(), this.child2.getTupleDesc());
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.p.getField2());
+    }
+
+    private boolean isEquiJoin() {
+        return p.getOperator() == Predicate.Op.EQUALS;
+    }
+
+    /** @return the order to sort a child in, on its join field */
+    private Comparator<Tuple> order(int field) {
+        Predicate.Op op = p.getOperator();
+        return new TupleComparator(field,
+                op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (child1 == null || child2 == null) throw new NoSuchElementException("Not found child");
+
+        child1.open();
+        child2.open();
+        super.open();
+
+        try {
+            sort1 = new ExternalSort(child1.getTupleDesc(), order(p.getField1()), memoryTuples);
+            sort1.addAll(new ChildIterator(child1));
+            left = sort1.sorted();
+            sort2 = new ExternalSort(child2.getTupleDesc(), order(p.getField2()), memoryTuples);
+            sort2.addAll(new ChildIterator(child2));
+            right = sort2.sorted();
+        } catch (IOException e) {
+            this.close();
+            throw new DbException("sort-merge join cannot sort its inputs: " + e.getMessage());
+        }
+        left.open();
+        right.open();
+        startMerge();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+
+        clearRange();
+        if (left != null)
+            left.close();
+        if (right != null)
+            right.close();
+        left = right = null;
+        if (sort1 != null)
+            sort1.close();
+        if (sort2 != null)
+            sort2.close();
+        sort1 = sort2 = null;
+        cur1 = lookahead = null;
+    }
+
+    /**
+     * Starts over from the sorted inputs, without sorting the children again.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        discardReadAhead();
+        left.rewind();
+        right.rewind();
+        startMerge();
+    }
+
+    private void startMerge() throws DbException, TransactionAbortedException {
+        clearRange();
+        cur1 = null;
+        lookahead = readRight();
+    }
+
+    private Tuple readRight() throws DbException, TransactionAbortedException {
+        return right.hasNext() ? right.next() : null;
+    }
+
+    /** Empty the range, and delete its file if it has one */
+    private void clearRange() {
+        if (rangeIt != null)
+            rangeIt.close();
+        rangeIt = null;
+        if (rangeFile != null)
+            rangeFile.delete();
+        rangeFile = null;
+        range = new ArrayList<Tuple>();
+        rangeSize = 0;
+        pos = 0;
+    }
+
+    /** Add a right tuple at the end of the range */
+    private void addToRange(Tuple t) throws IOException {
+        if (range != null) {
+            if (range.size() < memoryTuples) {
+                range.add(t);
+                rangeSize++;
+                return;
+            }
+            if (isEquiJoin()) {
+                rangeFile = new SpillFile(child2.getTupleDesc());
+                for (Tuple r : range)
+                    rangeFile.add(r);
+            } else {
+                rangeIt = sort2.sorted();
+            }
+            range = null;
+        }
+        if (rangeFile != null)
+            rangeFile.add(t);
+        rangeSize++;
+    }
+
+    /** Move the range to the right tuples matching the next left tuple */
+    private void advance(Tuple t) throws DbException, TransactionAbortedException, IOException {
+        if (isEquiJoin()) {
+            Field key = t.getField(p.getField1());
+            if (cur1 == null || !key.equals(cur1.getField(p.getField1()))) {
+                clearRange();
+                while (lookahead != null
+                        && lookahead.getField(p.getField2()).compare(Predicate.Op.LESS_THAN, key))
+                    lookahead = readRight();
+                while (lookahead != null && p.filter(t, lookahead)) {
+                    addToRange(lookahead);
+                    lookahead = readRight();
+                }
+                if (rangeFile != null)
+                    rangeIt = rangeFile.iterator();
+            }
+        } else {
+            while (lookahead != null && p.filter(t, lookahead)) {
+                addToRange(lookahead);
+                lookahead = readRight();
+            }
+        }
+        cur1 = t;
+        pos = 0;
+        if (range == null)
+            rangeIt.open();
+    }
+
+    private Tuple mergeTuple(Tuple cur2) {
+        int num1 = cur1.getTupleDesc().numFields();
+        int num2 = cur2.getTupleDesc().numFields();
+
+        Tuple next = new Tuple(this.getTupleDesc());
+
+        for (int i = 0; i < num1; i++)
+            next.setField(i, cur1.getField(i));
+        for (int i = 0; i < num2; i++)
+            next.setField(num1 + i, cur2.getField(i));
+        return next;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.  The tuples are the concatenation of joining tuples from
+     * the left and right relation, as for {@link Join}, in the order of the
+     * left tuples on their join field.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (left == null) return null;
+        try {
+            while (true) {
+                if (cur1 != null && pos < rangeSize) {
+                    Tuple cur2 = range != null ? range.get(pos) : rangeIt.next();
+                    pos++;
+                    return mergeTuple(cur2);
+                }
+                if (!left.hasNext())
+                    return null;
+                advance(left.next());
+            }
+        } catch (IOException e) {
+            throw new DbException("sort-merge join cannot spill: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * SpillFile is a temporary file of tuples written by an operator that runs
+ * out of memory, and read back later in the order they were added.  It
+ * stores the fields of each tuple in their page format, so tuples come back
+ * without their RecordIds.  The file is deleted by {@link #delete}, or when
+ * the JVM exits.  The runs of an {@link ExternalSort} are spill files too,
+ * so there is one on-disk format for temporary tuples.
+ */
+public class SpillFile {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    /**
+     * Create an empty spill file for tuples of the given TupleDesc.
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".dat");
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * Add a tuple at the end of the file.
+     *
+     * @throws IllegalStateException if the file has already been read
+     */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("tuples added to a spill file after reading it");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        size++;
+    }
+
+    /** @return the number of tuples in the file */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finish writing the file: flush and close it, so it can be read from
+     * another thread.  No more tuples may be added afterwards.
+     */
+    public void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Finish writing the file, and return an iterator over its tuples.  No
+     * more tuples may be added afterwards.  The iterator can be rewound.
+     */
+    public DbFileIterator iterator() throws IOException {
+        finish();
+        return new AbstractDbFileIterator() {
+            private DataInputStream in;
+            private final byte[] buf = new byte[td.getSize()];
+            private int remaining;
+
+            public void open() throws DbException {
+                close();
+                try {
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+                } catch (IOException e) {
+                    throw new DbException("cannot read spill file: " + e.getMessage());
+                }
+                remaining = size;
+            }
+
+            public void rewind() throws DbException {
+                open();
+            }
+
+            protected Tuple readNext() throws DbException {
+                if (in == null || remaining == 0)
+                    return null;
+                remaining--;
+                Tuple t = new Tuple(td);
+                try {
+                    in.readFully(buf);
+                    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
+                    for (int i = 0; i < td.numFields(); i++)
+                        t.setField(i, td.getFieldType(i).parse(dis));
+                } catch (IOException | java.text.ParseException e) {
+                    throw new DbException("corrupt spill file: " + e.getMessage());
+                }
+                return t;
+            }
+
+            public void close() {
+                super.close();
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // nothing left to read
+                    }
+                    in = null;
+                }
+            }
+        };
+    }
+
+    /** Delete the file */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SplitExchange is the base class of the {@link Exchange}s that split the
+ * tuples of their children into several outputs: the workers read the
+ * children once, and send each batch to some of the outputs.  Each output
+ * is an operator of its own, usually the child of a different fragment
+ * under a {@link Gather}.  The workers start when the first output is
+ * opened, and wait while an output is full, so all the outputs must be
+ * read at the same time; they stop once all the outputs are closed.
+ */
+public abstract class SplitExchange extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Split split;
+    private final int index;
+    private transient Channel channel;
+
+    /**
+     * The workers and channels shared by the outputs of a split.
+     */
+    static class Split {
+        private DbIterator[] children;
+        private final Router router;
+        private final int outputs;
+        private Channel[] channels;
+        private Sender sender;
+        private boolean[] opened, done;
+        private int closed;
+
+        Split(DbIterator[] children, int outputs, Router router) {
+            if (children.length == 0 || outputs < 1)
+                throw new IllegalArgumentException("nothing to split");
+            this.children = children.clone();
+            this.outputs = outputs;
+            this.router = router;
+        }
+
+        /** @return the channel of an output, starting the workers if needed */
+        synchronized Channel open(int i) throws DbException {
+            if (sender == null) {
+                channels = new Channel[outputs];
+                for (int c = 0; c < outputs; c++)
+                    channels[c] = new Channel(children.length);
+                opened = new boolean[outputs];
+                done = new boolean[outputs];
+                closed = 0;
+                sender = new Sender(children, channels, router);
+                sender.start();
+            }
+            if (opened[i])
+                throw new DbException("output " + i + " of an exchange opened again before the others were closed");
+            opened[i] = true;
+            return channels[i];
+        }
+
+        /** Close the channel of an output, and stop the workers after the last one */
+        synchronized void close(int i) {
+            if (sender == null || done[i])
+                return;
+            channels[i].close();
+            done[i] = true;
+            if (++closed == outputs) {
+                sender.stop();
+                sender = null;
+            }
+        }
+    }
+
+    SplitExchange(Split split, int index) {
+        this.split = split;
+        this.index = index;
+    }
+
+    /**
+     * @return the number of this output, from 0
+     */
+    public int getOutput() {
+        return index;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return split.children[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        channel = split.open(index);
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        split.close(index);
+        channel = null;
+    }
+
+    /**
+     * The workers do not keep the tuples they sent, so an output cannot be
+     * rewound.
+     *
+     * @throws DbException always
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        throw new DbException("the output of a " + getClass().getSimpleName() + " cannot be rewound");
+    }
+
+    /**
+     * @return the next batch sent to this output
+     */
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        return channel == null ? null : channel.take();
+    }
+
+    /**
+     * @return the children the workers read, which all the outputs share
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return split.children.clone();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        split.children = children.clone();
+    }
+}
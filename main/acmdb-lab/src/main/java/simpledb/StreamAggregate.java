@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * StreamAggregate computes the same aggregates as {@link Aggregate}, over a
+ * child whose tuples come grouped: all the tuples of a group in a row, as
+ * they do when the child is sorted on the group-by fields, e.g. a scan of a
+ * {@link BTreeFile} keyed on the group-by field, or an {@link OrderBy}.  It
+ * keeps only the aggregates of the current group, and returns them as soon
+ * as a tuple of the next group is read, so it needs no hash table and
+ * returns the groups in the order of the child.
+ */
+public class StreamAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] afields, gfields;
+    private final Aggregator.Op[] aops;
+
+    // the group being aggregated, and how many tuples it has so far
+    private transient Field[] key;
+    private transient long[] acc;
+    private transient long[] scCounts;
+    private transient long count;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples, grouped on gfield.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     */
+    public StreamAggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Constructor for several aggregates and group-by columns.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples, grouped on gfields.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator to use for each column of afields
+     * @throws IllegalArgumentException
+     *             if an aggregation operator cannot be computed over its column
+     */
+    public StreamAggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        super(child, afields, gfields, aops);
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+    }
+
+    private DbIterator child() {
+        return getChildren()[0];
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        super.open();
+        acc = new long[aops.length];
+        scCounts = new long[aops.length];
+        count = 0;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        discardReadAhead();
+        child().rewind();
+        count = 0;
+    }
+
+    public void close() {
+        super.close();
+        key = null;
+        count = 0;
+    }
+
+    private boolean inGroup(Tuple t) {
+        for (int i = 0; i < gfields.length; i++) {
+            if (!key[i].equals(t.getField(gfields[i])))
+                return false;
+        }
+        return true;
+    }
+
+    /** Start a new group with the group-by values of t */
+    private void start(Tuple t) {
+        key = new Field[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            key[i] = t.getField(gfields[i]);
+        for (int i = 0; i < aops.length; i++) {
+            if (aops[i] == Aggregator.Op.MIN)
+                acc[i] = Long.MAX_VALUE;
+            else if (aops[i] == Aggregator.Op.MAX)
+                acc[i] = Long.MIN_VALUE;
+            else
+                acc[i] = 0;
+            scCounts[i] = 0;
+        }
+        count = 0;
+    }
+
+    private void merge(Tuple t) {
+        count++;
+        for (int i = 0; i < aops.length; i++) {
+            if (aops[i] == Aggregator.Op.COUNT)
+                continue;
+            long v = ((IntField) t.getField(afields[i])).getValue();
+            switch (aops[i]) {
+            case MIN:
+                acc[i] = Math.min(acc[i], v);
+                break;
+            case MAX:
+                acc[i] = Math.max(acc[i], v);
+                break;
+            case SC_AVG:
+                scCounts[i] += ((IntField) t.getField(afields[i] + 1)).getValue();
+                acc[i] += v;
+                break;
+            default:
+                acc[i] += v;
+            }
+        }
+    }
+
+    /** @return the result tuple of the current group */
+    private Tuple result() {
+        Tuple t = new Tuple(getTupleDesc());
+        for (int i = 0; i < gfields.length; i++)
+            t.setField(i, key[i]);
+        int col = gfields.length;
+        for (int i = 0; i < aops.length; i++) {
+            long v;
+            if (aops[i] == Aggregator.Op.COUNT)
+                v = count;
+            else if (aops[i] == Aggregator.Op.AVG)
+                v = acc[i] / count;
+            else if (aops[i] == Aggregator.Op.SC_AVG)
+                v = scCounts[i] == 0 ? 0 : acc[i] / scCounts[i];
+            else
+                v = acc[i];
+            t.setField(col++, new IntField((int) v));
+            if (aops[i] == Aggregator.Op.SUM_COUNT)
+                t.setField(col++, new IntField((int) count));
+        }
+        return t;
+    }
+
+    /**
+     * Returns the aggregates of the next group, once the first tuple of the
+     * group after it, or the end of the child, is read.  Should return null
+     * if there are no more tuples.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        DbIterator child = child();
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (count > 0 && !inGroup(t)) {
+                Tuple result = result();
+                start(t);
+                merge(t);
+                return result;
+            }
+            if (count == 0)
+                start(t);
+            merge(t);
+        }
+        if (count == 0)
+            return null;
+        Tuple result = result();
+        count = 0;
+        return result;
+    }
+}
@@ -66,7 +66,13 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
-    private HeapFile dbFile;
+    /**
+     * Assumed length of the separators that string keys are shortened to in
+     * the internal pages of a B+ tree.
+     */
+    static final int SEPARATOR_LEN = 8;
+
+    private DbFile dbFile;
     private int ioCostPerPage;
     
     /**
@@ -80,7 +86,7 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        this.dbFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        this.dbFile = Database.getCatalog().getDatabaseFile(tableid);
         this.ioCostPerPage = ioCostPerPage;
         
         init_process();
@@ -160,7 +166,137 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        return dbFile.numPages() * ioCostPerPage;
+        return numPages() * ioCostPerPage;
+    }
+
+    private int numPages() {
+        if (dbFile instanceof BTreeFile)
+            return ((BTreeFile) dbFile).numPages();
+        if (dbFile instanceof HashFile)
+            return ((HashFile) dbFile).numPages();
+        return ((HeapFile) dbFile).numPages();
+    }
+
+    /**
+     * Estimates the cost of answering <tt>field op constant</tt> with a
+     * BTreeScan: one page per level to descend to the first matching leaf,
+     * then the fraction of the pages holding matching tuples.  Like
+     * estimateScanCost, every page read costs ioCostPerPage.  For a
+     * HashFile, an EQUALS filter on the key is answered with a HashScan,
+     * which reads the meta page and then the pages of one bucket.
+     * 
+     * @return the estimated cost, or Double.POSITIVE_INFINITY if the table
+     *         is not a B+ tree or hash file keyed on field or op cannot use
+     *         the index
+     */
+    public double estimateIndexScanCost(int field, Predicate.Op op, Field constant) {
+        if (!IndexNestedLoopJoin.canProbe(dbFile.getId(), field, op))
+            return Double.POSITIVE_INFINITY;
+        return estimateProbeCost(field, op, estimateSelectivity(field, op, constant));
+    }
+
+    /**
+     * Estimates the cost of looking up the tuples whose field compares to a
+     * value with op through the index of the table, as an index scan or a
+     * probe of an {@link IndexNestedLoopJoin} does, when a fraction
+     * selectivity of the tuples match.
+     *
+     * @return the estimated cost, or Double.POSITIVE_INFINITY if the table
+     *         cannot be probed on field with op
+     */
+    public double estimateProbeCost(int field, Predicate.Op op, double selectivity) {
+        if (!IndexNestedLoopJoin.canProbe(dbFile.getId(), field, op))
+            return Double.POSITIVE_INFINITY;
+        int pages = Math.max(numPages(), 1);
+        double matching = Math.max(1, Math.ceil(selectivity * pages));
+        if (dbFile instanceof HashFile)
+            return (1 + matching) * ioCostPerPage;
+        return (height(pages, tupleDesc.getFieldType(field)) + matching) * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of a bounded BTreeScan over the key field, which
+     * descends once to the start of the range and stops at its end.  Either
+     * bound may be null; with neither, this is the cost of reading every
+     * leaf in key order.
+     *
+     * @return the estimated cost, or Double.POSITIVE_INFINITY if the table
+     *         is not a B+ tree keyed on field
+     */
+    public double estimateRangeScanCost(int field, IndexPredicate lower, IndexPredicate upper) {
+        if (!(dbFile instanceof BTreeFile) || ((BTreeFile) dbFile).keyField() != field)
+            return Double.POSITIVE_INFINITY;
+        int pages = Math.max(numPages(), 1);
+        double leaves = Math.max(1, Math.ceil(estimateRangeSelectivity(field, lower, upper) * pages));
+        return (height(pages, tupleDesc.getFieldType(field)) + leaves) * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the fraction of tuples whose field lies between two bounds,
+     * either of which may be null, from the selectivities of the bounds.
+     */
+    public double estimateRangeSelectivity(int field, IndexPredicate lower, IndexPredicate upper) {
+        double sel = 1.0;
+        if (lower != null)
+            sel = estimateSelectivity(field, lower.getOp(), lower.getField());
+        if (upper != null)
+            sel += estimateSelectivity(field, upper.getOp(), upper.getField()) - 1.0;
+        return Math.max(sel, 0.0);
+    }
+
+    /**
+     * Estimates the cost of reading the entries of a secondary index of
+     * this table that match a predicate of the specified selectivity: the
+     * descent and the matching leaves of the index, as in
+     * {@link #estimateIndexScanCost(int, Predicate.Op, Field)}.  A covering
+     * scan reads only the index; otherwise every matching tuple costs a
+     * heap page, since the table is not stored in key order.
+     */
+    public double estimateIndexScanCost(BTreeIndex index, double selectivity, boolean covering) {
+        int pages = Math.max(index.getFile().numPages(), 1);
+        double leaves = Math.max(1, Math.ceil(selectivity * pages));
+        double fetches = covering ? 0 : Math.ceil(selectivity * ntups);
+        return (height(pages, tupleDesc.getFieldType(index.getField())) + leaves + fetches)
+            * ioCostPerPage;
+    }
+
+    /**
+     * Estimate the selectivity of an index predicate on a secondary index
+     * of this table.  For a {@link CompositeField} constant, the leading
+     * fields are taken to match exactly and op to apply to the last one.
+     *
+     * @param ipred the predicate, or null for the whole index
+     */
+    public double estimateSelectivity(BTreeIndex index, IndexPredicate ipred) {
+        if (ipred == null)
+            return 1.0;
+        if (!(ipred.getField() instanceof CompositeField))
+            return estimateSelectivity(index.getField(), ipred.getOp(), ipred.getField());
+        Field[] fields = ((CompositeField) ipred.getField()).getFields();
+        int[] keys = index.getKeyFields();
+        double sel = 1.0;
+        for (int i = 0; i < fields.length; i++) {
+            Predicate.Op op = i == fields.length - 1 ? ipred.getOp() : Predicate.Op.EQUALS;
+            sel *= estimateSelectivity(keys[i], op, fields[i]);
+        }
+        return sel;
+    }
+
+    /** @return true if a B+ tree can answer predicates with op */
+    static boolean indexable(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+            || op == Predicate.Op.LESS_THAN_OR_EQ || op == Predicate.Op.GREATER_THAN
+            || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /** @return the estimated height of a B+ tree of pages pages on a key of type keyType */
+    private static double height(int pages, Type keyType) {
+        // fanout of an internal page: a key and a child pointer per entry;
+        // string keys are stored as short separators of a few characters
+        int keyLen = keyType == Type.STRING_TYPE ? 1 + SEPARATOR_LEN : keyType.getLen();
+        int fanout = (BufferPool.getPageSize() * 8)
+            / (keyLen * 8 + BTreePage.INDEX_SIZE * 8 + 1);
+        return Math.max(1, Math.ceil(Math.log(pages) / Math.log(fanout)));
     }
 
     /**
@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopK is an operator that implements ORDER BY followed by LIMIT k.  Instead
+ * of sorting its whole child, it keeps the best k tuples seen so far in a
+ * heap whose root is the worst of them, so a tuple that does not make the
+ * cut costs one comparison, and one that does costs log k.  It holds O(k)
+ * tuples and takes O(n log k) time.  Ties are broken in the order of the
+ * child, as {@link OrderBy} does.
+ */
+public class TopK extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final TupleDesc td;
+    private final int orderByField;
+    private final String orderByFieldName;
+    private final boolean asc;
+    private final int k;
+    private transient Tuple[] result;
+    private int pos;
+
+    /**
+     * Creates a new TopK node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param k
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopK(int orderbyField, boolean asc, int k, DbIterator child) {
+        if (k < 0)
+            throw new IllegalArgumentException("negative limit " + k);
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByField = orderbyField;
+        this.orderByFieldName = td.getFieldName(orderbyField);
+        this.asc = asc;
+        this.k = k;
+    }
+
+    public boolean isASC() {
+        return this.asc;
+    }
+
+    public int getOrderByField() {
+        return this.orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return this.orderByFieldName;
+    }
+
+    /**
+     * @return the maximum number of tuples this operator returns
+     */
+    public int getLimit() {
+        return this.k;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** A tuple of the child, numbered in the order it was read */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final TupleComparator order = new TupleComparator(orderByField, asc);
+        Comparator<Entry> output = (a, b) -> {
+            int c = order.compare(a.t, b.t);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+        // the root of the heap is the entry that comes out last
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, Math.min(k, 1024)),
+                output.reversed());
+        long seq = 0;
+        while (k > 0 && child.hasNext()) {
+            Entry e = new Entry(child.next(), seq++);
+            if (heap.size() < k) {
+                heap.add(e);
+            } else if (output.compare(e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        Entry[] best = heap.toArray(new Entry[heap.size()]);
+        Arrays.sort(best, output);
+        result = new Tuple[best.length];
+        for (int i = 0; i < best.length; i++)
+            result[i] = best[i].t;
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        result = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        discardReadAhead();
+        pos = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the best k tuples of the
+     * child in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (result != null && pos < result.length)
+            return result[pos++];
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,223 @@
+package simpledb;
+
+/**
+ * TupleBatch is a block of rows passed between operators by
+ * {@link DbIterator#nextBatch}, stored column by column.  Each column is an
+ * array of Fields, and the values of integer columns are also kept in an
+ * int array, so that filters over them run as tight loops over primitives.
+ * A selection vector lists the rows of the block that belong to the batch:
+ * a filter drops rows without copying the columns, and a projection shares
+ * the columns it keeps.
+ */
+public class TupleBatch {
+    /** Number of rows in the batches built by the default nextBatch */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final Field[][] columns;
+    private final int[][] ints;
+    private final RecordId[] rids;
+    // the tuples the rows were added from, or null after a projection
+    private final Tuple[] tuples;
+    private int rows = 0;
+    // the selected rows in increasing order, or null if every row is
+    private int[] sel = null;
+    private int size = 0;
+
+    /**
+     * Create an empty batch, to which up to capacity tuples can be added.
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.columns = new Field[td.numFields()][capacity];
+        this.ints = new int[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+        }
+        this.rids = new RecordId[capacity];
+        this.tuples = new Tuple[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, TupleBatch from, Field[][] columns, int[][] ints) {
+        this.td = td;
+        this.capacity = from.capacity;
+        this.columns = columns;
+        this.ints = ints;
+        this.rids = from.rids;
+        this.tuples = null;
+        this.rows = from.rows;
+        this.sel = from.sel;
+        this.size = from.size;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of rows in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no more tuples can be added to this batch
+     */
+    public boolean isFull() {
+        return rows == capacity;
+    }
+
+    /**
+     * Add a tuple at the end of this batch.
+     *
+     * @throws IllegalStateException if the batch is full, or rows have been
+     *         filtered out of it
+     */
+    public void add(Tuple t) {
+        if (rows == capacity || sel != null || tuples == null)
+            throw new IllegalStateException("cannot add to this batch");
+        for (int i = 0; i < columns.length; i++) {
+            Field f = t.getField(i);
+            columns[i][rows] = f;
+            if (ints[i] != null && f != null)
+                ints[i][rows] = ((IntField) f).getValue();
+        }
+        rids[rows] = t.getRecordId();
+        tuples[rows] = t;
+        rows++;
+        size++;
+    }
+
+    /** @return the position in the columns of the i-th row */
+    private int row(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("row " + i + " of " + size);
+        return sel == null ? i : sel[i];
+    }
+
+    /**
+     * @return field col of the i-th row
+     */
+    public Field getField(int i, int col) {
+        return columns[col][row(i)];
+    }
+
+    /**
+     * @return the i-th row as a Tuple; this is the tuple the row was added
+     *         from, unless the batch has been projected
+     */
+    public Tuple getTuple(int i) {
+        int r = row(i);
+        if (tuples != null)
+            return tuples[r];
+        Tuple t = new Tuple(td);
+        t.setRecordId(rids[r]);
+        for (int j = 0; j < columns.length; j++)
+            t.setField(j, columns[j][r]);
+        return t;
+    }
+
+    /** @return the positions of the selected rows */
+    private int[] selection() {
+        if (sel != null)
+            return sel;
+        int[] all = new int[rows];
+        for (int i = 0; i < rows; i++)
+            all[i] = i;
+        return all;
+    }
+
+    /**
+     * Drop the rows that do not satisfy a predicate.  A comparison of an
+     * integer column with an integer runs over the int values of the
+     * column; others call {@link Field#compare} on each row.
+     */
+    public void filter(Predicate p) {
+        int[] in = selection();
+        int[] out = new int[size];
+        int n = 0;
+        int f = p.getField();
+        if (ints[f] != null && p.getOperand() instanceof IntField) {
+            int[] values = ints[f];
+            int c = ((IntField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                for (int i = 0; i < size; i++) {
+                    if (values[in[i]] == c)
+                        out[n++] = in[i];
+                }
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < size; i++) {
+                    if (values[in[i]] != c)
+                        out[n++] = in[i];
+                }
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < size; i++) {
+                    if (values[in[i]] > c)
+                        out[n++] = in[i];
+                }
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < size; i++) {
+                    if (values[in[i]] >= c)
+                        out[n++] = in[i];
+                }
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < size; i++) {
+                    if (values[in[i]] < c)
+                        out[n++] = in[i];
+                }
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < size; i++) {
+                    if (values[in[i]] <= c)
+                        out[n++] = in[i];
+                }
+                break;
+            }
+        } else {
+            Field[] values = columns[f];
+            for (int i = 0; i < size; i++) {
+                Field v = values[in[i]];
+                if (v != null && v.compare(p.getOp(), p.getOperand()))
+                    out[n++] = in[i];
+            }
+        }
+        sel = out;
+        size = n;
+    }
+
+    /**
+     * @return a batch of the same rows with only the specified fields, which
+     *         shares the columns of this one
+     */
+    public TupleBatch project(int[] fields, TupleDesc td) {
+        Field[][] c = new Field[fields.length][];
+        int[][] v = new int[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            c[i] = columns[fields[i]];
+            v[i] = ints[fields[i]];
+        }
+        return new TupleBatch(td, this, c, v);
+    }
+
+    /**
+     * Drop the first n rows of this batch.
+     */
+    public void skip(int n) {
+        int[] in = selection();
+        n = Math.min(n, size);
+        int[] out = new int[size - n];
+        System.arraycopy(in, n, out, 0, size - n);
+        sel = out;
+        size -= n;
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Compares tuples on a key of one or more fields, most significant first,
+ * in ascending or descending order.  It is the sort order of
+ * {@link OrderBy}, {@link TopK} and {@link SortMergeJoin}, and of the
+ * entries of a {@link BTreeFile}.
+ */
+public class TupleComparator implements Comparator<Tuple> {
+    private final int[] fields;
+    private final boolean asc;
+
+    /**
+     * Construct a TupleComparator in ascending order of one field
+     *
+     * @param field - the index of the field the tuples are keyed on
+     */
+    public TupleComparator(int field) {
+        this(new int[] { field }, true);
+    }
+
+    /**
+     * Construct a TupleComparator in ascending order of a composite key
+     *
+     * @param fields - the indexes of the fields the tuples are keyed on,
+     *        most significant first
+     */
+    public TupleComparator(int[] fields) {
+        this(fields, true);
+    }
+
+    /**
+     * Construct a TupleComparator on one field
+     *
+     * @param field - the index of the field the tuples are keyed on
+     * @param asc - true to sort in ascending order, false for descending
+     */
+    public TupleComparator(int field, boolean asc) {
+        this(new int[] { field }, asc);
+    }
+
+    /**
+     * Construct a TupleComparator on a composite key
+     *
+     * @param fields - the indexes of the fields the tuples are keyed on,
+     *        most significant first
+     * @param asc - true to sort in ascending order, false for descending
+     */
+    public TupleComparator(int[] fields, boolean asc) {
+        this.fields = fields.clone();
+        this.asc = asc;
+    }
+
+    /**
+     * Compare two tuples on their key
+     *
+     * @return -1 if t1 comes before t2, 1 if it comes after, 0 if their
+     *         keys are equal
+     */
+    public int compare(Tuple t1, Tuple t2) {
+        Field k1 = CompositeField.of(t1, fields);
+        Field k2 = CompositeField.of(t2, fields);
+        if (k1.compare(Predicate.Op.EQUALS, k2))
+            return 0;
+        if (k1.compare(Predicate.Op.GREATER_THAN, k2))
+            return asc ? 1 : -1;
+        else
+            return asc ? -1 : 1;
+    }
+}
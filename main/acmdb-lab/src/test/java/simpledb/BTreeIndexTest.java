@@ -0,0 +1,181 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BTreeIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private BTreeIndex index;
+    private Transaction t;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "ht");
+        index = Database.getCatalog().createIndex("ht_c1", "ht", "c1");
+        index.getFile().getFile().deleteOnExit();
+        t = new Transaction();
+        t.start();
+    }
+
+    @After public void tearDown() throws Exception {
+        t.commit();
+        PageChecksums.discard(index.getFile().getFile());
+    }
+
+    private ArrayList<ArrayList<Integer>> lookup(Predicate.Op op, int value) throws Exception {
+        return SystemTestUtil.sortedTuples(index.iterator(t.getId(), new IndexPredicate(op, new IntField(value))));
+    }
+
+    private ArrayList<ArrayList<Integer>> expected(Predicate.Op op, int value) {
+        return SystemTestUtil.sortedMatching(tuples, 1, op, value);
+    }
+
+    /**
+     * Lookups through a freshly built index return exactly the matching
+     * tuples of the table.
+     */
+    @Test public void lookup() throws Exception {
+        int value = tuples.get(ROWS / 3).get(1);
+        assertEquals(expected(Predicate.Op.EQUALS, value), lookup(Predicate.Op.EQUALS, value));
+        assertEquals(expected(Predicate.Op.LESS_THAN, 1000), lookup(Predicate.Op.LESS_THAN, 1000));
+        assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(hf.getId()));
+    }
+
+    /**
+     * BufferPool.insertTuple(), insertTuples() and deleteTuple() keep the index
+     * up to date.
+     */
+    @Test public void maintainedOnInsertAndDelete() throws Exception {
+        Tuple tup = Utility.getHeapTuple(new int[] { 7, -5 });
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+        assertEquals(1, lookup(Predicate.Op.EQUALS, -5).size());
+
+        Database.getBufferPool().deleteTuple(t.getId(), tup);
+        assertEquals(0, lookup(Predicate.Op.EQUALS, -5).size());
+
+        // so does a batch insert
+        ArrayList<Tuple> batch = new ArrayList<Tuple>();
+        for (int i = 0; i < 3; i++)
+            batch.add(Utility.getHeapTuple(new int[] { i, -6 }));
+        Database.getBufferPool().insertTuples(t.getId(), hf.getId(), batch);
+        assertEquals(3, lookup(Predicate.Op.EQUALS, -6).size());
+
+        // deleting a tuple found through the index removes its entry too
+        int value = tuples.get(0).get(1);
+        DbFileIterator it = index.iterator(t.getId(), new IndexPredicate(Predicate.Op.EQUALS, new IntField(value)));
+        it.open();
+        ArrayList<Tuple> matches = new ArrayList<Tuple>();
+        while (it.hasNext())
+            matches.add(it.next());
+        it.close();
+        for (Tuple m : matches)
+            Database.getBufferPool().deleteTuple(t.getId(), m);
+        assertEquals(0, lookup(Predicate.Op.EQUALS, value).size());
+    }
+
+    /**
+     * The planner answers a selective filter on an indexed field with an
+     * IndexScan, and other filters with a SeqScan.
+     */
+    @Test public void plannerUsesIndex() throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("ht", new TableStats(hf.getId(), 1000));
+        int value = tuples.get(ROWS / 2).get(1);
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "ht");
+        lp.addFilter("ht.c1", Predicate.Op.EQUALS, Integer.toString(value));
+        lp.addProjectField("ht.c0", null);
+        lp.addProjectField("ht.c1", null);
+        DbIterator plan = lp.physicalPlan(t.getId(), stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof IndexScan);
+
+        assertEquals(SystemTestUtil.sorted(expected(Predicate.Op.EQUALS, value)),
+                SystemTestUtil.sortedTuples(plan));
+
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "ht");
+        lp.addFilter("ht.c1", Predicate.Op.GREATER_THAN, "0");
+        lp.addProjectField("ht.c0", null);
+        plan = lp.physicalPlan(t.getId(), stats, false);
+        assertTrue(((Operator) ((Operator) plan).getChildren()[0]).getChildren()[0] instanceof SeqScan);
+    }
+
+    /**
+     * Equality filters on both fields of a composite index are answered
+     * from the index alone when it covers the query.
+     */
+    @Test public void compositeCoveringIndex() throws Exception {
+        BTreeIndex composite = Database.getCatalog().createIndex("ht_c1_c0", "ht",
+                new String[] { "c1", "c0" }, new String[0]);
+        composite.getFile().getFile().deleteOnExit();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("ht", new TableStats(hf.getId(), 1000));
+        ArrayList<Integer> row = tuples.get(ROWS / 4);
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "ht");
+        lp.addFilter("ht.c1", Predicate.Op.EQUALS, Integer.toString(row.get(1)));
+        lp.addFilter("ht.c0", Predicate.Op.EQUALS, Integer.toString(row.get(0)));
+        lp.addProjectField("ht.c0", null);
+        lp.addProjectField("ht.c1", null);
+        DbIterator plan = lp.physicalPlan(t.getId(), stats, false);
+        DbIterator scan = ((Operator) plan).getChildren()[0];
+        assertTrue(scan instanceof IndexScan);
+        assertSame(composite, ((IndexScan) scan).getIndex());
+        assertTrue(((IndexScan) scan).isCovering());
+
+        int expected = 0;
+        for (ArrayList<Integer> r : tuples) {
+            if (r.equals(row))
+                expected++;
+        }
+        int found = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            assertEquals(row, SystemTestUtil.tupleToList(plan.next()));
+            found++;
+        }
+        plan.close();
+        assertEquals(expected, found);
+        PageChecksums.discard(composite.getFile().getFile());
+    }
+
+    /**
+     * The parser handles CREATE INDEX statements, with included fields.
+     */
+    @Test public void createIndexStatement() throws Exception {
+        new Parser().processNextStatement("CREATE INDEX ht_c0 ON ht (c0) INCLUDE (c1);");
+        assertEquals(2, Database.getCatalog().getIndexes(hf.getId()).size());
+        BTreeIndex created = Database.getCatalog().getIndexes(hf.getId()).get(1);
+        assertArrayEquals(new int[] { 0 }, created.getKeyFields());
+        assertArrayEquals(new int[] { 1 }, created.getIncludedFields());
+        File f = created.getFile().getFile();
+        f.deleteOnExit();
+        PageChecksums.discard(f);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeIndexTest.class);
+    }
+}
@@ -313,6 +313,41 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Linear reference for BTreeInternalPage.findChild(): the left child of
+	 * the first entry whose key is >= f, or the right-most child
+	 */
+	private static BTreePageId linearFindChild(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (f == null || e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+				return e.getLeftChild();
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild(), before and after entries
+	 * are deleted from the page
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(linearFindChild(page, null), page.findChild(null));
+		for (int k = 0; k < 65000; k += 250)
+			assertEquals(linearFindChild(page, new IntField(k)), page.findChild(new IntField(k)));
+
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = 0; i < entries.size(); i += 3)
+			page.deleteKeyAndRightChild(entries.get(i));
+		for (int k = 0; k < 65000; k += 250)
+			assertEquals(linearFindChild(page, new IntField(k)), page.findChild(new IntField(k)));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -1,6 +1,5 @@
 package simpledb;
 
-import simpledb.BTreeFileEncoder.TupleComparator;
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -336,6 +335,41 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field), before and after tuples
+	 * are deleted from the page
+	 */
+	@Test public void iteratorFrom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		checkIteratorFrom(page);
+
+		Iterator<Tuple> it = page.iterator();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		while (it.hasNext())
+			tuples.add(it.next());
+		for (int i = 1; i < tuples.size(); i += 3)
+			page.deleteTuple(tuples.get(i));
+		checkIteratorFrom(page);
+	}
+
+	private static void checkIteratorFrom(BTreeLeafPage page) {
+		for (int k = 0; k < 65000; k += 250) {
+			IntField f = new IntField(k);
+			ArrayList<Tuple> expected = new ArrayList<Tuple>();
+			Iterator<Tuple> it = page.iterator();
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+					expected.add(t);
+			}
+			ArrayList<Tuple> actual = new ArrayList<Tuple>();
+			it = page.iterator(f);
+			while (it.hasNext())
+				actual.add(it.next());
+			assertEquals(expected, actual);
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,120 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CompositeFieldTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private BTreeFile bf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("composite", ".dat");
+        f.deleteOnExit();
+        PageChecksums.discard(f);
+        bf = new BTreeFile(f, new int[] { 0, 1 }, Utility.getTupleDesc(3));
+        Database.getCatalog().addTable(bf);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        PageChecksums.discard(bf.getFile());
+    }
+
+    private static CompositeField key(int... values) {
+        Field[] fields = new Field[values.length];
+        for (int i = 0; i < values.length; i++)
+            fields[i] = new IntField(values[i]);
+        return new CompositeField(fields);
+    }
+
+    /**
+     * Unit test for CompositeField.compare(): lexicographic, comparing only
+     * the common prefix
+     */
+    @Test public void compare() {
+        assertTrue(key(1, 5).compare(Predicate.Op.LESS_THAN, key(2, 0)));
+        assertTrue(key(1, 5).compare(Predicate.Op.LESS_THAN, key(1, 6)));
+        assertTrue(key(1, 5).compare(Predicate.Op.EQUALS, key(1, 5)));
+        assertTrue(key(1, 5).compare(Predicate.Op.EQUALS, key(1)));
+        assertTrue(key(1, 5).compare(Predicate.Op.EQUALS, new IntField(1)));
+        assertTrue(key(1, 5).compare(Predicate.Op.GREATER_THAN, key(0)));
+        assertFalse(key(1, 5).compare(Predicate.Op.GREATER_THAN, key(1)));
+        assertEquals(key(1, 5), key(1, 5));
+        assertEquals(key(1, 5).hashCode(), key(1, 5).hashCode());
+    }
+
+    /**
+     * A BTreeFile keyed on two fields keeps its tuples in lexicographic
+     * order through page splits and answers predicates on either key prefix.
+     */
+    @Test public void compositeBTreeFile() throws Exception {
+        Random r = new Random(17);
+        HashMap<Integer, Integer> perA = new HashMap<Integer, Integer>();
+        int a0 = 3, b0 = -1;
+        for (int i = 0; i < ROWS; i++) {
+            int a = r.nextInt(20), b = r.nextInt(1000);
+            if (i == ROWS / 2) {
+                a0 = a;
+                b0 = b;
+            }
+            perA.merge(a, 1, Integer::sum);
+            Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[] { a, b, i }));
+        }
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        Field prev = null;
+        int count = 0;
+        while (it.hasNext()) {
+            Field k = bf.keyOf(it.next());
+            assertTrue(prev == null || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, k));
+            prev = k;
+            count++;
+        }
+        it.close();
+        assertEquals(ROWS, count);
+
+        ArrayList<Tuple> prefix = lookup(key(a0));
+        assertEquals((int) perA.get(a0), prefix.size());
+        for (Tuple t : prefix)
+            assertEquals(new IntField(a0), t.getField(0));
+
+        ArrayList<Tuple> exact = lookup(key(a0, b0));
+        assertFalse(exact.isEmpty());
+        for (Tuple t : exact)
+            assertEquals(key(a0, b0), bf.keyOf(t));
+    }
+
+    private ArrayList<Tuple> lookup(Field key) throws Exception {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        while (it.hasNext())
+            result.add(it.next());
+        it.close();
+        return result;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompositeFieldTest.class);
+    }
+}
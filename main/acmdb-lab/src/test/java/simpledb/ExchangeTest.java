@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+    private static final int WORKERS = 4;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomTable("t", 2, ROWS, 50, tuples);
+        tid = new TransactionId();
+    }
+
+    /** @return the partitioned scans of the table */
+    private DbIterator[] scans(int partitions) {
+        DbIterator[] scans = new DbIterator[partitions];
+        for (int i = 0; i < partitions; i++)
+            scans[i] = new SeqScan(tid, hf.getId(), "t", i, partitions);
+        return scans;
+    }
+
+    /**
+     * The partitions of a scan cover the table, including when there are
+     * more partitions than pages, and a Gather returns all their tuples.
+     */
+    @Test public void gatherPartitions() throws Exception {
+        for (int n : new int[] { 1, WORKERS, hf.numPages() + 3 }) {
+            Gather gather = new Gather(scans(n));
+            assertEquals(hf.getTupleDesc(), gather.getTupleDesc());
+            assertEquals(SystemTestUtil.sorted(tuples), SystemTestUtil.sortedTuples(gather));
+            gather.open();
+            gather.rewind();
+            int count = 0;
+            while (gather.hasNext()) {
+                gather.next();
+                count++;
+            }
+            gather.close();
+            assertEquals(ROWS, count);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Each value of the partitioning field goes to a single output: grouped
+     * separately on each output, no group is returned twice.
+     */
+    @Test public void repartition() throws Exception {
+        Repartition[] outputs = Repartition.split(scans(WORKERS), 0, 3);
+        assertEquals(3, outputs.length);
+        DbIterator[] counts = new DbIterator[outputs.length];
+        for (int i = 0; i < outputs.length; i++)
+            counts[i] = new Aggregate(outputs[i], 1, 0, Aggregator.Op.COUNT);
+
+        HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> t : tuples)
+            expected.merge(t.get(0), 1, Integer::sum);
+        HashMap<Integer, Integer> actual = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> row : SystemTestUtil.sortedTuples(new Gather(counts)))
+            assertNull("value in two partitions", actual.put(row.get(0), row.get(1)));
+        assertEquals(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Each output of a Broadcast returns all the tuples.
+     */
+    @Test public void broadcast() throws Exception {
+        Broadcast[] outputs = Broadcast.split(scans(WORKERS), 3);
+        DbIterator[] counts = new DbIterator[outputs.length];
+        for (int i = 0; i < outputs.length; i++)
+            counts[i] = new Aggregate(outputs[i], 0, Aggregator.NO_GROUPING, Aggregator.Op.COUNT);
+        ArrayList<ArrayList<Integer>> rows = SystemTestUtil.sortedTuples(new Gather(counts));
+        assertEquals(3, rows.size());
+        for (ArrayList<Integer> row : rows)
+            assertEquals(ROWS, (int) row.get(0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private DbIterator plan(String query, int workers) throws Exception {
+        HashMap<String, TableStats> stats = SystemTestUtil.statsFor("t", hf);
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+        lp.setWorkers(workers);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        HashSet<Class<?>> operators = new HashSet<Class<?>>();
+        for (DbIterator op = plan; op instanceof Operator; op = ((Operator) op).getChildren()[0])
+            operators.add(op.getClass());
+        assertEquals(workers > 1, operators.contains(Gather.class));
+        return plan;
+    }
+
+    private ArrayList<ArrayList<Integer>> run(String query, int workers) throws Exception {
+        return SystemTestUtil.sortedTuples(plan(query, workers));
+    }
+
+    private static ArrayList<String> names(DbIterator plan) {
+        ArrayList<String> names = new ArrayList<String>();
+        TupleDesc td = plan.getTupleDesc();
+        for (int i = 0; i < td.numFields(); i++)
+            names.add(td.getFieldName(i));
+        return names;
+    }
+
+    /**
+     * With several workers, filters and aggregates, AVG included, run over
+     * the partitions of the table and return what the serial plan does,
+     * with the same column names.
+     */
+    @Test public void parallelPlans() throws Exception {
+        String[] queries = {
+                "SELECT * FROM t WHERE t.c0 > 20;",
+                "SELECT COUNT(t.c1) FROM t;",
+                "SELECT AVG(t.c1) FROM t WHERE t.c0 < 40;",
+                "SELECT t.c0, SUM(t.c1) FROM t GROUP BY t.c0;",
+                "SELECT t.c0, AVG(t.c1) FROM t GROUP BY t.c0;",
+                "SELECT t.c1, MIN(t.c0) FROM t GROUP BY t.c1;",
+                "SELECT t.c1, COUNT(t.c0) FROM t WHERE t.c0 > 10 GROUP BY t.c1;",
+        };
+        for (String query : queries) {
+            assertEquals(query, run(query, 1), run(query, WORKERS));
+            assertEquals(query, names(plan(query, 1)), names(plan(query, WORKERS)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
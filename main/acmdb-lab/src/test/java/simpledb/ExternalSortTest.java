@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = Utility.getTupleDesc(2);
+
+    private Random r;
+    private ArrayList<Integer> keys;
+    private ExternalSort sort;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        r = new Random(36);
+        keys = new ArrayList<Integer>();
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        if (sort != null)
+            sort.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private ExternalSort fill(int n, int runSize, int workers) throws Exception {
+        sort = new ExternalSort(TD, new TupleComparator(0), runSize, workers);
+        for (int i = 0; i < n; i++) {
+            int k = r.nextInt(n);
+            keys.add(k);
+            sort.add(Utility.getHeapTuple(new int[] { k, i }));
+        }
+        Collections.sort(keys);
+        return sort;
+    }
+
+    private ArrayList<Integer> drain(DbFileIterator it) throws Exception {
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        while (it.hasNext())
+            result.add(((IntField) it.next().getField(0)).getValue());
+        return result;
+    }
+
+    /**
+     * Tuples that fit in one run are sorted in memory.
+     */
+    @Test public void inMemory() throws Exception {
+        fill(5000, 10000, 2);
+        DbFileIterator it = sort.sorted();
+        assertEquals(0, sort.numRuns());
+        it.open();
+        assertEquals(keys, drain(it));
+        it.close();
+    }
+
+    /**
+     * More runs than are merged at once are merged in several passes, and
+     * the merged result can be rewound.
+     */
+    @Test public void multiPassMerge() throws Exception {
+        int runs = ExternalSort.MAX_FAN_IN * 2 + 5;
+        fill(runs * 100, 100, 4);
+        DbFileIterator it = sort.sorted();
+        assertTrue(sort.numRuns() <= ExternalSort.MAX_FAN_IN);
+        it.open();
+        assertEquals(keys, drain(it));
+        it.rewind();
+        assertEquals(keys, drain(it));
+        it.close();
+    }
+
+    /**
+     * Bulk loading the output of an external sort builds a valid tree whose
+     * leaves are filled to the fill factor.
+     */
+    @Test public void bulkLoadWithFillFactor() throws Exception {
+        File f = File.createTempFile("bulk", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.openBTreeFile(2, f, 0);
+        fill(30000, 1000, 3);
+        BTreeFileEncoder.bulkLoad(bf, sort.sorted(), BufferPool.getPageSize(), 0.75);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        assertEquals(keys, drain(it));
+        it.close();
+
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreeLeafPage leaf = bf.findLeafPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY, null);
+        ArrayList<Integer> counts = new ArrayList<Integer>();
+        counts.add(leaf.getNumTuples());
+        while (leaf.getRightSiblingId() != null) {
+            leaf = (BTreeLeafPage) Database.getBufferPool().getPage(
+                    tid, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+            counts.add(leaf.getNumTuples());
+        }
+        // all but the last two, which share the remaining tuples
+        int fill = (int) Math.ceil(leaf.getMaxTuples() * 0.75);
+        assertTrue(counts.size() > 30000 / leaf.getMaxTuples());
+        assertEquals(Collections.nCopies(counts.size() - 2, fill), counts.subList(0, counts.size() - 2));
+        PageChecksums.discard(f);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
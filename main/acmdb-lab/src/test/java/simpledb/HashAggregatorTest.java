@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashAggregatorTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final TupleDesc TD = Utility.getTupleDesc(4);
+    private static final Aggregator.Op[] OPS = { Aggregator.Op.SUM, Aggregator.Op.MIN,
+            Aggregator.Op.MAX, Aggregator.Op.AVG, Aggregator.Op.COUNT };
+
+    private ArrayList<Tuple> tuples;
+    private HashAggregator agg;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        Random r = new Random(47);
+        tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < ROWS; i++) {
+            tuples.add(Utility.getHeapTuple(new int[] { r.nextInt(40), r.nextInt(30),
+                    r.nextInt(1000) - 500, i }));
+        }
+    }
+
+    @After public void tearDown() {
+        if (agg != null)
+            agg.close();
+    }
+
+    /**
+     * @return the expected result of SUM, MIN, MAX, AVG and COUNT of field
+     *         2, grouped by fields 0 and 1
+     */
+    private HashMap<ArrayList<Integer>, ArrayList<Integer>> expected() {
+        HashMap<ArrayList<Integer>, ArrayList<Integer>> values = new HashMap<ArrayList<Integer>, ArrayList<Integer>>();
+        for (Tuple t : tuples) {
+            ArrayList<Integer> key = new ArrayList<Integer>(Arrays.asList(
+                    ((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue()));
+            if (!values.containsKey(key))
+                values.put(key, new ArrayList<Integer>());
+            values.get(key).add(((IntField) t.getField(2)).getValue());
+        }
+        HashMap<ArrayList<Integer>, ArrayList<Integer>> result = new HashMap<ArrayList<Integer>, ArrayList<Integer>>();
+        for (ArrayList<Integer> key : values.keySet()) {
+            ArrayList<Integer> v = values.get(key);
+            int sum = 0, min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            for (int x : v) {
+                sum += x;
+                min = Math.min(min, x);
+                max = Math.max(max, x);
+            }
+            result.put(key, new ArrayList<Integer>(Arrays.asList(sum, min, max, sum / v.size(), v.size())));
+        }
+        return result;
+    }
+
+    private HashMap<ArrayList<Integer>, ArrayList<Integer>> aggregate(int memoryGroups) throws Exception {
+        agg = new HashAggregator(TD, new int[] { 0, 1 }, new int[] { 2, 2, 2, 2, 3 }, OPS, memoryGroups);
+        for (Tuple t : tuples)
+            agg.add(t);
+        HashMap<ArrayList<Integer>, ArrayList<Integer>> result = new HashMap<ArrayList<Integer>, ArrayList<Integer>>();
+        DbFileIterator it = agg.iterator();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(agg.getTupleDesc(), t.getTupleDesc());
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                row.add(((IntField) t.getField(i)).getValue());
+            ArrayList<Integer> key = new ArrayList<Integer>(row.subList(0, 2));
+            assertNull("group returned twice", result.put(key, new ArrayList<Integer>(row.subList(2, row.size()))));
+        }
+        it.close();
+        return result;
+    }
+
+    /**
+     * Several aggregates over two group-by columns, with all the groups in
+     * memory.
+     */
+    @Test public void inMemory() throws Exception {
+        assertEquals(expected(), aggregate(HashAggregator.DEFAULT_MEMORY_GROUPS));
+        assertEquals(0, agg.getSpilledPartitions());
+    }
+
+    /**
+     * With room for a few groups, the other groups are spilled, and
+     * partitions are split again until they fit.
+     */
+    @Test public void spilling() throws Exception {
+        assertEquals(expected(), aggregate(7));
+        assertTrue(agg.getSpilledPartitions() > HashAggregator.FAN_OUT);
+        assertEquals(expected(), aggregate(1));
+    }
+
+    /**
+     * An Aggregate over groups of a string field, with a count of a string
+     * field, spilling all but one group.
+     */
+    @Test public void stringGroups() throws Exception {
+        Aggregate op = new Aggregate(TestUtil.createTupleList(2,
+                new Object[] { 1, "a", 2, "b", 3, "a", 4, "c", 5, "a" }),
+                new int[] { 0, 1 }, new int[] { 1 },
+                new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT }, 1);
+        assertEquals(new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE }),
+                op.getTupleDesc());
+        TupleIterator expected = TestUtil.createTupleList(3,
+                new Object[] { "a", 9, 3, "b", 2, 1, "c", 4, 1 });
+        op.open();
+        expected.open();
+        TestUtil.matchAllTuples(expected, op);
+        op.rewind();
+        int n = 0;
+        while (op.hasNext()) {
+            op.next();
+            n++;
+        }
+        assertEquals(3, n);
+        op.close();
+    }
+
+    /**
+     * Aggregates that cannot be computed are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class) public void sumOfStrings() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        new HashAggregator(td, new int[] { 0 }, new int[] { 1 },
+                new Aggregator.Op[] { Aggregator.Op.SUM }, 10);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashAggregatorTest.class);
+    }
+}
@@ -130,6 +130,57 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
       validateJoin(1,10,1,30001);
   }
 
+  /**
+   * With a small memory budget the join spills partitions of both inputs
+   * to disk, and returns the same tuples as when the build input fits.
+   */
+  @Test public void spillingJoin() throws Exception {
+    ArrayList<ArrayList<Integer>> t1 = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> t2 = new ArrayList<ArrayList<Integer>>();
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, 3000, 500, null, t1);
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, t2);
+    TransactionId tid = new TransactionId();
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+    HashEquiJoin inMemory = new HashEquiJoin(pred, new SeqScan(tid, table1.getId(), "a"),
+        new SeqScan(tid, table2.getId(), "b"));
+    ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(inMemory);
+    assertTrue(expected.size() > 3000);
+
+    HashEquiJoin spilling = new HashEquiJoin(pred, new SeqScan(tid, table1.getId(), "a"),
+        new SeqScan(tid, table2.getId(), "b"), 100);
+    assertEquals(expected, SystemTestUtil.sortedTuples(spilling));
+    assertTrue(spilling.getSpilledPartitions() > HashEquiJoin.FAN_OUT);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A build input with a single key cannot be split, and is joined in
+   * chunks instead.
+   */
+  @Test public void skewedSpillingJoin() throws Exception {
+    HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+    columnSpecification.put(0, 1);
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, 100, columnSpecification,
+        new ArrayList<ArrayList<Integer>>());
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, 500, columnSpecification,
+        new ArrayList<ArrayList<Integer>>());
+    TransactionId tid = new TransactionId();
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"), 64);
+    assertEquals(100 * 500, SystemTestUtil.sortedTuples(join).size());
+    join.open();
+    join.rewind();
+    int cnt = 0;
+    while (join.hasNext()) {
+      join.next();
+      cnt++;
+    }
+    join.close();
+    assertEquals(100 * 500, cnt);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
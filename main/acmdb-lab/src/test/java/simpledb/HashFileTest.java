@@ -0,0 +1,239 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final int KEYS = 1000;
+
+    private HashFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private Random r;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // small pages, so that the file splits many times
+        BufferPool.setPageSize(1024);
+        Database.resetBufferPool(1000);
+        File f = File.createTempFile("hash", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        hf = new HashFile(f, 1, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(hf, "hash");
+        tuples = new ArrayList<ArrayList<Integer>>();
+        r = new Random(40);
+    }
+
+    @After public void tearDown() throws Exception {
+        PageChecksums.discard(hf.getFile());
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private void insert(TransactionId tid, int rows) throws Exception {
+        for (int i = 0; i < rows; i++) {
+            int[] row = new int[] { i, r.nextInt(KEYS) };
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(row));
+            tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(row)));
+        }
+    }
+
+    private ArrayList<ArrayList<Integer>> expected(Predicate.Op op, int value) {
+        return SystemTestUtil.sortedMatching(tuples, 1, op, value);
+    }
+
+    private HashMetaPage meta(TransactionId tid) throws Exception {
+        return (HashMetaPage) Database.getBufferPool().getPage(tid, HashMetaPage.getId(hf.getId()),
+                Permissions.READ_ONLY);
+    }
+
+    /**
+     * Inserted tuples are split across many buckets, and are all found by
+     * a scan and by lookups on their keys.
+     */
+    @Test public void insertAndLookup() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, ROWS);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        HashMetaPage meta = meta(tid);
+        assertTrue(meta.getNumBuckets() > 32);
+
+        assertEquals(expected(Predicate.Op.GREATER_THAN_OR_EQ, 0), SystemTestUtil.sortedTuples(hf.iterator(tid)));
+        for (int i = 0; i < 20; i++) {
+            int key = tuples.get(r.nextInt(ROWS)).get(1);
+            assertEquals(expected(Predicate.Op.EQUALS, key),
+                    SystemTestUtil.sortedTuples(hf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)))));
+        }
+        assertEquals(0, SystemTestUtil.sortedTuples(hf.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(KEYS)))).size());
+        assertEquals(expected(Predicate.Op.LESS_THAN, 100),
+                SystemTestUtil.sortedTuples(hf.indexIterator(tid, new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100)))));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Deletes free the overflow pages they empty, and later inserts reuse
+     * them instead of growing the file.
+     */
+    @Test public void deleteAndReuse() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, ROWS);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        ArrayList<Tuple> all = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            all.add(it.next());
+        it.close();
+        for (Tuple t : all)
+            Database.getBufferPool().deleteTuple(tid, t);
+        HashMetaPage meta = meta(tid);
+        assertEquals(0, meta.getOverflowPagesInUse());
+        int pages = meta.getNumPages();
+        assertEquals(0, SystemTestUtil.sortedTuples(hf.iterator(tid)).size());
+        Database.getBufferPool().transactionComplete(tid);
+
+        tuples.clear();
+        tid = new TransactionId();
+        insert(tid, ROWS);
+        assertEquals(pages, meta(tid).getNumPages());
+        assertEquals(expected(Predicate.Op.GREATER_THAN_OR_EQ, 0), SystemTestUtil.sortedTuples(hf.iterator(tid)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Aborting a transaction undoes its inserts, and the splits they caused.
+     */
+    @Test public void abortUndoesSplits() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, 500);
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        int buckets = meta(tid).getNumBuckets();
+        ArrayList<ArrayList<Integer>> before = SystemTestUtil.sortedTuples(hf.iterator(tid));
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        insert(tid, ROWS);
+        assertTrue(meta(tid).getNumBuckets() > buckets);
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        assertEquals(buckets, meta(tid).getNumBuckets());
+        assertEquals(before, SystemTestUtil.sortedTuples(hf.iterator(tid)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The planner answers an equality filter on the key with a HashScan,
+     * and other filters with a SeqScan.
+     */
+    @Test public void plannerUsesHashScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, ROWS);
+        Database.getBufferPool().transactionComplete(tid);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("hash", new TableStats(hf.getId(), 1000));
+        int key = tuples.get(ROWS / 2).get(1);
+
+        tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "h");
+        lp.addFilter("h.c1", Predicate.Op.EQUALS, Integer.toString(key));
+        lp.addProjectField("h.c0", null);
+        lp.addProjectField("h.c1", null);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof HashScan);
+
+        assertEquals(SystemTestUtil.sorted(expected(Predicate.Op.EQUALS, key)),
+                SystemTestUtil.sortedTuples(plan));
+
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "h");
+        lp.addFilter("h.c1", Predicate.Op.LESS_THAN, Integer.toString(KEYS / 2));
+        lp.addProjectField("h.c0", null);
+        plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) ((Operator) plan).getChildren()[0]).getChildren()[0] instanceof SeqScan);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The planner joins a small table with the key of a hash file by
+     * probing one bucket per tuple for =, and reads the whole file for
+     * other predicates.
+     */
+    @Test public void plannerProbesHashFile() throws Exception {
+        File f = File.createTempFile("hash", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        HashFile keyed = new HashFile(f, 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(keyed, "keyed", "c0");
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < ROWS; i++) {
+            Database.getBufferPool().insertTuple(tid, keyed.getId(),
+                    Utility.getHeapTuple(new int[] { i, i % KEYS }));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        HashMap<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        spec.put(1, ROWS / 2 + 1);
+        ArrayList<ArrayList<Integer>> outer = new ArrayList<ArrayList<Integer>>();
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 3, KEYS, spec, outer, "c");
+        Database.getCatalog().addTable(small, "small");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("keyed", new TableStats(keyed.getId(), 1000));
+        stats.put("small", new TableStats(small.getId(), 1000));
+
+        try {
+            tid = new TransactionId();
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(small.getId(), "s");
+            lp.addScan(keyed.getId(), "k");
+            lp.addJoin("s.c1", "k.c0", Predicate.Op.EQUALS);
+            lp.addProjectField("s.c0", null);
+            lp.addProjectField("k.c1", null);
+            DbIterator plan = lp.physicalPlan(tid, stats, false);
+            assertTrue(((Operator) plan).getChildren()[0] instanceof IndexNestedLoopJoin);
+
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+            for (ArrayList<Integer> t : outer)
+                expected.add(new ArrayList<Integer>(Arrays.asList(t.get(0), (ROWS / 2 + 1) % KEYS)));
+            assertEquals(SystemTestUtil.sorted(expected), SystemTestUtil.sortedTuples(plan));
+
+            lp = new LogicalPlan();
+            lp.addScan(small.getId(), "s");
+            lp.addScan(keyed.getId(), "k");
+            lp.addJoin("s.c1", "k.c0", Predicate.Op.LESS_THAN);
+            lp.addProjectField("s.c0", null);
+            plan = lp.physicalPlan(tid, stats, false);
+            assertFalse(((Operator) plan).getChildren()[0] instanceof IndexNestedLoopJoin);
+            Database.getBufferPool().transactionComplete(tid);
+        } finally {
+            PageChecksums.discard(f);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashFileTest.class);
+    }
+}
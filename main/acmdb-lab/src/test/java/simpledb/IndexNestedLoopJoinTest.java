@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final Predicate.Op[] OPS = { Predicate.Op.EQUALS,
+            Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+
+    /**
+     * Check the join of a heap file with an indexed table against a nested
+     * loops join over a scan of the table, for the given predicates.
+     */
+    private void checkJoins(int tableid, Predicate.Op... ops) throws Exception {
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 50, 500, null,
+                new ArrayList<ArrayList<Integer>>());
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : ops) {
+            JoinPredicate pred = new JoinPredicate(1, op, 1);
+            ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(new Join(pred,
+                    new SeqScan(tid, outer.getId(), "a"), new SeqScan(tid, tableid, "b")));
+            assertTrue(expected.size() > 0);
+
+            IndexNestedLoopJoin join = new IndexNestedLoopJoin(pred,
+                    new SeqScan(tid, outer.getId(), "a"), tid, tableid, "b");
+            assertEquals("b." + Database.getCatalog().getTupleDesc(tableid).getFieldName(1),
+                    join.getJoinField2Name());
+            assertEquals(expected, SystemTestUtil.sortedTuples(join));
+
+            join.open();
+            join.next();
+            join.rewind();
+            int cnt = 0;
+            while (join.hasNext()) {
+                join.next();
+                cnt++;
+            }
+            join.close();
+            assertEquals(expected.size(), cnt);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Probes of a B+ tree return the same tuples as a nested loops join.
+     */
+    @Test public void btreeProbes() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 3000, 500, null,
+                new ArrayList<ArrayList<Integer>>(), 1);
+        checkJoins(bf.getId(), OPS);
+    }
+
+    /**
+     * Probes of a hash file return the same tuples as a nested loops join.
+     */
+    @Test public void hashProbes() throws Exception {
+        File f = File.createTempFile("hash", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        HashFile hf = new HashFile(f, 1, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "hash");
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3000; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(),
+                    Utility.getHeapTuple(new int[] { i, i % 500 }));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        try {
+            checkJoins(hf.getId(), Predicate.Op.EQUALS);
+        } finally {
+            PageChecksums.discard(hf.getFile());
+        }
+    }
+
+    /**
+     * A table can only be probed on its key, and not for != or LIKE; a
+     * hash file only for =.
+     */
+    @Test public void needsIndex() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10, null,
+                new ArrayList<ArrayList<Integer>>(), 1);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        assertTrue(IndexNestedLoopJoin.canProbe(bf.getId(), 1, Predicate.Op.LESS_THAN));
+        assertFalse(IndexNestedLoopJoin.canProbe(bf.getId(), 0, Predicate.Op.EQUALS));
+        assertFalse(IndexNestedLoopJoin.canProbe(bf.getId(), 1, Predicate.Op.NOT_EQUALS));
+        assertFalse(IndexNestedLoopJoin.canProbe(hf.getId(), 1, Predicate.Op.EQUALS));
+
+        File f = File.createTempFile("hash", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        HashFile hash = new HashFile(f, 1, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hash, "hash");
+        assertTrue(IndexNestedLoopJoin.canProbe(hash.getId(), 1, Predicate.Op.EQUALS));
+        assertFalse(IndexNestedLoopJoin.canProbe(hash.getId(), 1, Predicate.Op.LESS_THAN));
+        assertFalse(IndexNestedLoopJoin.canProbe(hash.getId(), 1, Predicate.Op.GREATER_THAN_OR_EQ));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
@@ -3,6 +3,7 @@ package simpledb;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Vector;
@@ -621,4 +622,109 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * instantiateJoin picks a hash join for =, a sort-merge join for range
+     * predicates and nested loops for the others, which all return the same
+     * tuples.
+     */
+    @Test
+    public void instantiateJoinTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.NOT_EQUALS };
+        Class<?>[] expected = { HashEquiJoin.class, SortMergeJoin.class,
+                SortMergeJoin.class, Join.class };
+        for (int i = 0; i < ops.length; i++) {
+            LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                    ops[i]);
+            DbIterator j = JoinOptimizer.instantiateJoin(lj,
+                    new SeqScan(tid, tableId1, "t1"), new SeqScan(tid,
+                            tableId1, "t2"));
+            Assert.assertEquals(expected[i], j.getClass());
+
+            int count = 0;
+            for (ArrayList<Integer> t1 : tuples1) {
+                for (ArrayList<Integer> t2 : tuples1) {
+                    if (new IntField(t1.get(1)).compare(ops[i],
+                            new IntField(t2.get(2))))
+                        count++;
+                }
+            }
+            j.open();
+            while (j.hasNext()) {
+                j.next();
+                count--;
+            }
+            j.close();
+            Assert.assertEquals(0, count);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean contains(DbIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (!(plan instanceof Operator))
+            return false;
+        for (DbIterator child : ((Operator) plan).getChildren()) {
+            if (child != null && contains(child, c))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A join of a small table with the key of a B+ tree probes the tree for
+     * each tuple of the small table, and applies the filter over the tree
+     * to its output; a join of a large table with the tree reads the tree.
+     */
+    @Test
+    public void indexJoinTest() throws Exception {
+        ArrayList<ArrayList<Integer>> btuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile created = BTreeUtility.createBTreeFile(2, 20000, null, btuples, 0);
+        BTreeFile bf = BTreeUtility.openBTreeFile(2, "c", created.getFile(), 0);
+        Database.getCatalog().addTable(bf, "BT", "c0");
+        ArrayList<ArrayList<Integer>> stuples = new ArrayList<ArrayList<Integer>>();
+        HashMap<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        spec.put(1, 15000);
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 5, 20000, spec, stuples, "c");
+        Database.getCatalog().addTable(small, "SMALL");
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("BT", new TableStats(bf.getId(), 1000));
+        stats.put("SMALL", new TableStats(small.getId(), 1000));
+        stats.put(tableName2, stats2);
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(small.getId(), "s");
+        lp.addScan(bf.getId(), "b");
+        lp.addJoin("s.c1", "b.c0", Predicate.Op.EQUALS);
+        lp.addFilter("b.c1", Predicate.Op.GREATER_THAN, "20000");
+        lp.addProjectField("s.c0", null);
+        lp.addProjectField("b.c1", null);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        Assert.assertTrue(contains(plan, IndexNestedLoopJoin.class));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : stuples) {
+            for (ArrayList<Integer> t2 : btuples) {
+                if (t1.get(1).equals(t2.get(0)) && t2.get(1) > 20000)
+                    expected.add(new ArrayList<Integer>(Arrays.asList(t1.get(0), t2.get(1))));
+            }
+        }
+        Assert.assertEquals(5, expected.size());
+        Assert.assertEquals(SystemTestUtil.sorted(expected),
+                SystemTestUtil.sortedTuples(plan));
+
+        lp = new LogicalPlan();
+        lp.addScan(tableId2, "t");
+        lp.addScan(bf.getId(), "b");
+        lp.addJoin("t.c1", "b.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("t.c0", null);
+        plan = lp.physicalPlan(tid, stats, false);
+        Assert.assertFalse(contains(plan, IndexNestedLoopJoin.class));
+        Database.getBufferPool().transactionComplete(tid);
+    }
 }
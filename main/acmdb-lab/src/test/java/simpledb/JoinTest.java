@@ -7,8 +7,10 @@ import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
 import org.junit.Test;
+import java.util.ArrayList;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class JoinTest extends SimpleDbTestBase {
 
@@ -105,6 +107,37 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * A block nested loops join with small blocks reads the right child once
+   * per block of left tuples, and returns the same tuples as one block.
+   */
+  @Test public void blockJoin() throws Exception {
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null,
+        new ArrayList<ArrayList<Integer>>());
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, 300, 100, null,
+        new ArrayList<ArrayList<Integer>>());
+    TransactionId tid = new TransactionId();
+    final int[] rewinds = new int[1];
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 1);
+
+    Join op = new Join(pred, new SeqScan(tid, table1.getId(), "a"),
+        new SeqScan(tid, table2.getId(), "b") {
+          public void rewind() throws DbException, TransactionAbortedException {
+            rewinds[0]++;
+            super.rewind();
+          }
+        }, 1);
+    ArrayList<ArrayList<Integer>> blocks = SystemTestUtil.sortedTuples(op);
+    int perBlock = Join.blockTuples(Utility.getTupleDesc(2), 1);
+    assertEquals((2000 + perBlock - 1) / perBlock - 1, rewinds[0]);
+
+    Join oneBlock = new Join(pred, new SeqScan(tid, table1.getId(), "a"),
+        new SeqScan(tid, table2.getId(), "b"), 2000 / perBlock + 1);
+    assertEquals(SystemTestUtil.sortedTuples(oneBlock), blocks);
+    assertTrue(blocks.size() > 0);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogBufferTest extends SimpleDbTestBase {
+    private File dir;
+    private LogSegments segments;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        LogSegments.setSegmentSize(4096);
+        dir = File.createTempFile("logbuffer", "");
+        dir.delete();
+        dir.mkdir();
+        segments = new LogSegments(dir, "log");
+    }
+
+    @After public void tearDown() throws Exception {
+        segments.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+        LogSegments.resetSegmentSize();
+    }
+
+    // a record is its length, its writer, its sequence number and filler
+    private static byte[] record(int writer, int seq) {
+        int len = 12 + (seq * 37 + writer * 11) % 300;
+        byte[] b = new byte[len];
+        b[0] = (byte) (len >>> 24);
+        b[1] = (byte) (len >>> 16);
+        b[2] = (byte) (len >>> 8);
+        b[3] = (byte) len;
+        b[4] = (byte) writer;
+        b[8] = (byte) (seq >>> 8);
+        b[9] = (byte) seq;
+        for (int i = 12; i < len; i++)
+            b[i] = (byte) (writer + seq + i);
+        return b;
+    }
+
+    /**
+     * Concurrent appenders through a small ring: every record must land
+     * intact at the offset it reserved, with no gaps between records.
+     */
+    @Test public void concurrentAppends() throws Exception {
+        final LogBuffer buffer = new LogBuffer(segments, 2048);
+        buffer.reset(0);
+        final int writers = 8;
+        final int perWriter = 200;
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            Thread t = new Thread(() -> {
+                try {
+                    for (int seq = 0; seq < perWriter; seq++) {
+                        byte[] rec = record(writer, seq);
+                        long start = buffer.reserve(rec.length);
+                        buffer.publish(start, rec, rec.length);
+                        if (seq % 50 == 0)
+                            buffer.flush(start + rec.length, true);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        long end = buffer.endOffset();
+        buffer.flush(end, true);
+        assertEquals(end, buffer.durableOffset());
+
+        int[] nextSeq = new int[writers];
+        DataInputStream in = segments.openReader(0);
+        long offset = 0;
+        int records = 0;
+        while (offset < end) {
+            int len = in.readInt();
+            byte[] rest = new byte[len - 4];
+            in.readFully(rest);
+            int writer = rest[0];
+            int seq = ((rest[4] & 0xff) << 8) | (rest[5] & 0xff);
+            // each writer's records appear in the order it appended them
+            assertEquals(nextSeq[writer]++, seq);
+            byte[] expected = record(writer, seq);
+            for (int i = 4; i < len; i++)
+                assertEquals(expected[i], rest[i - 4]);
+            offset += len;
+            records++;
+        }
+        in.close();
+        assertEquals(end, offset);
+        assertEquals(writers * perWriter, records);
+    }
+
+    /**
+     * Records larger than the ring are written straight through.
+     */
+    @Test public void oversizedRecord() throws Exception {
+        LogBuffer buffer = new LogBuffer(segments, 1024);
+        buffer.reset(100);
+        byte[] small = record(1, 1);
+        byte[] big = new byte[5000];
+        for (int i = 0; i < big.length; i++)
+            big[i] = (byte) i;
+
+        long s1 = buffer.reserve(small.length);
+        buffer.publish(s1, small, small.length);
+        long s2 = buffer.reserve(big.length);
+        buffer.publish(s2, big, big.length);
+        assertEquals(100, s1);
+        assertEquals(100 + small.length, s2);
+        buffer.flush(buffer.endOffset(), true);
+
+        DataInputStream in = segments.openReader(s1);
+        byte[] read = new byte[small.length + big.length];
+        in.readFully(read);
+        in.close();
+        for (int i = 0; i < small.length; i++)
+            assertEquals(small[i], read[i]);
+        for (int i = 0; i < big.length; i++)
+            assertEquals(big[i], read[small.length + i]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
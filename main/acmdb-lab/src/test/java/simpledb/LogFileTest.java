@@ -0,0 +1,156 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("logfile", ".dat");
+        f.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+    }
+
+    private void insertAndCommit(int value, boolean flushFirst) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(value, 2));
+        if (flushFirst)
+            Database.getBufferPool().flushAllPages();
+        t.commit();
+    }
+
+    private HashSet<Integer> recoverAndRead() throws Exception {
+        Database.reset();
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, "t");
+        Database.getLogFile().recover();
+        Database.getLogFile().awaitUndo();
+
+        Transaction t = new Transaction();
+        t.start();
+        HashSet<Integer> values = new HashSet<Integer>();
+        DbFileIterator it = reopened.iterator(t.getId());
+        it.open();
+        while (it.hasNext())
+            values.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        t.commit();
+        return values;
+    }
+
+    /**
+     * Unit test for LogFile.getTotalRecords()
+     */
+    @Test public void totalRecords() throws Exception {
+        int before = Database.getLogFile().getTotalRecords();
+        insertAndCommit(1, false);
+        // BEGIN, UPDATE (flushed at commit) and COMMIT
+        assertEquals(before + 3, Database.getLogFile().getTotalRecords());
+    }
+
+    /**
+     * A commit record whose checksum does not match is a torn tail: the
+     * transaction is treated as a loser and rolled back.
+     */
+    @Test public void tornCommitRecordIsDiscarded() throws Exception {
+        insertAndCommit(1, false);
+        insertAndCommit(2, true);
+
+        LogFile log = Database.getLogFile();
+        long end = log.buffer.endOffset();
+        // the last record is the commit: type, tid, time, crc, start offset
+        long commit = end - (LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE + LogFile.INT_SIZE + LogFile.LONG_SIZE);
+        long seg = LogSegments.segmentOf(commit + LogFile.INT_SIZE + 2);
+        try (RandomAccessFile raf = new RandomAccessFile(log.segments.segmentFile(seg), "rw")) {
+            raf.seek(commit + LogFile.INT_SIZE + 2 - LogSegments.startOf(seg));
+            int b = raf.read();
+            raf.seek(commit + LogFile.INT_SIZE + 2 - LogSegments.startOf(seg));
+            raf.write(b ^ 0x01);
+        }
+
+        HashSet<Integer> expected = new HashSet<Integer>();
+        expected.add(1);
+        assertEquals(expected, recoverAndRead());
+    }
+
+    /**
+     * A record whose checksum matches but whose page id class cannot be
+     * loaded is not a torn tail: recovery fails instead of truncating the
+     * committed records after it.
+     */
+    @Test public void unreadableRecordAbortsRecovery() throws Exception {
+        insertAndCommit(1, false);
+        insertAndCommit(2, true);
+
+        LogFile log = Database.getLogFile();
+        long end = log.buffer.endOffset();
+        long commit = end - (LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE + LogFile.INT_SIZE + LogFile.LONG_SIZE);
+        // the UPDATE record of the second insert, just before its commit
+        int image = 2 + HeapPage.class.getName().length() + 2 + HeapPageId.class.getName().length()
+            + LogFile.INT_SIZE * 4 + BufferPool.getPageSize();
+        int body = LogFile.INT_SIZE + LogFile.LONG_SIZE + 2 * image;
+        long update = commit - (body + LogFile.INT_SIZE + LogFile.LONG_SIZE);
+        long seg = LogSegments.segmentOf(update);
+        assertEquals(seg, LogSegments.segmentOf(end - 1));
+        try (RandomAccessFile raf = new RandomAccessFile(log.segments.segmentFile(seg), "rw")) {
+            long at = update - LogSegments.startOf(seg);
+            raf.seek(at + body + LogFile.INT_SIZE);
+            assertEquals(update, raf.readLong());
+
+            // rename the page id class of the before image, and fix the checksum
+            byte[] record = new byte[body];
+            raf.seek(at);
+            raf.readFully(record);
+            int name = LogFile.INT_SIZE + LogFile.LONG_SIZE + 2 + HeapPage.class.getName().length() + 2;
+            record[name + HeapPageId.class.getName().length() - 1] ^= 0x01;
+            raf.seek(at);
+            raf.write(record);
+            raf.writeInt(PageChecksums.checksum(record, 0, body));
+        }
+        long length = log.segments.segmentFile(seg).length();
+
+        try {
+            recoverAndRead();
+            fail("expected IOException for a record that cannot be read");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(length, log.segments.segmentFile(seg).length());
+        try (RandomAccessFile raf = new RandomAccessFile(log.segments.segmentFile(seg), "r")) {
+            raf.seek(commit - LogSegments.startOf(seg));
+            assertEquals(LogFile.COMMIT_RECORD, raf.readInt());
+        }
+    }
+
+    /**
+     * An intact log recovers every committed transaction.
+     */
+    @Test public void intactLogRecoversEverything() throws Exception {
+        insertAndCommit(1, false);
+        insertAndCommit(2, true);
+        HashSet<Integer> expected = new HashSet<Integer>();
+        expected.add(1);
+        expected.add(2);
+        assertEquals(expected, recoverAndRead());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+    private static final int SEGMENT_SIZE = 1024;
+
+    private File dir;
+    private LogSegments segments;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        LogSegments.setSegmentSize(SEGMENT_SIZE);
+        dir = File.createTempFile("logsegments", "");
+        dir.delete();
+        dir.mkdir();
+        segments = new LogSegments(dir, "log");
+    }
+
+    @After public void tearDown() throws Exception {
+        segments.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+        LogSegments.resetSegmentSize();
+    }
+
+    private static byte[] pattern(int len, int seed) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++)
+            b[i] = (byte) (seed + i);
+        return b;
+    }
+
+    /**
+     * Unit test for LogSegments.write() and openReader() across segment
+     * boundaries.
+     */
+    @Test public void writeAcrossSegments() throws Exception {
+        byte[] data = pattern(3 * SEGMENT_SIZE + 100, 7);
+        segments.write(50, data, 0, data.length);
+        assertArrayEquals(new long[] {0, 1, 2, 3}, segments.listSegments());
+        for (long seg : segments.listSegments())
+            assertEquals(SEGMENT_SIZE, segments.segmentFile(seg).length());
+
+        DataInputStream in = segments.openReader(50);
+        byte[] read = new byte[data.length];
+        in.readFully(read);
+        in.close();
+        assertArrayEquals(data, read);
+    }
+
+    /**
+     * Unit test for LogSegments.removeBefore()
+     */
+    @Test public void removeBefore() throws Exception {
+        byte[] data = pattern(4 * SEGMENT_SIZE, 3);
+        segments.write(0, data, 0, data.length);
+
+        assertEquals(2, segments.removeBefore(2 * SEGMENT_SIZE + 10));
+        assertArrayEquals(new long[] {2, 3}, segments.listSegments());
+        assertEquals(2 * SEGMENT_SIZE, segments.firstOffset());
+
+        // offsets of surviving records are unchanged
+        DataInputStream in = segments.openReader(2 * SEGMENT_SIZE + 10);
+        assertEquals(data[2 * SEGMENT_SIZE + 10], in.readByte());
+        in.close();
+
+        // reading a removed segment hits end of file
+        in = segments.openReader(10);
+        try {
+            in.readByte();
+            fail("expected EOFException");
+        } catch (EOFException e) {
+            // expected
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Unit test for LogSegments.reset(): offsets keep increasing.
+     */
+    @Test public void resetKeepsOffsetsIncreasing() throws Exception {
+        assertEquals(0, segments.reset());
+        byte[] data = pattern(SEGMENT_SIZE + 1, 1);
+        segments.write(0, data, 0, data.length);
+        assertEquals(2 * SEGMENT_SIZE, segments.reset());
+        assertEquals(0, segments.listSegments().length);
+        assertEquals(-1, segments.firstOffset());
+    }
+
+    /**
+     * Unit test for LogSegments.setArchiveDirectory(): truncated segments
+     * move to the archive and stay readable through openReader().
+     */
+    @Test public void archiveKeepsSegmentsReadable() throws Exception {
+        File archive = new File(dir, "archive");
+        segments.setArchiveDirectory(archive);
+        byte[] data = pattern(3 * SEGMENT_SIZE, 5);
+        segments.write(0, data, 0, data.length);
+
+        assertEquals(2, segments.removeBefore(2 * SEGMENT_SIZE));
+        assertArrayEquals(new long[] {2}, segments.listSegments());
+        assertTrue(new File(archive, segments.segmentFile(0).getName()).exists());
+        assertTrue(new File(archive, segments.segmentFile(1).getName()).exists());
+
+        DataInputStream in = segments.openReader(10);
+        byte[] read = new byte[data.length - 10];
+        in.readFully(read);
+        in.close();
+        for (int i = 0; i < read.length; i++)
+            assertEquals(data[i + 10], read[i]);
+
+        // a reset archives the rest and continues after the archived segments
+        assertEquals(3 * SEGMENT_SIZE, segments.reset());
+        assertEquals(3, archive.list().length);
+
+        for (File f : archive.listFiles())
+            f.delete();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,209 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private BTreeFile bf;
+    private HashMap<String, TableStats> stats;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile random = BTreeUtility.createRandomBTreeFile(2, ROWS, null, tuples, 0);
+        bf = BTreeUtility.openBTreeFile(2, "c", random.getFile(), 0);
+        Database.getCatalog().addTable(bf, "bt");
+        stats = SystemTestUtil.statsFor("bt", bf);
+        tid = new TransactionId();
+    }
+
+    private static DbIterator access(DbIterator plan) {
+        // Project -> [Filter ->] scan
+        DbIterator it = ((Operator) plan).getChildren()[0];
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        return it;
+    }
+
+    private static HashSet<Integer> keys(DbIterator plan) throws Exception {
+        HashSet<Integer> result = new HashSet<Integer>();
+        plan.open();
+        while (plan.hasNext())
+            result.add(((IntField) plan.next().getField(0)).getValue());
+        plan.close();
+        return result;
+    }
+
+    private DbIterator plan(String field, Predicate.Op op, int value) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "bt");
+        lp.addFilter(field, op, Integer.toString(value));
+        lp.addProjectField("bt.c0", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    /**
+     * A selective filter on the key field is answered by a BTreeScan.
+     */
+    @Test public void pointLookupUsesIndex() throws Exception {
+        int key = tuples.get(ROWS / 2).get(0);
+        DbIterator plan = plan("bt.c0", Predicate.Op.EQUALS, key);
+        assertTrue(access(plan) instanceof BTreeScan);
+
+        HashSet<Integer> expected = new HashSet<Integer>();
+        expected.add(key);
+        assertEquals(expected, keys(plan));
+    }
+
+    /**
+     * Filters that match most of the table, or that are not on the key
+     * field, scan the table.
+     */
+    @Test public void unselectiveFilterScans() throws Exception {
+        assertTrue(access(plan("bt.c0", Predicate.Op.GREATER_THAN, 0)) instanceof SeqScan);
+        assertTrue(access(plan("bt.c1", Predicate.Op.EQUALS, 7)) instanceof SeqScan);
+        assertTrue(access(plan("bt.c0", Predicate.Op.NOT_EQUALS, 7)) instanceof SeqScan);
+    }
+
+    /**
+     * A lower and an upper bound on the key field are answered together by
+     * one bounded BTreeScan.
+     */
+    @Test public void rangeUsesBoundedScan() throws Exception {
+        int lo = BTreeUtility.MAX_RAND_VALUE / 2;
+        int hi = lo + BTreeUtility.MAX_RAND_VALUE / 100;
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "bt");
+        lp.addFilter("bt.c0", Predicate.Op.GREATER_THAN_OR_EQ, Integer.toString(lo));
+        lp.addFilter("bt.c0", Predicate.Op.LESS_THAN, Integer.toString(hi));
+        lp.addProjectField("bt.c0", null);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+
+        // the bounds are answered by the scan, so there is no Filter
+        assertTrue(((Operator) plan).getChildren()[0] instanceof BTreeScan);
+        BTreeScan scan = (BTreeScan) access(plan);
+        assertNotNull(scan.getLowerBound());
+        assertNotNull(scan.getUpperBound());
+
+        HashSet<Integer> expected = new HashSet<Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) >= lo && t.get(0) < hi)
+                expected.add(t.get(0));
+        }
+        assertEquals(expected, keys(plan));
+    }
+
+    /**
+     * ORDER BY the key of the only table reads the tree in key order
+     * instead of sorting: forwards for ASC, backwards for DESC.
+     */
+    @Test public void orderByKeyUsesScanOrder() throws Exception {
+        for (boolean asc : new boolean[] { true, false }) {
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(bf.getId(), "bt");
+            lp.addFilter("bt.c0", Predicate.Op.LESS_THAN, Integer.toString(BTreeUtility.MAX_RAND_VALUE / 50));
+            lp.addProjectField("bt.c0", null);
+            lp.addOrderBy("bt.c0", asc);
+            DbIterator plan = lp.physicalPlan(tid, stats, false);
+            assertTrue(((Operator) plan).getChildren()[0] instanceof BTreeScan);
+            assertEquals(!asc, ((BTreeScan) access(plan)).isReverse());
+
+            ArrayList<Integer> expected = new ArrayList<Integer>();
+            for (ArrayList<Integer> t : tuples) {
+                if (t.get(0) < BTreeUtility.MAX_RAND_VALUE / 50)
+                    expected.add(t.get(0));
+            }
+            Collections.sort(expected);
+            if (!asc)
+                Collections.reverse(expected);
+            ArrayList<Integer> actual = new ArrayList<Integer>();
+            plan.open();
+            while (plan.hasNext())
+                actual.add(((IntField) plan.next().getField(0)).getValue());
+            plan.close();
+            assertEquals(expected, actual);
+        }
+
+        // ordering by another field still sorts
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "bt");
+        lp.addProjectField("bt.c0", null);
+        lp.addOrderBy("bt.c1", false);
+        assertTrue(((Operator) lp.physicalPlan(tid, stats, false)).getChildren()[0] instanceof OrderBy);
+    }
+
+    /**
+     * GROUP BY the key of the only table aggregates the groups as they are
+     * scanned, in key order, so an ORDER BY on the key needs no sort.
+     */
+    @Test public void groupByKeyStreams() throws Exception {
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+        for (ArrayList<Integer> t : tuples)
+            expected.put(t.get(0), expected.getOrDefault(t.get(0), 0) + 1);
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "bt");
+        lp.addAggregate("count", "bt.c1", "bt.c0");
+        lp.addProjectField("bt.c0", null);
+        lp.addProjectField("bt.c1", "count");
+        lp.addOrderBy("bt.c0", true);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof StreamAggregate);
+
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            keys.add(key);
+            assertEquals((int) expected.get(key), ((IntField) t.getField(1)).getValue());
+        }
+        plan.close();
+        assertEquals(new ArrayList<Integer>(expected.keySet()), keys);
+
+        // grouping by another field still hashes
+        lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "bt");
+        lp.addAggregate("count", "bt.c0", "bt.c1");
+        lp.addProjectField("bt.c1", null);
+        lp.addProjectField("bt.c0", "count");
+        DbIterator hashed = ((Operator) lp.physicalPlan(tid, stats, false)).getChildren()[0];
+        assertTrue(hashed instanceof Aggregate && !(hashed instanceof StreamAggregate));
+    }
+
+    /**
+     * TableStats.estimateIndexScanCost() grows with selectivity and stays
+     * far below a scan for point lookups.
+     */
+    @Test public void estimateIndexScanCost() throws Exception {
+        TableStats s = stats.get("bt");
+        double point = s.estimateIndexScanCost(0, Predicate.Op.EQUALS, new IntField(tuples.get(0).get(0)));
+        double range = s.estimateIndexScanCost(0, Predicate.Op.LESS_THAN, new IntField(BTreeUtility.MAX_RAND_VALUE / 2));
+        assertTrue(point < range);
+        assertTrue(point * 10 < s.estimateScanCost());
+        assertEquals(Double.POSITIVE_INFINITY, s.estimateIndexScanCost(1, Predicate.Op.EQUALS, new IntField(1)), 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
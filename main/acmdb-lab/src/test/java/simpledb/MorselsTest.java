@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MorselsTest extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+    private static final int WORKERS = 4;
+
+    private HeapFile hf;
+    private BTreeFile bf;
+    private ArrayList<ArrayList<Integer>> heapTuples, treeTuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        heapTuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomTable("t", 2, ROWS, 50, heapTuples);
+        treeTuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile random = BTreeUtility.createRandomBTreeFile(2, ROWS, null, treeTuples, 0);
+        bf = BTreeUtility.openBTreeFile(2, "c", random.getFile(), 0);
+        Database.getCatalog().addTable(bf, "bt");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals("a core was not given back", Exchange.DEFAULT_WORKERS, Exchange.availableCores());
+    }
+
+    private DbIterator[] scans(int tableid, int readers) {
+        Morsels morsels = new Morsels(tid, tableid, readers);
+        DbIterator[] scans = new DbIterator[readers];
+        for (int i = 0; i < readers; i++)
+            scans[i] = new SeqScan(tid, "t", morsels);
+        return scans;
+    }
+
+    /**
+     * Scans sharing the morsels of a heap file or of the leaves of a B+ tree
+     * read each tuple once, and read the table again once they have all
+     * been closed.
+     */
+    @Test public void readsAllTuples() throws Exception {
+        Gather heap = new Gather(scans(hf.getId(), WORKERS));
+        Gather tree = new Gather(scans(bf.getId(), WORKERS));
+        for (int run = 0; run < 2; run++) {
+            heap.open();
+            assertEquals(SystemTestUtil.sorted(heapTuples), SystemTestUtil.sorted(SystemTestUtil.readTuples(heap)));
+            heap.rewind();
+            assertEquals(SystemTestUtil.sorted(heapTuples), SystemTestUtil.sorted(SystemTestUtil.readTuples(heap)));
+            heap.close();
+
+            assertEquals(SystemTestUtil.sorted(treeTuples), SystemTestUtil.sortedTuples(tree));
+        }
+    }
+
+    /**
+     * Pages go to the scans that ask for them: a scan read to the end
+     * before another one starts reads the whole table.
+     */
+    @Test public void morselsGoToReaders() throws Exception {
+        DbIterator[] scans = scans(hf.getId(), 2);
+        scans[0].open();
+        scans[1].open();
+        assertEquals(ROWS, SystemTestUtil.readTuples(scans[0]).size());
+        assertFalse(scans[1].hasNext());
+        scans[0].close();
+        scans[1].close();
+    }
+
+    /**
+     * A plan with several workers reads a B+ tree in morsels, and returns
+     * what the serial plan does.
+     */
+    @Test public void parallelPlanOverBTree() throws Exception {
+        HashMap<String, TableStats> stats = SystemTestUtil.statsFor("bt", bf);
+        String query = "SELECT bt.c1, COUNT(bt.c0) FROM bt WHERE bt.c0 > 100 GROUP BY bt.c1;";
+        ArrayList<ArrayList<Integer>> expected = null;
+        for (int workers : new int[] { 1, WORKERS }) {
+            LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+            lp.setWorkers(workers);
+            DbIterator plan = lp.physicalPlan(tid, stats, false);
+            boolean gathered = false;
+            for (DbIterator op = plan; op instanceof Operator; op = ((Operator) op).getChildren()[0])
+                gathered |= op instanceof Gather;
+            assertEquals(workers > 1, gathered);
+            ArrayList<ArrayList<Integer>> result = SystemTestUtil.sortedTuples(plan);
+            if (expected == null)
+                expected = result;
+            assertEquals(expected, result);
+        }
+    }
+
+    /**
+     * Queries running at the same time share the cores, and all give them
+     * back.
+     */
+    @Test public void concurrentQueries() throws Exception {
+        final int queries = 3;
+        // each thread sets its own entry; join() makes them visible here
+        final ArrayList<ArrayList<ArrayList<Integer>>> results = new ArrayList<ArrayList<ArrayList<Integer>>>(
+                Collections.<ArrayList<ArrayList<Integer>>>nCopies(queries, null));
+        Thread[] threads = new Thread[queries];
+        final Exception[] errors = new Exception[queries];
+        for (int q = 0; q < queries; q++) {
+            final Gather gather = new Gather(scans(hf.getId(), Exchange.DEFAULT_WORKERS + 1));
+            final int i = q;
+            threads[q] = new Thread(() -> {
+                try {
+                    results.set(i, SystemTestUtil.sortedTuples(gather));
+                } catch (Exception e) {
+                    errors[i] = e;
+                }
+            });
+            threads[q].start();
+        }
+        for (int q = 0; q < queries; q++) {
+            threads[q].join();
+            assertNull(errors[q]);
+            assertEquals(SystemTestUtil.sorted(heapTuples), results.get(q));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MorselsTest.class);
+    }
+}
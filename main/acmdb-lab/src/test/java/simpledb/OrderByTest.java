@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, 100, null, tuples);
+    }
+
+    /** @return the rows of the table, stably sorted on field 0 */
+    private ArrayList<ArrayList<Integer>> expected(boolean asc) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(result, (a, b) -> asc ? a.get(0).compareTo(b.get(0))
+                : b.get(0).compareTo(a.get(0)));
+        return result;
+    }
+
+    /**
+     * Opening an OrderBy again sorts its child again, instead of adding the
+     * tuples to those of the last open.
+     */
+    @Test public void reopen() throws Exception {
+        TransactionId tid = new TransactionId();
+        OrderBy op = new OrderBy(0, true, new SeqScan(tid, hf.getId()));
+        for (int i = 0; i < 2; i++) {
+            op.open();
+            assertEquals(expected(true), SystemTestUtil.readTuples(op));
+            op.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * With a small memory budget the tuples are sorted in many runs, by
+     * several workers, and still come out in a stable order; rewind starts
+     * the merge over.
+     */
+    @Test public void externalSort() throws Exception {
+        TransactionId tid = new TransactionId();
+        OrderBy op = new OrderBy(0, false, new SeqScan(tid, hf.getId()), 90, 2);
+        op.open();
+        for (int i = 0; i < ROWS / 2; i++)
+            op.next();
+        op.rewind();
+        assertEquals(expected(false), SystemTestUtil.readTuples(op));
+        op.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
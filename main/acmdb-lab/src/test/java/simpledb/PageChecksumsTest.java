@@ -0,0 +1,151 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageChecksumsTest extends SimpleDbTestBase {
+    private File f;
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = File.createTempFile("checksums", ".dat");
+        f.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        PageChecksums.discard(f);
+    }
+
+    private void flipByte(long offset) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0x40);
+        }
+    }
+
+    /**
+     * Unit test for PageChecksums.verify()
+     */
+    @Test public void verify() throws Exception {
+        PageChecksums checksums = PageChecksums.of(f);
+        byte[] data = HeapPage.createEmptyPageData();
+        data[17] = 5;
+        assertTrue(checksums.verify(3, data)); // no checksum yet
+        checksums.record(3, data);
+        assertTrue(checksums.verify(3, data));
+        data[17] = 6;
+        assertFalse(checksums.verify(3, data));
+        checksums.forget(3);
+        assertTrue(checksums.verify(3, data));
+    }
+
+    /**
+     * A page written through HeapFile.writePage and later damaged on disk is
+     * rejected when the buffer pool reads it.
+     */
+    @Test public void corruptPageIsDetected() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        hf.writePage(page);
+        assertNotNull(Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY));
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        flipByte(200);
+        try {
+            Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            fail("expected DbException for a corrupt page");
+        } catch (DbException e) {
+            // expected
+        }
+
+        // rewriting the page through writePage makes it readable again
+        hf.writePage(page);
+        assertNotNull(Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY));
+    }
+
+    /**
+     * A crash between the checksum entry and the page write leaves the old
+     * page on disk: it is still readable, and damage to it is still caught.
+     */
+    @Test public void crashBeforePageWrite() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        hf.writePage(page);
+
+        // the checksum of the next image is on disk, the image itself is not
+        HeapPage next = (HeapPage) hf.readPage(pid);
+        next.insertTuple(Utility.getHeapTuple(43, 2));
+        PageChecksums.of(f).record(0, next.getPageData());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapPage read = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(page.getNumEmptySlots(), read.getNumEmptySlots());
+        assertEquals(42, ((IntField) read.iterator().next().getField(0)).getValue());
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        flipByte(200);
+        try {
+            Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            fail("expected DbException for a corrupt page");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A page whose first checksummed write never reached the disk is read
+     * unverified, as it was before it had a checksum.
+     */
+    @Test public void firstWriteLost() throws Exception {
+        byte[] data = HeapPage.createEmptyPageData();
+        data[17] = 5;
+        PageChecksums checksums = PageChecksums.of(f);
+        checksums.record(3, data);
+        data[17] = 6;
+        assertTrue(checksums.verify(3, data));
+        assertTrue(checksums.verify(3, data));
+    }
+
+    /**
+     * Entries written before forceAll() and closeAll() are still there for
+     * the instance that replaces the closed one.
+     */
+    @Test public void entriesOutliveClose() throws Exception {
+        byte[] data = HeapPage.createEmptyPageData();
+        data[17] = 5;
+        PageChecksums.of(f).record(3, data);
+        PageChecksums.forceAll();
+        PageChecksums.closeAll();
+
+        PageChecksums reopened = PageChecksums.of(f);
+        assertTrue(reopened.verify(3, data));
+        data[17] = 6;
+        assertFalse(reopened.verify(3, data));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageChecksumsTest.class);
+    }
+}
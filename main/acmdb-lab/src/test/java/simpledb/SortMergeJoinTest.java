@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.ArrayList;
+
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator eqJoin;
+  DbIterator gtJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+    this.gtJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] {
+                    3, 4, 1, 2, 3, // 1, 2 < 3
+                    3, 4, 2, 3, 4,
+                    5, 6, 1, 2, 3, // 1, 2, 3, 4 < 5
+                    5, 6, 2, 3, 4,
+                    5, 6, 3, 4, 5,
+                    5, 6, 4, 5, 6,
+                    7, 8, 1, 2, 3, // 1, 2, 3, 4, 5 < 7
+                    7, 8, 2, 3, 4,
+                    7, 8, 3, 4, 5,
+                    7, 8, 4, 5, 6,
+                    7, 8, 5, 6, 7 });
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using a &gt; predicate
+   */
+  @Test public void gtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
+  /**
+   * A sort-merge join cannot join on != or LIKE.
+   */
+  @Test(expected = IllegalArgumentException.class) public void notEqualsJoin() {
+    new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan1, scan2);
+  }
+
+  /**
+   * With a small memory budget the sorts spill runs to disk, and the
+   * matching ranges do not fit in memory; every predicate still returns the
+   * same tuples as a nested loops join, also after a rewind.
+   */
+  @Test public void spillingJoins() throws Exception {
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, 300, 10, null,
+        new ArrayList<ArrayList<Integer>>());
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, 200, 10, null,
+        new ArrayList<ArrayList<Integer>>());
+    TransactionId tid = new TransactionId();
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+        Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+        Predicate.Op.GREATER_THAN_OR_EQ };
+    for (Predicate.Op op : ops) {
+      JoinPredicate pred = new JoinPredicate(0, op, 0);
+      ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(new Join(pred,
+          new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b")));
+      assertTrue(expected.size() > 0);
+
+      SortMergeJoin join = new SortMergeJoin(pred, new SeqScan(tid, table1.getId(), "a"),
+          new SeqScan(tid, table2.getId(), "b"), 16);
+      assertEquals(expected, SystemTestUtil.sortedTuples(join));
+
+      join.open();
+      for (int i = 0; i < expected.size() / 2; i++)
+        join.next();
+      join.rewind();
+      int cnt = 0;
+      while (join.hasNext()) {
+        join.next();
+        cnt++;
+      }
+      join.close();
+      assertEquals(expected.size(), cnt);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
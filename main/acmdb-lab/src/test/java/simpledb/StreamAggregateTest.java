@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class StreamAggregateTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, 100, null, tuples);
+        tid = new TransactionId();
+    }
+
+    /**
+     * Over a child sorted on the group-by field, the groups come out in
+     * order, with the same aggregates Aggregate computes.
+     */
+    @Test public void sortedChild() throws Exception {
+        Aggregator.Op[] ops = { Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.AVG,
+                Aggregator.Op.COUNT };
+        int[] afields = { 1, 1, 1, 1 };
+        StreamAggregate op = new StreamAggregate(new OrderBy(0, true, new SeqScan(tid, hf.getId())),
+                afields, new int[] { 0 }, ops);
+        Aggregate hashed = new Aggregate(new SeqScan(tid, hf.getId()), afields, new int[] { 0 }, ops);
+        assertEquals(hashed.getTupleDesc(), op.getTupleDesc());
+
+        TreeMap<Integer, ArrayList<Integer>> expected = new TreeMap<Integer, ArrayList<Integer>>();
+        hashed.open();
+        while (hashed.hasNext()) {
+            ArrayList<Integer> row = SystemTestUtil.tupleToList(hashed.next());
+            expected.put(row.get(0), row);
+        }
+        hashed.close();
+
+        op.open();
+        for (int pass = 0; pass < 2; pass++) {
+            assertEquals(new ArrayList<ArrayList<Integer>>(expected.values()),
+                    SystemTestUtil.readTuples(op));
+            op.rewind();
+        }
+        op.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The first group is returned once the child has been read past it,
+     * and without grouping there is a single result.
+     */
+    @Test public void streams() throws Exception {
+        TupleIterator child = TestUtil.createTupleList(2,
+                new int[] { 1, 5, 1, 7, 2, 3, 3, 4, 3, 6 });
+        StreamAggregate op = new StreamAggregate(child, 1, 0, Aggregator.Op.MAX);
+        op.open();
+        assertEquals(new IntField(7), op.next().getField(1));
+        assertTrue(child.hasNext());
+        op.close();
+
+        op = new StreamAggregate(TestUtil.createTupleList(2,
+                new int[] { 1, 5, 1, 7, 2, 3 }), 1, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+        op.open();
+        assertEquals(new IntField(15), op.next().getField(0));
+        assertFalse(op.hasNext());
+        op.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StreamAggregateTest.class);
+    }
+}
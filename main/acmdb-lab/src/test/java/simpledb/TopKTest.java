@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopKTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomTable("t", 2, ROWS, 100, tuples);
+    }
+
+    /** @return the first k rows of the table, stably sorted on field 0 */
+    private ArrayList<ArrayList<Integer>> expected(boolean asc, int k) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(result, (a, b) -> asc ? a.get(0).compareTo(b.get(0))
+                : b.get(0).compareTo(a.get(0)));
+        return new ArrayList<ArrayList<Integer>>(result.subList(0, Math.min(k, result.size())));
+    }
+
+    /**
+     * TopK returns what OrderBy followed by Limit does, ties included, for
+     * limits below, at and above the size of its child.
+     */
+    @Test public void matchesOrderByLimit() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (boolean asc : new boolean[] { true, false }) {
+            for (int k : new int[] { 0, 1, 7, 100, ROWS, ROWS + 5 }) {
+                TopK op = new TopK(0, asc, k, new SeqScan(tid, hf.getId()));
+                op.open();
+                assertEquals(expected(asc, k), SystemTestUtil.readTuples(op));
+                op.rewind();
+                assertEquals(expected(asc, k), SystemTestUtil.readTuples(op));
+                op.close();
+
+                Limit limit = new Limit(k, new OrderBy(0, asc, new SeqScan(tid, hf.getId())));
+                limit.open();
+                assertEquals(expected(asc, k), SystemTestUtil.readTuples(limit));
+                limit.close();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A trailing LIMIT is parsed, and with an ORDER BY it is planned as a
+     * TopK.
+     */
+    @Test public void parseLimit() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashMap<String, TableStats> stats = SystemTestUtil.statsFor("t", hf);
+        Parser p = new Parser();
+
+        DbIterator plan = p.generateLogicalPlan(tid,
+                "SELECT * FROM t ORDER BY t.c0 DESC LIMIT 10;").physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopK);
+        plan.open();
+        assertEquals(expected(false, 10), SystemTestUtil.readTuples(plan));
+        plan.close();
+
+        Parser.LimitedQuery q = Parser.stripLimit("select * from t limit 5");
+        assertEquals(5, q.limit);
+        assertEquals("select * from t;", q.query);
+        assertEquals(-1, Parser.stripLimit("select * from t;").limit);
+
+        plan = p.generateLogicalPlan(tid, "select * from t limit 5").physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+        plan.open();
+        assertEquals(new ArrayList<ArrayList<Integer>>(tuples.subList(0, 5)), SystemTestUtil.readTuples(plan));
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopKTest.class);
+    }
+}
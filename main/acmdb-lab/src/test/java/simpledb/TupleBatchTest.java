@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(3, ROWS, 100, null, tuples);
+    }
+
+    /** @return Project(c2, c0) over Filter(c1 < 40) over a scan of the table */
+    private DbIterator plan(TransactionId tid) {
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(0);
+        ArrayList<Type> types = new ArrayList<Type>();
+        types.add(Type.INT_TYPE);
+        types.add(Type.INT_TYPE);
+        return new Project(fields, types, new Filter(
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(40)), new SeqScan(tid, hf.getId())));
+    }
+
+    private ArrayList<ArrayList<Integer>> expected() {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> row : tuples) {
+            if (row.get(1) < 40) {
+                ArrayList<Integer> out = new ArrayList<Integer>();
+                out.add(row.get(2));
+                out.add(row.get(0));
+                result.add(out);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Filter and Project return the same tuples batch by batch as they do
+     * one at a time.
+     */
+    @Test public void filterAndProjectBatches() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator it = plan(tid);
+        it.open();
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        TupleBatch batch;
+        int batches = 0;
+        while ((batch = it.nextBatch()) != null) {
+            assertTrue(batch.size() > 0 && batch.size() <= TupleBatch.DEFAULT_SIZE);
+            for (int i = 0; i < batch.size(); i++) {
+                Tuple t = batch.getTuple(i);
+                assertEquals(it.getTupleDesc(), t.getTupleDesc());
+                assertNotNull(t.getRecordId());
+                result.add(SystemTestUtil.tupleToList(t));
+            }
+            batches++;
+        }
+        it.close();
+        assertEquals(expected(), result);
+        assertTrue(batches > 1);
+
+        it = plan(tid);
+        it.open();
+        assertEquals(expected(), SystemTestUtil.readTuples(it));
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Calls to next() and nextBatch() can be mixed, and rewind starts over.
+     */
+    @Test public void mixNextAndBatches() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator it = plan(tid);
+        it.open();
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        result.add(SystemTestUtil.tupleToList(it.next()));
+        assertTrue(it.hasNext());
+        TupleBatch batch = it.nextBatch();
+        for (int i = 0; i < batch.size(); i++)
+            result.add(SystemTestUtil.tupleToList(batch.getTuple(i)));
+        result.add(SystemTestUtil.tupleToList(it.next()));
+        while ((batch = it.nextBatch()) != null) {
+            for (int i = 0; i < batch.size(); i++)
+                result.add(SystemTestUtil.tupleToList(batch.getTuple(i)));
+        }
+        assertFalse(it.hasNext());
+        assertEquals(expected(), result);
+
+        it.rewind();
+        assertEquals(expected().get(0), SystemTestUtil.tupleToList(it.nextBatch().getTuple(0)));
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Filters on integer columns run over the int values, and others compare
+     * the fields.
+     */
+    @Test public void filterColumns() throws Exception {
+        TupleIterator source = TestUtil.createTupleList(2,
+                new Object[] { 1, "a", 2, "b", 3, "c", 4, "b", 5, "e" });
+        TupleBatch batch = source.nextBatch();
+        assertEquals(5, batch.size());
+        assertNull(source.nextBatch());
+
+        batch.filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(2)));
+        assertEquals(4, batch.size());
+        batch.filter(new Predicate(1, Predicate.Op.EQUALS, new StringField("b", Type.STRING_LEN)));
+        assertEquals(2, batch.size());
+        assertEquals(new IntField(2), batch.getField(0, 0));
+        assertEquals(new IntField(4), batch.getField(1, 0));
+
+        TupleBatch projected = batch.project(new int[] { 1 },
+                new TupleDesc(new Type[] { Type.STRING_TYPE }));
+        assertEquals(2, projected.size());
+        assertEquals(new StringField("b", Type.STRING_LEN), projected.getTuple(1).getField(0));
+        batch.skip(1);
+        assertEquals(1, batch.size());
+        assertEquals(new IntField(4), batch.getField(0, 0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}
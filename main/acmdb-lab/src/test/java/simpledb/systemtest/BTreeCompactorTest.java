@@ -0,0 +1,234 @@
+package simpledb.systemtest;
+
+import simpledb.*;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompactorTest extends SimpleDbTestBase {
+	private static final int ROWS = 31000;
+
+	private BTreeFile bf;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private Random r;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, tuples, 0);
+		Database.resetBufferPool(1000);
+		r = new Random(38);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		PageChecksums.discard(bf.getFile());
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/** Delete a random fraction of the tuples, and return the rest */
+	private ArrayList<Integer> delete(double fraction) throws Exception {
+		TransactionId tid = new TransactionId();
+		ArrayList<Integer> kept = new ArrayList<Integer>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		ArrayList<Tuple> all = new ArrayList<Tuple>();
+		while (it.hasNext())
+			all.add(it.next());
+		it.close();
+		for (Tuple t : all) {
+			IntField key = (IntField) t.getField(0);
+			if (r.nextDouble() < fraction) {
+				// tuples move as leaves rebalance, so look each one up again
+				it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+				it.open();
+				Database.getBufferPool().deleteTuple(tid, it.next());
+				it.close();
+			} else {
+				kept.add(key.getValue());
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		return kept;
+	}
+
+	private ArrayList<Integer> contents(TransactionId tid) throws Exception {
+		ArrayList<Integer> result = new ArrayList<Integer>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			result.add(((IntField) it.next().getField(0)).getValue());
+		it.close();
+		return result;
+	}
+
+	/** @return the number of tuples on each leaf, from left to right */
+	private ArrayList<Integer> leafSizes(TransactionId tid) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			pid = p.iterator().next().getLeftChild();
+		}
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		while (pid != null) {
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			sizes.add(leaf.getNumTuples());
+			pid = leaf.getRightSiblingId();
+		}
+		return sizes;
+	}
+
+	/**
+	 * After deleting half of the tuples, compaction packs the leaves to the
+	 * fill factor and gives the freed pages back by shrinking the file.
+	 */
+	@Test public void compactAfterDeletes() throws Exception {
+		ArrayList<Integer> kept = delete(0.5);
+		int before = bf.numPages();
+
+		BTreeCompactor compactor = new BTreeCompactor(bf, 0.9, 8);
+		compactor.compact();
+		assertTrue(compactor.getPagesMerged() > 0);
+		assertTrue(compactor.getPagesTruncated() > 0);
+		assertFalse(compactor.step());
+
+		// the tree is still valid, holds the same tuples, and its leaves are
+		// all but the last two filled to at least the fill factor
+		Database.resetBufferPool(1000);
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Collections.sort(kept);
+		assertEquals(kept, contents(tid));
+		ArrayList<Integer> sizes = leafSizes(tid);
+		int full = (int) (0.9 * BTreeUtility.getNumTuplesPerPage(2));
+		for (int i = 0; i < sizes.size() - 2; i++)
+			assertTrue(sizes.get(i) >= full);
+		assertTrue(bf.numPages() < before * 0.65);
+
+		// the file still grows and shrinks as usual
+		for (int i = 0; i < 2000; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(),
+					BTreeUtility.getBTreeTuple(new int[] { r.nextInt(BTreeUtility.MAX_RAND_VALUE), i }));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(kept.size() + 2000, contents(tid).size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * With small pages the tree has a level of internal pages, which are
+	 * merged too once their children have been.
+	 */
+	@Test public void compactInternalPages() throws Exception {
+		PageChecksums.discard(bf.getFile());
+		BufferPool.setPageSize(1024);
+
+		// 252 leaves under three internal pages
+		bf = BTreeUtility.createRandomBTreeFile(2, 31125, null, tuples, 0);
+		Database.resetBufferPool(1000);
+		ArrayList<Integer> kept = delete(0.7);
+		int before = bf.numPages();
+
+		new BTreeCompactor(bf).compact();
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Collections.sort(kept);
+		assertEquals(kept, contents(tid));
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+		assertTrue(bf.numPages() < before * 0.45);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A tree that has never had a tuple has no root, and compacting it does
+	 * nothing.
+	 */
+	@Test public void compactEmptyTree() throws Exception {
+		PageChecksums.discard(bf.getFile());
+		java.io.File f = java.io.File.createTempFile("empty", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+
+		BTreeCompactor compactor = new BTreeCompactor(bf);
+		compactor.compact();
+		assertEquals(0, compactor.getPagesMerged());
+		assertEquals(0, compactor.getPagesMoved());
+		assertEquals(0, compactor.getPagesTruncated());
+		assertFalse(compactor.step());
+	}
+
+	/**
+	 * Compaction runs concurrently with transactions inserting into the
+	 * tree, under the normal page locks.
+	 */
+	@Test public void compactWhileInserting() throws Exception {
+		ArrayList<Integer> kept = delete(0.5);
+		final BTreeCompactor compactor = new BTreeCompactor(bf, 0.9, 4);
+		final Exception[] error = new Exception[1];
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					compactor.compact();
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		t.start();
+
+		for (int i = 0; i < 300; i++) {
+			int key = r.nextInt(BTreeUtility.MAX_RAND_VALUE);
+			while (true) {
+				TransactionId tid = new TransactionId();
+				try {
+					Database.getBufferPool().insertTuple(tid, bf.getId(),
+							BTreeUtility.getBTreeTuple(new int[] { key, i }));
+					Database.getBufferPool().transactionComplete(tid);
+					break;
+				} catch (TransactionAbortedException e) {
+					Database.getBufferPool().transactionComplete(tid, false);
+				}
+			}
+			kept.add(key);
+		}
+		t.join();
+		if (error[0] != null)
+			throw error[0];
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Collections.sort(kept);
+		assertEquals(kept, contents(tid));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompactorTest.class);
+	}
+}
@@ -278,6 +278,79 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		
 	}
 
+	/** @return the keys in the file, in order */
+	private ArrayList<Integer> keys(BTreeFile f) throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while(it.hasNext())
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		it.close();
+		return keys;
+	}
+
+	@Test public void addTuplesBatch() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+
+		// a shuffled batch into an empty file is sorted and fills its pages
+		ArrayList<Tuple> batch = new ArrayList<Tuple>();
+		for (int i = 0; i < 5000; ++i)
+			batch.add(BTreeUtility.getBTreeTuple(i, 2));
+		Collections.shuffle(batch, new Random(39));
+		Database.getBufferPool().insertTuples(tid, empty.getId(), batch);
+
+		// ten leaf pages under a root
+		assertEquals(11, empty.numPages());
+		BTreeChecker.checkRep(empty, tid, new HashMap<PageId, Page>(), true);
+		ArrayList<Integer> keys = keys(empty);
+		assertEquals(5000, keys.size());
+		for (int i = 0; i < 5000; ++i)
+			assertEquals(i, (int) keys.get(i));
+		for (Tuple t : batch)
+			assertNotNull(t.getRecordId());
+	}
+
+	@Test public void addTuplesBatchToExistingTree() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+		Database.resetBufferPool(500);
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for (ArrayList<Integer> t : tuples)
+			expected.add(t.get(0));
+
+		// random keys, many of them duplicates of keys in the tree, through Insert
+		Random r = new Random(39);
+		ArrayList<Tuple> batch = new ArrayList<Tuple>();
+		for (int i = 0; i < 2 * Insert.BATCH_SIZE + 100; ++i) {
+			int key = r.nextBoolean() ? tuples.get(r.nextInt(tuples.size())).get(0) : r.nextInt(BTreeUtility.MAX_RAND_VALUE);
+			batch.add(BTreeUtility.getBTreeTuple(new int[] { key, i }));
+			expected.add(key);
+		}
+		Insert insert = new Insert(tid, new TupleIterator(bigFile.getTupleDesc(), batch), bigFile.getId());
+		insert.open();
+		assertEquals(batch.size(), ((IntField) insert.next().getField(0)).getValue());
+		insert.close();
+
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<PageId, Page>(), true);
+		Collections.sort(expected);
+		assertEquals(expected, keys(bigFile));
+
+		// a run of keys past the end of the tree fills new pages completely
+		int before = bigFile.numPages();
+		batch.clear();
+		for (int i = 0; i < 5020; ++i) {
+			batch.add(BTreeUtility.getBTreeTuple(new int[] { BTreeUtility.MAX_RAND_VALUE + i, i }));
+			expected.add(BTreeUtility.MAX_RAND_VALUE + i);
+		}
+		Database.getBufferPool().insertTuples(tid, bigFile.getId(), batch);
+		assertTrue(bigFile.numPages() <= before + 11);
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(expected, keys(bigFile));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -278,7 +278,53 @@ public class BTreeScanTest extends SimpleDbTestBase {
         if(leafPageCount < LEAF_PAGES)
         	leafPageCount++; // +1 for next key locking
         assertEquals(leafPageCount + 2, table.readCount);
-        
+
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test bounded range scans in both directions, and that they stop at the end of the range */
+    @Test public void testRangeAndReverse() throws Exception {
+        final int LEAF_PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, 0);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+
+        // keys are 1 .. LEAF_PAGES*502
+        int lo = 1 + r.nextInt(LEAF_PAGES*502 - 2000);
+        int hi = lo + 1000 + r.nextInt(1000);
+        IndexPredicate lower = new IndexPredicate(Op.GREATER_THAN, new IntField(lo));
+        IndexPredicate upper = new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(hi));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples.subList(lo, hi));
+
+        for (boolean reverse : new boolean[] { false, true }) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            table.readCount = 0;
+            BTreeScan scan = new BTreeScan(tid, f.getId(), "table", lower, upper, reverse);
+            scan.open();
+            for (int i = 0; i < expected.size(); ++i) {
+                assertTrue(scan.hasNext());
+                int pos = reverse ? expected.size() - 1 - i : i;
+                assertEquals(expected.get(pos), SystemTestUtil.tupleToList(scan.next()));
+            }
+            assertFalse(scan.hasNext());
+            scan.close();
+            // root pointer page + root + the leaves overlapping the range
+            assertTrue(table.readCount <= 2 + (hi - lo) / 502 + 2);
+        }
+
+        // an unbounded reverse scan returns the whole table in descending order
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table", null, null, true);
+        scan.open();
+        for (int i = tuples.size() - 1; i >= 0; --i) {
+            assertTrue(scan.hasNext());
+            assertEquals(tuples.get(i), SystemTestUtil.tupleToList(scan.next()));
+        }
+        assertFalse(scan.hasNext());
+        scan.rewind();
+        assertEquals(tuples.get(tuples.size() - 1), SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
         Database.getBufferPool().transactionComplete(tid);
     }
 
@@ -0,0 +1,187 @@
+package simpledb.systemtest;
+
+import simpledb.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(
+			new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, new String[] { "s", "i" });
+
+	private TransactionId tid;
+	private BTreeFile bf;
+	private Random r;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that the trees get several levels of internal pages
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(5000);
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		PageChecksums.discard(f);
+		bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf);
+		tid = new TransactionId();
+		r = new Random(35);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		PageChecksums.discard(bf.getFile());
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static Tuple tuple(String s, int i) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(s, Type.STRING_LEN));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	private String randomString(int len) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < len; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		return sb.toString();
+	}
+
+	private ArrayList<String> insert(int n, String prefix) throws Exception {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < n; i++) {
+			String s = prefix + randomString(1 + r.nextInt(12));
+			keys.add(s);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(s, i));
+		}
+		return keys;
+	}
+
+	private ArrayList<String> contents() throws Exception {
+		ArrayList<String> result = new ArrayList<String>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			result.add(((StringField) it.next().getField(0)).getValue());
+		it.close();
+		return result;
+	}
+
+	private int count(String key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS,
+				new StringField(key, Type.STRING_LEN)));
+		it.open();
+		int n = 0;
+		while (it.hasNext()) {
+			assertEquals(key, ((StringField) it.next().getField(0)).getValue());
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	private BTreeInternalPage root() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Internal pages store short separators in variable-length form, so
+	 * they hold many more entries than fixed-size string keys would allow.
+	 */
+	@Test public void fanout() throws Exception {
+		ArrayList<String> keys = insert(3000, "");
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		// fixed-size keys: (1024 * 8 - 73) / ((132 + 4) * 8 + 1) = 7 entries;
+		// separators of random strings take 4 + 1 + 2 or 3 bytes
+		BTreeInternalPage page = root();
+		while (page.iterator().next().getLeftChild().pgcateg() == BTreePageId.INTERNAL) {
+			assertTrue(page.getNumEntries() > 1);
+			page = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, page.iterator().next().getLeftChild(), Permissions.READ_ONLY);
+		}
+		assertTrue(page.getNumEntries() > 40);
+
+		Collections.sort(keys);
+		assertEquals(keys, contents());
+		for (int i = 0; i < keys.size(); i += 97)
+			assertEquals(Collections.frequency(keys, keys.get(i)), count(keys.get(i)));
+	}
+
+	/**
+	 * Keys with long common prefixes make long separators; a tree mixing
+	 * them with short ones stays consistent through splits, redistribution
+	 * and merges of internal pages.
+	 */
+	@Test public void insertAndDeleteMixedLengths() throws Exception {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int k = 0; k < 300; k++) keys.addAll(insert(30, randomString(r.nextInt(115))));
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Collections.sort(keys);
+		assertEquals(keys, contents());
+
+		// delete nine tenths of the tuples in random order
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			tuples.add(it.next());
+		it.close();
+		Collections.shuffle(tuples, r);
+		for (Tuple t : tuples.subList(0, tuples.size() * 9 / 10)) {
+			Database.getBufferPool().deleteTuple(tid, t);
+			keys.remove(((StringField) t.getField(0)).getValue());
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		assertEquals(keys, contents());
+		for (int i = 0; i < keys.size(); i += 31)
+			assertEquals(Collections.frequency(keys, keys.get(i)), count(keys.get(i)));
+	}
+
+	/**
+	 * Bulk loading packs the separators of a string-keyed tree by size.
+	 */
+	@Test public void bulkLoad() throws Exception {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			String s = (i % 3 == 0 ? "prefix-" + randomString(60) : "") + randomString(1 + r.nextInt(12));
+			keys.add(s);
+			tuples.add(tuple(s, i));
+		}
+		Collections.sort(tuples, new TupleComparator(0));
+		BTreeFileEncoder.bulkLoad(bf, tuples, BufferPool.getPageSize());
+		Database.resetBufferPool(5000);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		Collections.sort(keys);
+		assertEquals(keys, contents());
+		for (int i = 0; i < keys.size(); i += 53)
+			assertEquals(Collections.frequency(keys, keys.get(i)), count(keys.get(i)));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
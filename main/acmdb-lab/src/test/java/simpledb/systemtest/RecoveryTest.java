@@ -0,0 +1,320 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+
+public class RecoveryTest extends SimpleDbTestBase {
+    private static final int ROWS_PER_PAGE = 504; // two int columns
+
+    @After public void tearDown() {
+        LogSegments.resetSegmentSize();
+    }
+
+    private static File createDir(String name) throws IOException {
+        File dir = File.createTempFile(name, "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static HeapFile createTable(String name) throws IOException {
+        File f = File.createTempFile(name, ".dat");
+        f.deleteOnExit();
+        f.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        return hf;
+    }
+
+    private static void insert(HeapFile hf, Transaction t, int value)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(value, 2));
+    }
+
+    private static HashSet<Integer> values(HeapFile hf)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        HashSet<Integer> result = new HashSet<Integer>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext())
+            result.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        t.commit();
+        return result;
+    }
+
+    /** Throw away every in-memory structure, as a crash would, and recover
+        the tables from their files and the log. */
+    private static HeapFile[] crashAndRecover(HeapFile... tables)
+            throws IOException, InterruptedException {
+        Database.reset();
+        HeapFile[] reopened = new HeapFile[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            reopened[i] = new HeapFile(tables[i].getFile(), tables[i].getTupleDesc());
+            Database.getCatalog().addTable(reopened[i], "t" + i);
+        }
+        Database.getLogFile().recover();
+        Database.getLogFile().awaitUndo();
+        return reopened;
+    }
+
+    /** Rollback restores pages that reached disk before the abort. */
+    @Test public void abortUndoesFlushedPages() throws Exception {
+        HeapFile hf = createTable("rollback");
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(hf, t1, 1);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(hf, t2, 2);
+        // steal: the uncommitted page is written out
+        Database.getBufferPool().flushAllPages();
+        t2.abort();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(new HashSet<Integer>(java.util.Arrays.asList(1)), values(hf));
+    }
+
+    /** Committed updates lost from the data file are redone and the
+        updates of a transaction running at the crash are undone. */
+    @Test public void redoCommittedUndoLosers() throws Exception {
+        HeapFile committed = createTable("redo");
+        HeapFile loser = createTable("undo");
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 3 * ROWS_PER_PAGE; i++)
+            insert(committed, t1, i);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(loser, t2, 7);
+        Database.getBufferPool().flushAllPages();
+
+        // lose the committed writes
+        for (int i = 0; i < committed.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(committed.getId(), i);
+            committed.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        }
+
+        HeapFile[] tables = crashAndRecover(committed, loser);
+        HashSet<Integer> expected = new HashSet<Integer>();
+        for (int i = 0; i < 3 * ROWS_PER_PAGE; i++)
+            expected.add(i);
+        assertEquals(expected, values(tables[0]));
+        assertTrue(values(tables[1]).isEmpty());
+    }
+
+    /** @return the first field of the tuples the index finds for key */
+    private static HashSet<Integer> lookup(BTreeIndex index, int key)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        HashSet<Integer> result = new HashSet<Integer>();
+        DbFileIterator it = index.iterator(t.getId(), new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        while (it.hasNext())
+            result.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        t.commit();
+        return result;
+    }
+
+    /** The B+ tree pages of a secondary index are rolled back on abort,
+        and redone or undone by recovery, along with its heap table. */
+    @Test public void secondaryIndexIsRecovered() throws Exception {
+        HeapFile hf = createTable("indexed");
+        File f = File.createTempFile("indexed", ".idx");
+        f.deleteOnExit();
+        BTreeIndex index = BTreeIndex.build("indexed_c1", hf.getId(), 1, f);
+        Database.getCatalog().addIndex(index);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 1, 10 }));
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 2, 20 }));
+        Database.getBufferPool().flushAllPages();
+        t2.abort();
+        assertTrue(lookup(index, 20).isEmpty());
+
+        // still running at the crash
+        Transaction t3 = new Transaction();
+        t3.start();
+        Database.getBufferPool().insertTuple(t3.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 3, 30 }));
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, "t0");
+        BTreeFile bf = new BTreeFile(f, index.getFile().keyFields(), index.getFile().getTupleDesc());
+        index = new BTreeIndex("indexed_c1", reopened.getId(), 1, bf);
+        Database.getCatalog().addIndex(index);
+        Database.getLogFile().recover();
+        Database.getLogFile().awaitUndo();
+
+        assertEquals(new HashSet<Integer>(java.util.Arrays.asList(1)), values(reopened));
+        assertEquals(new HashSet<Integer>(java.util.Arrays.asList(1)), lookup(index, 10));
+        assertTrue(lookup(index, 20).isEmpty());
+        assertTrue(lookup(index, 30).isEmpty());
+        PageChecksums.discard(f);
+    }
+
+    /** Recovery picks the image of the last transaction to touch each page,
+        across many pages redone in parallel. */
+    @Test public void lastWriterWinsAcrossPages() throws Exception {
+        ArrayList<HeapFile> files = new ArrayList<HeapFile>();
+        for (int i = 0; i < 8; i++)
+            files.add(createTable("pages" + i));
+        for (int round = 0; round < 3; round++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (HeapFile hf : files)
+                insert(hf, t, round);
+            if (round == 2) {
+                Database.getBufferPool().flushAllPages();
+                break; // still running at the crash
+            }
+            t.commit();
+        }
+
+        HeapFile[] tables = crashAndRecover(files.toArray(new HeapFile[0]));
+        for (HeapFile hf : tables)
+            assertEquals(new HashSet<Integer>(java.util.Arrays.asList(0, 1)), values(hf));
+
+        // the recovered log accepts new transactions
+        Transaction t = new Transaction();
+        t.start();
+        insert(tables[0], t, 9);
+        t.commit();
+        assertEquals(new HashSet<Integer>(java.util.Arrays.asList(0, 1, 9)), values(tables[0]));
+    }
+
+    /** A base backup rolled forward through the archived log reaches any
+        point in time after it, rolling back what had not committed. */
+    @Test public void pointInTimeRestore() throws Exception {
+        LogSegments.setSegmentSize(16 * 1024); // two update records per segment
+        File archive = createDir("archive");
+        File backup = createDir("backup");
+        HeapFile hf = createTable("restore");
+        Database.getLogFile().setArchiveDirectory(archive);
+
+        Transaction t = new Transaction();
+        t.start();
+        insert(hf, t, 1);
+        t.commit();
+        Database.getLogFile().backup(backup);
+
+        for (int value = 2; value <= 5; value++) {
+            t = new Transaction();
+            t.start();
+            insert(hf, t, value);
+            t.commit();
+        }
+        Thread.sleep(5);
+        long when = System.currentTimeMillis();
+        Thread.sleep(5);
+        t = new Transaction();
+        t.start();
+        insert(hf, t, 6);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(archive.list().length > 0);
+
+        // still running when the log ends
+        t = new Transaction();
+        t.start();
+        insert(hf, t, 7);
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, "t0");
+        Database.getLogFile().setArchiveDirectory(archive);
+        Database.getLogFile().restore(backup, Long.MAX_VALUE, when);
+        assertEquals(new HashSet<Integer>(java.util.Arrays.asList(1, 2, 3, 4, 5)), values(reopened));
+
+        // the backup is untouched, so it can be rolled forward again
+        Database.reset();
+        reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, "t0");
+        Database.getLogFile().setArchiveDirectory(archive);
+        Database.getLogFile().restore(backup, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(new HashSet<Integer>(java.util.Arrays.asList(1, 2, 3, 4, 5, 6)), values(reopened));
+
+        for (File dir : new File[] {archive, backup}) {
+            for (File f : dir.listFiles())
+                f.delete();
+        }
+    }
+
+    /** Restore rolls the B+ tree file of a secondary index forward along
+        with its table. */
+    @Test public void restoreIndexedTable() throws Exception {
+        File archive = createDir("archive");
+        File backup = createDir("backup");
+        HeapFile hf = createTable("restored");
+        File f = File.createTempFile("restored", ".idx");
+        f.deleteOnExit();
+        BTreeIndex index = BTreeIndex.build("restored_c1", hf.getId(), 1, f);
+        Database.getCatalog().addIndex(index);
+        Database.getLogFile().setArchiveDirectory(archive);
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 1, 10 }));
+        t.commit();
+        Database.getLogFile().backup(backup);
+
+        t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 2, 20 }));
+        t.commit();
+        Thread.sleep(5);
+        long when = System.currentTimeMillis();
+        Thread.sleep(5);
+        t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 3, 30 }));
+        t.commit();
+
+        Database.reset();
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, "t0");
+        BTreeFile bf = new BTreeFile(f, index.getFile().keyFields(), index.getFile().getTupleDesc());
+        index = new BTreeIndex("restored_c1", reopened.getId(), 1, bf);
+        Database.getCatalog().addIndex(index);
+        Database.getLogFile().setArchiveDirectory(archive);
+        Database.getLogFile().restore(backup, Long.MAX_VALUE, when);
+
+        assertEquals(new HashSet<Integer>(java.util.Arrays.asList(1, 2)), values(reopened));
+        assertEquals(new HashSet<Integer>(java.util.Arrays.asList(2)), lookup(index, 20));
+        assertTrue(lookup(index, 30).isEmpty());
+
+        PageChecksums.discard(f);
+        for (File dir : new File[] {archive, backup}) {
+            for (File g : dir.listFiles())
+                g.delete();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
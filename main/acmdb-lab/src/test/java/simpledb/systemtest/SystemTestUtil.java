@@ -3,6 +3,8 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -94,6 +96,92 @@ public class SystemTestUtil {
         return list;
     }
 
+    /**
+     * @return the remaining tuples of an open iterator, as lists, in the
+     *         order it returns them
+     */
+    public static ArrayList<ArrayList<Integer>> readTuples(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            result.add(tupleToList(it.next()));
+        return result;
+    }
+
+    /**
+     * Opens an iterator, reads all its tuples and closes it.
+     *
+     * @return the tuples as lists, in the order of {@link #sorted}, to
+     *         compare results returned in no particular order
+     */
+    public static ArrayList<ArrayList<Integer>> sortedTuples(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        it.open();
+        ArrayList<ArrayList<Integer>> result = readTuples(it);
+        it.close();
+        return sorted(result);
+    }
+
+    /**
+     * Opens a file iterator, reads all its tuples and closes it.
+     *
+     * @see #sortedTuples(DbIterator)
+     */
+    public static ArrayList<ArrayList<Integer>> sortedTuples(DbFileIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            result.add(tupleToList(it.next()));
+        it.close();
+        return sorted(result);
+    }
+
+    /**
+     * @return the tuples whose field compares to value with op, in the
+     *         order of {@link #sorted}
+     */
+    public static ArrayList<ArrayList<Integer>> sortedMatching(List<ArrayList<Integer>> tuples,
+            int field, Predicate.Op op, int value) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> row : tuples) {
+            if (new IntField(row.get(field)).compare(op, new IntField(value)))
+                result.add(row);
+        }
+        return sorted(result);
+    }
+
+    /**
+     * @return a copy of tuples in a fixed order, so that two lists of the
+     *         same tuples are equal
+     */
+    public static ArrayList<ArrayList<Integer>> sorted(List<ArrayList<Integer>> tuples) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(result, (a, b) -> a.toString().compareTo(b.toString()));
+        return result;
+    }
+
+    /**
+     * Creates a random heap file with fields c0, c1, ... and adds it to the
+     * catalog as a table.
+     */
+    public static HeapFile createRandomTable(String name, int columns, int rows, int maxValue,
+            ArrayList<ArrayList<Integer>> tuples) throws IOException, DbException, TransactionAbortedException {
+        HeapFile hf = createRandomHeapFile(columns, rows, maxValue, null, tuples, "c");
+        Database.getCatalog().addTable(hf, name);
+        return hf;
+    }
+
+    /**
+     * @return the statistics of a table for the planner, as
+     *         {@link TableStats#getStatsMap} holds them
+     */
+    public static HashMap<String, TableStats> statsFor(String name, DbFile f) {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(f.getId(), 1000));
+        return stats;
+    }
+
     public static void matchTuples(DbFile f, List<ArrayList<Integer>> tuples)
             throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();